@@ -0,0 +1,118 @@
+package ika.bench;
+
+import ika.geo.GeoGrid;
+import ika.geoexport.ESRIASCIIGridWriter;
+import ika.geoimport.EsriASCIIGridReader;
+import ika.geoimport.MappedEsriASCIIGridReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for reading and writing ESRI ASCII grid files. Files are read
+ * with EsriASCIIGridReader and with the parallel MappedEsriASCIIGridReader.
+ * The files are written to the temporary directory.
+ *
+ * @author jenny
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AsciiGridBenchmark {
+
+    private static final float NO_DATA_VALUE = -9999;
+
+    @Param({"512", "2048"})
+    public int size;
+
+    @Param({"0", "0.05"})
+    public double voidRatio;
+
+    private GeoGrid grid;
+
+    /**
+     * A file written in setup() that is read by read().
+     */
+    private File inputFile;
+
+    /**
+     * The file written by write().
+     */
+    private File outputFile;
+
+    @Setup
+    public void setup() throws IOException {
+        grid = SyntheticDEM.create(size, voidRatio);
+        inputFile = File.createTempFile("bench", ".asc");
+        outputFile = File.createTempFile("bench", ".asc");
+        write(grid, inputFile);
+    }
+
+    @TearDown
+    public void tearDown() {
+        inputFile.delete();
+        outputFile.delete();
+    }
+
+    @Benchmark
+    public GeoGrid read() throws IOException {
+        return EsriASCIIGridReader.read(inputFile.getPath());
+    }
+
+    @Benchmark
+    public GeoGrid readMapped() throws IOException {
+        return MappedEsriASCIIGridReader.read(inputFile.getPath());
+    }
+
+    @Benchmark
+    public GeoGrid readMappedOffHeap() throws IOException {
+        GeoGrid grid = MappedEsriASCIIGridReader.read(inputFile.getPath(), null, 0);
+        grid.getStorage().dispose();
+        return grid;
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        write(grid, outputFile);
+        return outputFile.length();
+    }
+
+    private static void write(GeoGrid grid, File file) throws IOException {
+        final int cols = grid.getCols();
+        final int rows = grid.getRows();
+        PrintWriter printWriter = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+        try {
+            ESRIASCIIGridWriter writer = new ESRIASCIIGridWriter(printWriter,
+                    cols, rows, grid.getWest(), grid.getSouth(),
+                    grid.getCellSize(), NO_DATA_VALUE);
+            float[] buffer = new float[cols];
+            for (int r = 0; r < rows; r++) {
+                float[] row = grid.getRow(r, buffer);
+                for (int c = 0; c < cols; c++) {
+                    writer.write(row[c]);
+                }
+                writer.newLine();
+            }
+        } finally {
+            printWriter.close();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package ika.bench;
+
+import ika.geo.GeoGrid;
+import ika.geo.GeoObject;
+import ika.geo.GeoSet;
+import ika.geo.grid.Contourer;
+import ika.geo.grid.MultiLevelContourer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for contouring. Contourer traces each level separately and is
+ * therefore only tested with small grids.
+ *
+ * @author jenny
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ContourBenchmark {
+
+    @Param({"256", "1024"})
+    public int size;
+
+    @Param({"0", "0.05"})
+    public double voidRatio;
+
+    @Param({"50"})
+    public double interval;
+
+    private GeoGrid grid;
+
+    @Setup
+    public void setup() {
+        grid = SyntheticDEM.create(size, voidRatio);
+    }
+
+    @Benchmark
+    public GeoObject contourer() {
+        Contourer contourer = new Contourer();
+        contourer.setInterval(interval);
+        return contourer.operate(grid);
+    }
+
+    @Benchmark
+    public GeoSet multiLevelContourer() {
+        MultiLevelContourer contourer = new MultiLevelContourer();
+        contourer.setInterval(interval);
+        return contourer.operate(grid);
+    }
+}
@@ -0,0 +1,69 @@
+package ika.bench;
+
+import ika.geo.GeoGrid;
+import ika.geo.grid.GridGaussLowPassOperator;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the Gaussian low pass filter with small standard deviations
+ * that use convolution kernels and large standard deviations that use the
+ * recursive filter. The convolution and the recursive filter are also
+ * benchmarked for the same standard deviations. The accuracy of the recursive
+ * filter is tested by GridGaussLowPassOperatorTest.
+ *
+ * @author jenny
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GaussLowPassBenchmark {
+
+    @Param({"512", "2048"})
+    public int size;
+
+    @Param({"0", "0.05"})
+    public double voidRatio;
+
+    @Param({"1", "5", "20", "50"})
+    public double std;
+
+    private GeoGrid grid;
+
+    @Setup
+    public void setup() {
+        grid = SyntheticDEM.create(size, voidRatio);
+    }
+
+    @Benchmark
+    public GeoGrid gaussLowPass() {
+        return new GridGaussLowPassOperator(std).operate(grid);
+    }
+
+    @Benchmark
+    public GeoGrid convolution() {
+        GridGaussLowPassOperator op = new GridGaussLowPassOperator(std);
+        op.setMinRecursiveStandardDeviation(Double.POSITIVE_INFINITY);
+        return op.operate(grid);
+    }
+
+    @Benchmark
+    public GeoGrid recursive() {
+        GridGaussLowPassOperator op = new GridGaussLowPassOperator(std);
+        op.setMinRecursiveStandardDeviation(0.5);
+        return op.operate(grid);
+    }
+}
@@ -0,0 +1,72 @@
+package ika.bench;
+
+import ika.geo.GeoGrid;
+import ika.geo.grid.Convolution5x5;
+import ika.geo.grid.GaussianPyramid;
+import ika.geo.grid.GridShadeOperator;
+import ika.geo.grid.GridSlopeOperator;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for neighborhood operators that are applied to every grid
+ * loaded or rendered.
+ *
+ * @author jenny
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GridFilterBenchmark {
+
+    @Param({"512", "2048"})
+    public int size;
+
+    @Param({"0", "0.05"})
+    public double voidRatio;
+
+    private GeoGrid grid;
+
+    @Setup
+    public void setup() {
+        grid = SyntheticDEM.create(size, voidRatio);
+    }
+
+    @Benchmark
+    public GeoGrid convolve() {
+        return new Convolution5x5().convolve(grid);
+    }
+
+    @Benchmark
+    public GeoGrid convolveToHalfSize() {
+        return new Convolution5x5().convolveToHalfSize(grid);
+    }
+
+    @Benchmark
+    public GeoGrid[] gaussianPyramid() {
+        return GaussianPyramid.createPyramid(grid, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public GeoGrid shade() {
+        return new GridShadeOperator().operate(grid);
+    }
+
+    @Benchmark
+    public GeoGrid slope() {
+        return new GridSlopeOperator().operate(grid);
+    }
+}
@@ -0,0 +1,81 @@
+package ika.bench;
+
+import ch.ethz.karto.map3d.Map3DModelBuffers;
+import ch.ethz.karto.map3d.Map3DTexture1DMapper;
+import ika.geo.GeoGrid;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the texture buffers passed to OpenGL by the 3D view, for a
+ * complete texture and for a band of dirty rows.
+ *
+ * @author jenny
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class Map3DModelBuffersBenchmark {
+
+    @Param({"1024", "4096"})
+    public int size;
+
+    /**
+     * Number of dirty rows.
+     */
+    @Param({"64"})
+    public int dirtyRows;
+
+    private float[][] grid;
+
+    private float cellSize;
+
+    private Map3DTexture1DMapper mapper;
+
+    @Setup
+    public void setup() {
+        GeoGrid geoGrid = SyntheticDEM.create(size, 0);
+        grid = geoGrid.getGrid();
+        cellSize = (float) geoGrid.getCellSize();
+        float[] minMax = geoGrid.getMinMax();
+        mapper = new Map3DTexture1DMapper();
+        mapper.init(grid, minMax[0], minMax[1]);
+    }
+
+    @Benchmark
+    public FloatBuffer heightTexture() {
+        return Map3DModelBuffers.heightTexture(grid, cellSize, 0, size);
+    }
+
+    @Benchmark
+    public FloatBuffer heightTextureDirtyRows() {
+        final int firstRow = (size - dirtyRows) / 2;
+        return Map3DModelBuffers.heightTexture(grid, cellSize, firstRow, firstRow + dirtyRows);
+    }
+
+    @Benchmark
+    public ByteBuffer hypsoTexture() {
+        return Map3DModelBuffers.nonLinearHypsoTexture(mapper, size, 0, size);
+    }
+
+    @Benchmark
+    public ByteBuffer hypsoTextureDirtyRows() {
+        final int firstRow = (size - dirtyRows) / 2;
+        return Map3DModelBuffers.nonLinearHypsoTexture(mapper, size, firstRow, firstRow + dirtyRows);
+    }
+}
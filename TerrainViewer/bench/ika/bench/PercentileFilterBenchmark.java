@@ -0,0 +1,64 @@
+package ika.bench;
+
+import ika.geo.GeoGrid;
+import ika.geo.grid.GridLowerQuartileOperator;
+import ika.geo.grid.GridMedianOperator;
+import ika.geo.grid.GridUpperQuartileOperator;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the percentile filters with small filter sizes that select
+ * values in each window and large filter sizes that use sliding histograms.
+ *
+ * @author jenny
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PercentileFilterBenchmark {
+
+    @Param({"512", "2048"})
+    public int size;
+
+    @Param({"0", "0.05"})
+    public double voidRatio;
+
+    @Param({"3", "9"})
+    public int filterSize;
+
+    private GeoGrid grid;
+
+    @Setup
+    public void setup() {
+        grid = SyntheticDEM.create(size, voidRatio);
+    }
+
+    @Benchmark
+    public GeoGrid median() {
+        return new GridMedianOperator(filterSize).operate(grid);
+    }
+
+    @Benchmark
+    public GeoGrid lowerQuartile() {
+        return new GridLowerQuartileOperator(filterSize).operate(grid);
+    }
+
+    @Benchmark
+    public GeoGrid upperQuartile() {
+        return new GridUpperQuartileOperator(filterSize).operate(grid);
+    }
+}
@@ -0,0 +1,104 @@
+package ika.bench;
+
+import ika.geo.GeoGrid;
+import java.util.Random;
+
+/**
+ * Creates synthetic digital elevation models for benchmarks. The terrain is
+ * a sum of waves of decreasing wavelength with some noise, so that it has
+ * ridges, valleys and saddles at all scales. Void cells are grouped in
+ * square holes, as voids in real elevation models usually are.
+ * The same parameters always result in the same grid.
+ *
+ * @author jenny
+ */
+public final class SyntheticDEM {
+
+    /**
+     * Side length of square holes of void cells.
+     */
+    private static final int HOLE_SIZE = 8;
+
+    /**
+     * Number of superposed waves.
+     */
+    private static final int OCTAVES = 6;
+
+    private SyntheticDEM() {
+    }
+
+    /**
+     * Creates a square grid.
+     * @param size The number of columns and rows.
+     * @param voidRatio The fraction of void cells between 0 and 1.
+     * @return A new grid with a cell size of 10 and elevations between
+     * approximately 0 and 3000.
+     */
+    public static GeoGrid create(int size, double voidRatio) {
+        return create(size, size, voidRatio, 1);
+    }
+
+    /**
+     * Creates a grid.
+     * @param cols The number of columns.
+     * @param rows The number of rows.
+     * @param voidRatio The fraction of void cells between 0 and 1.
+     * @param seed Seed for the random number generator.
+     * @return A new grid with a cell size of 10 and elevations between
+     * approximately 0 and 3000.
+     */
+    public static GeoGrid create(int cols, int rows, double voidRatio, long seed) {
+        if (voidRatio < 0 || voidRatio > 1) {
+            throw new IllegalArgumentException("invalid void ratio");
+        }
+        Random random = new Random(seed);
+        double[] fx = new double[OCTAVES];
+        double[] fy = new double[OCTAVES];
+        double[] phase = new double[OCTAVES];
+        double[] amplitude = new double[OCTAVES];
+        double wavelength = Math.max(cols, rows) / 2.;
+        for (int i = 0; i < OCTAVES; i++) {
+            double angle = random.nextDouble() * Math.PI;
+            fx[i] = Math.cos(angle) * 2 * Math.PI / wavelength;
+            fy[i] = Math.sin(angle) * 2 * Math.PI / wavelength;
+            phase[i] = random.nextDouble() * 2 * Math.PI;
+            amplitude[i] = 1000. / (1 << i);
+            wavelength /= 2.3;
+        }
+
+        GeoGrid grid = new GeoGrid(cols, rows, 10);
+        grid.setWest(600000);
+        grid.setNorth(200000);
+        grid.setName("Synthetic DEM");
+        float[][] g = grid.getGrid();
+        for (int r = 0; r < rows; r++) {
+            float[] row = g[r];
+            for (int c = 0; c < cols; c++) {
+                double z = 1500;
+                for (int i = 0; i < OCTAVES; i++) {
+                    z += amplitude[i] * Math.sin(fx[i] * c + phase[i])
+                            * Math.cos(fy[i] * r + phase[i]);
+                }
+                row[c] = (float) (z + random.nextGaussian());
+            }
+        }
+
+        // punch square holes until the required number of void cells is reached
+        long voidCells = Math.round(voidRatio * cols * rows);
+        long voidCount = 0;
+        while (voidCount < voidCells) {
+            int c0 = random.nextInt(cols);
+            int r0 = random.nextInt(rows);
+            for (int r = r0; r < Math.min(rows, r0 + HOLE_SIZE) && voidCount < voidCells; r++) {
+                for (int c = c0; c < Math.min(cols, c0 + HOLE_SIZE) && voidCount < voidCells; c++) {
+                    if (!Float.isNaN(g[r][c])) {
+                        g[r][c] = Float.NaN;
+                        ++voidCount;
+                    }
+                }
+            }
+        }
+        grid.invalidateStatistics();
+        return grid;
+    }
+}
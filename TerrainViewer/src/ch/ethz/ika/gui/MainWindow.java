@@ -17,28 +17,24 @@ import com.bric.swing.ColorPicker;
 import com.bric.swing.MultiThumbSlider;
 import com.fizzysoft.sdu.RecentDocumentsManager;
 import ika.geo.GeoGrid;
-import ika.geo.GeoImage;
 import ika.geo.GeoObject;
 import ika.geo.grid.GaussianPyramid;
 import ika.geo.grid.GridGaussLowPassOperator;
 import ika.geo.grid.GridScaleOperator;
 import ika.geoimport.EsriASCIIGridReader;
-import ika.geoimport.GeoImporter;
 import ika.geoimport.ImageImporter;
-import ika.geoimport.SynchroneDataReceiver;
+import ika.geoimport.TiledImagePyramid;
 import ika.gui.SwingWorkerWithProgressIndicator;
 import ika.gui.TransparentMacPanel;
 import ika.utils.CatmullRomSpline;
 import ika.utils.ErrorDialog;
 import ika.utils.FileUtils;
-import ika.utils.ImageUtils;
 import ika.utils.MathUtils;
 import ika.utils.PropertiesLoader;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.Dimension;
-import java.awt.RenderingHints;
 import java.awt.event.ActionEvent;
 import net.roydesign.mac.MRJAdapter;
 import java.awt.event.ActionListener;
@@ -61,7 +57,6 @@ import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JRadioButton;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
 /**
  * Main window.
@@ -74,12 +69,18 @@ public class MainWindow extends javax.swing.JFrame implements
      * smallest side length of the grid used for previewing
      */
     private static final int MIN_GRID_CELLS = 64 * 64;
-    private static final int MAX_GRID_SIDE = 6000;
-    private static final int DEFAULT_GRID_SIDE = 1024;
     /**
-     * maximum side length of a texture image
+     * Largest side length of pyramid levels that can be displayed. This does
+     * not limit the size of terrain models that can be opened.
+     */
+    private static final int MAX_DISPLAY_GRID_SIDE = 6000;
+    /**
+     * Grids with more cells are stored in temporary memory-mapped files
+     * instead of the heap. All levels that can be displayed are stored on the
+     * heap.
      */
-    private static final int MAX_TEXTURE_SIDE = 2048;
+    private static final long MAX_HEAP_CELLS = (long) MAX_DISPLAY_GRID_SIDE * MAX_DISPLAY_GRID_SIDE;
+    private static final int DEFAULT_GRID_SIDE = 1024;
 
     private static final boolean VERBOSE = false;
 
@@ -109,6 +110,11 @@ public class MainWindow extends javax.swing.JFrame implements
      */
     private static final String MULT_SIGN = "\u2006\u00D7\u2006";
 
+    /**
+     * File extension of binary grid files written by BinaryGridWriter.
+     */
+    private static final String BINARY_GRID_EXTENSION = "tvgrid";
+
     private static final String APPNAME;
     static {
         java.util.Properties props = PropertiesLoader.loadProperties("ika.app.Application");
@@ -207,6 +213,18 @@ public class MainWindow extends javax.swing.JFrame implements
         return gridPyramid.getLevel(this.getDisplayLevel());
     }
 
+    /**
+     * Replaces the pyramid of grid levels. The previous pyramid is disposed,
+     * which deletes its temporary files.
+     * @param pyramid The new pyramid. Can be null.
+     */
+    private void setGridPyramid(GaussianPyramid pyramid) {
+        if (gridPyramid != null && gridPyramid != pyramid) {
+            gridPyramid.dispose();
+        }
+        gridPyramid = pyramid;
+    }
+
     /**
      * Returns the pyramid level that should be displayed as selected in the GUI.
      * @return
@@ -224,21 +242,36 @@ public class MainWindow extends javax.swing.JFrame implements
 
     /**
      * Returns the pyramid level that is initially displayed.
+     * @param pyramid The pyramid.
      * @return
      */
-    private int getDefaultDisplayLevel() {
-        int lastLevel = gridPyramid.getLevelsCount() - 1;
+    private static int getDefaultDisplayLevel(GaussianPyramid pyramid) {
+        int lastLevel = pyramid.getLevelsCount() - 1;
         for (int i = lastLevel; i >= 0; i--) {
-            GeoGrid grid = gridPyramid.getLevel(i);
-            int cols = grid.getCols();
-            int rows = grid.getRows();
-            if (cols * rows >= DEFAULT_GRID_SIDE * DEFAULT_GRID_SIDE) {
+            int cols = pyramid.getLevelCols(i);
+            int rows = pyramid.getLevelRows(i);
+            if ((long) cols * rows >= DEFAULT_GRID_SIDE * DEFAULT_GRID_SIDE) {
                 return i;
             }
         }
         return 0;
     }
 
+    /**
+     * Creates a pyramid with lazily computed levels. The level that is
+     * initially displayed is computed first, the other levels are computed in
+     * a background thread.
+     * @param grid The full resolution grid.
+     * @return The new pyramid.
+     */
+    private static GaussianPyramid createPyramid(GeoGrid grid) {
+        GaussianPyramid pyramid = new GaussianPyramid(grid, 9999, MIN_GRID_CELLS, true);
+        pyramid.setMaxHeapCells(MAX_HEAP_CELLS);
+        pyramid.getLevel(getDefaultDisplayLevel(pyramid));
+        pyramid.computeLevelsInBackground();
+        return pyramid;
+    }
+
     /**
      * Setup the panel for selecting the level of details.
      */
@@ -248,16 +281,15 @@ public class MainWindow extends javax.swing.JFrame implements
         // reasonable displayed
         int firstLevel, lastLevel = gridPyramid.getLevelsCount() - 1;
         for (firstLevel = 0; firstLevel <= lastLevel; firstLevel++) {
-            GeoGrid grid = gridPyramid.getLevel(firstLevel);
-            int cols = grid.getCols();
-            int rows = grid.getRows();
-            if (cols * rows <= MAX_GRID_SIDE * MAX_GRID_SIDE) {
+            int cols = gridPyramid.getLevelCols(firstLevel);
+            int rows = gridPyramid.getLevelRows(firstLevel);
+            if ((long) cols * rows <= (long) MAX_DISPLAY_GRID_SIDE * MAX_DISPLAY_GRID_SIDE) {
                 break;
             }
         }
 
         // find the default pyramid level to display
-        int displayLevel = getDefaultDisplayLevel();
+        int displayLevel = getDefaultDisplayLevel(gridPyramid);
         
         // add radio buttons to GUI
         lodButtonPanel.removeAll();
@@ -266,11 +298,10 @@ public class MainWindow extends javax.swing.JFrame implements
             JRadioButton b = new JRadioButton();
 
             // generate label for radio button
-            GeoGrid grid = gridPyramid.getLevel(i);
             StringBuilder sb = new StringBuilder();
-            sb.append(df.format(grid.getCols()));
+            sb.append(df.format(gridPyramid.getLevelCols(i)));
             sb.append(MULT_SIGN);
-            sb.append(df.format(grid.getRows()));
+            sb.append(df.format(gridPyramid.getLevelRows(i)));
 
             // generate tooltip for radio button
             String tooltip = "Preview with " + sb.toString() + " pixels.";
@@ -326,15 +357,16 @@ public class MainWindow extends javax.swing.JFrame implements
     
     private void openDEM(final String filePath) {
 
-        if (!EsriASCIIGridReader.canRead(filePath)) {
+        final boolean binary = ika.geoimport.BinaryGridReader.canRead(filePath);
+        if (!binary && !EsriASCIIGridReader.canRead(filePath)) {
             String msg = "The selected file cannot be read.";
             String title = "Error";
             ErrorDialog.showErrorDialog(msg, title, null, this);
             return;
         }
 
-        // release previous grid to free memory
-        gridPyramid = null;
+        // release previous grid to free memory and delete temporary files
+        setGridPyramid(null);
        
 
         SwingWorkerWithProgressIndicator worker;
@@ -382,15 +414,30 @@ public class MainWindow extends javax.swing.JFrame implements
 
                 this.start();
 
+                // binary files contain the grid and the pyramid levels
+                if (binary) {
+                    GaussianPyramid pyramid = ika.geoimport.BinaryGridReader.readPyramid(filePath, this, MAX_HEAP_CELLS);
+                    if (pyramid == null || this.isAborted()) {
+                        if (pyramid != null) {
+                            pyramid.dispose();
+                        }
+                        throw new IllegalStateException("user canceled");
+                    }
+                    return pyramid;
+                }
+
                 // read sourceGrid from file
-                GeoGrid newGrid = ika.geoimport.EsriASCIIGridReader.read(filePath, this);
-                if (this.isAborted()) {
+                GeoGrid newGrid = ika.geoimport.MappedEsriASCIIGridReader.read(filePath, this, MAX_HEAP_CELLS);
+                if (newGrid == null || this.isAborted()) {
+                    if (newGrid != null) {
+                        newGrid.getStorage().dispose();
+                    }
                     throw new IllegalStateException("user canceled");
                 }
 
                 this.setIndeterminate(true);
                 this.setMessage("Downsampling terrain model for display");
-                return new GaussianPyramid(newGrid, 9999, MIN_GRID_CELLS);
+                return createPyramid(newGrid);
             }
         };
 
@@ -399,6 +446,47 @@ public class MainWindow extends javax.swing.JFrame implements
         worker.execute();
     }
 
+    /**
+     * Writes the terrain model and all pyramid levels to a binary grid file,
+     * which can be opened without parsing and downsampling.
+     * @param filePath The path of the new file.
+     */
+    private void saveDEM(final String filePath) {
+
+        final GaussianPyramid pyramid = gridPyramid;
+        SwingWorkerWithProgressIndicator worker;
+        worker = new SwingWorkerWithProgressIndicator<Object>(
+                this, APPNAME + " Data Export", "", false) {
+
+            @Override
+            public void done() {
+                try {
+                    get();
+                    rdm.addDocument(new File(filePath), null);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    String msg = "The terrain model could not be saved.";
+                    String title = APPNAME + " Error";
+                    ika.utils.ErrorDialog.showErrorDialog(msg, title, ex, MainWindow.this);
+                } finally {
+                    this.completeProgress();
+                }
+            }
+
+            @Override
+            protected Object doInBackground() throws Exception {
+                this.start();
+                this.setIndeterminate(true);
+                ika.geoexport.BinaryGridWriter.write(pyramid, filePath, true);
+                return null;
+            }
+        };
+
+        worker.setMaxTimeWithoutDialog(1);
+        worker.setMessage("Saving terrain model \"" + FileUtils.getFileName(filePath) + "\"");
+        worker.execute();
+    }
+
     /**
      * Load and init GUI with DEM
      */
@@ -431,18 +519,6 @@ public class MainWindow extends javax.swing.JFrame implements
                         JOptionPane.ERROR_MESSAGE, null);
                 return;
             }
-
-            // make sure the image is not too large
-            int maxSize = Map3DTexture.getMaxTextureSize();
-            if (dim.width > maxSize || dim.height > maxSize) {
-                String msg = "<html>The selected texture image is too large " +
-                        "and cannot be displayed. <br>The maximum texture size is " +
-                        maxSize + " x " + maxSize + " pixels.</html>";
-                String title = "Large Texture Image";
-                JOptionPane.showMessageDialog(this, msg, title,
-                        JOptionPane.ERROR_MESSAGE, null);
-                return;
-            }
         } catch (Exception exc) {
             String msg = "The texture image could not be opened.";
             String title = APPNAME + " Error";
@@ -453,7 +529,7 @@ public class MainWindow extends javax.swing.JFrame implements
 
         final JFrame frame = this;
         SwingWorkerWithProgressIndicator worker;
-        worker = new SwingWorkerWithProgressIndicator<BufferedImage>(
+        worker = new SwingWorkerWithProgressIndicator<TiledImagePyramid>(
                 this, APPNAME + " Texture Import", "", true) {
 
             @Override
@@ -461,8 +537,8 @@ public class MainWindow extends javax.swing.JFrame implements
                 try {
 
                     try {
-                        BufferedImage t = get(); // tests for exceptions
-                        map3DViewer.setTextureImage(t);
+                        TiledImagePyramid t = get(); // tests for exceptions
+                        map3DViewer.setTexturePyramid(t);
                     } catch (Exception ex) {
                         String exmsg = ex.getMessage();
                         if (exmsg != null && exmsg.contains("user canceled")) {
@@ -483,47 +559,15 @@ public class MainWindow extends javax.swing.JFrame implements
             }
 
             @Override
-            protected BufferedImage doInBackground() throws Exception {
+            protected TiledImagePyramid doInBackground() throws Exception {
 
+                // The image is decoded in strips and stored as tiles of a
+                // pyramid in a temporary file. Images larger than the
+                // maximum texture size are subsampled, and the texture
+                // loads the pyramid level matching the size on screen.
                 this.setProgress(0);
-                ImageImporter importer = new ImageImporter();
-                importer.setProgressIndicator(this);
-                importer.setOptimizeForDisplay(false);
-                java.net.URL url = ika.utils.URLUtils.filePathToURL(filePath);
-                SynchroneDataReceiver dataReceiver = new SynchroneDataReceiver();
-                dataReceiver.setShowMessageOnError(false);
-                importer.read(url, dataReceiver, GeoImporter.SAME_THREAD);
-
-                // test whether the image has been successfully read
-                if (dataReceiver.hasReceivedError()) {
-                    throw new IOException("Could not read image file at " + filePath);
-                }
-
-                // retrieve the image
-                GeoImage geoImage = (GeoImage) dataReceiver.getImportedData();
-                if (geoImage == null) {
-                    return null; // user canceled
-                }
-
-                BufferedImage t = geoImage.getBufferedImage();
-                if (this.isAborted()) {
-                    throw new IllegalStateException("user canceled");
-                }
-
-                this.setIndeterminate(true);
-
-                while (t.getWidth() * t.getHeight() > MAX_TEXTURE_SIDE * MAX_TEXTURE_SIDE) {
-                    int w = t.getWidth() / 2;
-                    int h = t.getHeight() / 2;
-                    Object hint = RenderingHints.VALUE_INTERPOLATION_BICUBIC;
-                    int imageType = BufferedImage.TYPE_INT_ARGB;
-                    t = ImageUtils.getFasterScaledInstance(t, w, h, hint, imageType, false);
-                    if (this.isAborted()) {
-                        throw new IllegalStateException("user canceled");
-                    }
-                }
-
-                return t;
+                int maxSize = Math.max(0, Map3DTexture.getMaxTextureSize());
+                return new TiledImagePyramid(new File(filePath), maxSize, this);
             }
         };
 
@@ -715,8 +759,11 @@ public class MainWindow extends javax.swing.JFrame implements
             long openGLStartTime = System.currentTimeMillis();
             if (this.map3DViewer != null) {
                 double cellSize = getProjectedCellSize(grid);
-                Map3DTexture1DMapper mapper = new Map3DTexture1DMapper();               
-                map3DViewer.setModel(grid.getGrid(), (float) cellSize, mapper);
+                Map3DTexture1DMapper mapper = new Map3DTexture1DMapper();
+                // the statistics are cached by the grid
+                GeoGrid.GeoGridStatistics stats = grid.getStatistics();
+                map3DViewer.setModel(grid.getGrid(), (float) cellSize, mapper,
+                        stats.min, stats.max);
             }
 
             if (VERBOSE) {
@@ -753,6 +800,7 @@ public class MainWindow extends javax.swing.JFrame implements
                 "Close " + APPNAME,
                 JOptionPane.OK_CANCEL_OPTION);
         if (res == JOptionPane.OK_OPTION) {
+            setGridPyramid(null);
             this.dispose();
             System.exit(0);
         }
@@ -1336,13 +1384,15 @@ private void saveDEMMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//G
     String name = this.getTitle();
     name = FileUtils.cutFileExtension(name);
     if (name.isEmpty()) {
-        name = "grid.asc";
+        name = "grid";
     }
-    String path = FileUtils.askFile(null, "Export ESRI ASCII Grid", name, false, "asc");
+    name += "." + BINARY_GRID_EXTENSION;
+    String path = FileUtils.askFile(null, "Save Terrain Model", name, false,
+            BINARY_GRID_EXTENSION);
     if (path == null) {
         return;
     }
-    throw new NotImplementedException(); // FIXME
+    saveDEM(path);
 }//GEN-LAST:event_saveDEMMenuItemActionPerformed
 
 private void saveSettingsMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_saveSettingsMenuItemActionPerformed
@@ -1524,7 +1574,7 @@ private void scaleTerrainMenuItemActionPerformed(java.awt.event.ActionEvent evt)
         float scale = f.floatValue();
         GridScaleOperator op = new GridScaleOperator(scale);
         GeoGrid scaledGrid = op.operate(getFullResolutionGrid());
-        gridPyramid = new GaussianPyramid(scaledGrid, 9999, MIN_GRID_CELLS);
+        setGridPyramid(createPyramid(scaledGrid));
         originalInfoText = getFullResolutionGrid().toStringWithStatistics("<br>");
         modelChanged();
     } catch (Exception exc) {
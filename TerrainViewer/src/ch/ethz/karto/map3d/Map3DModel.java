@@ -8,8 +8,14 @@ public abstract class Map3DModel {
     protected float cellSize = 1.0f;
     protected float grid[][];
     protected float minValue = Float.MAX_VALUE;
-    protected float maxValue = Float.MIN_VALUE;
+    protected float maxValue = -Float.MAX_VALUE;
     protected boolean modelInitialized = false;
+    /**
+     * Minimum and maximum passed to setMinMax() for the next call of
+     * setModel() or gridChanged(), or NaN.
+     */
+    private float knownMinValue = Float.NaN;
+    private float knownMaxValue = Float.NaN;
 
     protected Map3DTexture1DMapper texture1DMapper;
 
@@ -49,6 +55,18 @@ public abstract class Map3DModel {
         return this.grid != null;
     }
 
+    /**
+     * Passes the minimum and maximum of the grid for the next call of
+     * setModel() or gridChanged(), which then do not scan the grid. Use this
+     * when the values are known, for example from GeoGrid.getStatistics().
+     * @param minValue The minimum value of the grid.
+     * @param maxValue The maximum value of the grid.
+     */
+    public void setMinMax(float minValue, float maxValue) {
+        this.knownMinValue = minValue;
+        this.knownMaxValue = maxValue;
+    }
+
     public void setModel(float grid[][], float cellSize, Map3DTexture1DMapper texture1DMapper) {
         this.grid = grid;
         this.cellSize = cellSize;
@@ -58,6 +76,28 @@ public abstract class Map3DModel {
         this.texture1DMapper.init(grid, minValue, maxValue);
     }
 
+    /**
+     * Call gridChanged() after values of the grid passed to setModel() have
+     * changed. This implementation reconstructs the entire model; derived
+     * classes may only update the changed rows.
+     * @param firstRow The first changed row.
+     * @param endRow The last changed row + 1.
+     */
+    public void gridChanged(int firstRow, int endRow) {
+        computeMinMax();
+        this.texture1DMapper.init(grid, minValue, maxValue);
+        this.modelInitialized = false;
+    }
+
+    /**
+     * Changes the size of a cell, which scales the terrain vertically.
+     * @param cellSize The new cell size.
+     */
+    public void setCellSize(float cellSize) {
+        this.cellSize = cellSize;
+        this.modelInitialized = false;
+    }
+
     public int getCols() {
         return grid[0].length;
     }
@@ -89,11 +129,18 @@ public abstract class Map3DModel {
 
     private void computeMinMax() {
 
+        if (!Float.isNaN(knownMinValue) && !Float.isNaN(knownMaxValue)) {
+            this.minValue = knownMinValue;
+            this.maxValue = knownMaxValue;
+            knownMinValue = knownMaxValue = Float.NaN;
+            return;
+        }
+
         final int rows = this.getRows();
         final int cols = this.getCols();
 
         this.minValue = Float.MAX_VALUE;
-        this.maxValue = Float.MIN_VALUE;
+        this.maxValue = -Float.MAX_VALUE;
 
         for (int r = 0; r < rows; ++r) {
             final float[] row = this.grid[r];
@@ -0,0 +1,164 @@
+package ch.ethz.karto.map3d;
+
+import com.jogamp.common.nio.Buffers;
+import ika.geo.grid.GridExecutor;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Prepares the buffers that Map3DModelVBOShader passes to OpenGL. The buffers
+ * are computed on the CPU without an OpenGL context, so this class can be
+ * used and timed without a graphics card. Texture buffers can be computed for
+ * a band of rows, which allows for updating only the changed part of a
+ * texture. Rows are filled in parallel.
+ *
+ * @author jenny
+ */
+public final class Map3DModelBuffers {
+
+    private Map3DModelBuffers() {
+    }
+
+    /**
+     * Returns a buffer with grid values scaled to column/row units for a
+     * band of rows.
+     * @param grid The grid values.
+     * @param cellSize The size of a cell.
+     * @param firstRow The first row of the band.
+     * @param endRow The last row of the band + 1.
+     * @return A buffer with (endRow - firstRow) * cols values.
+     */
+    public static FloatBuffer heightTexture(final float[][] grid,
+            final float cellSize, final int firstRow, int endRow) {
+        final int cols = grid[0].length;
+        final FloatBuffer buffer = Buffers.newDirectFloatBuffer(cols * (endRow - firstRow));
+        GridExecutor.getDefault().execute("Map3DModelBuffers", endRow - firstRow,
+                new GridExecutor.RowTask() {
+
+                    public void run(int startRow, int endRow) {
+                        FloatBuffer dst = buffer.duplicate();
+                        dst.position(startRow * cols);
+                        float[] row = new float[cols];
+                        for (int r = startRow; r < endRow; r++) {
+                            float[] src = grid[firstRow + r];
+                            for (int c = 0; c < cols; c++) {
+                                // FIXME no shifting to avoid inconsistent results with plan oblique rendering
+                                row[c] = src[c] / cellSize;
+                            }
+                            dst.put(row);
+                        }
+                    }
+                });
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer with 1D texture coordinates between 0 and 255 for a
+     * band of rows.
+     * @param mapper Computes texture coordinates.
+     * @param cols The number of columns of the grid.
+     * @param firstRow The first row of the band.
+     * @param endRow The last row of the band + 1.
+     * @return A buffer with (endRow - firstRow) * cols values.
+     */
+    public static ByteBuffer nonLinearHypsoTexture(final Map3DTexture1DMapper mapper,
+            final int cols, final int firstRow, int endRow) {
+        final ByteBuffer buffer = Buffers.newDirectByteBuffer(cols * (endRow - firstRow));
+        GridExecutor.getDefault().execute("Map3DModelBuffers", endRow - firstRow,
+                new GridExecutor.RowTask() {
+
+                    public void run(int startRow, int endRow) {
+                        ByteBuffer dst = buffer.duplicate();
+                        dst.position(startRow * cols);
+                        byte[] row = new byte[cols];
+                        for (int r = startRow; r < endRow; r++) {
+                            for (int c = 0; c < cols; c++) {
+                                int i = (int) (mapper.get1DTextureCoordinate(c, firstRow + r) * 255);
+                                row[c] = (byte) i;
+                            }
+                            dst.put(row);
+                        }
+                    }
+                });
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer with the column and row of each vertex of a patch.
+     * @param cols The number of columns.
+     * @param patchHeight The number of rows of a patch.
+     * @return A buffer with two values per vertex.
+     */
+    public static ShortBuffer vertexBuffer(int cols, int patchHeight) {
+        if (cols > Short.MAX_VALUE || patchHeight > Short.MAX_VALUE) {
+            throw new IllegalStateException("grid too large for rendering");
+        }
+        ShortBuffer vBuf = Buffers.newDirectShortBuffer(cols * patchHeight * 2);
+        for (short r = 0; r < patchHeight; r++) {
+            for (short c = 0; c < cols; ++c) {
+                vBuf.put(c);
+                vBuf.put(r);
+            }
+        }
+        vBuf.rewind();
+        return vBuf;
+    }
+
+    /**
+     * Returns the number of indices used to construct a triangle strip for a
+     * patch.
+     * @param cols The number of columns.
+     * @param patchHeight The number of rows of the patch.
+     * @return The number of indices.
+     */
+    public static int indexBufferSize(int cols, int patchHeight) {
+        return cols * 2 * (patchHeight - 1) + patchHeight - 2;
+    }
+
+    /**
+     * Returns the index buffer for a patch. The index buffer contains two
+     * indices per grid value for triangle strips (except for the last row)
+     * and one index for each row (except for the topmost and the bottomost
+     * row).
+     * @param cols The number of columns.
+     * @param patchHeight The number of rows of a patch.
+     * @return The index buffer.
+     */
+    public static IntBuffer indexBuffer(int cols, int patchHeight) {
+        IntBuffer indexBuf = Buffers.newDirectIntBuffer(indexBufferSize(cols, patchHeight));
+        for (int y = 0; y < patchHeight - 1; y += 2) {
+
+            // even row from left to right
+            for (int x = 0; x < cols; x++) {
+                final int i = x + y * cols;
+                indexBuf.put(i);
+                indexBuf.put(i + cols);
+            }
+
+            // stop if this was the last row
+            if (y + 1 >= patchHeight - 1) {
+                break;
+            }
+
+            // add a degenerate triangle
+            // http://www.gamedev.net/community/forums/topic.asp?topic_id=227553&whichpage=1&#1477073
+            indexBuf.put((cols - 1) + y * cols + cols);
+
+            // odd rows from right to left
+            for (int x = cols - 1; x >= 0; x--) {
+                final int i = x + (y + 1) * cols;
+                indexBuf.put(i);
+                indexBuf.put(i + cols);
+            }
+
+            // add a degenerate triangle if this is not the last row
+            if (y + 2 < patchHeight - 1) {
+                indexBuf.put((y + 1) * cols + cols);
+            }
+        }
+        indexBuf.rewind();
+        return indexBuf;
+    }
+}
@@ -10,6 +10,12 @@ import javax.media.opengl.GL2;
 
 /**
  * http://www.java-tips.org/other-api-tips/jogl/vertex-buffer-objects-nehe-tutorial-jogl-port-2.html
+ *
+ * Once loaded, the model is updated incrementally: changed grid rows, a new
+ * cell size or a new texture only mark rows of the textures or the uniforms
+ * as dirty, and loadModel() passes only these to OpenGL. The vertex and index
+ * buffers and the shader program are only reconstructed when the size of the
+ * grid changes. Buffers are prepared by Map3DModelBuffers.
  * @author jenny
  */
 public class Map3DModelVBOShader extends Map3DModel {
@@ -55,6 +61,18 @@ public class Map3DModelVBOShader extends Map3DModel {
     private float shearX = 0;
     private float shearY = 0;
     private float shearBaseline = 1f;
+
+    /**
+     * Flags for parts of a loaded model that have to be passed to OpenGL.
+     */
+    private static final int DIRTY_HEIGHTS = 1;
+    private static final int DIRTY_HYPSO = 2;
+    private static final int DIRTY_UNIFORMS = 4;
+    private int dirty = 0;
+    /**
+     * The dirty rows of the textures: firstDirtyRow to endDirtyRow - 1.
+     */
+    private int firstDirtyRow, endDirtyRow;
     
     protected Map3DModelVBOShader() {
     }
@@ -62,7 +80,17 @@ public class Map3DModelVBOShader extends Map3DModel {
     @Override
     public void setModel(float grid[][], float cellSize, Map3DTexture1DMapper t) {
 
+        // a grid of the same size only replaces texture values
+        final boolean sameSize = modelInitialized && zTexture != null
+                && grid != null && this.grid != null
+                && grid.length == getRows() && grid[0].length == getCols();
+
         super.setModel(grid, cellSize, t);
+        if (sameSize) {
+            modelInitialized = true;
+            markDirty(0, getRows(), DIRTY_HEIGHTS | DIRTY_HYPSO | DIRTY_UNIFORMS);
+            return;
+        }
 
         // compute patch height such that a single vertex buffer is about VBO_SIZE_MB
         // large. The index buffer will be about twice that large.
@@ -89,11 +117,17 @@ public class Map3DModelVBOShader extends Map3DModel {
 
         GL2 gl = (GL2)gl1;
 
-        if (modelInitialized || grid == null || !canDisplay(gl, grid)) {
+        if (grid == null || !canDisplay(gl, grid)) {
             return;
         }
 
         this.texture = texture;
+        if (modelInitialized) {
+            if (dirty != 0) {
+                updateModel(gl);
+            }
+            return;
+        }
 
         // first release old buffers to free memory on the GPU
         releaseModel(gl);
@@ -101,10 +135,12 @@ public class Map3DModelVBOShader extends Map3DModel {
         gl.glTranslatef(0, 0, ZOFFSET);
 
         // load height texture
-        zTexture = new Map3DTextureFloat(gl, gridTexture(), getCols(), getRows());
+        FloatBuffer heights = Map3DModelBuffers.heightTexture(grid, cellSize, 0, getRows());
+        zTexture = new Map3DTextureFloat(gl, heights, getCols(), getRows());
 
         if (useNonHeightProportional1DTexture()) {
-            ByteBuffer buf = nonLinearHypsoTextureBuffer();
+            ByteBuffer buf = Map3DModelBuffers.nonLinearHypsoTexture(texture1DMapper,
+                    getCols(), 0, getRows());
             nonLinearHypsoTexture = new Map3DTextureByte(gl, buf, getCols(), getRows());
         } else {
             nonLinearHypsoTexture = null;
@@ -116,6 +152,86 @@ public class Map3DModelVBOShader extends Map3DModel {
         loadShaderProgram(gl);
 
         this.modelInitialized = true;
+        this.dirty = 0;
+    }
+
+    /**
+     * Passes dirty rows of textures and dirty uniforms to OpenGL.
+     */
+    private void updateModel(GL2 gl) {
+        final int cols = getCols();
+        final int nRows = endDirtyRow - firstDirtyRow;
+
+        if ((dirty & DIRTY_HEIGHTS) != 0) {
+            FloatBuffer heights = Map3DModelBuffers.heightTexture(grid, cellSize,
+                    firstDirtyRow, endDirtyRow);
+            zTexture.update(gl, heights, firstDirtyRow, cols, nRows);
+        }
+
+        if ((dirty & DIRTY_HYPSO) != 0) {
+            if (!useNonHeightProportional1DTexture()) {
+                if (nonLinearHypsoTexture != null) {
+                    nonLinearHypsoTexture.release(gl);
+                    nonLinearHypsoTexture = null;
+                }
+            } else if (nonLinearHypsoTexture == null) {
+                ByteBuffer buf = Map3DModelBuffers.nonLinearHypsoTexture(texture1DMapper,
+                        cols, 0, getRows());
+                nonLinearHypsoTexture = new Map3DTextureByte(gl, buf, cols, getRows());
+            } else {
+                ByteBuffer buf = Map3DModelBuffers.nonLinearHypsoTexture(texture1DMapper,
+                        cols, firstDirtyRow, endDirtyRow);
+                nonLinearHypsoTexture.update(gl, buf, firstDirtyRow, cols, nRows);
+            }
+        }
+
+        if ((dirty & DIRTY_UNIFORMS) != 0) {
+            setUniforms(gl);
+        }
+        dirty = 0;
+    }
+
+    /**
+     * Marks rows and attributes that have to be passed to OpenGL by the next
+     * call to loadModel().
+     */
+    private void markDirty(int firstRow, int endRow, int flags) {
+        if ((dirty & (DIRTY_HEIGHTS | DIRTY_HYPSO)) == 0) {
+            firstDirtyRow = firstRow;
+            endDirtyRow = endRow;
+        } else {
+            firstDirtyRow = Math.min(firstDirtyRow, firstRow);
+            endDirtyRow = Math.max(endDirtyRow, endRow);
+        }
+        dirty |= flags;
+    }
+
+    @Override
+    public void gridChanged(int firstRow, int endRow) {
+        final float oldMin = minValue;
+        final float oldMax = maxValue;
+        final boolean initialized = modelInitialized;
+        super.gridChanged(firstRow, endRow);
+        if (initialized) {
+            modelInitialized = true;
+            if (oldMin != minValue || oldMax != maxValue) {
+                // the mapping to colors changed for all cells
+                markDirty(0, getRows(), DIRTY_HEIGHTS | DIRTY_HYPSO | DIRTY_UNIFORMS);
+            } else {
+                markDirty(Math.max(0, firstRow), Math.min(getRows(), endRow),
+                        DIRTY_HEIGHTS | DIRTY_HYPSO);
+            }
+        }
+    }
+
+    @Override
+    public void setCellSize(float cellSize) {
+        final boolean initialized = modelInitialized;
+        super.setCellSize(cellSize);
+        if (initialized) {
+            modelInitialized = true;
+            markDirty(0, getRows(), DIRTY_HEIGHTS | DIRTY_UNIFORMS);
+        }
     }
 
     @Override
@@ -144,6 +260,7 @@ public class Map3DModelVBOShader extends Map3DModel {
         }
 
         this.modelInitialized = false;
+        this.dirty = 0;
     }
 
     protected void releaseShaderProgram(GL gl) {
@@ -262,8 +379,11 @@ public class Map3DModelVBOShader extends Map3DModel {
      */
     @Override
     public void textureChanged() {
-        this.modelInitialized = false; // FIXME
-        // should be changed such that the geometry is not reloaded when the texture changes.
+        // the geometry is not reloaded, only the hypsometric texture and the
+        // texture units
+        if (modelInitialized) {
+            markDirty(0, getRows(), DIRTY_HYPSO | DIRTY_UNIFORMS);
+        }
     }
 
     private boolean useNonHeightProportional1DTexture() {
@@ -278,28 +398,11 @@ public class Map3DModelVBOShader extends Map3DModel {
 
     private void loadVertexBuffer(GL gl) {
 
-        if (getCols() > Short.MAX_VALUE || patchHeight > Short.MAX_VALUE) {
-            throw new IllegalStateException("grid too large for rendering");
-        }
-
-        // create new vertex and normal buffers
-        final int vertexCount = getCols() * patchHeight;
-        ShortBuffer vBuf = Buffers.newDirectShortBuffer(vertexCount * 2);
-
         // create buffer name
         vertexBuffer = new int[1];
         gl.glGenBuffers(1, vertexBuffer, 0);
 
-        // fill the buffers
-        final int cols = this.grid[0].length;
-        for (short r = 0; r < patchHeight; r++) {
-            for (short c = 0; c < cols; ++c) {
-                vBuf.put(c);
-                vBuf.put(r);
-            }
-        }
-        vBuf.rewind();
-
+        ShortBuffer vBuf = Map3DModelBuffers.vertexBuffer(getCols(), patchHeight);
         int nbytes = patchHeight * getCols() * 2 * Buffers.SIZEOF_SHORT;
         gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, vertexBuffer[0]);
         gl.glBufferData(GL2.GL_ARRAY_BUFFER, nbytes, vBuf, GL2.GL_STATIC_DRAW);
@@ -311,52 +414,15 @@ public class Map3DModelVBOShader extends Map3DModel {
      * An integer index buffer must be used for large grids - and not shorts -
      * otherwise rendering becomes extremely slow, because shorts are not
      * aligned to 4 bytes boundaries.
-     * The index buffer contains two indices per grid value for triangle strips
-     * (except for the last row) and one index for each row (except for
-     * the topmost and the bottomost row).
      * @param gl
      */
     private void loadIndexBuffer(GL gl) {
 
-        int cols = getCols();
-
-        // create index buffer
-        IntBuffer indexBuf = Buffers.newDirectIntBuffer(indexBufferSize());
-        for (int y = 0; y < patchHeight - 1; y += 2) {
-
-            // even row from left to right
-            for (int x = 0; x < cols; x++) {
-                final int i = x + y * cols;
-                indexBuf.put(i);
-                indexBuf.put(i + cols);
-            }
-
-            // stop if this was the last row
-            if (y + 1 >= patchHeight - 1) {
-                break;
-            }
-
-            // add a degenerate triangle
-            // http://www.gamedev.net/community/forums/topic.asp?topic_id=227553&whichpage=1&#1477073
-            indexBuf.put((cols - 1) + y * cols + cols);
-
-            // odd rows from right to left
-            for (int x = cols - 1; x >= 0; x--) {
-                final int i = x + (y + 1) * cols;
-                indexBuf.put(i);
-                indexBuf.put(i + cols);
-            }
-
-            // add a degenerate triangle if this is not the last row
-            if (y + 2 < patchHeight - 1) {
-                indexBuf.put((y + 1) * cols + cols);
-            }
-        }
+        IntBuffer indexBuf = Map3DModelBuffers.indexBuffer(getCols(), patchHeight);
 
         // create name for index buffer and load it to the GPU
         indexBuffer = new int[1];
         gl.glGenBuffers(1, indexBuffer, 0);
-        indexBuf.rewind();
         gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, indexBuffer[0]);
         int bufBytes = indexBuf.capacity() * Buffers.SIZEOF_INT;
         gl.glBufferData(GL2.GL_ELEMENT_ARRAY_BUFFER, bufBytes, indexBuf, GL2.GL_STATIC_DRAW);
@@ -370,7 +436,13 @@ public class Map3DModelVBOShader extends Map3DModel {
         shaders = new Map3DShader();
         shaders.enableShaders(gl, vertexShaderPath, fragmentShaderPath,
                 new String[]{VERTEX_ATTRIB_NAME}, new int[]{VERTEX_ATTRIB_ID});
+        setUniforms(gl);
+    }
 
+    /**
+     * Sets uniforms that depend on the grid and the texture.
+     */
+    private void setUniforms(GL gl) {
         int cols = getCols();
         int rows = getRows();
         float hTextureScale = cols >= rows ? 1 : (float) rows / cols;
@@ -405,40 +477,6 @@ public class Map3DModelVBOShader extends Map3DModel {
         shaders.setUniform(gl, "shearBaseline", this.shearBaseline);
     }
 
-    /**
-     * Returns a buffer with all grid values, scaled to columns/rows grid units.
-     * The minimum value of the grid is subtracted from values in the returned 
-     * grid, i.e. the smallest value is 0.
-     * @return
-     */
-    private FloatBuffer gridTexture() {
-        int cols = getCols();
-        int rows = getRows();
-        FloatBuffer buffer = Buffers.newDirectFloatBuffer(cols * rows);
-        for (int r = 0; r < rows; r++) {
-            for (int c = 0; c < cols; c++) {
-                // FIXME no shifting to avoid inconsistent results with plan oblique rendering
-                buffer.put((grid[r][c] /*- minValue*/) / cellSize);
-            }
-        }
-        buffer.rewind();
-        return buffer;
-    }
-    
-    private ByteBuffer nonLinearHypsoTextureBuffer() {
-        int cols = getCols();
-        int rows = getRows();
-        ByteBuffer buffer = Buffers.newDirectByteBuffer(cols * rows);
-        for (int r = 0; r < rows; r++) {
-            for (int c = 0; c < cols; c++) {
-                int i = (int)(texture1DMapper.get1DTextureCoordinate(c, r) * 255);
-                buffer.put((byte)(i));
-            }
-        }
-        buffer.rewind();
-        return buffer;
-    }
-
     /**
      * Returns the number of patches, including the last one, which may by
      * smaller than the others.
@@ -485,7 +523,7 @@ public class Map3DModelVBOShader extends Map3DModel {
      * @return The  number of indices in the indexBuf.
      */
     private int indexBufferSize() {
-        return getCols() * 2 * (patchHeight - 1) + patchHeight - 2;
+        return Map3DModelBuffers.indexBufferSize(getCols(), patchHeight);
     }
 
     /**
@@ -494,8 +532,7 @@ public class Map3DModelVBOShader extends Map3DModel {
      * @return The  number of indices for the last patch.
      */
     private int lastIndexBufferSize() {
-        int h = lastPatchHeight();
-        return getCols() * 2 * (h - 1) + h - 2;
+        return Map3DModelBuffers.indexBufferSize(getCols(), lastPatchHeight());
     }
     
     public void setShearing(float shearX, float shearY) {
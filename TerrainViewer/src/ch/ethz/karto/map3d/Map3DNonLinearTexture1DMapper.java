@@ -18,8 +18,10 @@ public class Map3DNonLinearTexture1DMapper extends Map3DTexture1DMapper {
 
     @Override
     public void init(float grid[][], float minValue, float maxValue) {
+        // the minimum and maximum of the model grid can be reused
+        float minMax[] = grid == overwritingGrid
+                ? new float[]{minValue, maxValue} : getMinMax();
         this.grid = overwritingGrid;
-        float minMax[] = getMinMax();
         this.minValue = minMax[0];
         this.heightSpanInv = 1 / (minMax[1] - minMax[0]);
     }
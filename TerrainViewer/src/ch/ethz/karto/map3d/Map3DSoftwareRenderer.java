@@ -0,0 +1,887 @@
+package ch.ethz.karto.map3d;
+
+import ch.ethz.karto.map3d.Map3DViewer.Camera;
+import ika.geo.grid.GridExecutor;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * Renders a terrain model to a BufferedImage without OpenGL. The geometry,
+ * plan oblique shearing, lighting and texturing of Map3DModelVBOShader and its
+ * vertex and fragment shaders are reproduced on the CPU, so that images can be
+ * rendered on computers without a graphics card. The camera follows the
+ * conventions of Map3DViewer, and the view can be copied from a viewer with
+ * setView().
+ *
+ * The image is divided into bands of rows that are rasterized in parallel.
+ * Each band has its own z-buffer and only rasterizes the triangles of grid
+ * rows that overlap the band. Vertex attributes (light, fog, texture
+ * coordinates) are computed per vertex and interpolated across triangles, as
+ * with Gouraud shading in OpenGL.
+ *
+ * The cylindrical camera is not supported.
+ *
+ * @author jenny
+ */
+public class Map3DSoftwareRenderer {
+
+    /**
+     * Ambient light of the OpenGL light model (OpenGL default).
+     */
+    private static final float LIGHT_MODEL_AMBIENT = 0.2f;
+    /**
+     * Ambient reflectance of the material set by Map3DViewer.init().
+     */
+    private static final float MATERIAL_AMBIENT = 0.5f;
+    /**
+     * Diffuse reflectance of the material set by Map3DViewer.init().
+     */
+    private static final float MATERIAL_DIFFUSE = 1f;
+    private static final float Z_NEAR = 0.001f;
+    private static final float Z_FAR = 100.0f;
+
+    private float[][] grid;
+    private float cellSize = 1;
+    private Map3DTexture1DMapper texture1DMapper;
+    private float minValue, maxValue;
+
+    /**
+     * Texture image. A texture with a single row is a 1D hypsometric texture.
+     */
+    private int[] texturePixels;
+    private int textureWidth, textureHeight;
+
+    private Camera camera = Camera.planOblique;
+    private float xAngle = 55.0f;
+    private float zAngle = 0.0f;
+    private float viewDistance = 2.4f;
+    private float fov = 25.0f;
+    private float shearX = 0;
+    private float shearY = 0;
+    private float shearBaseline = 1f;
+    private float shiftX = 0;
+    private float shiftY = 0;
+    private Color backgroundColor = Color.WHITE;
+    private boolean shadingEnabled = true;
+    private float ambientLight = 0.4f;
+    private float diffuseLight = 0.6f;
+    private float lightAzimuth = 315;
+    private float lightZenith = 45;
+    private boolean bindLightDirectionToViewDirection = false;
+    private boolean fogEnabled = false;
+    private float fogStart = 0f;
+    private float fogEnd = 1f;
+    private Color fogColor = Color.WHITE;
+
+    private GridExecutor executor;
+
+    public Map3DSoftwareRenderer() {
+    }
+
+    /**
+     * Sets the terrain model with a non-linear hypsometric color mapping, as
+     * Map3DViewer.setModel(float[][], float).
+     * @param grid The elevation values.
+     * @param cellSize The size of a cell.
+     */
+    public void setModel(float[][] grid, float cellSize) {
+        setModel(grid, cellSize, new Map3DNonLinearTexture1DMapper(grid));
+    }
+
+    /**
+     * Sets the terrain model.
+     * @param grid The elevation values.
+     * @param cellSize The size of a cell.
+     * @param texture1DMapper Maps elevation values to 1D texture coordinates.
+     */
+    public void setModel(float[][] grid, float cellSize,
+            Map3DTexture1DMapper texture1DMapper) {
+        if (grid == null || grid.length < 2 || grid[0].length < 2) {
+            throw new IllegalArgumentException("grid too small for rendering");
+        }
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (float[] row : grid) {
+            for (float v : row) {
+                if (!Float.isNaN(v)) {
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                }
+            }
+        }
+        setModel(grid, cellSize, texture1DMapper, min, max);
+    }
+
+    /**
+     * Sets the terrain model with a known minimum and maximum value, for
+     * example from GeoGrid.getStatistics(), which avoids scanning the grid.
+     * @param grid The elevation values.
+     * @param cellSize The size of a cell.
+     * @param texture1DMapper Maps elevation values to 1D texture coordinates.
+     * @param minValue The minimum value of the grid.
+     * @param maxValue The maximum value of the grid.
+     */
+    public void setModel(float[][] grid, float cellSize,
+            Map3DTexture1DMapper texture1DMapper, float minValue, float maxValue) {
+        if (grid == null || grid.length < 2 || grid[0].length < 2) {
+            throw new IllegalArgumentException("grid too small for rendering");
+        }
+        this.grid = grid;
+        this.cellSize = cellSize;
+        this.minValue = minValue;
+        this.maxValue = maxValue;
+        this.texture1DMapper = texture1DMapper;
+        texture1DMapper.init(grid, minValue, maxValue);
+    }
+
+    /**
+     * Sets the texture draped on the terrain. An image with a single row is
+     * a 1D hypsometric texture.
+     * @param textureImage The texture image.
+     */
+    public void setTextureImage(BufferedImage textureImage) {
+        if (textureImage == null) {
+            clearTextureImage();
+            return;
+        }
+        textureWidth = textureImage.getWidth();
+        textureHeight = textureImage.getHeight();
+        texturePixels = textureImage.getRGB(0, 0, textureWidth, textureHeight,
+                null, 0, textureWidth);
+    }
+
+    public void clearTextureImage() {
+        texturePixels = null;
+    }
+
+    public boolean hasTexture() {
+        return texturePixels != null;
+    }
+
+    /**
+     * Copies the camera, light, fog and background settings of a viewer.
+     * @param viewer The viewer.
+     */
+    public void setView(Map3DViewer viewer) {
+        setCamera(viewer.getCamera());
+        xAngle = viewer.getXAngle();
+        zAngle = viewer.getZAngle();
+        viewDistance = viewer.getViewDistance();
+        fov = viewer.getViewAngle();
+        shearX = viewer.getShearX();
+        shearY = viewer.getShearY();
+        shiftX = viewer.getShiftX();
+        shiftY = viewer.getShiftY();
+        backgroundColor = viewer.getBackgroundColor();
+        shadingEnabled = viewer.isShading();
+        ambientLight = viewer.getAmbientLight();
+        diffuseLight = viewer.getDiffuseLight();
+        lightAzimuth = viewer.getLightAzimuth();
+        lightZenith = viewer.getLightZenith();
+        bindLightDirectionToViewDirection = viewer.isBindLightDirectionToViewDirection();
+        fogEnabled = viewer.isFogEnabled();
+        fogStart = viewer.getFogStart();
+        fogEnd = viewer.getFogEnd();
+        fogColor = viewer.getFogColor();
+    }
+
+    public Camera getCamera() {
+        return camera;
+    }
+
+    /**
+     * @param camera The camera. The cylindrical camera is not supported.
+     */
+    public void setCamera(Camera camera) {
+        if (camera == Camera.cylindrical) {
+            throw new IllegalArgumentException("cylindrical camera not supported");
+        }
+        this.camera = camera;
+    }
+
+    public float getXAngle() {
+        return xAngle;
+    }
+
+    public void setXAngle(float xAngle) {
+        this.xAngle = xAngle;
+    }
+
+    public float getZAngle() {
+        return zAngle;
+    }
+
+    public void setZAngle(float zAngle) {
+        while (zAngle > 180) {
+            zAngle -= 360;
+        }
+        while (zAngle < -180) {
+            zAngle += 360;
+        }
+        this.zAngle = zAngle;
+    }
+
+    public float getViewDistance() {
+        return viewDistance;
+    }
+
+    public void setViewDistance(float viewDistance) {
+        this.viewDistance = viewDistance;
+    }
+
+    public float getViewAngle() {
+        return fov;
+    }
+
+    public void setViewAngle(float viewAngle) {
+        this.fov = viewAngle;
+    }
+
+    public float getShearX() {
+        return shearX;
+    }
+
+    public void setShearX(float shearX) {
+        this.shearX = shearX;
+    }
+
+    public float getShearY() {
+        return shearY;
+    }
+
+    public void setShearY(float shearY) {
+        this.shearY = shearY;
+    }
+
+    public void setShearing(float shearX, float shearY) {
+        this.shearX = shearX;
+        this.shearY = shearY;
+    }
+
+    public float getShearBaseline() {
+        return shearBaseline;
+    }
+
+    /**
+     * @param z Elevation relative to the grid size to which maximum shearing
+     * is applied.
+     */
+    public void setShearBaseline(float z) {
+        this.shearBaseline = z;
+    }
+
+    public float getShiftX() {
+        return shiftX;
+    }
+
+    public float getShiftY() {
+        return shiftY;
+    }
+
+    public void setShift(float shiftX, float shiftY) {
+        this.shiftX = shiftX;
+        this.shiftY = shiftY;
+    }
+
+    public Color getBackgroundColor() {
+        return backgroundColor;
+    }
+
+    public void setBackgroundColor(Color backgroundColor) {
+        this.backgroundColor = backgroundColor;
+    }
+
+    public boolean isShading() {
+        return shadingEnabled;
+    }
+
+    public void setShading(boolean enable) {
+        this.shadingEnabled = enable;
+    }
+
+    public void setLight(float ambient, float diffuse) {
+        this.ambientLight = ambient;
+        this.diffuseLight = diffuse;
+    }
+
+    public float getAmbientLight() {
+        return ambientLight;
+    }
+
+    public float getDiffuseLight() {
+        return diffuseLight;
+    }
+
+    public void setLightDirection(float azimuth, float zenith) {
+        this.lightAzimuth = azimuth;
+        this.lightZenith = zenith;
+    }
+
+    public float getLightAzimuth() {
+        return lightAzimuth;
+    }
+
+    public float getLightZenith() {
+        return lightZenith;
+    }
+
+    public void setBindLightDirectionToViewDirection(boolean bind) {
+        this.bindLightDirectionToViewDirection = bind;
+    }
+
+    public boolean isFogEnabled() {
+        return fogEnabled;
+    }
+
+    public void setFogEnabled(boolean fogEnabled) {
+        this.fogEnabled = fogEnabled;
+    }
+
+    public void setFog(float fogStart, float fogEnd, Color fogColor) {
+        this.fogStart = fogStart;
+        this.fogEnd = fogEnd;
+        this.fogColor = fogColor;
+    }
+
+    /**
+     * @return The executor rasterizing bands of the image in parallel.
+     */
+    public GridExecutor getExecutor() {
+        return executor != null ? executor : GridExecutor.getDefault();
+    }
+
+    /**
+     * @param executor The executor rasterizing bands of the image in
+     * parallel. If null, the shared default executor is used.
+     */
+    public void setExecutor(GridExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Renders the terrain model.
+     * @param width The width of the image in pixels.
+     * @param height The height of the image in pixels.
+     * @return A new image.
+     */
+    public BufferedImage render(int width, int height) {
+        if (grid == null) {
+            throw new IllegalStateException("no terrain model");
+        }
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("invalid image size");
+        }
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        final Frame frame = new Frame(width, height);
+
+        // vertical extent of each row of grid cells in the image
+        final int rows = grid.length;
+        final float[] rowMinY = new float[rows];
+        final float[] rowMaxY = new float[rows];
+        getExecutor().execute(null, rows, new GridExecutor.RowTask() {
+
+            public void run(int startRow, int endRow) {
+                VertexRow v = new VertexRow(grid[0].length);
+                for (int r = startRow; r < endRow; r++) {
+                    frame.transform(r, v);
+                    rowMinY[r] = v.minY;
+                    rowMaxY[r] = v.maxY;
+                }
+            }
+        });
+        for (int r = 0; r < rows - 1; r++) {
+            rowMinY[r] = Math.min(rowMinY[r], rowMinY[r + 1]);
+            rowMaxY[r] = Math.max(rowMaxY[r], rowMaxY[r + 1]);
+        }
+
+        getExecutor().execute("Map3DSoftwareRenderer", height, new GridExecutor.RowTask() {
+
+            public void run(int startRow, int endRow) {
+                frame.rasterize(pixels, startRow, endRow, rowMinY, rowMaxY);
+            }
+        });
+        return image;
+    }
+
+    /**
+     * Projected vertices of a row of the grid.
+     */
+    private static final class VertexRow {
+
+        /**
+         * Position in the image in pixels, and depth in [-1, 1]. x is NaN for
+         * vertices that are void or cannot be projected.
+         */
+        final float[] x, y, depth;
+        /**
+         * 1 / w of the homogeneous clip coordinates for perspective correct
+         * interpolation.
+         */
+        final float[] invW;
+        /**
+         * Light intensity, fog weight, 1D texture coordinate, 2D texture
+         * coordinates.
+         */
+        final float[] light, fog, t, u, v;
+        /**
+         * Vertical extent of the valid vertices in the image.
+         */
+        float minY, maxY;
+        /**
+         * The grid row of the vertices.
+         */
+        int row = -1;
+
+        VertexRow(int cols) {
+            x = new float[cols];
+            y = new float[cols];
+            depth = new float[cols];
+            invW = new float[cols];
+            light = new float[cols];
+            fog = new float[cols];
+            t = new float[cols];
+            u = new float[cols];
+            v = new float[cols];
+        }
+    }
+
+    /**
+     * The state of a single rendering: transformation matrices, light, and
+     * texture settings derived from the renderer.
+     */
+    private final class Frame {
+
+        private final int width, height;
+        private final int cols, rows;
+        /**
+         * Model-view-projection matrix, column major.
+         */
+        private final float[] mvp;
+        /**
+         * Model-view matrix, column major.
+         */
+        private final float[] mv;
+        private final float scaleGridToUnity, scaleZToUnity;
+        private final float textureScaleH, textureScaleV;
+        private final boolean shear;
+        private final float lightX, lightY, lightZ;
+        private final float lightBase;
+        private final float fogStartEye, fogEndEye;
+        /**
+         * 0: no texture; 1: 1D texture; 2: 2D texture; -1: 1D texture with
+         * non-linear mapping of elevation.
+         */
+        private final int textureType;
+        private final int backgroundRGB;
+        private final float fogR, fogG, fogB;
+
+        Frame(int width, int height) {
+            this.width = width;
+            this.height = height;
+            rows = grid.length;
+            cols = grid[0].length;
+            scaleGridToUnity = 1.0f / (Math.max(cols, rows) - 1);
+            scaleZToUnity = 1f / ((maxValue - minValue) / cellSize);
+            textureScaleH = cols >= rows ? 1 : (float) rows / cols;
+            textureScaleV = rows >= cols ? 1 : (float) cols / rows;
+            shear = camera == Camera.planOblique;
+
+            // projection, see Map3DViewer.setupProjection()
+            final float aspect = (float) width / height;
+            float[] p;
+            if (camera == Camera.perspective) {
+                float top = (float) Math.tan(Math.toRadians(fov * 0.5)) * Z_NEAR;
+                p = frustum(-aspect * top, aspect * top, -top, top, Z_NEAR, Z_FAR);
+            } else {
+                float w = aspect * viewDistance;
+                float h = viewDistance;
+                p = ortho(-w / 2, w / 2, -h / 2, h / 2, 0, Z_FAR);
+            }
+            p = mult(p, scale(1, -1, 1));
+
+            // model view, see Map3DViewer.display_()
+            final boolean tilted = camera == Camera.perspective
+                    || camera == Camera.parallelOblique;
+            final float modelWidth = Math.min(1, (float) cols / rows);
+            final float modelHeight = Math.min(1, (float) rows / cols);
+            final float dz = tilted ? -(0.3f * maxValue) / ((cols - 1) * cellSize) : 0;
+            float[] m = translate(0, 0, -viewDistance);
+            m = mult(m, translate(shiftX, shiftY, 0));
+            if (tilted) {
+                m = mult(m, rotate(xAngle, 1, 0, 0));
+            }
+            m = mult(m, rotate(zAngle, 0, 0, 1));
+            m = mult(m, translate(-modelWidth / 2, -modelHeight / 2, dz));
+            mv = m;
+            mvp = mult(p, m);
+
+            // light direction in model coordinates, see Map3DViewer.setupLight()
+            float azimuth = lightAzimuth;
+            if (bindLightDirectionToViewDirection) {
+                azimuth -= zAngle;
+            }
+            final double a = -Math.PI / 2 - Math.toRadians(azimuth);
+            final double z = Math.toRadians(lightZenith);
+            lightX = (float) (-Math.cos(a) * Math.sin(z));
+            lightY = (float) (Math.sin(a) * Math.sin(z));
+            lightZ = (float) Math.cos(z);
+            lightBase = LIGHT_MODEL_AMBIENT * MATERIAL_AMBIENT + ambientLight * MATERIAL_AMBIENT;
+
+            // fog, see Map3DViewer.enableFog()
+            fogStartEye = fogStart + viewDistance - 0.5f;
+            fogEndEye = fogEnd + viewDistance - 0.5f;
+            fogR = fogColor.getRed() / 255f;
+            fogG = fogColor.getGreen() / 255f;
+            fogB = fogColor.getBlue() / 255f;
+
+            // texture type, see Map3DModelVBOShader.draw()
+            if (texturePixels == null) {
+                textureType = 0;
+            } else if (textureHeight > 1) {
+                textureType = 2;
+            } else if (texture1DMapper != null && !texture1DMapper.isLinearHeightMapping()) {
+                textureType = -1;
+            } else {
+                textureType = 1;
+            }
+            backgroundRGB = backgroundColor.getRGB();
+        }
+
+        /**
+         * Transforms and lights the vertices of a grid row, as the vertex
+         * shader does.
+         */
+        void transform(int r, VertexRow vr) {
+            final float s = scaleGridToUnity;
+            final float[] row = grid[r];
+            final float[] nextRow = grid[Math.min(r + 1, rows - 1)];
+            final float[] m = mvp;
+            float minY = Float.MAX_VALUE;
+            float maxY = -Float.MAX_VALUE;
+            for (int c = 0; c < cols; c++) {
+                final float zGrid = row[c] / cellSize;
+                if (Float.isNaN(zGrid)) {
+                    vr.x[c] = Float.NaN;
+                    continue;
+                }
+
+                // position with plan oblique shearing
+                float vx = c * s;
+                float vy = r * s;
+                final float vz = zGrid * s;
+                if (shear) {
+                    final float k = shearBaseline - Math.abs(vz - shearBaseline);
+                    vx += shearX * k;
+                    vy += shearY * k;
+                }
+
+                // project
+                final float cw = m[3] * vx + m[7] * vy + m[11] * vz + m[15];
+                if (cw <= 0) {
+                    vr.x[c] = Float.NaN;
+                    continue;
+                }
+                final float invW = 1f / cw;
+                final float nx = (m[0] * vx + m[4] * vy + m[8] * vz + m[12]) * invW;
+                final float ny = (m[1] * vx + m[5] * vy + m[9] * vz + m[13]) * invW;
+                final float nz = (m[2] * vx + m[6] * vy + m[10] * vz + m[14]) * invW;
+                if (nz < -1 || nz > 1) {
+                    vr.x[c] = Float.NaN;
+                    continue;
+                }
+                final float y = (1 - ny) * 0.5f * height;
+                vr.x[c] = (nx + 1) * 0.5f * width;
+                vr.y[c] = y;
+                vr.depth[c] = nz;
+                vr.invW[c] = invW;
+                minY = Math.min(minY, y);
+                maxY = Math.max(maxY, y);
+
+                // diffuse light with normal from right and lower neighbors
+                float dx = zGrid - row[Math.min(c + 1, cols - 1)] / cellSize;
+                float dy = zGrid - nextRow[c] / cellSize;
+                if (Float.isNaN(dx)) {
+                    dx = 0;
+                }
+                if (Float.isNaN(dy)) {
+                    dy = 0;
+                }
+                final float nDotL = (dx * lightX + dy * lightY + lightZ)
+                        / (float) Math.sqrt(dx * dx + dy * dy + 1);
+                final float light = lightBase + diffuseLight * MATERIAL_DIFFUSE * Math.max(0, nDotL);
+                vr.light[c] = Math.min(1, Math.max(0, light));
+
+                // linear fog
+                if (fogEnabled) {
+                    final float eyeZ = mv[2] * vx + mv[6] * vy + mv[10] * vz + mv[14];
+                    final float f = (fogEndEye - Math.abs(eyeZ)) / (fogEndEye - fogStartEye);
+                    vr.fog[c] = Math.min(1, Math.max(0, f));
+                }
+
+                // texture coordinates
+                vr.u[c] = c * s * textureScaleH;
+                vr.v[c] = r * s * textureScaleV;
+                if (textureType == -1) {
+                    vr.t[c] = (int) (texture1DMapper.get1DTextureCoordinate(c, r) * 255) / 255f;
+                } else {
+                    vr.t[c] = zGrid * scaleZToUnity;
+                }
+            }
+            vr.minY = minY;
+            vr.maxY = maxY;
+            vr.row = r;
+        }
+
+        /**
+         * Rasterizes all triangles overlapping a band of image rows.
+         */
+        void rasterize(int[] pixels, int y0, int y1, float[] rowMinY, float[] rowMaxY) {
+            Arrays.fill(pixels, y0 * width, y1 * width, backgroundRGB);
+            final float[] zBuffer = new float[(y1 - y0) * width];
+            Arrays.fill(zBuffer, Float.POSITIVE_INFINITY);
+            VertexRow top = new VertexRow(cols);
+            VertexRow bottom = new VertexRow(cols);
+            final float[] rgb = new float[3];
+
+            for (int r = 0; r < rows - 1; r++) {
+                if (rowMaxY[r] < y0 - 1 || rowMinY[r] > y1 + 1) {
+                    continue;
+                }
+                if (bottom.row == r) {
+                    VertexRow tmp = top;
+                    top = bottom;
+                    bottom = tmp;
+                } else {
+                    transform(r, top);
+                }
+                transform(r + 1, bottom);
+
+                // alternating diagonals, as in the triangle strips of Map3DModelVBOShader
+                final boolean evenRow = r % 2 == 0;
+                for (int c = 0; c < cols - 1; c++) {
+                    if (evenRow) {
+                        triangle(top, c, bottom, c, top, c + 1, pixels, zBuffer, y0, y1, rgb);
+                        triangle(bottom, c, bottom, c + 1, top, c + 1, pixels, zBuffer, y0, y1, rgb);
+                    } else {
+                        triangle(top, c, bottom, c, bottom, c + 1, pixels, zBuffer, y0, y1, rgb);
+                        triangle(top, c, bottom, c + 1, top, c + 1, pixels, zBuffer, y0, y1, rgb);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Rasterizes a triangle with a z-buffer, interpolating vertex
+         * attributes with perspective correction.
+         */
+        private void triangle(VertexRow ra, int a, VertexRow rb, int b, VertexRow rc, int c,
+                int[] pixels, float[] zBuffer, int y0, int y1, float[] rgb) {
+
+            final float xa = ra.x[a], xb = rb.x[b], xc = rc.x[c];
+            if (Float.isNaN(xa) || Float.isNaN(xb) || Float.isNaN(xc)) {
+                return;
+            }
+            final float ya = ra.y[a], yb = rb.y[b], yc = rc.y[c];
+
+            // bounding box clipped to band
+            final int minX = Math.max(0, (int) Math.floor(Math.min(xa, Math.min(xb, xc))));
+            final int maxX = Math.min(width - 1, (int) Math.ceil(Math.max(xa, Math.max(xb, xc))));
+            final int minY = Math.max(y0, (int) Math.floor(Math.min(ya, Math.min(yb, yc))));
+            final int maxY = Math.min(y1 - 1, (int) Math.ceil(Math.max(ya, Math.max(yb, yc))));
+            if (minX > maxX || minY > maxY) {
+                return;
+            }
+
+            final float area = (xb - xa) * (yc - ya) - (yb - ya) * (xc - xa);
+            if (area == 0) {
+                return;
+            }
+            final float invArea = 1f / area;
+
+            // barycentric weights are linear in x and y
+            final float dwaX = (yb - yc) * invArea, dwaY = (xc - xb) * invArea;
+            final float dwbX = (yc - ya) * invArea, dwbY = (xa - xc) * invArea;
+
+            final float za = ra.depth[a], zb = rb.depth[b], zc = rc.depth[c];
+            final float iwa = ra.invW[a], iwb = rb.invW[b], iwc = rc.invW[c];
+
+            for (int py = minY; py <= maxY; py++) {
+                final float cy = py + 0.5f;
+                final float cx = minX + 0.5f;
+                float wa = ((xb - cx) * (yc - cy) - (yb - cy) * (xc - cx)) * invArea;
+                float wb = ((xc - cx) * (ya - cy) - (yc - cy) * (xa - cx)) * invArea;
+                final int zRow = (py - y0) * width;
+                final int pRow = py * width;
+                for (int px = minX; px <= maxX; px++, wa += dwaX, wb += dwbX) {
+                    final float wc = 1f - wa - wb;
+                    if (wa < 0 || wb < 0 || wc < 0) {
+                        continue;
+                    }
+                    final float depth = wa * za + wb * zb + wc * zc;
+                    if (depth >= zBuffer[zRow + px]) {
+                        continue;
+                    }
+                    zBuffer[zRow + px] = depth;
+
+                    // perspective correct weights
+                    final float pa = wa * iwa, pb = wb * iwb, pc = wc * iwc;
+                    final float norm = 1f / (pa + pb + pc);
+                    final float ka = pa * norm, kb = pb * norm, kc = pc * norm;
+                    pixels[pRow + px] = shade(ra, a, rb, b, rc, c, ka, kb, kc, rgb);
+                }
+            }
+        }
+
+        /**
+         * Computes the color of a fragment, as the fragment shader does.
+         */
+        private int shade(VertexRow ra, int a, VertexRow rb, int b, VertexRow rc, int c,
+                float ka, float kb, float kc, float[] rgb) {
+
+            switch (textureType) {
+                case 0:
+                    rgb[0] = rgb[1] = rgb[2] = 1f;
+                    break;
+                case 2: {
+                    float u = ka * ra.u[a] + kb * rb.u[b] + kc * rc.u[c];
+                    float v = ka * ra.v[a] + kb * rb.v[b] + kc * rc.v[c];
+                    sampleTexture(u, v, rgb);
+                    break;
+                }
+                default: {
+                    float t = ka * ra.t[a] + kb * rb.t[b] + kc * rc.t[c];
+                    sampleTexture(t, 0.5f, rgb);
+                }
+            }
+            float red = rgb[0], green = rgb[1], blue = rgb[2];
+            if (shadingEnabled) {
+                final float light = ka * ra.light[a] + kb * rb.light[b] + kc * rc.light[c];
+                red *= light;
+                green *= light;
+                blue *= light;
+            }
+            if (fogEnabled) {
+                final float f = ka * ra.fog[a] + kb * rb.fog[b] + kc * rc.fog[c];
+                red = fogR + (red - fogR) * f;
+                green = fogG + (green - fogG) * f;
+                blue = fogB + (blue - fogB) * f;
+            }
+            return (toByte(red) << 16) | (toByte(green) << 8) | toByte(blue);
+        }
+
+        /**
+         * Samples the texture with bilinear interpolation, clamping to the
+         * edge of the texture.
+         */
+        private void sampleTexture(float u, float v, float[] rgb) {
+            final float tx = clamp(u * textureWidth - 0.5f, textureWidth - 1);
+            final float ty = clamp(v * textureHeight - 0.5f, textureHeight - 1);
+            final int x0 = (int) tx, y0 = (int) ty;
+            final int x1 = Math.min(x0 + 1, textureWidth - 1);
+            final int y1 = Math.min(y0 + 1, textureHeight - 1);
+            final float fx = tx - x0, fy = ty - y0;
+            final int p00 = texturePixels[y0 * textureWidth + x0];
+            final int p10 = texturePixels[y0 * textureWidth + x1];
+            final int p01 = texturePixels[y1 * textureWidth + x0];
+            final int p11 = texturePixels[y1 * textureWidth + x1];
+            for (int i = 0, shift = 16; i < 3; i++, shift -= 8) {
+                final float c0 = ((p00 >> shift) & 0xFF) * (1 - fx) + ((p10 >> shift) & 0xFF) * fx;
+                final float c1 = ((p01 >> shift) & 0xFF) * (1 - fx) + ((p11 >> shift) & 0xFF) * fx;
+                rgb[i] = (c0 * (1 - fy) + c1 * fy) / 255f;
+            }
+        }
+    }
+
+    private static float clamp(float v, float max) {
+        return v < 0 ? 0 : (v > max ? max : v);
+    }
+
+    private static int toByte(float v) {
+        final int i = (int) (v * 255f + 0.5f);
+        return i < 0 ? 0 : (i > 255 ? 255 : i);
+    }
+
+    /*
+     * 4x4 matrices in column major order, as in OpenGL.
+     */
+    private static float[] mult(float[] a, float[] b) {
+        float[] m = new float[16];
+        for (int col = 0; col < 4; col++) {
+            for (int row = 0; row < 4; row++) {
+                float sum = 0;
+                for (int k = 0; k < 4; k++) {
+                    sum += a[k * 4 + row] * b[col * 4 + k];
+                }
+                m[col * 4 + row] = sum;
+            }
+        }
+        return m;
+    }
+
+    private static float[] identity() {
+        float[] m = new float[16];
+        m[0] = m[5] = m[10] = m[15] = 1;
+        return m;
+    }
+
+    private static float[] translate(float x, float y, float z) {
+        float[] m = identity();
+        m[12] = x;
+        m[13] = y;
+        m[14] = z;
+        return m;
+    }
+
+    private static float[] scale(float x, float y, float z) {
+        float[] m = identity();
+        m[0] = x;
+        m[5] = y;
+        m[10] = z;
+        return m;
+    }
+
+    /**
+     * Rotation around a unit axis, as glRotatef.
+     */
+    private static float[] rotate(float angleDeg, float x, float y, float z) {
+        final float a = (float) Math.toRadians(angleDeg);
+        final float c = (float) Math.cos(a), s = (float) Math.sin(a), t = 1 - c;
+        float[] m = identity();
+        m[0] = x * x * t + c;
+        m[1] = y * x * t + z * s;
+        m[2] = x * z * t - y * s;
+        m[4] = x * y * t - z * s;
+        m[5] = y * y * t + c;
+        m[6] = y * z * t + x * s;
+        m[8] = x * z * t + y * s;
+        m[9] = y * z * t - x * s;
+        m[10] = z * z * t + c;
+        return m;
+    }
+
+    private static float[] ortho(float l, float r, float b, float t, float n, float f) {
+        float[] m = identity();
+        m[0] = 2 / (r - l);
+        m[5] = 2 / (t - b);
+        m[10] = -2 / (f - n);
+        m[12] = -(r + l) / (r - l);
+        m[13] = -(t + b) / (t - b);
+        m[14] = -(f + n) / (f - n);
+        return m;
+    }
+
+    private static float[] frustum(float l, float r, float b, float t, float n, float f) {
+        float[] m = new float[16];
+        m[0] = 2 * n / (r - l);
+        m[5] = 2 * n / (t - b);
+        m[8] = (r + l) / (r - l);
+        m[9] = (t + b) / (t - b);
+        m[10] = -(f + n) / (f - n);
+        m[11] = -1;
+        m[14] = -2 * f * n / (f - n);
+        return m;
+    }
+}
@@ -1,19 +1,46 @@
 package ch.ethz.karto.map3d;
 
 import com.jogamp.opengl.util.texture.awt.AWTTextureData;
+import ika.geoimport.TiledImagePyramid;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import javax.media.opengl.GL;
 import javax.media.opengl.GL2;
 
 /**
- * A 1D or 2D texture stored in a BufferedImage.
+ * A 1D or 2D texture stored in a BufferedImage, or a 2D texture stored in a
+ * TiledImagePyramid. For a pyramid, only the level matching the size of the
+ * texture on screen is passed to OpenGL, tile by tile.
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich.
  */
 public class Map3DTexture extends Map3DTextureAbstract {
 
     BufferedImage imageToLoad = null;
     boolean is2D = false;
+
+    /**
+     * Pyramid for large texture images, or null.
+     */
+    private TiledImagePyramid pyramid = null;
+
+    /**
+     * The level of the pyramid currently passed to OpenGL, or -1.
+     */
+    private int pyramidLevel = -1;
+
+    /**
+     * The number of texture pixels required along the longer side of the
+     * texture to render it without visible loss of detail.
+     */
+    private int requiredSize = 0;
+
+    /**
+     * Maximum texture size used if the size cannot be queried from OpenGL.
+     */
+    private static final int DEF_MAX_TEXTURE_SIZE = 2048;
     
     public Map3DTexture() {
     }
@@ -39,17 +66,89 @@ public class Map3DTexture extends Map3DTextureAbstract {
     }
 
     @Override
-    public boolean constructTexture(GL gl) {
+    public synchronized boolean constructTexture(GL gl) {
         
         conditionalRelease(gl);
         if (imageToLoad != null) {
             load(gl);
             return true;
+        } else if (pyramid != null) {
+            int level = pyramid.getLevel(requiredSize, getMaxSize());
+            if (level == pyramidLevel && textureName[0] != 0) {
+                return false;
+            }
+            gl.glDeleteTextures(1, textureName, 0);
+            textureName[0] = 0;
+            loadPyramidLevel(gl, level);
+            return true;
         } else {
             return false;
         }
     }
 
+    /**
+     * Returns the maximum width and height of a texture.
+     */
+    private static int getMaxSize() {
+        int maxSize = getMaxTextureSize();
+        return maxSize > 0 ? maxSize : DEF_MAX_TEXTURE_SIZE;
+    }
+
+    /**
+     * Passes a level of the pyramid to OpenGL. The texture is allocated
+     * first, and the tiles are then copied one after the other, so that the
+     * level does not have to be stored in a single image.
+     * @param gl
+     * @param level The level of the pyramid.
+     */
+    private void loadPyramidLevel(GL gl1, int level) {
+
+        GL2 gl = (GL2) gl1;
+
+        gl.glGenTextures(1, textureName, 0);
+        gl.glBindTexture(GL2.GL_TEXTURE_2D, textureName[0]);
+        gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_MIN_FILTER, GL2.GL_LINEAR);
+        gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_MAG_FILTER, GL2.GL_LINEAR);
+        gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_S, GL2.GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_T, GL2.GL_CLAMP_TO_EDGE);
+
+        final int w = pyramid.getWidth(level);
+        final int h = pyramid.getHeight(level);
+        gl.glTexImage2D(GL2.GL_TEXTURE_2D, 0, GL2.GL_RGBA8, w, h, 0,
+                GL2.GL_BGRA, GL2.GL_UNSIGNED_INT_8_8_8_8_REV, null);
+
+        // tiles are stored with TILE_SIZE pixels per row, also on the
+        // right and bottom border where only a part of a tile is copied
+        final int tileSize = TiledImagePyramid.TILE_SIZE;
+        gl.glPixelStorei(GL2.GL_UNPACK_ROW_LENGTH, tileSize);
+        gl.glPixelStorei(GL2.GL_UNPACK_ALIGNMENT, 4);
+        int[] tile = new int[tileSize * tileSize];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(tile.length * 4);
+        buffer.order(ByteOrder.nativeOrder());
+        try {
+            for (int ty = 0; ty < pyramid.getTilesY(level); ty++) {
+                for (int tx = 0; tx < pyramid.getTilesX(level); tx++) {
+                    pyramid.readTile(level, tx, ty, tile, buffer);
+                    final int x = tx * tileSize;
+                    final int y = ty * tileSize;
+                    gl.glTexSubImage2D(GL2.GL_TEXTURE_2D, 0, x, y,
+                            Math.min(tileSize, w - x), Math.min(tileSize, h - y),
+                            GL2.GL_BGRA, GL2.GL_UNSIGNED_INT_8_8_8_8_REV, buffer);
+                }
+            }
+            pyramidLevel = level;
+        } catch (IOException ex) {
+            // the file with the tiles cannot be read; keep the incomplete
+            // texture and do not try again
+            ex.printStackTrace();
+            pyramid.dispose();
+            pyramid = null;
+            pyramidLevel = -1;
+        } finally {
+            gl.glPixelStorei(GL2.GL_UNPACK_ROW_LENGTH, 0);
+        }
+    }
+
     /**
      * Passes the texture image to OpenGL2.
      * @param gl
@@ -93,21 +192,61 @@ public class Map3DTexture extends Map3DTextureAbstract {
      */
     @Override
     public boolean hasTexture() {
-        return imageToLoad != null || textureName[0] != 0;
+        return imageToLoad != null || pyramid != null || textureName[0] != 0;
     }
 
     /**
      * Set the texture image.
      * @param textureImage The new texture image.
      */
-    public void setTexture(BufferedImage textureImage) {
+    public synchronized void setTexture(BufferedImage textureImage) {
         if (textureImage != null) {
+            disposePyramid();
             this.imageToLoad = textureImage;
             this.deleteTextureName = true;
             this.is2D = textureImage.getHeight() > 1;
         }
     }
 
+    /**
+     * Set a pyramid of the texture image. The pyramid is disposed when it is
+     * replaced or the texture is cleared.
+     * @param pyramid The new pyramid.
+     */
+    public synchronized void setTexture(TiledImagePyramid pyramid) {
+        if (pyramid != null) {
+            disposePyramid();
+            this.pyramid = pyramid;
+            this.imageToLoad = null;
+            this.deleteTextureName = true;
+            this.is2D = true;
+        }
+    }
+
+    /**
+     * Sets the number of texture pixels required along the longer side of
+     * the texture. If the texture is stored in a pyramid, the level passed to
+     * OpenGL is replaced by constructTexture() if another level fits better.
+     * @param requiredSize The required size in pixels.
+     */
+    public synchronized void setRequiredSize(int requiredSize) {
+        this.requiredSize = requiredSize;
+    }
+
+    @Override
+    public synchronized void clearTexture() {
+        disposePyramid();
+        super.clearTexture();
+    }
+
+    private void disposePyramid() {
+        if (pyramid != null) {
+            pyramid.dispose();
+            pyramid = null;
+        }
+        pyramidLevel = -1;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
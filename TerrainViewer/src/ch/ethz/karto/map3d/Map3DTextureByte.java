@@ -39,6 +39,22 @@ public class Map3DTextureByte {
                 GL2.GL_LUMINANCE, GL2.GL_UNSIGNED_BYTE, buffer);
     }
 
+    /**
+     * Replaces a band of rows of the texture without reallocating it.
+     * @param gl
+     * @param buffer The new values.
+     * @param firstRow The first row to replace.
+     * @param width The width of the texture.
+     * @param height The number of rows to replace.
+     */
+    public void update(GL gl, ByteBuffer buffer, int firstRow, int width, int height) {
+        buffer.rewind();
+        gl.glBindTexture(GL2.GL_TEXTURE_2D, textureName[0]);
+        gl.glPixelStorei(GL2.GL_UNPACK_ALIGNMENT, 1);
+        gl.glTexSubImage2D(GL2.GL_TEXTURE_2D, 0, 0, firstRow, width, height,
+                GL2.GL_LUMINANCE, GL2.GL_UNSIGNED_BYTE, buffer);
+    }
+
     public void release(GL gl) {
         gl.glDeleteTextures(textureName.length, textureName, 0);
     }
@@ -45,6 +45,22 @@ public class Map3DTextureFloat {
         gl.glTexImage2D(GL2.GL_TEXTURE_2D, 0, GL2.GL_LUMINANCE32F, width, height, 0, GL2.GL_LUMINANCE, GL2.GL_FLOAT, buffer);
     }
 
+    /**
+     * Replaces a band of rows of the texture without reallocating it.
+     * @param gl
+     * @param buffer The new values.
+     * @param firstRow The first row to replace.
+     * @param width The width of the texture.
+     * @param height The number of rows to replace.
+     */
+    public void update(GL gl, FloatBuffer buffer, int firstRow, int width, int height) {
+        buffer.rewind();
+        gl.glBindTexture(GL2.GL_TEXTURE_2D, textureName[0]);
+        gl.glPixelStorei(GL2.GL_UNPACK_ALIGNMENT, Buffers.SIZEOF_FLOAT);
+        gl.glTexSubImage2D(GL2.GL_TEXTURE_2D, 0, 0, firstRow, width, height,
+                GL2.GL_LUMINANCE, GL2.GL_FLOAT, buffer);
+    }
+
     public void release(GL gl) {
         gl.glDeleteTextures(textureName.length, textureName, 0);
     }
@@ -11,6 +11,7 @@ import javax.media.opengl.GLProfile;
 import javax.media.opengl.awt.GLCanvas;
 import javax.media.opengl.GLEventListener;
 import javax.media.opengl.glu.GLU;
+import ika.geoimport.TiledImagePyramid;
 import ika.gui.GUIUtil;
 import ika.utils.ErrorDialog;
 import ika.utils.TextWindow;
@@ -53,6 +54,10 @@ public class Map3DViewer extends GLCanvas implements GLEventListener {
         }
     }
 
+    public boolean isBindLightDirectionToViewDirection() {
+        return bindLightDirectionToViewDirection;
+    }
+
     public enum Camera {
 
         perspective, parallelOblique, planOblique, orthogonal, cylindrical
@@ -289,12 +294,49 @@ public class Map3DViewer extends GLCanvas implements GLEventListener {
         this.model.setModel(grid, cellSize, mapper);
         this.updateView();
     }
+
+    /**
+     * Sets the model with a known minimum and maximum value, which avoids
+     * scanning the grid.
+     * @param grid The elevation values.
+     * @param cellSize The size of a cell.
+     * @param mapper Maps elevation values to 1D texture coordinates.
+     * @param minValue The minimum value of the grid.
+     * @param maxValue The maximum value of the grid.
+     */
+    public void setModel(float[][] grid, float cellSize, Map3DTexture1DMapper mapper,
+            float minValue, float maxValue) {
+        this.model.setMinMax(minValue, maxValue);
+        this.setModel(grid, cellSize, mapper);
+    }
     
+    /**
+     * Call gridChanged() after values of the grid passed to setModel() have
+     * changed. Only the changed rows are passed to OpenGL if possible.
+     * @param firstRow The first changed row.
+     * @param endRow The last changed row + 1.
+     */
+    public void gridChanged(int firstRow, int endRow) {
+        this.model.gridChanged(firstRow, endRow);
+        this.updateView();
+    }
+
     public void setTextureImage(BufferedImage textureImage) {
         this.texture.setTexture(textureImage);
         this.updateView();
     }
 
+    /**
+     * Sets a pyramid of a texture image that can be larger than the maximum
+     * texture size. The level of the pyramid is selected for the current
+     * size of the model on screen.
+     * @param pyramid The pyramid.
+     */
+    public void setTexturePyramid(TiledImagePyramid pyramid) {
+        this.texture.setTexture(pyramid);
+        this.updateView();
+    }
+
     public void clearTextureImage() {
         this.texture.clearTexture();
         this.updateView();
@@ -516,6 +558,7 @@ public class Map3DViewer extends GLCanvas implements GLEventListener {
             model.releaseModel(drawable.getGL());
             if (model instanceof Map3DModelVBOShader) {
                 Map3DModel model2 = new Map3DModelVBO();
+                model2.setMinMax(model.minValue, model.maxValue);
                 model2.setModel(model.grid, model.cellSize, model.texture1DMapper);
                 model = model2;
             }
@@ -647,6 +690,7 @@ public class Map3DViewer extends GLCanvas implements GLEventListener {
         }
 
         // load the texture if necessary
+        texture.setRequiredSize(getRequiredTextureSize());
         boolean textureChanged = texture.constructTexture(gl);
         if (textureChanged) {
             model.textureChanged();
@@ -746,6 +790,27 @@ public class Map3DViewer extends GLCanvas implements GLEventListener {
         animation.update(this);
     }
 
+    /**
+     * Returns an estimation of the number of texture pixels along the longer
+     * side of the model that are required to render the texture without
+     * visible loss of detail from the current view point.
+     */
+    private int getRequiredTextureSize() {
+        int h = this.drawable.getContext().getGLDrawable().getHeight();
+        double visibleHeight;
+        if (camera == Camera.perspective || camera == Camera.cylindrical) {
+            visibleHeight = 2 * viewDistance * Math.tan(Math.toRadians(fov * 0.5));
+        } else {
+            visibleHeight = viewDistance;
+        }
+        double modelSize = Math.max(model.getNormalizedModelWidth(),
+                model.getNormalizedModelHeight());
+        if (!(visibleHeight > 0) || Double.isNaN(modelSize)) {
+            return 0;
+        }
+        return (int) Math.ceil(h * modelSize / visibleHeight);
+    }
+
     private void setupProjection(GL gl1) {
         GL2 gl = (GL2)gl1;
         gl.glMatrixMode(GL2.GL_PROJECTION);
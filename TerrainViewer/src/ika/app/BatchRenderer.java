@@ -0,0 +1,523 @@
+package ika.app;
+
+import ch.ethz.karto.map3d.Map3DNonLinearTexture1DMapper;
+import ch.ethz.karto.map3d.Map3DSoftwareRenderer;
+import ch.ethz.karto.map3d.Map3DViewer.Camera;
+import ika.geo.GeoGrid;
+import ika.geo.grid.GaussianPyramid;
+import ika.geo.grid.GridExecutor;
+import ika.geoimport.BinaryGridReader;
+import ika.geoimport.MappedEsriASCIIGridReader;
+import ika.utils.TIFFImageWriter;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import javax.imageio.ImageIO;
+
+/**
+ * Renders images of terrain models without a graphical user interface and
+ * without OpenGL. A list of jobs is processed concurrently; each job loads a
+ * terrain model, selects a pyramid level, applies a vertical exaggeration,
+ * renders the terrain with Map3DSoftwareRenderer, and writes a PNG, JPEG or
+ * TIFF file.
+ *
+ * Loaded terrain models are kept in a cache and shared by all jobs using the
+ * same file. The cache is limited to a number of bytes; models that are not
+ * used by a running job are discarded when the limit is exceeded. The number
+ * of concurrently running jobs is limited, which bounds the memory used for
+ * images.
+ *
+ * Jobs are described by lines of key=value pairs, for example:
+ * <pre>
+ * dem=alps.asc out=alps.png width=2000 height=1500 inclination=45 scale=1.5
+ * </pre>
+ * See USAGE for all keys.
+ *
+ * @author jenny
+ */
+public class BatchRenderer {
+
+    private static final String USAGE =
+            "Usage: java ika.app.BatchRenderer [-jobs n] [-cache MB] [-threads n] (jobfile | key=value...)\n"
+            + "Each line of a job file describes one image with key=value pairs:\n"
+            + "  dem=path          terrain model (ESRI ASCII grid or binary grid), required\n"
+            + "  out=path          output image (.png, .jpg, .tif), required\n"
+            + "  width=1024 height=768\n"
+            + "  camera=planOblique|orthogonal|parallelOblique|perspective\n"
+            + "  inclination=deg   plan oblique inclination angle (sets shearY)\n"
+            + "  shearX=0 shearY=0 xAngle=75 zAngle=0 distance=3 viewAngle=50\n"
+            + "  shiftX=0 shiftY=0 scale=1 (vertical exaggeration)\n"
+            + "  gridSize=1024     rendered pyramid level has at least gridSize^2 cells\n"
+            + "  lightAzimuth=315 lightZenith=45 ambient=0.4 diffuse=0.6 shading=true\n"
+            + "  texture=path      2D image or 1D hypsometric color ramp (single row)\n"
+            + "  background=FFFFFF fog=false fogStart=0 fogEnd=1\n"
+            + "Lines starting with # are ignored.";
+
+    /**
+     * Minimum number of cells in a pyramid level, as in the main window.
+     */
+    private static final int MIN_GRID_CELLS = 64 * 64;
+
+    /**
+     * A rendering job.
+     */
+    public static class Job {
+
+        public String demPath;
+        public String outputPath;
+        public int width = 1024;
+        public int height = 768;
+        public Camera camera = Camera.planOblique;
+        public float xAngle = 75;
+        public float zAngle = 0;
+        public float viewDistance = 3;
+        public float viewAngle = 50;
+        public float shearX = 0;
+        public float shearY = 0;
+        public float shiftX = 0;
+        public float shiftY = 0;
+        public float verticalScale = 1;
+        public int gridSize = 1024;
+        public float lightAzimuth = 315;
+        public float lightZenith = 45;
+        public float ambientLight = 0.4f;
+        public float diffuseLight = 0.6f;
+        public boolean shading = true;
+        public String texturePath;
+        public Color backgroundColor = Color.WHITE;
+        public boolean fog = false;
+        public float fogStart = 0;
+        public float fogEnd = 1;
+
+        /**
+         * Parses a job from key=value pairs separated by white space.
+         * @param line The job description.
+         * @return The new job.
+         */
+        public static Job parse(String line) {
+            Job job = new Job();
+            StringTokenizer tokenizer = new StringTokenizer(line);
+            while (tokenizer.hasMoreTokens()) {
+                String token = tokenizer.nextToken();
+                int eq = token.indexOf('=');
+                if (eq <= 0) {
+                    throw new IllegalArgumentException("expected key=value: " + token);
+                }
+                job.set(token.substring(0, eq), token.substring(eq + 1));
+            }
+            if (job.demPath == null || job.outputPath == null) {
+                throw new IllegalArgumentException("dem and out are required: " + line);
+            }
+            return job;
+        }
+
+        private void set(String key, String value) {
+            if ("dem".equals(key)) {
+                demPath = value;
+            } else if ("out".equals(key)) {
+                outputPath = value;
+            } else if ("width".equals(key)) {
+                width = Integer.parseInt(value);
+            } else if ("height".equals(key)) {
+                height = Integer.parseInt(value);
+            } else if ("camera".equals(key)) {
+                camera = Camera.valueOf(value);
+            } else if ("inclination".equals(key)) {
+                shearY = (float) (1. / Math.tan(Math.toRadians(Double.parseDouble(value))));
+            } else if ("shearX".equals(key)) {
+                shearX = Float.parseFloat(value);
+            } else if ("shearY".equals(key)) {
+                shearY = Float.parseFloat(value);
+            } else if ("xAngle".equals(key)) {
+                xAngle = Float.parseFloat(value);
+            } else if ("zAngle".equals(key)) {
+                zAngle = Float.parseFloat(value);
+            } else if ("distance".equals(key)) {
+                viewDistance = Float.parseFloat(value);
+            } else if ("viewAngle".equals(key)) {
+                viewAngle = Float.parseFloat(value);
+            } else if ("shiftX".equals(key)) {
+                shiftX = Float.parseFloat(value);
+            } else if ("shiftY".equals(key)) {
+                shiftY = Float.parseFloat(value);
+            } else if ("scale".equals(key)) {
+                verticalScale = Float.parseFloat(value);
+            } else if ("gridSize".equals(key)) {
+                gridSize = Integer.parseInt(value);
+            } else if ("lightAzimuth".equals(key)) {
+                lightAzimuth = Float.parseFloat(value);
+            } else if ("lightZenith".equals(key)) {
+                lightZenith = Float.parseFloat(value);
+            } else if ("ambient".equals(key)) {
+                ambientLight = Float.parseFloat(value);
+            } else if ("diffuse".equals(key)) {
+                diffuseLight = Float.parseFloat(value);
+            } else if ("shading".equals(key)) {
+                shading = Boolean.parseBoolean(value);
+            } else if ("texture".equals(key)) {
+                texturePath = value;
+            } else if ("background".equals(key)) {
+                backgroundColor = new Color(Integer.parseInt(value, 16));
+            } else if ("fog".equals(key)) {
+                fog = Boolean.parseBoolean(value);
+            } else if ("fogStart".equals(key)) {
+                fogStart = Float.parseFloat(value);
+            } else if ("fogEnd".equals(key)) {
+                fogEnd = Float.parseFloat(value);
+            } else {
+                throw new IllegalArgumentException("unknown key: " + key);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return demPath + " -> " + outputPath;
+        }
+    }
+
+    /**
+     * A cached terrain model.
+     */
+    private static class CacheEntry {
+
+        final FutureTask<GaussianPyramid> pyramid;
+        long bytes = 0;
+        int users = 0;
+
+        CacheEntry(FutureTask<GaussianPyramid> pyramid) {
+            this.pyramid = pyramid;
+        }
+    }
+
+    /**
+     * Loaded terrain models in least recently used order.
+     */
+    private final LinkedHashMap<String, CacheEntry> cache =
+            new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+    private long cachedBytes = 0;
+    private final long maxCacheBytes;
+    private final int concurrentJobs;
+
+    /**
+     * Texture images by path.
+     */
+    private final Map<String, BufferedImage> textures = new HashMap<String, BufferedImage>();
+
+    /**
+     * Creates a new batch renderer.
+     * @param concurrentJobs The maximum number of jobs rendered concurrently.
+     * @param maxCacheBytes The maximum size of cached terrain models in bytes.
+     */
+    public BatchRenderer(int concurrentJobs, long maxCacheBytes) {
+        if (concurrentJobs < 1) {
+            throw new IllegalArgumentException("invalid number of jobs");
+        }
+        this.concurrentJobs = concurrentJobs;
+        this.maxCacheBytes = maxCacheBytes;
+    }
+
+    /**
+     * Renders all jobs. Errors are reported to the standard error stream and
+     * do not stop other jobs.
+     * @param jobs The jobs.
+     * @return The number of jobs that failed.
+     */
+    public int render(List<Job> jobs) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(concurrentJobs);
+        try {
+            List<Future<Long>> results = new ArrayList<Future<Long>>();
+            for (final Job job : jobs) {
+                results.add(pool.submit(new Callable<Long>() {
+
+                    public Long call() throws Exception {
+                        long start = System.nanoTime();
+                        render(job);
+                        return (System.nanoTime() - start) / 1000000;
+                    }
+                }));
+            }
+            int failed = 0;
+            for (int i = 0; i < jobs.size(); i++) {
+                try {
+                    long ms = results.get(i).get();
+                    System.out.println((i + 1) + "/" + jobs.size() + " " + jobs.get(i) + " (" + ms + " ms)");
+                } catch (ExecutionException ex) {
+                    ++failed;
+                    System.err.println((i + 1) + "/" + jobs.size() + " " + jobs.get(i)
+                            + " failed: " + ex.getCause());
+                }
+            }
+            return failed;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Renders a single job.
+     * @param job The job.
+     */
+    public void render(Job job) throws Exception {
+        GaussianPyramid pyramid = acquire(job.demPath);
+        try {
+            BufferedImage image = render(job, pyramid);
+            write(image, job.outputPath);
+        } finally {
+            release(job.demPath);
+        }
+    }
+
+    private BufferedImage render(Job job, GaussianPyramid pyramid) throws IOException {
+
+        // the coarsest level with at least gridSize x gridSize cells
+        int level = 0;
+        for (int i = pyramid.getLevelsCount() - 1; i >= 0; i--) {
+            if ((long) pyramid.getLevelCols(i) * pyramid.getLevelRows(i)
+                    >= (long) job.gridSize * job.gridSize) {
+                level = i;
+                break;
+            }
+        }
+        GeoGrid grid = pyramid.getLevel(level);
+
+        // scaling the cell size is equivalent to scaling elevation values
+        double cellSize = projectedCellSize(grid, pyramid.getFullResolutionLevel());
+        cellSize /= job.verticalScale;
+
+        Map3DSoftwareRenderer renderer = new Map3DSoftwareRenderer();
+        GeoGrid.GeoGridStatistics stats = grid.getStatistics();
+        renderer.setModel(grid.getGrid(), (float) cellSize,
+                new Map3DNonLinearTexture1DMapper(grid.getGrid()), stats.min, stats.max);
+        renderer.setCamera(job.camera);
+        renderer.setXAngle(job.xAngle);
+        renderer.setZAngle(job.zAngle);
+        renderer.setViewDistance(job.viewDistance);
+        renderer.setViewAngle(job.viewAngle);
+        renderer.setShearing(job.shearX, job.shearY);
+        renderer.setShift(job.shiftX, job.shiftY);
+        renderer.setLightDirection(job.lightAzimuth, job.lightZenith);
+        renderer.setLight(job.ambientLight, job.diffuseLight);
+        renderer.setShading(job.shading);
+        renderer.setBackgroundColor(job.backgroundColor);
+        renderer.setFogEnabled(job.fog);
+        renderer.setFog(job.fogStart, job.fogEnd, job.backgroundColor);
+        if (job.texturePath != null) {
+            renderer.setTextureImage(texture(job.texturePath));
+        }
+        return renderer.render(job.width, job.height);
+    }
+
+    /**
+     * Returns a projected cell size for grids in geographic coordinates, as
+     * the main window does.
+     */
+    private static double projectedCellSize(GeoGrid grid, GeoGrid fullResolutionGrid) {
+        double cellSize = grid.getCellSize();
+        if (fullResolutionGrid.getCellSize() < 0.1) {
+            double lat = (fullResolutionGrid.getNorth() + fullResolutionGrid.getSouth()) / 2;
+            lat = Math.toRadians(lat);
+            double R = 6371000;
+            cellSize = R * Math.toRadians(cellSize) * Math.cos(lat);
+        }
+        return cellSize;
+    }
+
+    private synchronized BufferedImage texture(String path) throws IOException {
+        BufferedImage image = textures.get(path);
+        if (image == null) {
+            image = ImageIO.read(new File(path));
+            if (image == null) {
+                throw new IOException("cannot read texture " + path);
+            }
+            textures.put(path, image);
+        }
+        return image;
+    }
+
+    /**
+     * Writes an image. TIFF files are written with TIFFImageWriter, other
+     * formats with ImageIO.
+     */
+    private static void write(BufferedImage image, String path) throws IOException {
+        String ext = path.substring(path.lastIndexOf('.') + 1).toLowerCase();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(path));
+        try {
+            if ("tif".equals(ext) || "tiff".equals(ext)) {
+                final int w = image.getWidth();
+                final int h = image.getHeight();
+                TIFFImageWriter writer = new TIFFImageWriter(out, w, h);
+                int[] row = new int[w];
+                for (int r = 0; r < h; r++) {
+                    image.getRGB(0, r, w, 1, row, 0, w);
+                    for (int c = 0; c < w; c++) {
+                        final int rgb = row[c];
+                        writer.write((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff);
+                    }
+                }
+            } else if (!ImageIO.write(image, ext, out)) {
+                throw new IOException("unsupported image format " + ext);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the pyramid of a terrain model, loading it if it is not cached.
+     * Concurrent jobs requesting the same model wait for a single load.
+     * release() must be called when the pyramid is not used anymore.
+     */
+    private GaussianPyramid acquire(final String path) throws Exception {
+        CacheEntry entry;
+        boolean load = false;
+        synchronized (this) {
+            entry = cache.get(path);
+            if (entry == null) {
+                entry = new CacheEntry(new FutureTask<GaussianPyramid>(new Callable<GaussianPyramid>() {
+
+                    public GaussianPyramid call() throws Exception {
+                        return load(path);
+                    }
+                }));
+                cache.put(path, entry);
+                load = true;
+            }
+            ++entry.users;
+        }
+        if (load) {
+            entry.pyramid.run();
+        }
+        try {
+            GaussianPyramid pyramid = entry.pyramid.get();
+            if (load) {
+                synchronized (this) {
+                    GeoGrid grid = pyramid.getFullResolutionLevel();
+                    entry.bytes = (long) grid.getCols() * grid.getRows() * 4 * 4 / 3;
+                    cachedBytes += entry.bytes;
+                }
+            }
+            return pyramid;
+        } catch (ExecutionException ex) {
+            synchronized (this) {
+                if (cache.get(path) == entry) {
+                    cache.remove(path);
+                }
+                --entry.users;
+            }
+            Throwable cause = ex.getCause();
+            throw cause instanceof Exception ? (Exception) cause : ex;
+        }
+    }
+
+    /**
+     * Releases a pyramid and discards unused pyramids if the cache is too
+     * large.
+     */
+    private synchronized void release(String path) {
+        CacheEntry entry = cache.get(path);
+        if (entry != null) {
+            --entry.users;
+        }
+        Iterator<CacheEntry> iterator = cache.values().iterator();
+        while (cachedBytes > maxCacheBytes && iterator.hasNext()) {
+            CacheEntry e = iterator.next();
+            if (e.users == 0 && e.pyramid.isDone()) {
+                cachedBytes -= e.bytes;
+                iterator.remove();
+            }
+        }
+    }
+
+    private static GaussianPyramid load(String path) throws IOException {
+        if (BinaryGridReader.canRead(path)) {
+            return BinaryGridReader.readPyramid(path, null, Long.MAX_VALUE);
+        }
+        GeoGrid grid = MappedEsriASCIIGridReader.read(path);
+        if (grid == null) {
+            throw new IOException("cannot read terrain model " + path);
+        }
+        return new GaussianPyramid(grid, 9999, MIN_GRID_CELLS, true);
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        int jobs = 2;
+        long cacheMB = Runtime.getRuntime().maxMemory() / 2 / (1024 * 1024);
+        List<Job> jobList = new ArrayList<Job>();
+        StringBuilder inlineJob = new StringBuilder();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("-jobs".equals(args[i])) {
+                    jobs = Integer.parseInt(args[++i]);
+                } else if ("-cache".equals(args[i])) {
+                    cacheMB = Long.parseLong(args[++i]);
+                } else if ("-threads".equals(args[i])) {
+                    GridExecutor.setDefaultParallelism(Integer.parseInt(args[++i]));
+                } else if (args[i].indexOf('=') > 0) {
+                    inlineJob.append(args[i]).append(' ');
+                } else {
+                    jobList.addAll(readJobs(args[i]));
+                }
+            }
+            if (inlineJob.length() > 0) {
+                jobList.add(Job.parse(inlineJob.toString()));
+            }
+        } catch (Exception exc) {
+            System.err.println(exc.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        if (jobList.isEmpty()) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        try {
+            BatchRenderer renderer = new BatchRenderer(jobs, cacheMB * 1024 * 1024);
+            int failed = renderer.render(jobList);
+            System.exit(failed == 0 ? 0 : 1);
+        } catch (InterruptedException exc) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads jobs from a file with one job per line.
+     * @param path The path of the file.
+     * @return The jobs.
+     */
+    public static List<Job> readJobs(String path) throws IOException {
+        List<Job> jobs = new ArrayList<Job>();
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    jobs.add(Job.parse(line));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return jobs;
+    }
+}
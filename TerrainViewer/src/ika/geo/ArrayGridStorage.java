@@ -0,0 +1,55 @@
+package ika.geo;
+
+/**
+ * Grid storage in a two-dimensional Java array on the heap.
+ *
+ * @author jenny
+ */
+public class ArrayGridStorage extends GridStorage {
+
+    private final float[][] grid;
+
+    /**
+     * Creates a new storage initialized with 0.
+     * @param cols The number of columns.
+     * @param rows The number of rows.
+     */
+    public ArrayGridStorage(int cols, int rows) {
+        super(cols, rows);
+        grid = new float[rows][cols];
+    }
+
+    /**
+     * Creates a new storage using an existing array. The array is not copied.
+     * @param grid The array with a row index as first index.
+     */
+    public ArrayGridStorage(float[][] grid) {
+        super(grid[0].length, grid.length);
+        this.grid = grid;
+    }
+
+    public float getValue(int col, int row) {
+        return grid[row][col];
+    }
+
+    public void setValue(float value, int col, int row) {
+        grid[row][col] = value;
+    }
+
+    public void getRow(int row, float[] dst) {
+        System.arraycopy(grid[row], 0, dst, 0, cols);
+    }
+
+    public void setRow(int row, float[] src) {
+        System.arraycopy(src, 0, grid[row], 0, cols);
+    }
+
+    @Override
+    public float[][] getArray() {
+        return grid;
+    }
+
+    public GridStorage create(int cols, int rows) {
+        return new ArrayGridStorage(cols, rows);
+    }
+}
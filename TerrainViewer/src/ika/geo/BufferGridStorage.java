@@ -0,0 +1,98 @@
+package ika.geo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Grid storage in a sequence of NIO buffers outside of the Java heap. A single
+ * buffer cannot be larger than 2 GB, so the grid is split into chunks of
+ * complete rows, each stored in its own buffer.
+ *
+ * @author jenny
+ */
+public abstract class BufferGridStorage extends GridStorage {
+
+    /**
+     * Maximum number of bytes in a chunk.
+     */
+    private static final long MAX_CHUNK_BYTES = Integer.MAX_VALUE & ~7;
+
+    /**
+     * The number of rows in each chunk.
+     */
+    protected final int rowsPerChunk;
+
+    /**
+     * The chunks, each viewed as a buffer of floats.
+     */
+    private FloatBuffer[] chunks;
+
+    protected BufferGridStorage(int cols, int rows) {
+        super(cols, rows);
+        rowsPerChunk = (int) Math.min(rows, MAX_CHUNK_BYTES / (4L * cols));
+        if (rowsPerChunk < 1) {
+            throw new IllegalArgumentException("too many columns");
+        }
+    }
+
+    /**
+     * Returns the number of chunks required to store the grid.
+     */
+    protected final int chunkCount() {
+        return (rows + rowsPerChunk - 1) / rowsPerChunk;
+    }
+
+    /**
+     * Returns the number of bytes of a chunk.
+     * @param chunk The chunk index.
+     */
+    protected final long chunkBytes(int chunk) {
+        int chunkRows = Math.min(rowsPerChunk, rows - chunk * rowsPerChunk);
+        return 4L * chunkRows * cols;
+    }
+
+    /**
+     * Sets the buffers storing the values. Must be called by the constructor
+     * of derived classes.
+     * @param buffers One buffer per chunk with chunkBytes() bytes.
+     */
+    protected final void setBuffers(ByteBuffer[] buffers) {
+        chunks = new FloatBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            chunks[i] = buffers[i].order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+    }
+
+    public final float getValue(int col, int row) {
+        if (col < 0 || col >= cols) {
+            throw new IndexOutOfBoundsException();
+        }
+        return chunks[row / rowsPerChunk].get((row % rowsPerChunk) * cols + col);
+    }
+
+    public final void setValue(float value, int col, int row) {
+        if (col < 0 || col >= cols) {
+            throw new IndexOutOfBoundsException();
+        }
+        chunks[row / rowsPerChunk].put((row % rowsPerChunk) * cols + col, value);
+    }
+
+    public final void getRow(int row, float[] dst) {
+        // duplicate the buffer, as bulk transfer changes the buffer position
+        FloatBuffer b = chunks[row / rowsPerChunk].duplicate();
+        b.position((row % rowsPerChunk) * cols);
+        b.get(dst, 0, cols);
+    }
+
+    public final void setRow(int row, float[] src) {
+        FloatBuffer b = chunks[row / rowsPerChunk].duplicate();
+        b.position((row % rowsPerChunk) * cols);
+        b.put(src, 0, cols);
+    }
+
+    @Override
+    public void dispose() {
+        chunks = null;
+    }
+}
@@ -0,0 +1,31 @@
+package ika.geo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Grid storage in direct NIO buffers. The values are outside of the Java heap,
+ * which is not limited by the maximum heap size (-Xmx), but by the
+ * -XX:MaxDirectMemorySize option.
+ *
+ * @author jenny
+ */
+public class DirectGridStorage extends BufferGridStorage {
+
+    /**
+     * Creates a new storage initialized with 0.
+     * @param cols The number of columns.
+     * @param rows The number of rows.
+     */
+    public DirectGridStorage(int cols, int rows) {
+        super(cols, rows);
+        ByteBuffer[] buffers = new ByteBuffer[chunkCount()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.allocateDirect((int) chunkBytes(i));
+        }
+        setBuffers(buffers);
+    }
+
+    public GridStorage create(int cols, int rows) {
+        return new DirectGridStorage(cols, rows);
+    }
+}
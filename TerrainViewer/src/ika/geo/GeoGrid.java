@@ -6,57 +6,377 @@
  */
 package ika.geo;
 
+import ika.geo.grid.GridExecutor;
 import java.awt.geom.*;
 import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * A georeferenced raster grid.
+ * A georeferenced raster grid. Values are stored in a GridStorage. By default,
+ * this is a two-dimensional Java array that can be accessed with getGrid().
+ * Grids stored outside of the heap can only be accessed with getValue(),
+ * setValue(), getRow() and setRow().
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich.
  */
 public class GeoGrid extends AbstractRaster {
 
     private int cols;
     private int rows;
+
+    /**
+     * The storage of the values.
+     */
+    private GridStorage storage;
+
+    /**
+     * The array of values if the storage is a Java array, null otherwise.
+     */
     private float[][] grid;
 
+    /**
+     * Cached statistics, or null if they have not been computed or values
+     * have changed.
+     */
+    private transient volatile GeoGridStatistics statistics;
+
+    /**
+     * Statistics of the grid values. Infinite and NaN values are void. The
+     * statistics returned by GeoGrid.getStatistics() are cached by the grid
+     * and updated when values are changed with setValue().
+     */
     public class GeoGridStatistics {
 
+        /**
+         * Number of bins of the histogram.
+         */
+        public static final int HISTOGRAM_BINS = 1024;
+        /**
+         * Maximum number of values collected to select a percentile. If a
+         * histogram bin contains more values, the bin is divided by another
+         * histogram.
+         */
+        private static final int MAX_SELECTION_VALUES = 1 << 16;
         public float min;
         public float max;
+        /**
+         * The sum of all valid values divided by the number of cells.
+         */
         public float mean;
         public int voidCount;
-
-        public GeoGridStatistics(GeoGrid geoGrid) {
-            float[][] grid = geoGrid.getGrid();
+        private final GeoGrid geoGrid;
+        private final long cellCount;
+        /**
+         * Sum of all valid values.
+         */
+        private double sum;
+        /**
+         * Histogram between min and max, or null if it has not been computed.
+         */
+        private int[] histogram;
+        /**
+         * Percentiles returned by getPercentile(), by percentage, or null.
+         */
+        private Map<Double, Float> percentiles;
+
+        /**
+         * Computes the statistics of a grid. Rows are scanned in parallel.
+         * @param geoGrid The grid.
+         */
+        public GeoGridStatistics(final GeoGrid geoGrid) {
+            this.geoGrid = geoGrid;
+            final int nCols = geoGrid.getCols();
+            final int nRows = geoGrid.getRows();
+            cellCount = (long) nCols * nRows;
             min = Float.MAX_VALUE;
             max = -Float.MAX_VALUE;
-            double tot = 0;
             voidCount = 0;
-            for (int r = 0; r < rows; ++r) {
-                float row[] = grid[r];
-                for (int c = 0; c < cols; ++c) {
-                    float v = row[c];
-                    if (Float.isInfinite(v) || Float.isNaN(v)) {
-                        ++voidCount;
-                    } else {
-                        tot += v;
-                        if (v < min) {
-                            min = v;
-                        }
-                        if (v > max) {
-                            max = v;
+
+            // sums per row are added in order, which makes the mean independent
+            // of the number of threads
+            final double[] rowSums = new double[nRows];
+            GridExecutor.getDefault().execute("Grid Statistics", nRows, new GridExecutor.RowTask() {
+
+                public void run(int startRow, int endRow) {
+                    float tileMin = Float.MAX_VALUE;
+                    float tileMax = -Float.MAX_VALUE;
+                    int tileVoidCount = 0;
+                    float[] buffer = geoGrid.isArrayBacked() ? null : new float[nCols];
+                    for (int r = startRow; r < endRow; ++r) {
+                        float row[] = geoGrid.getRow(r, buffer);
+                        double tot = 0;
+                        for (int c = 0; c < nCols; ++c) {
+                            float v = row[c];
+                            if (isVoid(v)) {
+                                ++tileVoidCount;
+                            } else {
+                                tot += v;
+                                if (v < tileMin) {
+                                    tileMin = v;
+                                }
+                                if (v > tileMax) {
+                                    tileMax = v;
+                                }
+                            }
                         }
+                        rowSums[r] = tot;
+                    }
+                    synchronized (GeoGridStatistics.this) {
+                        min = Math.min(min, tileMin);
+                        max = Math.max(max, tileMax);
+                        voidCount += tileVoidCount;
                     }
                 }
+            });
+            sum = 0;
+            for (int r = 0; r < nRows; r++) {
+                sum += rowSums[r];
             }
-            mean = (float) (tot / (cols * rows));
+            updateMean();
+        }
+
+        /**
+         * Creates statistics from known values without scanning the grid.
+         */
+        private GeoGridStatistics(GeoGrid geoGrid, float min, float max,
+                float mean, int voidCount) {
+            this.geoGrid = geoGrid;
+            this.cellCount = (long) geoGrid.getCols() * geoGrid.getRows();
+            this.min = min;
+            this.max = max;
+            this.voidCount = voidCount;
+            this.sum = cellCount == voidCount ? 0 : (double) mean * cellCount;
+            updateMean();
+        }
+
+        private boolean isVoid(float v) {
+            return Float.isInfinite(v) || Float.isNaN(v);
+        }
+
+        private void updateMean() {
+            mean = (float) (sum / cellCount);
 
             // test for grid with only void values
-            if (cols * rows == voidCount) {
+            if (cellCount == voidCount) {
                 min = max = mean = Float.NaN;
             }
         }
 
+        /**
+         * Updates the statistics after a value has changed.
+         * @return False if the statistics cannot be updated and have to be
+         * computed again, which is the case when the minimum or maximum
+         * value is replaced.
+         */
+        synchronized boolean update(float oldValue, float newValue) {
+            final boolean oldVoid = isVoid(oldValue);
+            final boolean newVoid = isVoid(newValue);
+            if ((oldVoid && newVoid) || oldValue == newValue) {
+                return true;
+            }
+            if (!oldVoid && (oldValue == min || oldValue == max)) {
+                return false;
+            }
+            percentiles = null;
+
+            if (oldVoid) {
+                --voidCount;
+            } else {
+                sum -= oldValue;
+                if (histogram != null) {
+                    --histogram[bin(oldValue)];
+                }
+            }
+
+            if (newVoid) {
+                ++voidCount;
+            } else {
+                sum += newValue;
+                if (Float.isNaN(min)) {
+                    min = max = newValue;
+                    histogram = null;
+                } else if (newValue < min || newValue > max) {
+                    min = Math.min(min, newValue);
+                    max = Math.max(max, newValue);
+                    histogram = null;
+                } else if (histogram != null) {
+                    ++histogram[bin(newValue)];
+                }
+            }
+            updateMean();
+            return true;
+        }
+
+        /**
+         * Returns the number of valid values.
+         */
+        public long getValidCount() {
+            return cellCount - voidCount;
+        }
+
+        private int bin(float v) {
+            return bin(v, min, max);
+        }
+
+        /**
+         * Returns the histogram bin of a value for a histogram between lo
+         * and hi. Bins increase monotonically with the value.
+         */
+        private int bin(float v, float lo, float hi) {
+            final int bin = (int) ((v - lo) / (hi - lo) * HISTOGRAM_BINS);
+            return Math.max(0, Math.min(HISTOGRAM_BINS - 1, bin));
+        }
+
+        /**
+         * Returns a histogram of the valid values. The histogram is computed
+         * on first use. Bin i counts values between
+         * min + i * (max - min) / HISTOGRAM_BINS and the lower bound of the
+         * next bin; the last bin includes the maximum.
+         * @return A copy of the histogram with HISTOGRAM_BINS bins.
+         */
+        public synchronized int[] getHistogram() {
+            if (histogram == null) {
+                histogram = getValidCount() > 0
+                        ? histogram(min, max) : new int[HISTOGRAM_BINS];
+            }
+            return histogram.clone();
+        }
+
+        /**
+         * Computes a histogram of the valid values between lo and hi.
+         */
+        private int[] histogram(final float lo, final float hi) {
+            final int[] h = new int[HISTOGRAM_BINS];
+            final int nCols = geoGrid.getCols();
+            GridExecutor.getDefault().execute("Grid Histogram", geoGrid.getRows(), new GridExecutor.RowTask() {
+
+                public void run(int startRow, int endRow) {
+                    int[] tileHistogram = new int[HISTOGRAM_BINS];
+                    float[] buffer = geoGrid.isArrayBacked() ? null : new float[nCols];
+                    for (int r = startRow; r < endRow; ++r) {
+                        float row[] = geoGrid.getRow(r, buffer);
+                        for (int c = 0; c < nCols; ++c) {
+                            final float v = row[c];
+                            if (v >= lo && v <= hi) {
+                                ++tileHistogram[bin(v, lo, hi)];
+                            }
+                        }
+                    }
+                    synchronized (h) {
+                        for (int i = 0; i < HISTOGRAM_BINS; i++) {
+                            h[i] += tileHistogram[i];
+                        }
+                    }
+                }
+            });
+            return h;
+        }
+
+        /**
+         * Returns the smallest and the largest value in a histogram bin.
+         * @param lo The lower bound of the histogram.
+         * @param hi The upper bound of the histogram.
+         * @param bin The bin.
+         * @param values Receives all values in the bin if not null.
+         */
+        private float[] binRange(final float lo, final float hi, final int bin,
+                final float[] values) {
+            final float[] range = {Float.MAX_VALUE, -Float.MAX_VALUE};
+            final AtomicInteger nValues = new AtomicInteger();
+            final int nCols = geoGrid.getCols();
+            GridExecutor.getDefault().execute("Grid Percentile", geoGrid.getRows(), new GridExecutor.RowTask() {
+
+                public void run(int startRow, int endRow) {
+                    float tileMin = Float.MAX_VALUE;
+                    float tileMax = -Float.MAX_VALUE;
+                    float[] buffer = geoGrid.isArrayBacked() ? null : new float[nCols];
+                    for (int r = startRow; r < endRow; ++r) {
+                        float row[] = geoGrid.getRow(r, buffer);
+                        for (int c = 0; c < nCols; ++c) {
+                            final float v = row[c];
+                            if (v >= lo && v <= hi && bin(v, lo, hi) == bin) {
+                                tileMin = Math.min(tileMin, v);
+                                tileMax = Math.max(tileMax, v);
+                                if (values != null) {
+                                    values[nValues.getAndIncrement()] = v;
+                                }
+                            }
+                        }
+                    }
+                    synchronized (range) {
+                        range[0] = Math.min(range[0], tileMin);
+                        range[1] = Math.max(range[1], tileMax);
+                    }
+                }
+            });
+            return range;
+        }
+
+        /**
+         * Returns the value with the passed rank among the valid values.
+         * The histogram bin containing the value is searched; if the bin
+         * contains too many values, it is divided by another histogram.
+         * @param k The rank, between 0 and getValidCount() - 1.
+         */
+        private float select(long k) {
+            float lo = min;
+            float hi = max;
+            int[] h = histogram;
+            while (true) {
+                int bin = 0;
+                while (k >= h[bin]) {
+                    k -= h[bin++];
+                }
+                final int count = h[bin];
+                final float[] values = count <= MAX_SELECTION_VALUES ? new float[count] : null;
+                final float[] range = binRange(lo, hi, bin, values);
+                if (values != null) {
+                    Arrays.sort(values);
+                    return values[(int) k];
+                }
+                if (range[0] == range[1]) {
+                    return range[0];
+                }
+                lo = range[0];
+                hi = range[1];
+                h = histogram(lo, hi);
+            }
+        }
+
+        /**
+         * Returns a percentile of the valid values. This is the smallest
+         * valid value that is larger than or equal to the passed percentage
+         * of all valid values (nearest rank). The value is searched in the
+         * histogram bin containing it, and is cached until values of the
+         * grid change.
+         * @param percent The percentage between 0 and 100.
+         * @return The percentile, or NaN if all values are void.
+         */
+        public synchronized float getPercentile(double percent) {
+            if (!(percent >= 0 && percent <= 100)) {
+                throw new IllegalArgumentException("percent must be between 0 and 100");
+            }
+            final long n = getValidCount();
+            if (n == 0 || min == max) {
+                return min;
+            }
+            if (percentiles == null) {
+                percentiles = new HashMap<Double, Float>();
+            }
+            Float percentile = percentiles.get(percent);
+            if (percentile == null) {
+                if (histogram == null) {
+                    getHistogram();
+                }
+                final long rank = (long) Math.ceil(percent / 100 * n) - 1;
+                percentile = select(Math.max(0, Math.min(n - 1, rank)));
+                percentiles.put(percent, percentile);
+            }
+            return percentile;
+        }
+
         @Override
         public String toString() {
             return this.toString("\n");
@@ -114,22 +434,45 @@ public class GeoGrid extends AbstractRaster {
             throw new IllegalArgumentException();
         }
 
+        this.storage = new ArrayGridStorage(grid);
         this.grid = grid;
         this.rows = grid.length;
         this.cols = grid[0].length;
         this.cellSize = cellSize;
     }
 
+    /**
+     * Creates a new grid with values stored in the passed storage.
+     * @param storage The storage. It is not copied.
+     * @param cellSize The cell size.
+     */
+    public GeoGrid(GridStorage storage, double cellSize) {
+        if (storage == null || cellSize < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.storage = storage;
+        this.grid = storage.getArray();
+        this.rows = storage.getRows();
+        this.cols = storage.getCols();
+        this.cellSize = cellSize;
+    }
+
     @Override
     public GeoGrid clone() {
         GeoGrid copy = (GeoGrid) super.clone();
 
         // deep copy of grid
-        copy.grid = new float[this.grid.length][];
-        for (int row = 0; row < rows; row++) {
-            copy.grid[row] = new float[cols];
-            System.arraycopy(grid[row], 0, copy.grid[row], 0, cols);
+        if (grid != null) {
+            copy.grid = new float[this.grid.length][];
+            for (int row = 0; row < rows; row++) {
+                copy.grid[row] = new float[cols];
+                System.arraycopy(grid[row], 0, copy.grid[row], 0, cols);
+            }
+            copy.storage = new ArrayGridStorage(copy.grid);
+        } else {
+            copy.storage = storage.copy();
         }
+        copy.statistics = null;
         return copy;
 
     }
@@ -139,6 +482,24 @@ public class GeoGrid extends AbstractRaster {
         this.rows = rows;
         this.cellSize = cellSize;
         this.grid = new float[rows][cols];
+        this.storage = new ArrayGridStorage(grid);
+    }
+
+    /**
+     * Returns the storage of the values of this grid.
+     * @return The storage.
+     */
+    public GridStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Returns whether the values are stored in a Java array that can be
+     * accessed with getGrid().
+     * @return True if getGrid() can be called.
+     */
+    public boolean isArrayBacked() {
+        return grid != null;
     }
 
     public boolean hasSameExtensionAndResolution(GeoGrid grid) {
@@ -210,7 +571,89 @@ public class GeoGrid extends AbstractRaster {
     }
 
     public final float getValue(int col, int row) {
-        return grid[row][col];
+        if (grid != null) {
+            return grid[row][col];
+        }
+        return storage.getValue(col, row);
+    }
+
+    /**
+     * Returns the values of a row.
+     * @param row The row.
+     * @param buffer An array of at least getCols() values that is filled with
+     * values if the grid is not stored in a Java array. Can be null.
+     * @return The row of the Java array storing this grid, or buffer, or a new
+     * array if buffer is null. The returned array must not be changed.
+     */
+    public final float[] getRow(int row, float[] buffer) {
+        if (grid != null) {
+            return grid[row];
+        }
+        if (buffer == null) {
+            buffer = new float[cols];
+        }
+        storage.getRow(row, buffer);
+        return buffer;
+    }
+
+    /**
+     * Changes the values of a row.
+     * <B>Important: This will not generate a MapChange event!</B>
+     * @param row The row.
+     * @param values The new values, at least getCols() values.
+     */
+    public final void setRow(int row, float[] values) {
+        statistics = null;
+        if (grid != null) {
+            if (grid[row] != values) {
+                System.arraycopy(values, 0, grid[row], 0, cols);
+            }
+        } else {
+            storage.setRow(row, values);
+        }
+    }
+
+    /**
+     * Returns a grid with the same size and georeference as this grid. A band
+     * of rows is copied to Java arrays, all other rows are null. This is used
+     * by operators to process grids that are not stored in Java arrays row
+     * band by row band.
+     * @param firstRow The first row to copy. Clamped to the grid.
+     * @param endRow The row after the last row to copy. Clamped to the grid.
+     * @param copyValues If false, the rows are allocated but not copied.
+     * @return A grid with rows firstRow to endRow - 1 stored in Java arrays.
+     */
+    public GeoGrid getRowBand(int firstRow, int endRow, boolean copyValues) {
+        firstRow = Math.max(0, firstRow);
+        endRow = Math.min(rows, endRow);
+        float[][] band = new float[rows][];
+        for (int r = firstRow; r < endRow; r++) {
+            band[r] = new float[cols];
+            if (copyValues) {
+                if (grid != null) {
+                    System.arraycopy(grid[r], 0, band[r], 0, cols);
+                } else {
+                    storage.getRow(r, band[r]);
+                }
+            }
+        }
+        GeoGrid bandGrid = (GeoGrid) super.clone();
+        bandGrid.grid = band;
+        bandGrid.storage = null;
+        bandGrid.statistics = null;
+        return bandGrid;
+    }
+
+    /**
+     * Copies a band of rows from a grid created by getRowBand() to this grid.
+     * @param band The grid with the band of rows.
+     * @param firstRow The first row to copy.
+     * @param endRow The row after the last row to copy.
+     */
+    public void setRowBand(GeoGrid band, int firstRow, int endRow) {
+        for (int r = firstRow; r < endRow; r++) {
+            setRow(r, band.grid[r]);
+        }
     }
 
     public final float getNearestNeighbor(double x, double y) {
@@ -220,7 +663,7 @@ public class GeoGrid extends AbstractRaster {
         if (col < 0 || col >= this.cols || row < 0 || row >= this.rows) {
             return Float.NaN;
         }
-        return grid[row][col];
+        return getValue(col, row);
     }
 
     /**
@@ -425,13 +868,13 @@ public class GeoGrid extends AbstractRaster {
      */
     public double getSlope(int col, int row) {
 
-        if (row < 1 || row >= this.grid.length - 1 || col < 1 || col >= this.grid[0].length - 1) {
+        if (row < 1 || row >= rows - 1 || col < 1 || col >= cols - 1) {
             return Double.NaN;
         }
-        final float w = this.grid[row][col - 1];
-        final float e = this.grid[row][col + 1];
-        final float s = this.grid[row + 1][col];
-        final float n = this.grid[row - 1][col];
+        final float w = getValue(col - 1, row);
+        final float e = getValue(col + 1, row);
+        final float s = getValue(col, row + 1);
+        final float n = getValue(col, row - 1);
         return Math.atan(Math.hypot(e - w, n - s) / (2 * this.cellSize));
 
     }
@@ -444,31 +887,78 @@ public class GeoGrid extends AbstractRaster {
      * @param row The row of the value to change
      */
     public void setValue(float value, int col, int row) {
-        grid[row][col] = value;
+        final GeoGridStatistics stats = statistics;
+        if (stats != null && !stats.update(getValue(col, row), value)) {
+            statistics = null;
+        }
+        if (grid != null) {
+            grid[row][col] = value;
+        } else {
+            storage.setValue(value, col, row);
+        }
     }
 
     /**
-     * Returns the minimum and maximum value of the grid. This can potentially
-     * be expensive as the whole grid is parsed.
+     * Returns the minimum and maximum value of the grid. The values are taken
+     * from the cached statistics, which are computed if necessary.
+     * @return The minimum and the maximum. If all values are void, the
+     * minimum is Float.MAX_VALUE and the maximum is -Float.MAX_VALUE.
      */
     public float[] getMinMax() {
-        float min = Float.MAX_VALUE;
-        float max = -Float.MAX_VALUE;
-        for (int r = 0; r < rows; ++r) {
-            for (int c = 0; c < cols; ++c) {
-                if (grid[r][c] < min) {
-                    min = grid[r][c];
-                }
-                if (grid[r][c] > max) {
-                    max = grid[r][c];
+        GeoGridStatistics stats = getStatistics();
+        if (Float.isNaN(stats.min)) {
+            return new float[]{Float.MAX_VALUE, -Float.MAX_VALUE};
+        }
+        return new float[]{stats.min, stats.max};
+    }
+
+    /**
+     * Returns the statistics of the grid values. The statistics are computed
+     * once and are then cached until values change. setValue() updates the
+     * cached statistics, setRow(), cut() and getGrid() discard them. Call
+     * invalidateStatistics() after changing values directly in the storage.
+     * @return The statistics. The returned object must not be changed.
+     */
+    public GeoGridStatistics getStatistics() {
+        GeoGridStatistics stats = statistics;
+        if (stats == null) {
+            synchronized (this) {
+                stats = statistics;
+                if (stats == null) {
+                    stats = new GeoGridStatistics(this);
+                    statistics = stats;
                 }
             }
         }
-        return new float[]{min, max};
+        return stats;
     }
 
-    public GeoGridStatistics getStatistics() {
-        return new GeoGridStatistics(this);
+    /**
+     * Replaces the cached statistics by known values, for example, values
+     * stored with the grid in a file. The grid is not scanned. The histogram
+     * and percentiles are computed when first requested.
+     * @param min The smallest valid value, NaN if all values are void.
+     * @param max The largest valid value, NaN if all values are void.
+     * @param mean The sum of all valid values divided by the number of cells.
+     * @param voidCount The number of void values.
+     */
+    public void setStatistics(float min, float max, float mean, int voidCount) {
+        final long cellCount = (long) cols * rows;
+        final boolean allVoid = voidCount == cellCount;
+        if (voidCount < 0 || voidCount > cellCount
+                || (!allVoid && !(min <= max))) {
+            throw new IllegalArgumentException("invalid statistics");
+        }
+        statistics = new GeoGridStatistics(this, min, max, mean, voidCount);
+    }
+
+    /**
+     * Discards the cached statistics. This must be called after values are
+     * changed directly in the storage, or in an array returned by getGrid()
+     * after statistics have been requested again.
+     */
+    public void invalidateStatistics() {
+        statistics = null;
     }
 
     public void cut(Rectangle2D extension) {
@@ -487,18 +977,16 @@ public class GeoGrid extends AbstractRaster {
     }
 
     public void cut(int firstRow, int firstCol, int newRows, int newCols) {
-        float[][] newGrid = new float[newRows][newCols];
-
-        // copy section of grid
-        for (int i = 0; i < newRows; i++) {
-            System.arraycopy(this.grid[i + firstRow], firstCol, newGrid[i], 0, newCols);
-        }
+        GridStorage newStorage = storage.copy(firstCol, firstRow, newCols, newRows);
+        storage.dispose();
 
         this.cols = newCols;
         this.rows = newRows;
         this.west += firstCol * this.cellSize;
         this.north -= firstRow * this.cellSize;
-        this.grid = newGrid;
+        this.storage = newStorage;
+        this.grid = newStorage.getArray();
+        this.statistics = null;
 
         MapEventTrigger.inform(this);
     }
@@ -519,7 +1007,20 @@ public class GeoGrid extends AbstractRaster {
         return this.west + (this.cols - 1) * this.cellSize;
     }
 
+    /**
+     * Returns the Java array storing the values of this grid. Values may be
+     * changed through the array, so the cached statistics are discarded. Use
+     * getRow() or getValue() to read values without discarding the
+     * statistics.
+     * @return The array with a row index as first index.
+     * @throws UnsupportedOperationException If the values are not stored in
+     * a Java array. Use isArrayBacked() to test.
+     */
     public float[][] getGrid() {
+        if (grid == null) {
+            throw new UnsupportedOperationException("grid is not stored in a Java array");
+        }
+        statistics = null;
         return grid;
     }
 
@@ -5,6 +5,7 @@ package ika.geo;
  * Created on 5. Februar 2005, 14:52
  */
 
+import ika.geo.grid.GridExecutor;
 import ika.utils.GeometryUtils;
 import ika.utils.ImageUtils;
 import ika.utils.MathUtils;
@@ -701,14 +702,35 @@ public class GeoImage extends AbstractRaster implements Serializable {
      */
     public int[] getHistogram() {
 
-        int cols = this.getCols();
-        int rows = this.getRows();
-        int[] histogram = new int[256];
-        for (int r = 0; r < rows; r++) {
-            for (int c = 0; c < cols; c++) {
-                ++histogram[getGray(c, r)];
+        // rows are read from the raster arrays and counted in parallel
+        final int cols = this.getCols();
+        final boolean gray = ImageRows.isGray(image);
+        final int[] histogram = new int[256];
+        GridExecutor.getDefault().execute("Image Histogram", this.getRows(),
+                new GridExecutor.RowTask() {
+
+            public void run(int startRow, int endRow) {
+                int[] h = new int[256];
+                int[] row = new int[cols];
+                for (int r = startRow; r < endRow; r++) {
+                    ImageRows.readRow(image, r, row);
+                    if (gray) {
+                        for (int c = 0; c < cols; c++) {
+                            ++h[row[c]];
+                        }
+                    } else {
+                        for (int c = 0; c < cols; c++) {
+                            ++h[ImageRows.gray(row[c])];
+                        }
+                    }
+                }
+                synchronized (histogram) {
+                    for (int i = 0; i < 256; i++) {
+                        histogram[i] += h[i];
+                    }
+                }
             }
-        }
+        });
 
         int max = 0;
         for (int i = 0; i < histogram.length; i++) {
@@ -719,7 +741,7 @@ public class GeoImage extends AbstractRaster implements Serializable {
         }
         if (max > 0) {
             for (int i = 0; i < histogram.length; i++) {
-                histogram[i] = histogram[i] * 255 / max;
+                histogram[i] = (int) ((long) histogram[i] * 255 / max);
             }
         }
         return histogram;
@@ -9,22 +9,38 @@ package ika.geo;
 
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
-import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
+import java.lang.ref.SoftReference;
 import java.net.URL;
-import java.util.Vector;
+import java.util.ArrayList;
 
 /**
- *
+ * A georeferenced image with a pyramid of images with decreasing resolution
+ * for fast drawing at small scales. The reduced images are computed in
+ * parallel by an ImageReducer. They are only softly referenced, except for
+ * the image that was drawn last, and can therefore be reclaimed by the
+ * garbage collector when memory is low. A reclaimed image is computed again
+ * from the next larger image when it is needed.
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
  */
 public class GeoImagePyramid extends GeoImage {
     
     /**
-     * A vector holding the images of the pyramid. The first image at position 0
-     * is the original unscaled image, images with decreasing size follow.
+     * The reduced images of the pyramid. The image at position 0 has half the
+     * size of the original unscaled image, images with decreasing size follow.
+     */
+    transient private ArrayList<SoftReference<BufferedImage>> levels;
+
+    /**
+     * The image that was drawn last. It is not reclaimed by the garbage
+     * collector.
+     */
+    transient private BufferedImage activeImage;
+
+    /**
+     * Computes the reduced images.
      */
-    transient protected Vector images = new Vector(4); // FIXME
+    transient private ImageReducer reducer = new ImageReducer();
     
     /**
      * The smallest image will be a little smaller than 
@@ -62,29 +78,83 @@ public class GeoImagePyramid extends GeoImage {
     }
     
     /**
-     * Creates the image pyramid. Stores all images in this.images, including
-     * the original unscaled image already stored in super.image.
+     * Creates the image pyramid. The original unscaled image is stored in
+     * super.image, the reduced images in this.levels.
      */
     private void createPyramid() {
-        
+
         // clear any previous image pyramid
-        this.images.clear();
-        
-        // add the unscaled image to the pyramid vector.
-        this.images.add(this.image);
-        
-        // setup an affine transformation for downscaling
-        AffineTransform tx = new AffineTransform();
-        tx.scale(IMAGE_SCALE, IMAGE_SCALE);
-        AffineTransformOp op = new AffineTransformOp(tx,
-                AffineTransformOp.TYPE_BICUBIC);
-        
+        this.levels = new ArrayList<SoftReference<BufferedImage>>();
+        this.activeImage = null;
+        if (this.reducer == null) {
+            this.reducer = new ImageReducer();
+        }
+
         // repeatedly downscale the image and store the images in the pyramid.
         BufferedImage lastImage = this.image;
         while (lastImage.getHeight() > MIN_IMAGE_SIZE
                 || lastImage.getWidth() > MIN_IMAGE_SIZE) {
-            lastImage = op.filter(lastImage, null);
-            this.images.add(lastImage);
+            lastImage = reducer.reduce(lastImage);
+            this.levels.add(new SoftReference<BufferedImage>(lastImage));
+        }
+    }
+
+    /**
+     * Returns the number of images in the pyramid, including the original
+     * unscaled image.
+     */
+    public int getLevelsCount() {
+        return this.levels.size() + 1;
+    }
+
+    /**
+     * Returns an image of the pyramid. A reduced image that has been
+     * reclaimed by the garbage collector or evicted is computed again.
+     * @param levelID 0 for the original unscaled image, 1 for the image
+     * with half its size, etc.
+     * @return The image.
+     */
+    public BufferedImage getLevel(int levelID) {
+        if (levelID == 0) {
+            return this.image;
+        }
+        SoftReference<BufferedImage> ref = this.levels.get(levelID - 1);
+        BufferedImage img = ref.get();
+        if (img == null) {
+            img = reducer.reduce(getLevel(levelID - 1));
+            this.levels.set(levelID - 1, new SoftReference<BufferedImage>(img));
+        }
+        return img;
+    }
+
+    /**
+     * Releases all reduced images, except the image that was drawn last. The
+     * released images are computed again when they are needed.
+     */
+    public void evictInactiveLevels() {
+        for (int i = 0; i < this.levels.size(); i++) {
+            if (this.levels.get(i).get() != this.activeImage) {
+                this.levels.set(i, new SoftReference<BufferedImage>(null));
+            }
+        }
+    }
+
+    /**
+     * Returns the filter used for computing reduced images.
+     */
+    public ImageReducer.Filter getFilter() {
+        return reducer.getFilter();
+    }
+
+    /**
+     * Sets the filter used for computing reduced images, and computes the
+     * pyramid again.
+     * @param filter The new filter.
+     */
+    public void setFilter(ImageReducer.Filter filter) {
+        if (filter != reducer.getFilter()) {
+            reducer.setFilter(filter);
+            this.createPyramid();
         }
     }
     
@@ -99,7 +169,8 @@ public class GeoImagePyramid extends GeoImage {
         
         // find the image to display
         final int imageID = this.findImageToDraw(rp.scale);
-        BufferedImage img = (BufferedImage)this.images.get(imageID);
+        BufferedImage img = this.getLevel(imageID);
+        this.activeImage = img;
         
         // compute the scale for the image.
         // This should be done in a better way, by deriving the scale from the bounding box. FIXME
@@ -144,11 +215,11 @@ public class GeoImagePyramid extends GeoImage {
         // search through the pyramid for the appropriate image.
         // not elegant, but it works.
         int imageID = -1;
-        while (imageID < images.size()
+        while (imageID < getLevelsCount()
         && pixelSizeOnScreen < 1) {
             pixelSizeOnScreen /= IMAGE_SCALE;
             imageID++;
         }
-        return Math.min(imageID, images.size()-1);
+        return Math.min(imageID, getLevelsCount()-1);
     }
 }
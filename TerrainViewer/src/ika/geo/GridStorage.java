@@ -0,0 +1,125 @@
+package ika.geo;
+
+/**
+ * Storage for the values of a GeoGrid. Values are either stored in a Java
+ * array on the heap (ArrayGridStorage) or outside of the heap in a direct
+ * buffer (DirectGridStorage) or a memory-mapped file (MappedGridStorage).
+ * Grids that are stored outside of the heap can be larger than the
+ * available heap, but can only be accessed cell by cell or row by row.
+ *
+ * @author jenny
+ */
+public abstract class GridStorage {
+
+    /**
+     * Number of columns.
+     */
+    protected final int cols;
+    /**
+     * Number of rows.
+     */
+    protected final int rows;
+
+    protected GridStorage(int cols, int rows) {
+        if (cols <= 0 || rows <= 0) {
+            throw new IllegalArgumentException("invalid grid dimension");
+        }
+        this.cols = cols;
+        this.rows = rows;
+    }
+
+    public final int getCols() {
+        return cols;
+    }
+
+    public final int getRows() {
+        return rows;
+    }
+
+    /**
+     * Returns the value of a cell.
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     * @return The value.
+     */
+    public abstract float getValue(int col, int row);
+
+    /**
+     * Changes the value of a cell.
+     * @param value The new value.
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     */
+    public abstract void setValue(float value, int col, int row);
+
+    /**
+     * Copies a row to an array. This is much faster than calling getValue()
+     * for each cell. Can be called concurrently from multiple threads.
+     * @param row The row to copy.
+     * @param dst The destination array with at least getCols() values.
+     */
+    public abstract void getRow(int row, float[] dst);
+
+    /**
+     * Replaces the values of a row. Can be called concurrently from multiple
+     * threads for different rows.
+     * @param row The row to change.
+     * @param src The new values, at least getCols() values.
+     */
+    public abstract void setRow(int row, float[] src);
+
+    /**
+     * Returns the Java array storing the values, if there is one.
+     * @return The array with a row index as first index, or null if the
+     * values are not stored in a Java array.
+     */
+    public float[][] getArray() {
+        return null;
+    }
+
+    /**
+     * Creates a new empty storage of the same type.
+     * @param cols The number of columns.
+     * @param rows The number of rows.
+     * @return The new storage, initialized with 0.
+     */
+    public abstract GridStorage create(int cols, int rows);
+
+    /**
+     * Creates a new storage of the same type containing a copy of a section
+     * of this storage.
+     * @param firstCol The first column to copy.
+     * @param firstRow The first row to copy.
+     * @param nCols The number of columns to copy.
+     * @param nRows The number of rows to copy.
+     * @return The new storage.
+     */
+    public GridStorage copy(int firstCol, int firstRow, int nCols, int nRows) {
+        GridStorage copy = create(nCols, nRows);
+        float[] buffer = new float[cols];
+        float[] section = firstCol == 0 && nCols == cols ? buffer : new float[nCols];
+        for (int r = 0; r < nRows; r++) {
+            getRow(firstRow + r, buffer);
+            if (section != buffer) {
+                System.arraycopy(buffer, firstCol, section, 0, nCols);
+            }
+            copy.setRow(r, section);
+        }
+        return copy;
+    }
+
+    /**
+     * Creates a new storage of the same type containing a copy of all values.
+     * @return The new storage.
+     */
+    public GridStorage copy() {
+        return copy(0, 0, cols, rows);
+    }
+
+    /**
+     * Releases resources held by this storage. The storage cannot be used
+     * afterwards.
+     */
+    public void dispose() {
+    }
+}
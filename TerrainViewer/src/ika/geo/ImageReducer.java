@@ -0,0 +1,260 @@
+package ika.geo;
+
+import ika.geo.grid.GridExecutor;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Reduces an image to half its width and height for the levels of an image
+ * pyramid. Pixels are read from and written to the arrays of the image
+ * rasters, and bands of rows are reduced in parallel by a GridExecutor.
+ * Images with 8 bit gray values are reduced to TYPE_BYTE_GRAY images,
+ * images of TYPE_INT_RGB to TYPE_INT_RGB images, and all other images to
+ * TYPE_INT_ARGB images.
+ *
+ * @author jenny
+ */
+public class ImageReducer {
+
+    public enum Filter {
+
+        /**
+         * Average of 2 x 2 pixels.
+         */
+        BOX,
+        /**
+         * Cubic convolution with 4 x 4 pixels, as used by AffineTransformOp
+         * with TYPE_BICUBIC for a scale of 0.5. Channels are rounded
+         * separately, so results may differ from AffineTransformOp. For
+         * images without alpha channel, the difference is at most 1 away
+         * from the image borders. Color values of images with an alpha
+         * channel are not multiplied by alpha before filtering, and
+         * values of TYPE_INT_ARGB images may differ by up to 2.
+         */
+        BICUBIC
+    }
+
+    /**
+     * The weights of the Catmull-Rom cubic convolution kernel for a point
+     * half way between two pixels, scaled by 16.
+     */
+    private static final int[] CUBIC_WEIGHTS = {-1, 9, 9, -1};
+
+    private Filter filter = Filter.BICUBIC;
+
+    /**
+     * The executor distributing rows to threads. If null, the shared default
+     * executor is used.
+     */
+    private GridExecutor executor;
+
+    public ImageReducer() {
+    }
+
+    public ImageReducer(Filter filter) {
+        setFilter(filter);
+    }
+
+    public Filter getFilter() {
+        return filter;
+    }
+
+    public void setFilter(Filter filter) {
+        if (filter == null) {
+            throw new IllegalArgumentException();
+        }
+        this.filter = filter;
+    }
+
+    /**
+     * Returns the executor used by this reducer.
+     * @return The executor set with setExecutor, or the shared default
+     * executor.
+     */
+    public GridExecutor getExecutor() {
+        return executor == null ? GridExecutor.getDefault() : executor;
+    }
+
+    /**
+     * Sets the executor used by this reducer.
+     * @param executor The executor. If null, the shared default executor is used.
+     */
+    public void setExecutor(GridExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the width or height of a reduced image.
+     * @param size The width or height of the source image.
+     * @return Half the size, rounded up.
+     */
+    public static int reducedSize(int size) {
+        return Math.max(1, (size + 1) / 2);
+    }
+
+    /**
+     * Reduces an image to half its width and height.
+     * @param src The source image.
+     * @return A new image.
+     */
+    public BufferedImage reduce(final BufferedImage src) {
+        final int srcW = src.getWidth();
+        final int srcH = src.getHeight();
+        final int dstW = reducedSize(srcW);
+        final int dstH = reducedSize(srcH);
+        final boolean gray = ImageRows.isGray(src);
+        final int type;
+        if (gray) {
+            type = BufferedImage.TYPE_BYTE_GRAY;
+        } else if (src.getType() == BufferedImage.TYPE_INT_RGB) {
+            type = BufferedImage.TYPE_INT_RGB;
+        } else {
+            type = BufferedImage.TYPE_INT_ARGB;
+        }
+        final BufferedImage dst = new BufferedImage(dstW, dstH, type);
+
+        // the new image has a single band, no offset and one pixel per
+        // array element
+        final byte[] dstBytes = gray
+                ? ((DataBufferByte) dst.getRaster().getDataBuffer()).getData() : null;
+        final int[] dstInts = gray
+                ? null : ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+        final int[] shifts = gray ? new int[]{0} : new int[]{24, 16, 8, 0};
+        final boolean box = filter == Filter.BOX;
+
+        getExecutor().execute("Image Reduction", dstH, new GridExecutor.RowTask() {
+
+            public void run(int startRow, int endRow) {
+                final RowCache rows = new RowCache(src, shifts);
+                final int nChannels = shifts.length;
+                // vertically filtered values of one row for each channel
+                final int[] tmp = new int[nChannels * srcW];
+                final int[] values = new int[nChannels];
+
+                for (int y = startRow; y < endRow; y++) {
+                    if (box) {
+                        filterBoxRows(rows, 2 * y, srcH, tmp);
+                    } else {
+                        filterCubicRows(rows, 2 * y, srcH, tmp);
+                    }
+                    final int rowOffset = y * dstW;
+                    for (int x = 0; x < dstW; x++) {
+                        if (box) {
+                            filterBoxColumns(tmp, 2 * x, srcW, values);
+                        } else {
+                            filterCubicColumns(tmp, 2 * x, srcW, values);
+                        }
+                        if (gray) {
+                            dstBytes[rowOffset + x] = (byte) values[0];
+                        } else {
+                            int argb = 0;
+                            for (int c = 0; c < nChannels; c++) {
+                                argb |= values[c] << shifts[c];
+                            }
+                            dstInts[rowOffset + x] = argb;
+                        }
+                    }
+                }
+            }
+        });
+        return dst;
+    }
+
+    /**
+     * Sums two rows for each channel.
+     */
+    private static void filterBoxRows(RowCache rows, int r, int h, int[] tmp) {
+        final int[] row0 = rows.get(r);
+        final int[] row1 = rows.get(Math.min(r + 1, h - 1));
+        for (int i = 0; i < tmp.length; i++) {
+            tmp[i] = row0[i] + row1[i];
+        }
+    }
+
+    /**
+     * Sums two columns of the vertically filtered values and rounds the
+     * average.
+     */
+    private static void filterBoxColumns(int[] tmp, int col, int w, int[] values) {
+        final int col1 = Math.min(col + 1, w - 1);
+        for (int c = 0, offset = 0; c < values.length; c++, offset += w) {
+            values[c] = (tmp[offset + col] + tmp[offset + col1] + 2) >> 2;
+        }
+    }
+
+    /**
+     * Applies the cubic convolution kernel to four rows for each channel.
+     * Rows outside of the image are replaced by the closest border row.
+     */
+    private static void filterCubicRows(RowCache rows, int r, int h, int[] tmp) {
+        final int[] row0 = rows.get(Math.max(r - 1, 0));
+        final int[] row1 = rows.get(r);
+        final int[] row2 = rows.get(Math.min(r + 1, h - 1));
+        final int[] row3 = rows.get(Math.min(r + 2, h - 1));
+        final int w0 = CUBIC_WEIGHTS[0], w1 = CUBIC_WEIGHTS[1];
+        final int w2 = CUBIC_WEIGHTS[2], w3 = CUBIC_WEIGHTS[3];
+        for (int i = 0; i < tmp.length; i++) {
+            tmp[i] = w0 * row0[i] + w1 * row1[i] + w2 * row2[i] + w3 * row3[i];
+        }
+    }
+
+    /**
+     * Applies the cubic convolution kernel to four columns of the vertically
+     * filtered values, and rounds and clamps the result to 0..255.
+     */
+    private static void filterCubicColumns(int[] tmp, int col, int w, int[] values) {
+        final int col0 = Math.max(col - 1, 0);
+        final int col2 = Math.min(col + 1, w - 1);
+        final int col3 = Math.min(col + 2, w - 1);
+        for (int c = 0, offset = 0; c < values.length; c++, offset += w) {
+            final int sum = CUBIC_WEIGHTS[0] * tmp[offset + col0]
+                    + CUBIC_WEIGHTS[1] * tmp[offset + col]
+                    + CUBIC_WEIGHTS[2] * tmp[offset + col2]
+                    + CUBIC_WEIGHTS[3] * tmp[offset + col3];
+            // the weights of both passes sum to 16 * 16
+            final int v = (sum + 128) >> 8;
+            values[c] = v < 0 ? 0 : (v > 255 ? 255 : v);
+        }
+    }
+
+    /**
+     * Keeps the last four source rows read by a thread. Consecutive output
+     * rows share source rows, which are therefore only read and unpacked
+     * once. The values of each channel of a row are stored one after the
+     * other.
+     */
+    private static final class RowCache {
+
+        private final BufferedImage image;
+        private final int[] shifts;
+        private final int[] packed;
+        private final int[][] rows;
+        private final int[] rowIDs = {-1, -1, -1, -1};
+
+        RowCache(BufferedImage image, int[] shifts) {
+            this.image = image;
+            this.shifts = shifts;
+            this.packed = new int[image.getWidth()];
+            this.rows = new int[4][shifts.length * image.getWidth()];
+        }
+
+        int[] get(int row) {
+            final int slot = row & 3;
+            if (rowIDs[slot] != row) {
+                ImageRows.readRow(image, row, packed);
+                final int[] unpacked = rows[slot];
+                final int w = packed.length;
+                for (int c = 0; c < shifts.length; c++) {
+                    final int shift = shifts[c];
+                    final int offset = c * w;
+                    for (int x = 0; x < w; x++) {
+                        unpacked[offset + x] = (packed[x] >>> shift) & 255;
+                    }
+                }
+                rowIDs[slot] = row;
+            }
+            return rows[slot];
+        }
+    }
+}
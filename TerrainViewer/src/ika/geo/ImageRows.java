@@ -0,0 +1,86 @@
+package ika.geo;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Reads rows of pixels from the arrays of the DataBuffer of an image.
+ * Images with 8 bit gray values, and images with packed RGB or ARGB integer
+ * values are read directly from the array; rows of other images are
+ * converted with BufferedImage.getRGB.
+ *
+ * @author jenny
+ */
+final class ImageRows {
+
+    private ImageRows() {
+    }
+
+    /**
+     * Returns whether rows of an image are read as 8 bit gray values.
+     */
+    static boolean isGray(BufferedImage image) {
+        return image.getType() == BufferedImage.TYPE_BYTE_GRAY;
+    }
+
+    /**
+     * Reads a row of pixels.
+     * @param image The image.
+     * @param row The row to read.
+     * @param buf Receives the gray values if isGray() returns true for the
+     * image, and ARGB values otherwise. Must hold at least image.getWidth()
+     * values.
+     */
+    static void readRow(BufferedImage image, int row, int[] buf) {
+        final int w = image.getWidth();
+        final Raster raster = image.getRaster();
+        final SampleModel sm = raster.getSampleModel();
+        final DataBuffer db = raster.getDataBuffer();
+        final int x = -raster.getSampleModelTranslateX();
+        final int y = row - raster.getSampleModelTranslateY();
+        final int type = image.getType();
+
+        if (type == BufferedImage.TYPE_BYTE_GRAY
+                && sm instanceof ComponentSampleModel
+                && db instanceof DataBufferByte) {
+            ComponentSampleModel csm = (ComponentSampleModel) sm;
+            final byte[] data = ((DataBufferByte) db).getData();
+            final int stride = csm.getPixelStride();
+            int i = csm.getOffset(x, y, 0) + db.getOffset();
+            for (int c = 0; c < w; c++, i += stride) {
+                buf[c] = data[i] & 0xff;
+            }
+        } else if ((type == BufferedImage.TYPE_INT_ARGB
+                || type == BufferedImage.TYPE_INT_RGB)
+                && sm instanceof SinglePixelPackedSampleModel
+                && db instanceof DataBufferInt) {
+            final int[] data = ((DataBufferInt) db).getData();
+            final int i = ((SinglePixelPackedSampleModel) sm).getOffset(x, y) + db.getOffset();
+            System.arraycopy(data, i, buf, 0, w);
+            if (type == BufferedImage.TYPE_INT_RGB) {
+                for (int c = 0; c < w; c++) {
+                    buf[c] |= 0xff000000;
+                }
+            }
+        } else {
+            image.getRGB(0, row, w, 1, buf, 0, w);
+        }
+    }
+
+    /**
+     * Converts an ARGB value to a gray value in the same way as
+     * GeoImage.getGray.
+     */
+    static int gray(int argb) {
+        final int r = (argb >> 16) & 255;
+        final int g = (argb >> 8) & 255;
+        final int b = argb & 255;
+        return (int) (0.299f * r + 0.587f * g + 0.114f * b);
+    }
+}
@@ -0,0 +1,108 @@
+package ika.geo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Grid storage in a memory-mapped file. The operating system pages values in
+ * and out of memory as needed, so grids can be much larger than the
+ * available memory. The file contains 32 bit floats in native byte order,
+ * stored row by row from north to south, without a header.
+ *
+ * @author jenny
+ */
+public class MappedGridStorage extends BufferGridStorage {
+
+    private final File file;
+    private final boolean temporary;
+    private RandomAccessFile randomAccessFile;
+
+    /**
+     * Maps a file to memory. If the file is too small it is enlarged.
+     * @param file The file.
+     * @param cols The number of columns.
+     * @param rows The number of rows.
+     * @param readOnly If true, the values cannot be changed.
+     * @throws IOException
+     */
+    public MappedGridStorage(File file, int cols, int rows, boolean readOnly)
+            throws IOException {
+        this(file, cols, rows, readOnly, false);
+    }
+
+    private MappedGridStorage(File file, int cols, int rows, boolean readOnly,
+            boolean temporary) throws IOException {
+        super(cols, rows);
+        this.file = file;
+        this.temporary = temporary;
+        randomAccessFile = new RandomAccessFile(file, readOnly ? "r" : "rw");
+        FileChannel channel = randomAccessFile.getChannel();
+        FileChannel.MapMode mode = readOnly
+                ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+        ByteBuffer[] buffers = new MappedByteBuffer[chunkCount()];
+        long position = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            long size = chunkBytes(i);
+            buffers[i] = channel.map(mode, position, size);
+            position += size;
+        }
+        setBuffers(buffers);
+    }
+
+    /**
+     * Creates a storage in a temporary file that is deleted when the storage
+     * is disposed or when the virtual machine terminates.
+     * @param cols The number of columns.
+     * @param rows The number of rows.
+     * @return The new storage, initialized with 0.
+     * @throws IOException
+     */
+    public static MappedGridStorage createTemporary(int cols, int rows) throws IOException {
+        File file = File.createTempFile("grid", ".raw");
+        file.deleteOnExit();
+        return new MappedGridStorage(file, cols, rows, false, true);
+    }
+
+    /**
+     * @return The mapped file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Creates a new storage in a temporary file.
+     */
+    public GridStorage create(int cols, int rows) {
+        try {
+            return createTemporary(cols, rows);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Closes the file. The mapped memory is released by the garbage
+     * collector. Temporary files are deleted, or when the virtual machine
+     * terminates if the file cannot be deleted while it is mapped.
+     */
+    @Override
+    public void dispose() {
+        super.dispose();
+        try {
+            if (randomAccessFile != null) {
+                randomAccessFile.close();
+            }
+        } catch (IOException ex) {
+        }
+        randomAccessFile = null;
+        if (temporary) {
+            // fails on Windows as long as the buffer is mapped
+            file.delete();
+        }
+    }
+}
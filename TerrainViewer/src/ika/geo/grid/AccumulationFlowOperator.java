@@ -8,8 +8,27 @@ package ika.geo.grid;
 
 import ika.geo.GeoGrid;
 import ika.geoimport.EsriASCIIGridReader;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
+ * Computes flow accumulation, i.e. the number of cells draining through each
+ * cell, not counting the cell itself. Void cells remain void.
+ *
+ * Flow directions are computed once, either with D8 (all flow to the
+ * steepest downslope neighbor) or with multiple flow directions (MFD, flow
+ * is distributed to all lower neighbors proportionally to slope^1.1, after
+ * Freeman 1991). By default, depressions are filled with
+ * GridFillDepressionsOperator beforehand, so that pits and flats do not
+ * truncate the flow.
+ *
+ * Accumulation visits each cell once in topological order: a cell is
+ * processed when all its upslope neighbors have been processed, and its
+ * value is gathered from these neighbors. Source cells are distributed
+ * among the threads of the GridExecutor; the thread that processes the last
+ * upslope neighbor of a cell continues with that cell.
+ *
+ * Cells are accessed in any order, so grids that are not stored in Java
+ * arrays are copied to the heap, as GridFillDepressionsOperator does.
  *
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich.
  */
@@ -26,10 +45,36 @@ public class AccumulationFlowOperator implements GridOperator {
         }
     }
 
-    private enum FlowDirection {
+    /**
+     * Flow routing methods.
+     */
+    public enum Routing {
 
-        NONE, TOPRIGHT, RIGHT, BOTTOMRIGHT, BOTTOM, BOTTOMLEFT, LEFT, TOPLEFT, TOP
-    };
+        /**
+         * Single flow direction to the steepest downslope neighbor.
+         */
+        D8,
+        /**
+         * Multiple flow directions to all downslope neighbors.
+         */
+        MFD
+    }
+
+    /**
+     * Neighbor offsets, clockwise starting with the right neighbor. The
+     * opposite direction of k is (k + 4) & 7.
+     */
+    private static final int[] DX = {1, 1, 0, -1, -1, -1, 0, 1};
+    private static final int[] DY = {0, 1, 1, 1, 0, -1, -1, -1};
+    private static final double[] DIST = {1, Math.sqrt(2), 1, Math.sqrt(2),
+        1, Math.sqrt(2), 1, Math.sqrt(2)};
+    private static final byte NO_DIRECTION = -1;
+    /**
+     * Exponent for MFD.
+     */
+    private static final double MFD_EXPONENT = 1.1;
+    private Routing routing = Routing.D8;
+    private boolean fillDepressions = true;
 
     public AccumulationFlowOperator() {
     }
@@ -38,6 +83,27 @@ public class AccumulationFlowOperator implements GridOperator {
         return "Accumulation Flow";
     }
 
+    public Routing getRouting() {
+        return routing;
+    }
+
+    public void setRouting(Routing routing) {
+        this.routing = routing;
+    }
+
+    public boolean isFillDepressions() {
+        return fillDepressions;
+    }
+
+    /**
+     * Sets whether depressions are filled before flow is routed. Without
+     * filling, flow ends in pits and on flats.
+     * @param fillDepressions
+     */
+    public void setFillDepressions(boolean fillDepressions) {
+        this.fillDepressions = fillDepressions;
+    }
+
     public GeoGrid operate(GeoGrid geoGrid) {
         if (geoGrid == null) {
             throw new IllegalArgumentException();
@@ -45,117 +111,229 @@ public class AccumulationFlowOperator implements GridOperator {
 
         final int cols = geoGrid.getCols();
         final int rows = geoGrid.getRows();
-        final double meshSize = geoGrid.getCellSize();
-        GeoGrid newGrid = new GeoGrid(cols, rows, meshSize);
+        if ((long) cols * rows > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("grid too large");
+        }
+        final float[][] z;
+        if (fillDepressions) {
+            z = new GridFillDepressionsOperator().operate(geoGrid).getGrid();
+        } else {
+            // the rows of grids not stored in Java arrays are copied
+            z = new float[rows][];
+            for (int r = 0; r < rows; r++) {
+                z[r] = geoGrid.getRow(r, null);
+            }
+        }
+
+        GeoGrid newGrid = new GeoGrid(cols, rows, geoGrid.getCellSize());
         newGrid.setWest(geoGrid.getWest());
         newGrid.setNorth(geoGrid.getNorth());
+        final float[][] acc = newGrid.getGrid();
 
-        for (int row = 1; row < rows - 1; row++) {
-            System.out.println(row);
-            for (int col = 1; col < cols - 1; col++) {
-                incrementFlow(geoGrid, newGrid, col, row);
-            }
-        }
+        final byte[] dir = routing == Routing.D8 ? d8Directions(z) : null;
+        final AtomicIntegerArray donors = countDonors(z, dir);
+
+        GridExecutor.getDefault().execute(getName(), rows, new GridExecutor.RowTask() {
 
+            public void run(int startRow, int endRow) {
+                int[] stack = new int[64];
+                for (int r = startRow; r < endRow; r++) {
+                    for (int c = 0; c < cols; c++) {
+                        if (Float.isNaN(z[r][c])) {
+                            acc[r][c] = Float.NaN;
+                        } else if (countDonors(z, dir, c, r) == 0) {
+                            stack = accumulate(z, dir, acc, donors, r * cols + c, stack);
+                        }
+                    }
+                }
+            }
+        });
         return newGrid;
     }
 
-    private void incrementFlow(GeoGrid dem, GeoGrid accflow, int col, int row) {
+    /**
+     * Computes the D8 direction of every cell.
+     * @return For each cell the index of the direction in DX and DY, or
+     * NO_DIRECTION.
+     */
+    private static byte[] d8Directions(final float[][] z) {
+        final int rows = z.length;
+        final int cols = z[0].length;
+        final byte[] dir = new byte[cols * rows];
+        GridExecutor.getDefault().execute("D8 Directions", rows, new GridExecutor.RowTask() {
 
-        for (;;) {
-            FlowDirection dir = FlowDirection.NONE;
-            try {
-                dir = this.getFlowDirection(dem, col, row);
-            } catch (IndexOutOfBoundsException exc) {
-                break;
+            public void run(int startRow, int endRow) {
+                for (int r = startRow; r < endRow; r++) {
+                    for (int c = 0; c < cols; c++) {
+                        final float v = z[r][c];
+                        byte d = NO_DIRECTION;
+                        double maxSlope = 0;
+                        for (int k = 0; k < 8; k++) {
+                            final int nc = c + DX[k];
+                            final int nr = r + DY[k];
+                            if (nc < 0 || nr < 0 || nc >= cols || nr >= rows) {
+                                continue;
+                            }
+                            // comparison is false for void cells
+                            final double slope = (v - z[nr][nc]) / DIST[k];
+                            if (slope > maxSlope) {
+                                maxSlope = slope;
+                                d = (byte) k;
+                            }
+                        }
+                        dir[r * cols + c] = d;
+                    }
+                }
             }
-            switch (dir) {
-                case NONE:
-                    break;
-                case TOPRIGHT:
-                    col++;
-                    row--;
-                    break;
-                case RIGHT:
-                    col++;
-                    break;
-                case BOTTOMRIGHT:
-                    col++;
-                    row++;
-                    break;
-                case BOTTOM:
-                    row++;
-                    break;
-                case BOTTOMLEFT:
-                    col--;
-                    row++;
-                    break;
-                case LEFT:
-                    col--;
-                    break;
-                case TOPLEFT:
-                    col--;
-                    row--;
-                    break;
-                case TOP:
-                    row--;
-                    break;
-            }
-            try {
-                float v = accflow.getValue(col, row);
-                accflow.setValue(v + 1, col, row);
-            } catch (IndexOutOfBoundsException exc) {
-                break;
+        });
+        return dir;
+    }
+
+    /**
+     * Returns whether flow from cell c/r reaches the neighbor in direction k.
+     */
+    private static boolean flowsTo(float[][] z, byte[] dir, int c, int r, int k) {
+        if (dir != null) {
+            return dir[r * z[0].length + c] == k;
+        }
+        final float v = z[r][c];
+        final float n = z[r + DY[k]][c + DX[k]];
+        return v > n;
+    }
+
+    /**
+     * Counts the neighbors draining into a cell.
+     */
+    private static int countDonors(float[][] z, byte[] dir, int c, int r) {
+        final int rows = z.length;
+        final int cols = z[0].length;
+        int count = 0;
+        for (int k = 0; k < 8; k++) {
+            final int nc = c + DX[k];
+            final int nr = r + DY[k];
+            if (nc >= 0 && nr >= 0 && nc < cols && nr < rows
+                    && flowsTo(z, dir, nc, nr, (k + 4) & 7)) {
+                ++count;
             }
         }
+        return count;
     }
 
-    private FlowDirection getFlowDirection(GeoGrid geoGrid, int col, int row) {
+    /**
+     * Counts the neighbors draining into each cell. The counters are packed
+     * into bytes, four per integer.
+     */
+    private static AtomicIntegerArray countDonors(final float[][] z, final byte[] dir) {
+        final int rows = z.length;
+        final int cols = z[0].length;
+        final AtomicIntegerArray donors = new AtomicIntegerArray((cols * rows + 3) / 4);
+        GridExecutor.getDefault().execute("Count Donors", rows, new GridExecutor.RowTask() {
 
-        // search for direction of flow
-        final float hc = geoGrid.getValue(col, row);
-        FlowDirection dir = FlowDirection.NONE;
-        float diff = 0;
-        float d = geoGrid.getValue(col + 1, row - 1) - hc;
-        if (d < diff) {
-            diff = d;
-            dir = FlowDirection.TOPRIGHT;
-        }
-        d = geoGrid.getValue(col + 1, row) - hc;
-        if (d < diff) {
-            diff = d;
-            dir = FlowDirection.RIGHT;
-        }
-        d = geoGrid.getValue(col + 1, row + 1) - hc;
-        if (d < diff) {
-            diff = d;
-            dir = FlowDirection.BOTTOMRIGHT;
-        }
-        d = geoGrid.getValue(col, row + 1) - hc;
-        if (d < diff) {
-            diff = d;
-            dir = FlowDirection.BOTTOM;
-        }
-        d = geoGrid.getValue(col - 1, row + 1) - hc;
-        if (d < diff) {
-            diff = d;
-            dir = FlowDirection.BOTTOMLEFT;
-        }
-        d = geoGrid.getValue(col - 1, row) - hc;
-        if (d < diff) {
-            diff = d;
-            dir = FlowDirection.LEFT;
-        }
-        d = geoGrid.getValue(col - 1, row - 1) - hc;
-        if (d < diff) {
-            diff = d;
-            dir = FlowDirection.TOPLEFT;
+            public void run(int startRow, int endRow) {
+                for (int r = startRow; r < endRow; r++) {
+                    for (int c = 0; c < cols; c++) {
+                        final int i = r * cols + c;
+                        final int n = countDonors(z, dir, c, r);
+                        if (n > 0) {
+                            donors.addAndGet(i >>> 2, n << ((i & 3) * 8));
+                        }
+                    }
+                }
+            }
+        });
+        return donors;
+    }
+
+    /**
+     * Decrements the donor counter of a cell.
+     * @return The new number of unprocessed donors.
+     */
+    private static int decrementDonors(AtomicIntegerArray donors, int i) {
+        final int shift = (i & 3) * 8;
+        // the counter is at least 1, so the subtraction does not borrow from
+        // the neighboring counters
+        return (donors.addAndGet(i >>> 2, -(1 << shift)) >>> shift) & 0xff;
+    }
+
+    /**
+     * Processes a cell whose donors are all processed, and all cells that
+     * are released by this. Values of donors are read after the atomic
+     * decrement of the donor counter, which makes them visible to this
+     * thread.
+     * @return The stack, possibly enlarged.
+     */
+    private static int[] accumulate(float[][] z, byte[] dir, float[][] acc,
+            AtomicIntegerArray donors, int start, int[] stack) {
+        final int rows = z.length;
+        final int cols = z[0].length;
+        int stackSize = 0;
+        stack[stackSize++] = start;
+        while (stackSize > 0) {
+            final int i = stack[--stackSize];
+            final int r = i / cols;
+            final int c = i - r * cols;
+
+            // gather flow from donors
+            float sum = 0;
+            for (int k = 0; k < 8; k++) {
+                final int nc = c + DX[k];
+                final int nr = r + DY[k];
+                if (nc < 0 || nr < 0 || nc >= cols || nr >= rows) {
+                    continue;
+                }
+                final int back = (k + 4) & 7;
+                if (flowsTo(z, dir, nc, nr, back)) {
+                    final float flow = acc[nr][nc] + 1;
+                    sum += dir != null ? flow : flow * mfdFraction(z, nc, nr, back);
+                }
+            }
+            acc[r][c] = sum;
+
+            // release receivers
+            for (int k = 0; k < 8; k++) {
+                final int nc = c + DX[k];
+                final int nr = r + DY[k];
+                if (nc < 0 || nr < 0 || nc >= cols || nr >= rows
+                        || !flowsTo(z, dir, c, r, k)) {
+                    continue;
+                }
+                final int n = nr * cols + nc;
+                if (decrementDonors(donors, n) == 0) {
+                    if (stackSize == stack.length) {
+                        stack = java.util.Arrays.copyOf(stack, stackSize * 2);
+                    }
+                    stack[stackSize++] = n;
+                }
+            }
         }
-        d = geoGrid.getValue(col, row - 1) - hc;
-        if (d < diff) {
-            diff = d;
-            dir = FlowDirection.TOP;
+        return stack;
+    }
+
+    /**
+     * Returns the fraction of the flow from cell c/r to its neighbor in
+     * direction k.
+     */
+    private static float mfdFraction(float[][] z, int c, int r, int k) {
+        final int rows = z.length;
+        final int cols = z[0].length;
+        final float v = z[r][c];
+        double total = 0;
+        double w = 0;
+        for (int j = 0; j < 8; j++) {
+            final int nc = c + DX[j];
+            final int nr = r + DY[j];
+            if (nc < 0 || nr < 0 || nc >= cols || nr >= rows) {
+                continue;
+            }
+            final float n = z[nr][nc];
+            if (v > n) {
+                final double wj = Math.pow((v - n) / DIST[j], MFD_EXPONENT);
+                total += wj;
+                if (j == k) {
+                    w = wj;
+                }
+            }
         }
-        return dir;
+        return (float) (w / total);
     }
 }
@@ -0,0 +1,23 @@
+package ika.geo.grid;
+
+import java.io.IOException;
+
+/**
+ * Receives contour lines from MultiLevelContourer as soon as they are
+ * complete, so that lines do not have to be kept in memory.
+ *
+ * @author jenny
+ */
+public interface ContourSink {
+
+    /**
+     * Receives a contour line. Calls are not concurrent, but lines arrive
+     * in no particular order.
+     * @param level The elevation of the contour line.
+     * @param xy The coordinates of the points, alternating x and y. The first
+     * point of a closed line is not repeated at the end.
+     * @param closed True if the line is closed.
+     * @throws IOException If the line cannot be stored; contouring stops.
+     */
+    public void contour(double level, double[] xy, boolean closed) throws IOException;
+}
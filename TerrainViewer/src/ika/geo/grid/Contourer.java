@@ -49,6 +49,9 @@ public class Contourer implements GridOperator {
     public GeoObject operate(GeoGrid geoGrid, 
             double firstContourLevel, 
             double lastContourLevel) {
+        if (!geoGrid.isArrayBacked()) {
+            throw new UnsupportedOperationException(getName() + ": grid must be stored in an array");
+        }
         flags = new boolean[geoGrid.getRows()][geoGrid.getCols()];
 
         GeoSet geoSet = new GeoSet();
@@ -95,6 +98,9 @@ public class Contourer implements GridOperator {
     }
 
     public GeoPath traceSingleContourAtPoint(GeoGrid geoGrid, double x, double y) {
+        if (!geoGrid.isArrayBacked()) {
+            throw new UnsupportedOperationException(getName() + ": grid must be stored in an array");
+        }
 
         this.flags = new boolean[geoGrid.getRows()][geoGrid.getCols()];
 
@@ -15,7 +15,29 @@ public class Convolution5x5 {
     public Convolution5x5() {
     }
 
+    /**
+     * Convolves a grid and returns a grid with half the number of columns and
+     * rows. The new grid is stored in the same type of storage as the source
+     * grid, so that grids stored outside of the heap are reduced without
+     * allocating the reduced grid on the heap.
+     * @param geoGrid The grid to convolve.
+     * @return The new grid, or null if the grid has less than 4 columns or
+     * rows.
+     */
     public GeoGrid convolveToHalfSize(GeoGrid geoGrid) {
+        return convolveToHalfSize(geoGrid, geoGrid.isArrayBacked());
+    }
+
+    /**
+     * Convolves a grid and returns a grid with half the number of columns and
+     * rows.
+     * @param geoGrid The grid to convolve.
+     * @param heap If true, the new grid is stored in a Java array, otherwise
+     * in the same type of storage as the source grid.
+     * @return The new grid, or null if the grid has less than 4 columns or
+     * rows.
+     */
+    public GeoGrid convolveToHalfSize(GeoGrid geoGrid, boolean heap) {
 
         final int rows = geoGrid.getRows();
         final int cols = geoGrid.getCols();
@@ -25,7 +47,13 @@ public class Convolution5x5 {
 
         final int newCols = cols / 2 + cols % 2;
         final int newRows = rows / 2 + rows % 2;
-        GeoGrid convGrid = new GeoGrid(newCols, newRows, geoGrid.getCellSize() * 2);
+        GeoGrid convGrid;
+        if (heap || geoGrid.isArrayBacked()) {
+            convGrid = new GeoGrid(newCols, newRows, geoGrid.getCellSize() * 2);
+        } else {
+            convGrid = new GeoGrid(geoGrid.getStorage().create(newCols, newRows),
+                    geoGrid.getCellSize() * 2);
+        }
         convGrid.setWest(geoGrid.getWest());
         convGrid.setNorth(geoGrid.getNorth());
 
@@ -45,17 +73,77 @@ public class Convolution5x5 {
             convGrid.setValue(g, cols / 2 - 1 + cols % 2, r / 2);
         }
 
-        // interior of grid
-        for (int r = 2; r < rows - 2; r += 2) {
-            for (int c = 2; c < cols - 2; c += 2) {
-                final float g = this.convolve(geoGrid, c, r);
-                convGrid.setValue(g, c / 2, r / 2);
+        // interior of grid, bands of rows are convolved in parallel
+        final GeoGrid src = geoGrid;
+        final GeoGrid dst = convGrid;
+        final int interiorRows = (rows - 3) / 2;
+        final int interiorCols = (cols - 3) / 2;
+        GridExecutor.getDefault().execute("Convolution5x5", interiorRows, new GridExecutor.RowTask() {
+
+            public void run(int startRow, int endRow) {
+                convolveToHalfSize(src, dst, startRow + 1, endRow + 1, interiorCols);
             }
-        }
+        });
 
         return convGrid;
     }
 
+    /**
+     * Convolves interior rows of the destination grid. Each source row is
+     * convolved horizontally once, and the results of five consecutive rows
+     * are then combined vertically.
+     * @param src The source grid.
+     * @param dst The destination grid with half the size of the source grid.
+     * The border columns of the destination rows must have been computed.
+     * @param startRow The first destination row.
+     * @param endRow The destination row after the last row to convolve.
+     * @param nCols The number of interior destination columns.
+     */
+    private void convolveToHalfSize(GeoGrid src, GeoGrid dst,
+            int startRow, int endRow, int nCols) {
+
+        float[] buffer = src.isArrayBacked() ? null : new float[src.getCols()];
+        float[] dstBuffer = dst.isArrayBacked() ? null : new float[dst.getCols()];
+
+        // horizontally convolved source rows 2 * r - 2 to 2 * r + 2
+        float[][] h = new float[5][nCols];
+        convolveRowToHalfSize(src.getRow(2 * startRow - 2, buffer), h[2], nCols);
+        convolveRowToHalfSize(src.getRow(2 * startRow - 1, buffer), h[3], nCols);
+        convolveRowToHalfSize(src.getRow(2 * startRow, buffer), h[4], nCols);
+
+        for (int r = startRow; r < endRow; r++) {
+            // shift by two rows and convolve the two new rows
+            float[] tmp0 = h[0], tmp1 = h[1];
+            h[0] = h[2];
+            h[1] = h[3];
+            h[2] = h[4];
+            h[3] = tmp0;
+            h[4] = tmp1;
+            convolveRowToHalfSize(src.getRow(2 * r + 1, buffer), h[3], nCols);
+            convolveRowToHalfSize(src.getRow(2 * r + 2, buffer), h[4], nCols);
+
+            final float[] h0 = h[0], h1 = h[1], h2 = h[2], h3 = h[3], h4 = h[4];
+            final float[] dstRow = dst.getRow(r, dstBuffer);
+            for (int c = 0; c < nCols; c++) {
+                final float res = wc * (h0[c] + h4[c]) + wb * (h1[c] + h3[c]) + wa * h2[c];
+                dstRow[c + 1] = Float.isNaN(res) ? convolveWithVoid(src, 2 * c + 2, 2 * r) : res;
+            }
+            if (dstBuffer != null) {
+                dst.setRow(r, dstBuffer);
+            }
+        }
+    }
+
+    /**
+     * Horizontally convolves every second interior cell of a row.
+     */
+    private void convolveRowToHalfSize(float[] row, float[] dst, int nCols) {
+        for (int c = 0, col = 2; c < nCols; c++, col += 2) {
+            dst[c] = wc * (row[col - 2] + row[col + 2])
+                    + wb * (row[col - 1] + row[col + 1]) + wa * row[col];
+        }
+    }
+
     public GeoGrid convolve(GeoGrid geoGrid) {
 
         final int rows = geoGrid.getRows();
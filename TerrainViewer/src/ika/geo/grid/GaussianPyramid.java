@@ -1,83 +1,273 @@
 package ika.geo.grid;
 
 import ika.geo.GeoGrid;
-import ika.geoexport.ESRIASCIIGridExporter;
-import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
+ * A pyramid of grids with decreasing resolution. Each level is convolved
+ * with a Gaussian kernel and has half the size of the preceding level.
+ *
+ * Levels can be computed lazily: the size of all levels is known when the
+ * pyramid is created, but a level is only convolved when it is first
+ * accessed. computeLevelsInBackground() fills the remaining levels in a
+ * background thread.
+ *
+ * Reduced levels are stored in the same type of storage as the full
+ * resolution grid, unless they are small enough to be stored on the heap
+ * (see setMaxHeapCells). dispose() releases levels that are not stored in
+ * Java arrays, such as temporary memory-mapped files.
+ *
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich.
  */
 public class GaussianPyramid {
 
     private static int MIN_SIDE_LENGTH = 2;
-    private GeoGrid[] pyramid;
-    
+
+    /**
+     * The levels of the pyramid. Levels that have not been computed yet are
+     * null.
+     */
+    private AtomicReferenceArray<GeoGrid> pyramid;
+
+    /**
+     * The number of columns and rows of each level.
+     */
+    private int[] levelCols, levelRows;
+
+    /**
+     * Reduced levels with at most this number of cells are stored in Java
+     * arrays. Larger levels use the same type of storage as the full
+     * resolution grid.
+     */
+    private long maxHeapCells = 0;
+
+    /**
+     * Set by dispose(). Levels are not computed anymore after disposal.
+     */
+    private volatile boolean disposed = false;
+
     public static GeoGrid[] createPyramid(GeoGrid geoGrid, int maxLevelsCount) {
-        return GaussianPyramid.createPyramid(geoGrid, maxLevelsCount, 
+        return GaussianPyramid.createPyramid(geoGrid, maxLevelsCount,
                 MIN_SIDE_LENGTH * MIN_SIDE_LENGTH);
     }
-    
+
     public static GeoGrid[] createPyramid(GeoGrid geoGrid,
             int maxLevelsCount,
             int minCellCount) {
-
-        ArrayList<GeoGrid> pyramid = new ArrayList<GeoGrid>();
-        pyramid.add(geoGrid);
-        Convolution5x5 conv = new Convolution5x5();
-        for (;;) {
-            int newCols = geoGrid.getCols() / 2;
-            int newRows = geoGrid.getRows() / 2;
-            if (geoGrid == null 
-                    || newCols <= MIN_SIDE_LENGTH
-                    || newRows <= MIN_SIDE_LENGTH
-                    || newCols * newRows < minCellCount
-                    || pyramid.size() == maxLevelsCount) {
-                break;
-            }
-            geoGrid = conv.convolveToHalfSize(geoGrid);
-            //ESRIASCIIGridExporter.quickExport(geoGrid, "/Users/jenny/Desktop/DEM" + pyramid.size()+".asc");
-            pyramid.add(geoGrid);
-        }
-
-        return pyramid.toArray(new GeoGrid[pyramid.size()]);
-
+        return new GaussianPyramid(geoGrid, maxLevelsCount, minCellCount, false).getPyramid();
     }
 
     public GaussianPyramid(GeoGrid geoGrid) {
-        this.pyramid = GaussianPyramid.createPyramid(geoGrid, 9999);
+        this(geoGrid, 9999);
     }
 
     public GaussianPyramid(GeoGrid geoGrid, int maxLevelsCount) {
-        this.pyramid = GaussianPyramid.createPyramid(geoGrid, maxLevelsCount);
+        this(geoGrid, maxLevelsCount, MIN_SIDE_LENGTH * MIN_SIDE_LENGTH);
     }
 
     public GaussianPyramid(GeoGrid geoGrid, int maxLevelsCount, int minCellCount) {
-        this.pyramid = GaussianPyramid.createPyramid(geoGrid, maxLevelsCount, minCellCount);
+        this(geoGrid, maxLevelsCount, minCellCount, false);
     }
 
+    /**
+     * Creates a pyramid.
+     * @param geoGrid The full resolution grid.
+     * @param maxLevelsCount The maximum number of levels, including the full
+     * resolution grid.
+     * @param minCellCount The minimum number of cells in a level.
+     * @param lazy If true, levels are only computed when they are first
+     * accessed. If false, all levels are computed by the constructor.
+     */
+    public GaussianPyramid(GeoGrid geoGrid, int maxLevelsCount, int minCellCount,
+            boolean lazy) {
+
+        // compute the size of all levels
+        int cols = geoGrid.getCols();
+        int rows = geoGrid.getRows();
+        int levelsCount = 1;
+        while (levelsCount < maxLevelsCount
+                && cols / 2 > MIN_SIDE_LENGTH
+                && rows / 2 > MIN_SIDE_LENGTH
+                && (cols / 2) * (rows / 2) >= minCellCount) {
+            cols = cols / 2 + cols % 2;
+            rows = rows / 2 + rows % 2;
+            ++levelsCount;
+        }
+        levelCols = new int[levelsCount];
+        levelRows = new int[levelsCount];
+        levelCols[0] = geoGrid.getCols();
+        levelRows[0] = geoGrid.getRows();
+        for (int i = 1; i < levelsCount; i++) {
+            levelCols[i] = levelCols[i - 1] / 2 + levelCols[i - 1] % 2;
+            levelRows[i] = levelRows[i - 1] / 2 + levelRows[i - 1] % 2;
+        }
+
+        pyramid = new AtomicReferenceArray<GeoGrid>(levelsCount);
+        pyramid.set(0, geoGrid);
+        if (!lazy) {
+            getLevel(levelsCount - 1);
+        }
+    }
+
+    /**
+     * Creates a pyramid from grids that have been computed previously, for
+     * example, when reading a pyramid from a file.
+     * @param pyramid The full resolution grid followed by levels of
+     * decreasing resolution.
+     */
+    public GaussianPyramid(GeoGrid[] pyramid) {
+        if (pyramid == null || pyramid.length == 0) {
+            throw new IllegalArgumentException();
+        }
+        this.pyramid = new AtomicReferenceArray<GeoGrid>(pyramid);
+        levelCols = new int[pyramid.length];
+        levelRows = new int[pyramid.length];
+        for (int i = 0; i < pyramid.length; i++) {
+            levelCols[i] = pyramid[i].getCols();
+            levelRows[i] = pyramid[i].getRows();
+        }
+    }
+
+    /**
+     * Returns all levels. Levels that have not been computed yet are computed
+     * before this method returns.
+     * @return The full resolution grid followed by levels of decreasing
+     * resolution.
+     */
     public GeoGrid[] getPyramid() {
-        return this.pyramid;
+        GeoGrid[] levels = new GeoGrid[getLevelsCount()];
+        for (int i = levels.length - 1; i >= 0; i--) {
+            levels[i] = getLevel(i);
+        }
+        return levels;
     }
 
     public GeoGrid getFullResolutionLevel() {
-        return this.pyramid[0];
+        return this.pyramid.get(0);
     }
 
     /**
      * Returns a grid at a specified pyramid level. The full resolution grid
      * has level 0, the lowest resolution grid has level getLevelsCount() - 1
+     * If the level has not been computed yet, it is computed before this
+     * method returns.
      * @param level
      * @return GeoGrid at requested level
      */
     public GeoGrid getLevel (int level) {
-        return this.pyramid[level];
+        GeoGrid grid = this.pyramid.get(level);
+        return grid != null ? grid : computeLevel(level);
+    }
+
+    /**
+     * Computes a level and all missing levels with higher resolution.
+     * @return The level, or null if the pyramid has been disposed.
+     */
+    private synchronized GeoGrid computeLevel(int level) {
+        int first = level;
+        while (this.pyramid.get(first) == null) {
+            --first;
+        }
+        Convolution5x5 conv = new Convolution5x5();
+        GeoGrid grid = this.pyramid.get(first);
+        for (int i = first + 1; i <= level; i++) {
+            if (disposed) {
+                return null;
+            }
+            final boolean heap = (long) levelCols[i] * levelRows[i] <= maxHeapCells;
+            grid = conv.convolveToHalfSize(grid, heap);
+            this.pyramid.set(i, grid);
+        }
+        return grid;
+    }
+
+    /**
+     * Releases the storage of all computed levels that are not stored in Java
+     * arrays, including the full resolution grid. Temporary memory-mapped
+     * files are deleted. The pyramid cannot be used afterwards. A level that
+     * is being computed in the background is completed first.
+     */
+    public void dispose() {
+        disposed = true;
+        synchronized (this) {
+            for (int i = 0; i < getLevelsCount(); i++) {
+                GeoGrid grid = this.pyramid.get(i);
+                if (grid != null && !grid.isArrayBacked()) {
+                    grid.getStorage().dispose();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the maximum number of cells of reduced levels stored in Java
+     * arrays.
+     * @return The number of cells.
+     */
+    public long getMaxHeapCells() {
+        return maxHeapCells;
+    }
+
+    /**
+     * Sets the maximum number of cells of reduced levels stored in Java
+     * arrays. Larger levels use the same type of storage as the full
+     * resolution grid. Only affects levels that are computed afterwards.
+     * @param maxHeapCells The number of cells. 0 by default.
+     */
+    public void setMaxHeapCells(long maxHeapCells) {
+        this.maxHeapCells = maxHeapCells;
+    }
+
+    /**
+     * Returns whether a level has been computed.
+     * @param level The level.
+     * @return True if getLevel() will return without computing the level.
+     */
+    public boolean isLevelComputed(int level) {
+        return this.pyramid.get(level) != null;
+    }
+
+    /**
+     * Computes all missing levels in a background thread.
+     */
+    public void computeLevelsInBackground() {
+        if (isLevelComputed(getLevelsCount() - 1)) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+
+            public void run() {
+                getLevel(getLevelsCount() - 1);
+            }
+        }, "GaussianPyramid");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
     }
 
     public int getLevelsCount() {
-        return this.pyramid.length;
+        return this.pyramid.length();
+    }
+
+    /**
+     * Returns the number of columns of a level without computing the level.
+     * @param level The level.
+     * @return The number of columns.
+     */
+    public int getLevelCols(int level) {
+        return this.levelCols[level];
+    }
+
+    /**
+     * Returns the number of rows of a level without computing the level.
+     * @param level The level.
+     * @return The number of rows.
+     */
+    public int getLevelRows(int level) {
+        return this.levelRows[level];
     }
 
     public float getValue(int col, int row, int pyramidLevel) {
-        return this.pyramid[pyramidLevel].getValue(col, row);
+        return this.getLevel(pyramidLevel).getValue(col, row);
     }
 }
@@ -61,6 +61,9 @@ public class GridAspectNeighborCounterOperator implements GridOperator{
         
         if (geoGrid == null)
             throw new IllegalArgumentException();
+        if (!geoGrid.isArrayBacked()) {
+            throw new UnsupportedOperationException(getName() + ": grid must be stored in an array");
+        }
         
         // make sure filterSize is odd number
         if (filterSize % 2 != 1)
@@ -15,7 +15,7 @@ import ika.geo.*;
  *
  * @author jenny
  */
-public class GridAspectOperator implements GridOperator {
+public class GridAspectOperator extends NeighborhoodGridOperator {
 
     /**
      * Creates a new instance of GridAspectOperator
@@ -27,35 +27,28 @@ public class GridAspectOperator implements GridOperator {
         return "Grid Aspect";
     }
 
-    public ika.geo.GeoGrid operate(ika.geo.GeoGrid geoGrid) {
-        if (geoGrid == null) {
-            throw new IllegalArgumentException();
-        }
-
-        final int newCols = geoGrid.getCols() - 2;
-        final int newRows = geoGrid.getRows() - 2;
-        final double cellSize = geoGrid.getCellSize();
-        GeoGrid newGrid = new GeoGrid(newCols, newRows, cellSize);
-        newGrid.setWest(geoGrid.getWest() + cellSize);
-        newGrid.setNorth(geoGrid.getNorth() - cellSize);
-
-        float[][] srcGrid = geoGrid.getGrid();
-        float[][] dstGrid = newGrid.getGrid();
-        final int srcRows = geoGrid.getRows();
-        final int srcCols = geoGrid.getCols();
+    @Override
+    protected int getHalo() {
+        return 1;
+    }
 
-        for (int row = 1; row < srcRows - 1; row++) {
-            for (int col = 1; col < srcCols - 1; col++) {
-                final float w = srcGrid[row][col - 1];
-                final float e = srcGrid[row][col + 1];
-                final float s = srcGrid[row + 1][col];
-                final float n = srcGrid[row - 1][col];
-                final float aspect = (float) Math.atan2(n - s, e - w);
+    @Override
+    protected BorderMode getBorderMode() {
+        return BorderMode.CROP;
+    }
 
-                dstGrid[row - 1][col - 1] = aspect;
-            }
+    @Override
+    protected void operateRow(float[][] rows, float[] dstRow, int dstOffset,
+            int nCols, double cellSize) {
+        final float[] above = rows[0];
+        final float[] center = rows[1];
+        final float[] below = rows[2];
+        for (int col = 0; col < nCols; col++) {
+            final float w = center[col];
+            final float e = center[col + 2];
+            final float s = below[col + 1];
+            final float n = above[col + 1];
+            dstRow[dstOffset + col] = (float) Math.atan2(n - s, e - w);
         }
-
-        return newGrid;
     }
 }
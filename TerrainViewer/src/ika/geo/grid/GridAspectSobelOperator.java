@@ -29,6 +29,9 @@ public class GridAspectSobelOperator implements GridOperator {
     public GeoObject operate(GeoGrid geoGrid) {
     if (geoGrid == null)
             throw new IllegalArgumentException();
+        if (!geoGrid.isArrayBacked()) {
+            throw new UnsupportedOperationException(getName() + ": grid must be stored in an array");
+        }
         
         final int newCols = geoGrid.getCols() - 2;
         final int newRows = geoGrid.getRows() - 2;
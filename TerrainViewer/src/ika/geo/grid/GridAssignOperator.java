@@ -21,7 +21,7 @@ public class GridAssignOperator extends ThreadedGridOperator {
     @Override
     protected void operate(GeoGrid src, GeoGrid dst, int startRow, int endRow) {
         for (int row = startRow; row < endRow; ++row) {
-            Arrays.fill(src.getGrid()[row], value);
+            Arrays.fill(dst.getGrid()[row], value);
         }
     }
 
@@ -35,15 +35,25 @@ public class GridCombineOperator extends ThreadedGridOperator {
         }
     }
 
+    /**
+     * Returns a buffer for the rows of a grid not stored in Java arrays, or
+     * null if the grid is stored in Java arrays.
+     */
+    private static float[] rowBuffer(GeoGrid grid, int nCols) {
+        return grid.isArrayBacked() ? null : new float[nCols];
+    }
+
     private void combineWeightedMasked(int startRow, int endRow, GeoGrid src, GeoGrid dst) {
         final int nCols = src.getCols();
-        float[][] wGrid = weightGrid.getGrid();
+        final float[] src2Buffer = rowBuffer(src2, nCols);
+        final float[] wBuffer = rowBuffer(weightGrid, nCols);
+        final float[] maskBuffer = rowBuffer(mask, nCols);
         for (int row = startRow; row < endRow; ++row) {
             float[] srcRow1 = src.getGrid()[row];
-            float[] srcRow2 = src2.getGrid()[row];
-            float[] wRow = wGrid[row];
+            float[] srcRow2 = src2.getRow(row, src2Buffer);
+            float[] wRow = weightGrid.getRow(row, wBuffer);
             float[] dstRow = dst.getGrid()[row];
-            float[] maskRow = mask.getGrid()[row];
+            float[] maskRow = mask.getRow(row, maskBuffer);
             for (int col = 0; col < nCols; ++col) {
                 if (Float.isNaN(maskRow[col])) {
                     dstRow[col] = Float.NaN;
@@ -57,11 +67,12 @@ public class GridCombineOperator extends ThreadedGridOperator {
 
     private void combineWeighted(int startRow, int endRow, GeoGrid src, GeoGrid dst) {
         final int nCols = src.getCols();
-        float[][] wGrid = weightGrid.getGrid();
+        final float[] src2Buffer = rowBuffer(src2, nCols);
+        final float[] wBuffer = rowBuffer(weightGrid, nCols);
         for (int row = startRow; row < endRow; ++row) {
             float[] srcRow1 = src.getGrid()[row];
-            float[] srcRow2 = src2.getGrid()[row];
-            float[] wRow = wGrid[row];
+            float[] srcRow2 = src2.getRow(row, src2Buffer);
+            float[] wRow = weightGrid.getRow(row, wBuffer);
             float[] dstRow = dst.getGrid()[row];
             for (int col = 0; col < nCols; ++col) {
                 final float w = wRow[col];
@@ -72,11 +83,13 @@ public class GridCombineOperator extends ThreadedGridOperator {
 
     private void combineMasked(int startRow, int endRow, GeoGrid src, GeoGrid dst) {
         final int nCols = src.getCols();
+        final float[] src2Buffer = rowBuffer(src2, nCols);
+        final float[] maskBuffer = rowBuffer(mask, nCols);
         for (int row = startRow; row < endRow; ++row) {
             float[] srcRow1 = src.getGrid()[row];
-            float[] srcRow2 = src2.getGrid()[row];
+            float[] srcRow2 = src2.getRow(row, src2Buffer);
             float[] dstRow = dst.getGrid()[row];
-            float[] maskRow = mask.getGrid()[row];
+            float[] maskRow = mask.getRow(row, maskBuffer);
             for (int col = 0; col < nCols; ++col) {
                 if (Float.isNaN(maskRow[col])) {
                     dstRow[col] = Float.NaN;
@@ -89,9 +102,10 @@ public class GridCombineOperator extends ThreadedGridOperator {
 
     private void combine(int startRow, int endRow, GeoGrid src, GeoGrid dst) {
         final int nCols = src.getCols();
+        final float[] src2Buffer = rowBuffer(src2, nCols);
         for (int row = startRow; row < endRow; ++row) {
             float[] srcRow1 = src.getGrid()[row];
-            float[] srcRow2 = src2.getGrid()[row];
+            float[] srcRow2 = src2.getRow(row, src2Buffer);
             float[] dstRow = dst.getGrid()[row];
             for (int col = 0; col < nCols; ++col) {
                 dstRow[col] = srcRow1[col] + srcRow2[col];
@@ -114,19 +128,21 @@ public class GridCombineOperator extends ThreadedGridOperator {
 
         final int nrows = grid1.getRows();
         final int ncols = grid1.getCols();
-        GeoGrid newGrid = new GeoGrid(ncols, nrows, grid1.getCellSize());
+        GeoGrid newGrid = createGrid(grid1, ncols, nrows);
         newGrid.setWest(grid1.getWest());
         newGrid.setNorth(grid1.getNorth());
 
-        float[][] src1Grid = grid1.getGrid();
-        float[][] dst = newGrid.getGrid();
+        final float[] srcBuffer = rowBuffer(grid1, ncols);
+        final float[] dstBuffer = rowBuffer(newGrid, ncols);
         Rectangle2D boundsGrid2 = grid2.getBounds2D(GeoObject.UNDEFINED_SCALE);
 
         for (int row = 0; row < nrows; ++row) {
+            final float[] srcRow = grid1.getRow(row, srcBuffer);
+            final float[] dstRow = dstBuffer == null ? newGrid.getRow(row, null) : dstBuffer;
             for (int col = 0; col < ncols; ++col) {
                 double x = grid1.getWest() + col * grid1.getCellSize();
                 double y = grid1.getNorth() - row * grid1.getCellSize();
-                float v1 = src1Grid[row][col];
+                float v1 = srcRow[col];
 
                 float v2 = 0;
                 try {
@@ -134,8 +150,9 @@ public class GridCombineOperator extends ThreadedGridOperator {
                 } catch (Throwable e) {
                 }
 
-                dst[row][col] = v1 < 0 ? 0 : v1 + v2;
+                dstRow[col] = v1 < 0 ? 0 : v1 + v2;
             }
+            newGrid.setRow(row, dstRow);
         }
         return newGrid;
 
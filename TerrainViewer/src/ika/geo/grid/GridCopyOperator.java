@@ -10,10 +10,10 @@ public class GridCopyOperator extends ThreadedGridOperator {
 
     @Override
     protected void operate(GeoGrid src, GeoGrid dst, int startRow, int endRow) {
+        float[][] dstGrid = dst.getGrid();
         for (int row = startRow; row < endRow; ++row) {
-            float[] srcArray = src.getGrid()[row];
-            float[] dstArray = src.getGrid()[row];
-            System.arraycopy(srcArray, 0, dstArray, 0, srcArray.length);
+            float[] srcArray = src.getRow(row, null);
+            System.arraycopy(srcArray, 0, dstGrid[row], 0, srcArray.length);
         }
     }
 
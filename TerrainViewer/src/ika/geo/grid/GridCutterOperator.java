@@ -39,13 +39,15 @@ public class GridCutterOperator implements GridOperator {
         if (newCols < 0)
             return;
         
-        float[][] srcGrid = srcGeoGrid.getGrid();
-        float[][] dstGrid = dstGeoGrid.getGrid();
+        // buffers for rows of grids not stored in Java arrays
+        float[] srcBuffer = srcGeoGrid.isArrayBacked() ? null : new float[oldCols];
+        float[] dstBuffer = dstGeoGrid.isArrayBacked() ? null : new float[newCols];
         
         for (int row = 0; row < newRows; row++){
-            float[] srcRow = srcGrid[row + top];
-            float[] dstRow = dstGrid[row];
+            float[] srcRow = srcGeoGrid.getRow(row + top, srcBuffer);
+            float[] dstRow = dstBuffer == null ? dstGeoGrid.getRow(row, null) : dstBuffer;
             System.arraycopy(srcRow, left, dstRow, 0, newCols);
+            dstGeoGrid.setRow(row, dstRow);
         }
     }
 
@@ -64,7 +66,7 @@ public class GridCutterOperator implements GridOperator {
             return null;
         
         final double meshSize = geoGrid.getCellSize();
-        GeoGrid newGrid = new GeoGrid(newCols, newRows, meshSize);
+        GeoGrid newGrid = ThreadedGridOperator.createGrid(geoGrid, newCols, newRows);
         newGrid.setWest(geoGrid.getWest() + left * meshSize);
         newGrid.setNorth(geoGrid.getNorth() + top * meshSize);
         
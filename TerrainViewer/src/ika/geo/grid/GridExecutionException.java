@@ -0,0 +1,14 @@
+package ika.geo.grid;
+
+/**
+ * Thrown by GridExecutor.execute if a task throws a checked exception. The
+ * exception thrown by the task is the cause.
+ *
+ * @author jenny
+ */
+public class GridExecutionException extends RuntimeException {
+
+    public GridExecutionException(Throwable cause) {
+        super(cause);
+    }
+}
@@ -0,0 +1,480 @@
+package ika.geo.grid;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A shared pool of worker threads for grid operators. The rows of a grid are
+ * not split into equally sized chunks, but are handed out as tiles of
+ * decreasing height (guided scheduling): each worker claims the next band of
+ * rows when it is done with its previous band. Workers that are fast (for
+ * example, because their rows contain mostly void values) therefore take over
+ * work from slower workers, and no thread is created per operator call.
+ *
+ * The calling thread participates in the computation. A task can therefore be
+ * executed from within a worker thread of the pool without risking a deadlock.
+ *
+ * An exception thrown by a task stops the processing of further tiles and is
+ * rethrown by execute() after all running tiles have completed, regardless of
+ * which tile failed.
+ *
+ * Wall-clock and CPU time consumed by each operator are accumulated and can
+ * be retrieved with getTimings().
+ *
+ * @author jenny
+ */
+public final class GridExecutor {
+
+    /**
+     * A task operating on a band of rows.
+     */
+    public interface RowTask {
+
+        /**
+         * Operate on a band of rows.
+         * @param startRow The index of the first row to operate on.
+         * @param endRow The index of the last row. The task should not operate
+         * on this row.
+         * @throws Exception If the rows cannot be processed. No further tiles
+         * are processed, and the exception is rethrown by execute().
+         */
+        public void run(int startRow, int endRow) throws Exception;
+    }
+
+    /**
+     * Accumulated timing for all calls of an operator.
+     */
+    public static final class Timing {
+
+        private final String name;
+        private long calls;
+        private long wallNanos;
+        private long cpuNanos;
+
+        private Timing(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return The name of the operator.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The number of times the operator was executed.
+         */
+        public synchronized long getCalls() {
+            return calls;
+        }
+
+        /**
+         * @return The total elapsed wall-clock time in nanoseconds.
+         */
+        public synchronized long getWallNanos() {
+            return wallNanos;
+        }
+
+        /**
+         * @return The total CPU time in nanoseconds summed over all threads,
+         * or 0 if the JVM does not support measuring thread CPU time.
+         */
+        public synchronized long getCPUNanos() {
+            return cpuNanos;
+        }
+
+        private synchronized void add(long wall, long cpu) {
+            ++calls;
+            wallNanos += wall;
+            cpuNanos += cpu;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return name + ": " + calls + " calls, wall "
+                    + wallNanos / 1000000 + " ms, CPU " + cpuNanos / 1000000 + " ms";
+        }
+    }
+
+    /**
+     * The shared default executor.
+     */
+    private static GridExecutor defaultExecutor;
+
+    /**
+     * The number of tiles per thread the remaining rows are divided into
+     * when the next tile is claimed.
+     */
+    private static final int TILES_PER_THREAD = 4;
+
+    private final ExecutorService pool;
+    private final int parallelism;
+
+    /**
+     * Minimum number of rows in a tile.
+     */
+    private volatile int minTileRows = 4;
+
+    /**
+     * Timings per operator name.
+     */
+    private final Map<String, Timing> timings = new LinkedHashMap<String, Timing>();
+
+    /**
+     * Returns the shared executor. The number of threads defaults to the
+     * number of available processors and can be changed with the system
+     * property ika.grid.threads.
+     * @return The shared executor.
+     */
+    public static synchronized GridExecutor getDefault() {
+        if (defaultExecutor == null) {
+            int n = Runtime.getRuntime().availableProcessors();
+            n = Integer.getInteger("ika.grid.threads", n);
+            defaultExecutor = new GridExecutor(n);
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Replaces the shared executor by a new executor with the passed number of
+     * threads. Operators that are currently running on the old executor are
+     * completed, but no new helper threads are started for them.
+     * @param parallelism The number of threads.
+     */
+    public static synchronized void setDefaultParallelism(int parallelism) {
+        if (defaultExecutor != null) {
+            if (defaultExecutor.parallelism == parallelism) {
+                return;
+            }
+            defaultExecutor.shutdown();
+        }
+        defaultExecutor = new GridExecutor(parallelism);
+    }
+
+    /**
+     * Creates a new executor.
+     * @param parallelism The number of threads operating on a grid, including
+     * the calling thread.
+     */
+    public GridExecutor(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("invalid number of threads");
+        }
+        this.parallelism = parallelism;
+        if (parallelism > 1) {
+            pool = Executors.newFixedThreadPool(parallelism - 1, new ThreadFactory() {
+
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "GridExecutor-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        } else {
+            pool = null;
+        }
+    }
+
+    /**
+     * Stops the worker threads after all submitted tasks have completed.
+     * Tasks executed after shutting down are processed by the calling thread
+     * only.
+     */
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return The number of threads operating on a grid.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @return The minimum number of rows in a tile.
+     */
+    public int getMinTileRows() {
+        return minTileRows;
+    }
+
+    /**
+     * Sets the minimum number of rows in a tile.
+     * @param minTileRows The minimum number of rows, at least 1.
+     */
+    public void setMinTileRows(int minTileRows) {
+        this.minTileRows = Math.max(1, minTileRows);
+    }
+
+    /**
+     * Executes a task on rows 0 to nRows - 1 and blocks until all rows are
+     * processed.
+     * @param name The name under which the consumed time is accumulated. Can
+     * be null.
+     * @param nRows The number of rows.
+     * @param task The task to execute.
+     * @throws CancellationException If the calling thread is interrupted or
+     * the passed cancel flag is set.
+     * @throws GridExecutionException If the task throws a checked exception.
+     * Runtime exceptions and errors thrown by the task are rethrown
+     * unchanged.
+     */
+    public void execute(String name, int nRows, RowTask task) {
+        execute(name, nRows, task, null);
+    }
+
+    /**
+     * Executes a task on rows 0 to nRows - 1 and blocks until all rows are
+     * processed.
+     * @param name The name under which the consumed time is accumulated. Can
+     * be null.
+     * @param nRows The number of rows.
+     * @param task The task to execute.
+     * @param cancelled A flag that is polled before each tile is processed.
+     * Can be null.
+     * @throws CancellationException If the calling thread is interrupted or
+     * the passed cancel flag is set.
+     * @throws GridExecutionException If the task throws a checked exception.
+     * Runtime exceptions and errors thrown by the task are rethrown
+     * unchanged.
+     */
+    public void execute(String name, int nRows, RowTask task, CancelFlag cancelled) {
+        if (nRows <= 0) {
+            return;
+        }
+        final long wallStart = System.nanoTime();
+        Job job = new Job(nRows, task, cancelled);
+
+        // submit helpers; the calling thread is the last worker
+        int nHelpers = Math.min(parallelism - 1, (nRows - 1) / minTileRows);
+        if (pool != null) {
+            try {
+                for (int i = 0; i < nHelpers; i++) {
+                    pool.execute(job);
+                }
+            } catch (RejectedExecutionException ex) {
+                // the executor has been shut down; the calling thread and the
+                // helpers submitted so far process all rows
+            }
+        }
+        job.run();
+        job.await();
+
+        if (name != null) {
+            timing(name).add(System.nanoTime() - wallStart, job.cpuNanos.get());
+        }
+        job.rethrow();
+    }
+
+    /**
+     * Executes a task that reads or writes files on rows 0 to nRows - 1 and
+     * blocks until all rows are processed.
+     * @param name The name under which the consumed time is accumulated. Can
+     * be null.
+     * @param nRows The number of rows.
+     * @param task The task to execute.
+     * @param cancelled A flag that is polled before each tile is processed.
+     * Can be null.
+     * @throws IOException If the task throws an IOException.
+     * @throws CancellationException If the calling thread is interrupted or
+     * the passed cancel flag is set.
+     * @throws GridExecutionException If the task throws another checked
+     * exception.
+     */
+    public void executeIO(String name, int nRows, RowTask task, CancelFlag cancelled)
+            throws IOException {
+        try {
+            execute(name, nRows, task, cancelled);
+        } catch (GridExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    private synchronized Timing timing(String name) {
+        Timing t = timings.get(name);
+        if (t == null) {
+            t = new Timing(name);
+            timings.put(name, t);
+        }
+        return t;
+    }
+
+    /**
+     * Returns the accumulated timings of all executed operators.
+     * @return A list of timings in the order the operators were first
+     * executed.
+     */
+    public synchronized List<Timing> getTimings() {
+        return Collections.unmodifiableList(new ArrayList<Timing>(timings.values()));
+    }
+
+    /**
+     * Discards all accumulated timings.
+     */
+    public synchronized void resetTimings() {
+        timings.clear();
+    }
+
+    /**
+     * A flag for cancelling running operators.
+     */
+    public static final class CancelFlag {
+
+        private volatile boolean cancelled = false;
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public void reset() {
+            cancelled = false;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * The state of one call to execute(). The job is run by the calling
+     * thread and by helper threads; each thread claims tiles until no rows
+     * are left.
+     */
+    private final class Job implements Runnable {
+
+        private final int nRows;
+        private final RowTask task;
+        private final CancelFlag cancelFlag;
+        private final AtomicInteger nextRow = new AtomicInteger();
+        private final AtomicLong cpuNanos = new AtomicLong();
+        private int finishedRows = 0;
+        private volatile boolean aborted = false;
+        private Throwable failure;
+
+        Job(int nRows, RowTask task, CancelFlag cancelFlag) {
+            this.nRows = nRows;
+            this.task = task;
+            this.cancelFlag = cancelFlag;
+        }
+
+        /**
+         * Claims the next tile.
+         * @return The first row of the tile in the upper 32 bits and the end
+         * row in the lower 32 bits, or -1 if there are no rows left.
+         */
+        private long claim() {
+            while (true) {
+                final int start = nextRow.get();
+                if (start >= nRows) {
+                    return -1;
+                }
+                int height;
+                if (aborted) {
+                    height = nRows - start;
+                } else {
+                    height = (nRows - start) / (parallelism * TILES_PER_THREAD);
+                    height = Math.max(minTileRows, height);
+                }
+                final int end = Math.min(nRows, start + height);
+                if (nextRow.compareAndSet(start, end)) {
+                    return ((long) start << 32) | end;
+                }
+            }
+        }
+
+        public void run() {
+            ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+            boolean cpuTime = mx.isCurrentThreadCpuTimeSupported();
+            long cpuStart = cpuTime ? mx.getCurrentThreadCpuTime() : 0;
+            long tile;
+            while ((tile = claim()) >= 0) {
+                final int start = (int) (tile >>> 32);
+                final int end = (int) tile;
+                try {
+                    if (!aborted) {
+                        if ((cancelFlag != null && cancelFlag.isCancelled())
+                                || Thread.currentThread().isInterrupted()) {
+                            abort(new CancellationException());
+                        } else {
+                            task.run(start, end);
+                        }
+                    }
+                } catch (Throwable t) {
+                    abort(t);
+                } finally {
+                    finished(end - start);
+                }
+            }
+            if (cpuTime) {
+                cpuNanos.addAndGet(mx.getCurrentThreadCpuTime() - cpuStart);
+            }
+        }
+
+        private synchronized void abort(Throwable t) {
+            if (failure == null) {
+                failure = t;
+            }
+            aborted = true;
+        }
+
+        private synchronized void finished(int rows) {
+            finishedRows += rows;
+            if (finishedRows == nRows) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Blocks until all rows have been processed. Tiles claimed by helper
+         * threads are always completed, so this cannot deadlock.
+         */
+        private synchronized void await() {
+            boolean interrupted = false;
+            while (finishedRows < nRows) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                    abort(new CancellationException());
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private synchronized void rethrow() {
+            if (failure == null) {
+                return;
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            throw new GridExecutionException(failure);
+        }
+    }
+}
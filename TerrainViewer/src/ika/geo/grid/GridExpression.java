@@ -0,0 +1,391 @@
+package ika.geo.grid;
+
+import ika.geo.GeoGrid;
+import java.util.ArrayList;
+
+/**
+ * A chain of point-wise grid operations that is evaluated lazily in a single
+ * pass. The methods of this class only record an operation; the grid is
+ * read, transformed and written when one of the evaluate methods is called.
+ * Each operation computes exactly the same values as the corresponding
+ * operator (GridScaleOperator, GridAdditionOperator, GridMultiplyOperator,
+ * GridExponentiationOperator, GridLinearEquationOperator,
+ * GridThresholdOperator, GridAbsoluteOperator and GridRoundOperator), but no
+ * intermediate grids are allocated, and rows are processed in short blocks
+ * that stay in the cache while all operations are applied.
+ *
+ * Example:
+ * GeoGrid res = GridExpression.of(grid).scale(2).add(-100).abs().evaluate();
+ *
+ * @author jenny
+ */
+public class GridExpression {
+
+    /**
+     * Number of values in a block of a row. All operations are applied to
+     * a block before the next block is loaded.
+     */
+    private static final int BLOCK_SIZE = 1024;
+
+    /**
+     * The grid the expression is applied to.
+     */
+    private final GeoGrid src;
+
+    /**
+     * The recorded operations in the order they are applied.
+     */
+    private final ArrayList<Stage> stages = new ArrayList<Stage>();
+
+    /**
+     * The executor distributing rows to threads. If null, the shared default
+     * executor is used.
+     */
+    private GridExecutor executor;
+
+    /**
+     * Flag for cancelling the evaluation while it is running.
+     */
+    private final GridExecutor.CancelFlag cancelFlag = new GridExecutor.CancelFlag();
+
+    /**
+     * Creates an expression without any operations for the passed grid.
+     * @param src The source grid.
+     */
+    public GridExpression(GeoGrid src) {
+        if (src == null || !src.isWellFormed()) {
+            throw new IllegalArgumentException("invalid source grid");
+        }
+        this.src = src;
+    }
+
+    /**
+     * Creates an expression without any operations for the passed grid.
+     * @param src The source grid.
+     * @return The new expression.
+     */
+    public static GridExpression of(GeoGrid src) {
+        return new GridExpression(src);
+    }
+
+    /**
+     * Multiplies each value by a factor. Same as GridScaleOperator.
+     */
+    public GridExpression scale(final float scale) {
+        stages.add(new Stage() {
+
+            void apply(float[] v, int n, float[] operand) {
+                for (int i = 0; i < n; i++) {
+                    v[i] *= scale;
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Adds a constant to each value. Same as GridAdditionOperator.
+     */
+    public GridExpression add(final float add) {
+        stages.add(new Stage() {
+
+            void apply(float[] v, int n, float[] operand) {
+                for (int i = 0; i < n; i++) {
+                    v[i] += add;
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Multiplies each value with the corresponding value of another grid.
+     * Same as GridMultiplyOperator.
+     * @param grid A grid with the same extension and resolution as the source
+     * grid.
+     */
+    public GridExpression multiply(GeoGrid grid) {
+        if (grid == null || !src.hasSameExtensionAndResolution(grid)) {
+            throw new IllegalArgumentException("grids of different size");
+        }
+        stages.add(new Stage(grid) {
+
+            void apply(float[] v, int n, float[] operand) {
+                for (int i = 0; i < n; i++) {
+                    v[i] *= operand[i];
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Raises positive values to a power and replaces all other values.
+     * Same as GridExponentiationOperator.
+     * @param exponent The exponent.
+     * @param negativeVal The value for cells that are not positive.
+     */
+    public GridExpression pow(final double exponent, final float negativeVal) {
+        stages.add(new Stage() {
+
+            void apply(float[] v, int n, float[] operand) {
+                for (int i = 0; i < n; i++) {
+                    v[i] = v[i] > 0 ? (float) Math.pow(v[i], exponent) : negativeVal;
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Computes m * x + c for each value. Same as GridLinearEquationOperator.
+     */
+    public GridExpression linear(final float m, final float c) {
+        stages.add(new Stage() {
+
+            void apply(float[] v, int n, float[] operand) {
+                for (int i = 0; i < n; i++) {
+                    v[i] = m * v[i] + c;
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Replaces values smaller than a threshold. Same as
+     * GridThresholdOperator.clipSmallValues.
+     * @param threshold Values smaller than this value are replaced.
+     * @param replaceValue The new value.
+     */
+    public GridExpression clipSmallValues(final float threshold, final float replaceValue) {
+        stages.add(new Stage() {
+
+            void apply(float[] v, int n, float[] operand) {
+                for (int i = 0; i < n; i++) {
+                    if (v[i] < threshold) {
+                        v[i] = replaceValue;
+                    }
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Replaces values larger than a threshold. Same as
+     * GridThresholdOperator.clipLargeValues.
+     * @param threshold Values larger than this value are replaced.
+     * @param replaceValue The new value.
+     */
+    public GridExpression clipLargeValues(final float threshold, final float replaceValue) {
+        stages.add(new Stage() {
+
+            void apply(float[] v, int n, float[] operand) {
+                for (int i = 0; i < n; i++) {
+                    if (v[i] > threshold) {
+                        v[i] = replaceValue;
+                    }
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Replaces each value by its absolute value. Same as GridAbsoluteOperator.
+     */
+    public GridExpression abs() {
+        stages.add(new Stage() {
+
+            void apply(float[] v, int n, float[] operand) {
+                for (int i = 0; i < n; i++) {
+                    v[i] = Math.abs(v[i]);
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Rounds each value to the closest integer. Same as GridRoundOperator.
+     */
+    public GridExpression round() {
+        stages.add(new Stage() {
+
+            void apply(float[] v, int n, float[] operand) {
+                for (int i = 0; i < n; i++) {
+                    v[i] = (float) Math.round(v[i]);
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Returns the number of recorded operations.
+     */
+    public int getOperationCount() {
+        return stages.size();
+    }
+
+    /**
+     * Returns the executor used for evaluating this expression.
+     * @return The executor set with setExecutor, or the shared default
+     * executor.
+     */
+    public GridExecutor getExecutor() {
+        return executor == null ? GridExecutor.getDefault() : executor;
+    }
+
+    /**
+     * Sets the executor used for evaluating this expression.
+     * @param executor The executor. If null, the shared default executor is used.
+     */
+    public void setExecutor(GridExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Cancels the evaluation if it is currently running. evaluate() will
+     * throw a java.util.concurrent.CancellationException. Call resetCancel()
+     * before the expression is evaluated again.
+     */
+    public void cancel() {
+        cancelFlag.cancel();
+    }
+
+    /**
+     * Clears the cancel flag set by cancel().
+     */
+    public void resetCancel() {
+        cancelFlag.reset();
+    }
+
+    /**
+     * Evaluates the expression and stores the result in a new grid with the
+     * same type of storage, size and georeference as the source grid.
+     * @return The new grid.
+     */
+    public GeoGrid evaluate() {
+        final int nrows = src.getRows();
+        final int ncols = src.getCols();
+        GeoGrid dst;
+        if (src.isArrayBacked()) {
+            dst = new GeoGrid(ncols, nrows, src.getCellSize());
+        } else {
+            dst = new GeoGrid(src.getStorage().create(ncols, nrows), src.getCellSize());
+        }
+        dst.setWest(src.getWest());
+        dst.setNorth(src.getNorth());
+        dst.setName(src.getName());
+        return evaluate(dst);
+    }
+
+    /**
+     * Evaluates the expression and overwrites the values of the source grid.
+     * @return The source grid.
+     */
+    public GeoGrid evaluateInPlace() {
+        return evaluate(src);
+    }
+
+    /**
+     * Evaluates the expression and stores the result in the passed grid.
+     * @param dst The destination grid with the same number of rows and columns
+     * as the source grid. Can be the source grid or one of the grids passed
+     * to multiply().
+     * @return The passed dst grid.
+     */
+    public GeoGrid evaluate(final GeoGrid dst) {
+        if (dst == null || dst.getCols() != src.getCols()
+                || dst.getRows() != src.getRows()) {
+            throw new IllegalArgumentException("invalid destination grid");
+        }
+        final Stage[] ops = stages.toArray(new Stage[stages.size()]);
+        final int ncols = src.getCols();
+        getExecutor().execute("Grid Expression", src.getRows(), new GridExecutor.RowTask() {
+
+            public void run(int startRow, int endRow) {
+                // buffers for rows of grids not stored in Java arrays
+                final float[] srcBuffer = src.isArrayBacked() ? null : new float[ncols];
+                final float[] dstBuffer = dst.isArrayBacked() ? null : new float[ncols];
+                final float[][] operandBuffers = new float[ops.length][];
+                final float[][] operandRows = new float[ops.length][];
+                for (int i = 0; i < ops.length; i++) {
+                    GeoGrid operand = ops[i].operand;
+                    if (operand != null && !operand.isArrayBacked()) {
+                        operandBuffers[i] = new float[ncols];
+                    }
+                }
+                final float[] v = new float[Math.min(BLOCK_SIZE, ncols)];
+                final float[] operandBlock = new float[v.length];
+
+                for (int row = startRow; row < endRow; row++) {
+                    // all rows are read before the destination row is written,
+                    // as the destination grid can be one of the read grids.
+                    final float[] srcRow = src.getRow(row, srcBuffer);
+                    for (int i = 0; i < ops.length; i++) {
+                        if (ops[i].operand != null) {
+                            operandRows[i] = ops[i].operand.getRow(row, operandBuffers[i]);
+                        }
+                    }
+                    final float[] dstRow = dst.isArrayBacked()
+                            ? dst.getGrid()[row] : dstBuffer;
+
+                    // apply all operations to a block of values that fits
+                    // into the cache, then write the block to the destination.
+                    // A block of the destination row is written after the
+                    // same block of all source rows is read.
+                    for (int col = 0; col < ncols; col += v.length) {
+                        final int n = Math.min(v.length, ncols - col);
+                        System.arraycopy(srcRow, col, v, 0, n);
+                        for (int i = 0; i < ops.length; i++) {
+                            float[] operand = null;
+                            if (operandRows[i] != null) {
+                                System.arraycopy(operandRows[i], col, operandBlock, 0, n);
+                                operand = operandBlock;
+                            }
+                            ops[i].apply(v, n, operand);
+                        }
+                        System.arraycopy(v, 0, dstRow, col, n);
+                    }
+                    if (!dst.isArrayBacked()) {
+                        dst.setRow(row, dstRow);
+                    }
+                }
+            }
+        }, cancelFlag);
+
+        dst.invalidateStatistics();
+        return dst;
+    }
+
+    /**
+     * A point-wise operation applied to a block of values.
+     */
+    private static abstract class Stage {
+
+        /**
+         * A second grid that is read by this operation, or null.
+         */
+        final GeoGrid operand;
+
+        Stage() {
+            this(null);
+        }
+
+        Stage(GeoGrid operand) {
+            this.operand = operand;
+        }
+
+        /**
+         * Applies the operation to a block of values.
+         * @param v The values, which are replaced.
+         * @param n The number of values in v.
+         * @param operand The values of the operand grid for the same cells,
+         * or null.
+         */
+        abstract void apply(float[] v, int n, float[] operand);
+    }
+}
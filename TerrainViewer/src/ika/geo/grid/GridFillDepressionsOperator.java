@@ -0,0 +1,260 @@
+package ika.geo.grid;
+
+import ika.geo.GeoGrid;
+
+/**
+ * Fills depressions with the Priority-Flood algorithm, such that every cell
+ * drains to the border of the grid or to a void cell. Optionally, filled
+ * depressions and flats receive a minimal gradient towards their outlet
+ * (Priority-Flood+epsilon), so that flow directions are defined everywhere.
+ *
+ * Barnes, R., Lehman, C., Mulla, D., 2014. Priority-flood: An optimal
+ * depression-filling and watershed-labeling algorithm for digital elevation
+ * models. Computers & Geosciences 62, 117-127.
+ *
+ * The algorithm visits each cell once and runs in O(n log n) time; cells
+ * inside depressions are processed with a plain queue in O(1).
+ *
+ * @author jenny
+ */
+public class GridFillDepressionsOperator implements GridOperator {
+
+    private static final int[] DX = {1, 1, 0, -1, -1, -1, 0, 1};
+    private static final int[] DY = {0, 1, 1, 1, 0, -1, -1, -1};
+
+    /**
+     * If true, filled cells are raised by the smallest possible increment
+     * above the cell they drain to.
+     */
+    private boolean epsilon = true;
+
+    public GridFillDepressionsOperator() {
+    }
+
+    public String getName() {
+        return "Fill Depressions";
+    }
+
+    public boolean isEpsilon() {
+        return epsilon;
+    }
+
+    /**
+     * Sets whether filled depressions and flats receive a minimal gradient.
+     * @param epsilon If true, no cell has the same elevation as the cell it
+     * drains to. If false, depressions are filled with flat surfaces.
+     */
+    public void setEpsilon(boolean epsilon) {
+        this.epsilon = epsilon;
+    }
+
+    public GeoGrid operate(GeoGrid geoGrid) {
+        if (geoGrid == null) {
+            throw new IllegalArgumentException();
+        }
+
+        final int cols = geoGrid.getCols();
+        final int rows = geoGrid.getRows();
+        GeoGrid newGrid = new GeoGrid(cols, rows, geoGrid.getCellSize());
+        newGrid.setWest(geoGrid.getWest());
+        newGrid.setNorth(geoGrid.getNorth());
+        final float[][] z = newGrid.getGrid();
+        for (int r = 0; r < rows; r++) {
+            float[] row = geoGrid.getRow(r, z[r]);
+            if (row != z[r]) {
+                System.arraycopy(row, 0, z[r], 0, cols);
+            }
+        }
+        fill(z, epsilon);
+        return newGrid;
+    }
+
+    /**
+     * Fills depressions in place.
+     * @param z The grid values, which are changed.
+     * @param epsilon If true, filled cells receive a minimal gradient.
+     */
+    static void fill(float[][] z, boolean epsilon) {
+        final int rows = z.length;
+        final int cols = z[0].length;
+        final long[] closed = new long[(int) (((long) cols * rows + 63) / 64)];
+        final MinHeap open = new MinHeap(2 * (cols + rows));
+        final IntQueue pit = new IntQueue(1024);
+
+        // seed with border cells and cells next to void cells
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                final int i = r * cols + c;
+                final float v = z[r][c];
+                if (Float.isNaN(v)) {
+                    setClosed(closed, i);
+                } else if (r == 0 || c == 0 || r == rows - 1 || c == cols - 1
+                        || hasVoidNeighbor(z, c, r)) {
+                    setClosed(closed, i);
+                    open.push(v, i);
+                }
+            }
+        }
+
+        while (open.size() > 0 || pit.size() > 0) {
+            final int i;
+            if (pit.size() > 0 && !(open.size() > 0
+                    && open.topKey() == valueAt(z, cols, pit.peek()))) {
+                i = pit.pop();
+            } else {
+                i = open.pop();
+            }
+            final int r = i / cols;
+            final int c = i - r * cols;
+            final float v = z[r][c];
+            final float spill = epsilon ? Math.nextUp(v) : v;
+            for (int k = 0; k < 8; k++) {
+                final int nc = c + DX[k];
+                final int nr = r + DY[k];
+                if (nc < 0 || nr < 0 || nc >= cols || nr >= rows) {
+                    continue;
+                }
+                final int n = nr * cols + nc;
+                if (isClosed(closed, n)) {
+                    continue;
+                }
+                setClosed(closed, n);
+                if (z[nr][nc] <= spill) {
+                    z[nr][nc] = spill;
+                    pit.push(n);
+                } else {
+                    open.push(z[nr][nc], n);
+                }
+            }
+        }
+    }
+
+    private static float valueAt(float[][] z, int cols, int i) {
+        return z[i / cols][i % cols];
+    }
+
+    private static boolean hasVoidNeighbor(float[][] z, int c, int r) {
+        for (int k = 0; k < 8; k++) {
+            if (Float.isNaN(z[r + DY[k]][c + DX[k]])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isClosed(long[] closed, int i) {
+        return (closed[i >>> 6] & (1L << i)) != 0;
+    }
+
+    private static void setClosed(long[] closed, int i) {
+        closed[i >>> 6] |= 1L << i;
+    }
+
+    /**
+     * A binary min-heap of cell indices with float keys.
+     */
+    private static final class MinHeap {
+
+        private float[] keys;
+        private int[] values;
+        private int size = 0;
+
+        MinHeap(int capacity) {
+            keys = new float[Math.max(16, capacity)];
+            values = new int[keys.length];
+        }
+
+        int size() {
+            return size;
+        }
+
+        float topKey() {
+            return keys[0];
+        }
+
+        void push(float key, int value) {
+            if (size == keys.length) {
+                keys = java.util.Arrays.copyOf(keys, size * 2);
+                values = java.util.Arrays.copyOf(values, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (keys[parent] <= key) {
+                    break;
+                }
+                keys[i] = keys[parent];
+                values[i] = values[parent];
+                i = parent;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        int pop() {
+            final int top = values[0];
+            final float key = keys[--size];
+            final int value = values[size];
+            int i = 0;
+            for (;;) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && keys[child + 1] < keys[child]) {
+                    ++child;
+                }
+                if (keys[child] >= key) {
+                    break;
+                }
+                keys[i] = keys[child];
+                values[i] = values[child];
+                i = child;
+            }
+            keys[i] = key;
+            values[i] = value;
+            return top;
+        }
+    }
+
+    /**
+     * A growable FIFO queue of cell indices.
+     */
+    private static final class IntQueue {
+
+        private int[] values;
+        private int head = 0;
+        private int size = 0;
+
+        IntQueue(int capacity) {
+            values = new int[capacity];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int peek() {
+            return values[head];
+        }
+
+        void push(int value) {
+            if (size == values.length) {
+                int[] v = new int[size * 2];
+                for (int i = 0; i < size; i++) {
+                    v[i] = values[(head + i) % values.length];
+                }
+                values = v;
+                head = 0;
+            }
+            values[(head + size++) % values.length] = value;
+        }
+
+        int pop() {
+            final int value = values[head];
+            head = (head + 1) % values.length;
+            --size;
+            return value;
+        }
+    }
+}
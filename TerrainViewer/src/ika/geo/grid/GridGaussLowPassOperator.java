@@ -18,6 +18,15 @@ import ika.geo.GeoGrid;
  * See http://en.wikipedia.org/wiki/Gaussian_blur
  * August 26, 2010, and April 14, 2011.
  *
+ * The cost of the convolution grows linearly with the standard deviation.
+ * For large standard deviations, a recursive filter is used instead, which
+ * has a constant cost per cell (Young, I. T., van Vliet, L. J., 1995.
+ * Recursive implementation of the Gaussian filter. Signal Processing 44,
+ * 139-151). Like the convolution, the recursive filter only includes cells
+ * inside the grid and is normalized at the borders. Rows with void values
+ * are convolved, as the recursive filter would spread void values along the
+ * entire row.
+ *
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich.
  */
 public class GridGaussLowPassOperator implements GridOperator{
@@ -43,12 +52,39 @@ public class GridGaussLowPassOperator implements GridOperator{
      */
     private int relativeFilterSize = 8;
 
+    /**
+     * The recursive filter is used for standard deviations equal to or larger
+     * than this value.
+     */
+    private double minRecursiveStandardDeviation = 6;
+
     /**
      * Applies horizontal Gaussian convolution and stores results in a
      * transposed grid.
      */
     private class HorizontalTransposedConvolution extends ThreadedGridOperator {
 
+        /**
+         * If true, the recursive filter is applied.
+         */
+        private final boolean recursive = std >= minRecursiveStandardDeviation;
+
+        /**
+         * Coefficients of the recursive filter.
+         */
+        private final double[] recursiveCoef = recursive ? recursiveCoefficients() : null;
+
+        /**
+         * Response of the recursive filter to a row of ones, used to normalize
+         * the border. One value per column of the source grid.
+         */
+        private double[] recursiveNorm;
+
+        /**
+         * Buffer for the recursive filter, one per thread.
+         */
+        private final ThreadLocal<double[]> recursiveBuffer = new ThreadLocal<double[]>();
+
         /**
          * Create a transposed grid
          * @param srcGrid
@@ -68,6 +104,14 @@ public class GridGaussLowPassOperator implements GridOperator{
             return tempTransposedGrid;
         }
 
+        /**
+         * Rows of the source are written to columns of the destination.
+         */
+        @Override
+        protected boolean isRowLocal() {
+            return false;
+        }
+
         private boolean isTemporaryTransposedGridValid(GeoGrid srcGrid) {
             return tempTransposedGrid != null
                     && srcGrid.getCols() == tempTransposedGrid.getRows()
@@ -79,58 +123,148 @@ public class GridGaussLowPassOperator implements GridOperator{
             if (src.getCols() != dst.getRows() || src.getRows() != dst.getCols()) {
                 throw new IllegalStateException("destination grid has wrong size");
             }
+            if (recursive) {
+                final int ncols = src.getCols();
+                if (recursiveNorm == null || recursiveNorm.length != ncols) {
+                    float[] ones = new float[ncols];
+                    java.util.Arrays.fill(ones, 1f);
+                    recursiveNorm = new double[ncols];
+                    recursiveFilter(ones, recursiveNorm, new double[ncols + recursivePadding()]);
+                }
+            }
             return super.operate(src, dst);
         }
 
         @Override
         public void operate(GeoGrid src, GeoGrid dst, int startRow, int endRow) {
-
-            final int ncols = src.getCols();
-            final int halfFilterSize = kernelSize() / 2;
-            final float[] kernel = kernel();
-
+            final float[][] dstGrid = dst.getGrid();
+            final float[][] srcGrid = src.getGrid();
+            float[] kernel = null;
             for (int row = startRow; row < endRow; row++) {
-                final float[][] dstGrid = dst.getGrid();
-                final float[] srcRow = src.getGrid()[row];
-
-                // convolve left border area
-                final int maxCol = Math.min(halfFilterSize, ncols);
-                for (int col = 0; col < maxCol; col++) {
-                    float sum = 0;
-                    float coefSum = 0;
-                    for (int f = -col; f <= halfFilterSize; f++) {
-                        if (col + f < ncols) {
-                            final float s = kernel[f + halfFilterSize];
-                            sum += srcRow[col + f] * s;
-                            coefSum += s;
-                        }
+                final float[] srcRow = srcGrid[row];
+                if (recursive && !hasVoid(srcRow)) {
+                    recursiveRow(srcRow, dstGrid, row);
+                } else {
+                    if (kernel == null) {
+                        kernel = kernel();
                     }
-                    dstGrid[col][row] = sum / coefSum; // transposed destination
+                    convolveRow(srcRow, dstGrid, row, kernel);
+                }
+            }
+        }
+
+        private boolean hasVoid(float[] row) {
+            for (int i = 0; i < row.length; i++) {
+                if (Float.isNaN(row[i])) {
+                    return true;
                 }
+            }
+            return false;
+        }
 
-                // convolve center area
-                for (int col = halfFilterSize; col < ncols - halfFilterSize; col++) {
-                    float sum = 0;
-                    for (int c = col - halfFilterSize, f = 0; c <= col + halfFilterSize; c++, f++) {
-                        sum += srcRow[c] * kernel[f];
+        /**
+         * Applies the recursive filter to a row and stores the result in a
+         * column of the transposed destination.
+         */
+        private void recursiveRow(float[] srcRow, float[][] dstGrid, int row) {
+            final int ncols = srcRow.length;
+            double[] buffer = recursiveBuffer.get();
+            if (buffer == null || buffer.length != ncols + recursivePadding()) {
+                buffer = new double[ncols + recursivePadding()];
+                recursiveBuffer.set(buffer);
+            }
+            recursiveFilter(srcRow, buffer, buffer);
+            for (int col = 0; col < ncols; col++) {
+                dstGrid[col][row] = (float) (buffer[col] / recursiveNorm[col]); // transposed destination
+            }
+        }
+
+        /**
+         * Applies the causal and the anti-causal recursive filter to a row.
+         * Cells outside the row are 0. The causal filter continues into the
+         * padding after the row, where the anti-causal filter starts.
+         * @param src The source row.
+         * @param dst Receives the filtered row. Can be the buffer.
+         * @param buffer A buffer with at least src.length + recursivePadding()
+         * values.
+         */
+        private void recursiveFilter(float[] src, double[] dst, double[] buffer) {
+            final int n = src.length;
+            final int length = n + recursivePadding();
+            final double b = recursiveCoef[0];
+            final double b1 = recursiveCoef[1];
+            final double b2 = recursiveCoef[2];
+            final double b3 = recursiveCoef[3];
+
+            // causal filter
+            double w1 = 0, w2 = 0, w3 = 0;
+            for (int i = 0; i < length; i++) {
+                final double x = i < n ? src[i] : 0;
+                final double w = b * x + b1 * w1 + b2 * w2 + b3 * w3;
+                buffer[i] = w;
+                w3 = w2;
+                w2 = w1;
+                w1 = w;
+            }
+
+            // anti-causal filter
+            double y1 = 0, y2 = 0, y3 = 0;
+            for (int i = length - 1; i >= 0; i--) {
+                final double y = b * buffer[i] + b1 * y1 + b2 * y2 + b3 * y3;
+                if (i < n) {
+                    dst[i] = y;
+                }
+                y3 = y2;
+                y2 = y1;
+                y1 = y;
+            }
+        }
+
+        /**
+         * Convolves a row and stores the result in a column of the transposed
+         * destination.
+         */
+        private void convolveRow(float[] srcRow, float[][] dstGrid, int row, float[] kernel) {
+            final int ncols = srcRow.length;
+            final int halfFilterSize = kernel.length / 2;
+
+            // convolve left border area
+            final int maxCol = Math.min(halfFilterSize, ncols);
+            for (int col = 0; col < maxCol; col++) {
+                float sum = 0;
+                float coefSum = 0;
+                for (int f = -col; f <= halfFilterSize; f++) {
+                    if (col + f < ncols) {
+                        final float s = kernel[f + halfFilterSize];
+                        sum += srcRow[col + f] * s;
+                        coefSum += s;
                     }
-                    dstGrid[col][row] = sum; // transposed destination
                 }
+                dstGrid[col][row] = sum / coefSum; // transposed destination
+            }
 
-                // convolve right border area
-                final int minCol = Math.max(0, ncols - halfFilterSize);
-                for (int col = minCol; col < ncols; col++) {
-                    float sum = 0;
-                    float coefSum = 0;
-                    for (int f = -halfFilterSize; f < ncols - col; f++) {
-                        if (col + f >= 0) {
-                            final float s = kernel[f + halfFilterSize];
-                            sum += srcRow[col + f] * s;
-                            coefSum += s;
-                        }
+            // convolve center area
+            for (int col = halfFilterSize; col < ncols - halfFilterSize; col++) {
+                float sum = 0;
+                for (int c = col - halfFilterSize, f = 0; c <= col + halfFilterSize; c++, f++) {
+                    sum += srcRow[c] * kernel[f];
+                }
+                dstGrid[col][row] = sum; // transposed destination
+            }
+
+            // convolve right border area
+            final int minCol = Math.max(0, ncols - halfFilterSize);
+            for (int col = minCol; col < ncols; col++) {
+                float sum = 0;
+                float coefSum = 0;
+                for (int f = -halfFilterSize; f < ncols - col; f++) {
+                    if (col + f >= 0) {
+                        final float s = kernel[f + halfFilterSize];
+                        sum += srcRow[col + f] * s;
+                        coefSum += s;
                     }
-                    dstGrid[col][row] = sum / coefSum; // transposed destination
                 }
+                dstGrid[col][row] = sum / coefSum; // transposed destination
             }
         }
 
@@ -201,6 +335,37 @@ public class GridGaussLowPassOperator implements GridOperator{
         return coef;
     }
 
+    /**
+     * Computes the coefficients of the recursive filter after Young and
+     * van Vliet (1995).
+     * @return The normalization factor B and the feedback coefficients
+     * b1 / b0, b2 / b0 and b3 / b0.
+     */
+    private double[] recursiveCoefficients() {
+        final double q;
+        if (std >= 2.5) {
+            q = 0.98711 * std - 0.96330;
+        } else {
+            q = 3.97156 - 4.14554 * Math.sqrt(1 - 0.26891 * std);
+        }
+        final double q2 = q * q;
+        final double q3 = q2 * q;
+        final double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+        final double b1 = 2.44413 * q + 2.85619 * q2 + 1.26661 * q3;
+        final double b2 = -(1.4281 * q2 + 1.26661 * q3);
+        final double b3 = 0.422205 * q3;
+        return new double[]{1 - (b1 + b2 + b3) / b0, b1 / b0, b2 / b0, b3 / b0};
+    }
+
+    /**
+     * Returns the number of cells after the end of a row that are filtered
+     * by the causal recursive filter. Uses the extent of the convolution
+     * kernel.
+     */
+    private int recursivePadding() {
+        return kernelSize();
+    }
+
     public GeoGrid operate(GeoGrid grid) {
         GeoGrid dst = new GeoGrid(grid.getCols(), grid.getRows(), grid.getCellSize());
         return operate(grid, dst);
@@ -251,6 +416,29 @@ public class GridGaussLowPassOperator implements GridOperator{
         this.std = std;
     }
     
+    /**
+     * Returns the smallest standard deviation for which the recursive filter
+     * is used instead of the convolution.
+     * @return The standard deviation.
+     */
+    public double getMinRecursiveStandardDeviation() {
+        return minRecursiveStandardDeviation;
+    }
+
+    /**
+     * Sets the smallest standard deviation for which the recursive filter is
+     * used instead of the convolution. The recursive filter is an
+     * approximation of the Gaussian, and is less accurate for small standard
+     * deviations. Double.POSITIVE_INFINITY disables the recursive filter.
+     * @param minRecursiveStandardDeviation The standard deviation, at least 0.5.
+     */
+    public void setMinRecursiveStandardDeviation(double minRecursiveStandardDeviation) {
+        if (!(minRecursiveStandardDeviation >= 0.5)) {
+            throw new IllegalArgumentException("standard deviation too small for recursive filter");
+        }
+        this.minRecursiveStandardDeviation = minRecursiveStandardDeviation;
+    }
+
     /**
      * Get the size of the kernel, relative to the standard deviation. The 
      * kernel size in pixels in one dimension is relativeFilterSize * std
@@ -27,20 +27,22 @@ public class GridInvalidateOperator implements GridOperator{
         
         final int nrows = geoGrid.getRows();
         final int ncols = geoGrid.getCols();
-        GeoGrid newGrid = new GeoGrid(ncols, nrows, geoGrid.getCellSize());
+        GeoGrid newGrid = ThreadedGridOperator.createGrid(geoGrid, ncols, nrows);
         newGrid.setWest(geoGrid.getWest());
         newGrid.setNorth(geoGrid.getNorth());
         newGrid.setName(geoGrid.getName());
         
-        float[][] srcGrid = geoGrid.getGrid();
-        float[][] dstGrid = newGrid.getGrid();
+        // buffers for rows of grids not stored in Java arrays
+        float[] srcBuffer = geoGrid.isArrayBacked() ? null : new float[ncols];
+        float[] dstBuffer = newGrid.isArrayBacked() ? null : new float[ncols];
         
         for (int row = 0; row < nrows; ++row) {
-            float[] srcRow = srcGrid[row];
-            float[] dstRow = dstGrid[row];
+            float[] srcRow = geoGrid.getRow(row, srcBuffer);
+            float[] dstRow = dstBuffer == null ? newGrid.getRow(row, null) : dstBuffer;
             for (int col = 0; col < ncols; ++col) {
                 dstRow[col] = (srcRow[col] == v) ? Float.NaN : srcRow[col];
             }
+            newGrid.setRow(row, dstRow);
         }
         return newGrid;
     }
@@ -32,19 +32,21 @@ public class GridInvertOperator implements GridOperator {
         
         final int ncols = geoGrid.getCols();
         final int nrows = geoGrid.getRows();
-        GeoGrid newGrid = new GeoGrid(ncols, nrows, geoGrid.getCellSize());
+        GeoGrid newGrid = ThreadedGridOperator.createGrid(geoGrid, ncols, nrows);
         newGrid.setWest(geoGrid.getWest());
         newGrid.setNorth(geoGrid.getNorth());
         
-        float[][] srcGrid = geoGrid.getGrid();
-        float[][] dstGrid = newGrid.getGrid();
+        // buffers for rows of grids not stored in Java arrays
+        float[] srcBuffer = geoGrid.isArrayBacked() ? null : new float[ncols];
+        float[] dstBuffer = newGrid.isArrayBacked() ? null : new float[ncols];
         
         for (int row = 0; row < nrows; row++) {
-            float[] srcRow = srcGrid[row];
-            float[] dstRow = dstGrid[row];
+            float[] srcRow = geoGrid.getRow(row, srcBuffer);
+            float[] dstRow = dstBuffer == null ? newGrid.getRow(row, null) : dstBuffer;
             for (int col = 0; col < ncols; ++col) {
                 dstRow[col] = -srcRow[col] + minPlusMax;
             }
+            newGrid.setRow(row, dstRow);
         }
         return newGrid;
     }
@@ -13,7 +13,7 @@ import ika.geo.*;
  *
  * @author jenny
  */
-public class GridLaplaceOperator implements GridOperator{
+public class GridLaplaceOperator extends NeighborhoodGridOperator {
     
     /** Creates a new instance of GridLaplaceOperator */
     public GridLaplaceOperator() {
@@ -23,41 +23,34 @@ public class GridLaplaceOperator implements GridOperator{
         return "Laplace";
     }
     
-    public GeoObject operate(GeoGrid geoGrid) {
-        if (geoGrid == null) {
-            throw new IllegalArgumentException();
-        }
-        
-        final int newCols = geoGrid.getCols() - 2;
-        final int newRows = geoGrid.getRows() - 2;
-        final double meshSize = geoGrid.getCellSize();
-        GeoGrid newGrid = new GeoGrid(newCols, newRows, meshSize);
-        newGrid.setWest(geoGrid.getWest() + meshSize);
-        newGrid.setNorth(geoGrid.getNorth() + meshSize);
-        
-        float[][] srcGrid = geoGrid.getGrid();
-        float[][] dstGrid = newGrid.getGrid();
-        final int srcRows = geoGrid.getRows();
-        final int srcCols = geoGrid.getCols();
-        
-        for (int row = 1; row < srcRows - 1; row++) {
-            for (int col = 1; col < srcCols - 1; col++) {
-                /*
-                | 0  1  0 |
-                | 1 -4  1 |
-                | 0  1  0 |
-                 */
-                final float center = srcGrid[row][col];
-                final float top = srcGrid[row-1][col];
-                final float left = srcGrid[row][col-1];
-                final float right = srcGrid[row][col+1];
-                final float bottom = srcGrid[row+1][col];
-                
-                final float val = top + left - 4f * center + right + bottom;
-                dstGrid[row-1][col-1] = val;
-            }
+    @Override
+    protected int getHalo() {
+        return 1;
+    }
+
+    @Override
+    protected BorderMode getBorderMode() {
+        return BorderMode.CROP;
+    }
+
+    @Override
+    protected void operateRow(float[][] rows, float[] dstRow, int dstOffset,
+            int nCols, double cellSize) {
+        final float[] above = rows[0];
+        final float[] center = rows[1];
+        final float[] below = rows[2];
+        for (int col = 0; col < nCols; col++) {
+            /*
+            | 0  1  0 |
+            | 1 -4  1 |
+            | 0  1  0 |
+             */
+            final float top = above[col + 1];
+            final float left = center[col];
+            final float right = center[col + 2];
+            final float bottom = below[col + 1];
+            final float val = top + left - 4f * center[col + 1] + right + bottom;
+            dstRow[dstOffset + col] = val;
         }
-        
-        return newGrid;
     }
 }
@@ -35,24 +35,26 @@ public class GridLimitMinimumOperator implements GridOperator{
         newGrid.setWest(geoGrid.getWest());
         newGrid.setNorth(geoGrid.getNorth());
         
-        float[][] srcGrid = geoGrid.getGrid();
-        float[][] dstGrid = newGrid.getGrid();
+        // buffers for rows of grids not stored in Java arrays
+        float[] srcBuffer = geoGrid.isArrayBacked() ? null : new float[ncols];
+        float[] dstBuffer = newGrid.isArrayBacked() ? null : new float[ncols];
 
         for (int row = 0; row < nrows; ++row) {
-            final float[] srcRow = srcGrid[row];
-            final float[] dstRow = dstGrid[row];
+            final float[] srcRow = geoGrid.getRow(row, srcBuffer);
+            final float[] dstRow = dstBuffer == null ? newGrid.getRow(row, null) : dstBuffer;
             for (int col = 0; col < ncols; ++col) {
                 final float v = srcRow[col];
                 dstRow[col] = srcRow[col] < limit ? replacementValue : v;
             }
+            newGrid.setRow(row, dstRow);
         }
+        newGrid.invalidateStatistics();
     }
     
     public GeoGrid operate(GeoGrid geoGrid) {
         final int nrows = geoGrid.getRows();
         final int ncols = geoGrid.getCols();
-        final double meshSize = geoGrid.getCellSize();
-        GeoGrid newGrid = new GeoGrid(ncols, nrows, meshSize);
+        GeoGrid newGrid = ThreadedGridOperator.createGrid(geoGrid, ncols, nrows);
         this.operate(geoGrid, newGrid);
         return newGrid;
     }
@@ -29,4 +29,8 @@ public class GridLowerQuartileOperator extends GridPercentileFilterOperator {
         return ika.utils.Median.lowerQuartile(values);
     }
 
+    @Override
+    protected final int rank(int valuesCount) {
+        return valuesCount / 4;
+    }
 }
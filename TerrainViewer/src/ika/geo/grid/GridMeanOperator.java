@@ -9,10 +9,16 @@ package ika.geo.grid;
 import ika.geo.*;
 
 /**
- *
+ * Computes the mean of the valid values in a square window around each cell.
+ * Void cells and cells outside the grid are not included in the mean, so a
+ * void cell does not void its neighbors. A cell is void if its window does
+ * not contain any valid value.
+ * Grids stored in Java arrays are filtered with a summed-area table, so the
+ * cost per cell does not depend on the filter size. Other grids are filtered
+ * row by row.
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich.
  */
-public class GridMeanOperator implements GridOperator {
+public class GridMeanOperator extends NeighborhoodGridOperator {
     /*
     public static void main(String[] args) {
         try {
@@ -47,79 +53,88 @@ public class GridMeanOperator implements GridOperator {
         return "Mean";
     }
 
-    public GeoGrid operate(GeoGrid geoGrid) {
-        if (geoGrid == null) {
-            throw new IllegalArgumentException();
-        }
-        
-        // make sure filterSize is odd number
-        if (filterSize % 2 != 1) {
-            return null;
-        }
-        final int halfFilterSize = this.filterSize / 2;
-
-        // create the new GeoGrid
-        final int rows = geoGrid.getRows();
-        final int cols = geoGrid.getCols();
-        final double meshSize = geoGrid.getCellSize();
-        GeoGrid newGrid = new GeoGrid(cols, rows, meshSize);
-        newGrid.setWest(geoGrid.getWest());
-        newGrid.setNorth(geoGrid.getNorth());
-
-        float[][] srcGrid = geoGrid.getGrid();
-        float[][] dstGrid = newGrid.getGrid();
+    @Override
+    protected int getHalo() {
+        return filterSize / 2;
+    }
 
-        // top rows
-        for (int row = 0; row < halfFilterSize; row++) {
-            for (int col = 0; col < cols; col++) {
-                this.operateBorder(geoGrid, newGrid, col, row);
-            }
-        }
-        // bottom rows
-        for (int row = rows - halfFilterSize; row < rows; row++) {
-            for (int col = 0; col < cols; col++) {
-                this.operateBorder(geoGrid, newGrid, col, row);
-            }
-        }
-        // left columns
-        for (int col = 0; col < halfFilterSize; col++) {
-            for (int row = halfFilterSize; row < rows - halfFilterSize; row++) {
-                this.operateBorder(geoGrid, newGrid, col, row);
-            }
-        }
-        // right columns
-        for (int col = cols - halfFilterSize; col < cols; col++) {
-            for (int row = halfFilterSize; row < rows - halfFilterSize; row++) {
-                this.operateBorder(geoGrid, newGrid, col, row);
-            }
-        }
+    /**
+     * Cells outside the grid are void and are not included in the mean.
+     */
+    @Override
+    protected BorderMode getBorderMode() {
+        return BorderMode.VOID;
+    }
 
-        // interior of grid
-        final float npts = this.filterSize * this.filterSize;
-        for (int row = halfFilterSize; row < rows - halfFilterSize; row++) {
-            float[] dstRow = dstGrid[row];
-            for (int col = halfFilterSize; col < cols - halfFilterSize; col++) {
-                float tot = 0;
-                for (int r = row - halfFilterSize; r <= row + halfFilterSize; r++) {
-                    float[] srcRow = srcGrid[r];
-                    for (int c = col - halfFilterSize; c <= col + halfFilterSize; c++) {
-                        tot += srcRow[c];
+    /**
+     * Computes the mean of all valid values in the neighborhood.
+     */
+    @Override
+    protected void operateRow(float[][] rows, float[] dstRow, int dstOffset,
+            int nCols, double cellSize) {
+        for (int col = 0; col < nCols; col++) {
+            float tot = 0;
+            int npts = 0;
+            for (int r = 0; r < filterSize; r++) {
+                final float[] srcRow = rows[r];
+                for (int c = col; c < col + filterSize; c++) {
+                    final float v = srcRow[c];
+                    if (!Float.isNaN(v)) {
+                        tot += v;
+                        ++npts;
                     }
                 }
-                dstRow[col] = tot / npts;
             }
+            dstRow[dstOffset + col] = npts == 0 ? Float.NaN : tot / npts;
+        }
+    }
+
+    @Override
+    public GeoGrid operate(GeoGrid src, GeoGrid dst) {
+        if (!isSummedAreaTableSupported(src, dst)) {
+            return super.operate(src, dst);
         }
-        return newGrid;
+        SummedAreaTable table = new SummedAreaTable(src.getCols(), src.getRows(), getExecutor());
+        table.build(src.getGrid());
+        table.mean(dst.getGrid(), getHalo());
+        dst.invalidateStatistics();
+        return dst;
     }
 
+    /**
+     * Applies the filter repeatedly. For grids stored in Java arrays, the
+     * summed-area table and the destination grid are alternately read and
+     * written, and no grid is allocated per pass.
+     * @param geoGrid The source grid, which is not changed.
+     * @param loops The number of passes.
+     * @return A new grid.
+     */
     public GeoGrid operate(GeoGrid geoGrid, int loops) {
         if (loops <= 0) {
             return geoGrid.clone();
         }
+        GeoGrid dst = initDestinationGrid(geoGrid);
+        if (!isSummedAreaTableSupported(geoGrid, dst)) {
+            for (int i = 0; i < loops; i++) {
+                geoGrid = this.operate(geoGrid);
+            }
+            return geoGrid;
+        }
+        SummedAreaTable table = new SummedAreaTable(dst.getCols(), dst.getRows(), getExecutor());
+        float[][] src = geoGrid.getGrid();
         for (int i = 0; i < loops; i++) {
-            geoGrid = this.operate(geoGrid);
+            table.build(src);
+            src = dst.getGrid();
+            table.mean(src, getHalo());
         }
-        return geoGrid;
+        return dst;
+    }
+
+    private static boolean isSummedAreaTableSupported(GeoGrid src, GeoGrid dst) {
+        return src != null && dst != null && src.isWellFormed() && dst.isWellFormed()
+                && src.isArrayBacked() && dst.isArrayBacked()
+                && src.getCols() == dst.getCols() && src.getRows() == dst.getRows()
+                && src.getGrid() != dst.getGrid();
     }
 
     public int getFilterSize() {
@@ -132,31 +147,4 @@ public class GridMeanOperator implements GridOperator {
         }
         this.filterSize = filterSize;
     }
-
-    private void operateBorder(GeoGrid src, GeoGrid dst, int col, int row) {
-
-        final int halfFilterSize = filterSize / 2;
-
-        float[][] srcGrid = src.getGrid();
-        float[][] dstGrid = dst.getGrid();
-
-        final int cols = src.getCols();
-        final int rows = src.getRows();
-
-        int npts = 0;
-        float tot = 0;
-        for (int r = row - halfFilterSize; r <= row + halfFilterSize; r++) {
-            if (r > 0 && r < rows) {
-                float[] srcRow = srcGrid[r];
-                for (int c = col - halfFilterSize; c <= col + halfFilterSize; c++) {
-                    if (c > 0 && c < cols) {
-                        tot += srcRow[c];
-                        ++npts;
-                    }
-                }
-            }
-        }
-        dstGrid[row][col] = tot / npts;
-
-    }
 }
@@ -30,5 +30,9 @@ public class GridMedianOperator extends GridPercentileFilterOperator{
     protected final float percentile(float[] values) {
         return ika.utils.Median.median(values, false);
     }
-    
+
+    @Override
+    protected final int rank(int valuesCount) {
+        return (valuesCount % 2 == 0) ? valuesCount / 2 - 1 : valuesCount / 2;
+    }
 }
@@ -55,21 +55,23 @@ public class GridMultiplyOperator implements GridOperator{
         
         final int nrows = grid1.getRows();
         final int ncols = grid1.getCols();
-        GeoGrid newGrid = new GeoGrid(ncols, nrows, grid1.getCellSize());
+        GeoGrid newGrid = ThreadedGridOperator.createGrid(grid1, ncols, nrows);
         newGrid.setWest(grid1.getWest());
         newGrid.setNorth(grid1.getNorth());
         
-        float[][] src1 = grid1.getGrid();
-        float[][] src2 = grid2.getGrid();
-        float[][] dstGrid = newGrid.getGrid();
+        // buffers for rows of grids not stored in Java arrays
+        float[] buffer1 = grid1.isArrayBacked() ? null : new float[ncols];
+        float[] buffer2 = grid2.isArrayBacked() ? null : new float[ncols];
+        float[] dstBuffer = newGrid.isArrayBacked() ? null : new float[ncols];
         
         for (int row = 0; row < nrows; ++row) {
-            float[] srcRow1 = src1[row];
-            float[] srcRow2 = src2[row];
-            float[] dstRow = dstGrid[row];
+            float[] srcRow1 = grid1.getRow(row, buffer1);
+            float[] srcRow2 = grid2.getRow(row, buffer2);
+            float[] dstRow = dstBuffer == null ? newGrid.getRow(row, null) : dstBuffer;
             for (int col = 0; col < ncols; ++col) {
                 dstRow[col] = srcRow1[col] * srcRow2[col];
             }
+            newGrid.setRow(row, dstRow);
         }
         return newGrid;
         
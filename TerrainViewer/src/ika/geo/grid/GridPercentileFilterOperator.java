@@ -1,14 +1,26 @@
 package ika.geo.grid;
 
 import ika.geo.GeoGrid;
+import java.util.Arrays;
 
 /**
  * Abstract base class for non-linear percentile filters, such as median, upper
  * and lower quartile.
+ * Small filters select the percentile from a copy of the filter window.
+ * Larger filters use a sliding histogram of ranks (SlidingRankFilter), which
+ * has a cost per cell proportional to the filter size instead of the
+ * filter area. Both return exact values. Bands of rows are filtered in
+ * parallel. Void (NaN) cells are not counted in the filter window, and void
+ * cells remain void.
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich. 3 October 2008.
  */
 public abstract class GridPercentileFilterOperator implements GridOperator {
 
+    /**
+     * Filters up to this size select percentiles from the filter window.
+     */
+    private static final int MAX_SELECTION_FILTER_SIZE = 7;
+
     protected int filterSize = 3;
 
     public GridPercentileFilterOperator() {
@@ -19,11 +31,21 @@ public abstract class GridPercentileFilterOperator implements GridOperator {
     }
 
     protected abstract float percentile(float[] values);
+
+    /**
+     * Returns the rank of the value selected by percentile().
+     * @param valuesCount The number of values.
+     * @return The rank of the value, starting with 0.
+     */
+    protected abstract int rank(int valuesCount);
     
     public GeoGrid operate(GeoGrid geoGrid) {
         if (geoGrid == null) {
             throw new IllegalArgumentException();        
         }
+        if (!geoGrid.isArrayBacked()) {
+            throw new UnsupportedOperationException(getName() + ": grid must be stored in an array");
+        }
         
         // make sure filterSize is odd number
         if (filterSize % 2 != 1) {
@@ -39,22 +61,60 @@ public abstract class GridPercentileFilterOperator implements GridOperator {
         newGrid.setWest(geoGrid.getWest());
         newGrid.setNorth(geoGrid.getNorth());
 
-        float[][] srcGrid = geoGrid.getGrid();
-        float[][] dstGrid = newGrid.getGrid();
+        final float[][] srcGrid = geoGrid.getGrid();
+        final float[][] dstGrid = newGrid.getGrid();
+
+        // filter large windows with a sliding histogram, including the border
+        if (filterSize > MAX_SELECTION_FILTER_SIZE
+                && SlidingRankFilter.canFilter(ncols, nrows, filterSize)) {
+            final int[] k = new int[filterSize * filterSize + 1];
+            for (int n = 1; n < k.length; n++) {
+                k[n] = rank(n);
+            }
+            final int bandRows = SlidingRankFilter.BAND_ROWS;
+            final int nBands = (nrows + bandRows - 1) / bandRows;
+            GridExecutor.getDefault().execute(getName(), nBands, new GridExecutor.RowTask() {
+
+                public void run(int startBand, int endBand) {
+                    SlidingRankFilter filter = new SlidingRankFilter(srcGrid, filterSize);
+                    for (int b = startBand; b < endBand; b++) {
+                        filter.kthSmallest(dstGrid, k, b * bandRows,
+                                Math.min(nrows, (b + 1) * bandRows));
+                    }
+                }
+            });
+            return newGrid;
+        }
 
         // filter interior of grid
-        float[] values = new float[this.filterSize * this.filterSize];
-        for (int row = halfFilterSize; row < nrows - halfFilterSize; row++) {
-            final float[] dstRow = dstGrid[row];
-            for (int col = halfFilterSize; col < ncols - halfFilterSize; col++) {
-                for (int r = 0; r < filterSize; r++) {
-                    System.arraycopy(srcGrid[r + row - halfFilterSize],
-                            col - halfFilterSize,
-                            values, r * filterSize, filterSize);
+        GridExecutor.getDefault().execute(getName(), nrows, new GridExecutor.RowTask() {
+
+            public void run(int startRow, int endRow) {
+                float[] values = new float[filterSize * filterSize];
+                startRow = Math.max(startRow, halfFilterSize);
+                endRow = Math.min(endRow, nrows - halfFilterSize);
+                for (int row = startRow; row < endRow; row++) {
+                    final float[] dstRow = dstGrid[row];
+                    for (int col = halfFilterSize; col < ncols - halfFilterSize; col++) {
+                        if (Float.isNaN(srcGrid[row][col])) {
+                            dstRow[col] = Float.NaN;
+                            continue;
+                        }
+                        int n = 0;
+                        for (int r = row - halfFilterSize; r <= row + halfFilterSize; r++) {
+                            final float[] srcRow = srcGrid[r];
+                            for (int c = col - halfFilterSize; c <= col + halfFilterSize; c++) {
+                                final float v = srcRow[c];
+                                if (!Float.isNaN(v)) {
+                                    values[n++] = v;
+                                }
+                            }
+                        }
+                        dstRow[col] = percentile(values, n);
+                    }
                 }
-                dstRow[col] = this.percentile(values);
             }
-        }
+        });
 
         // filter border of grid
         this.operateBorder(geoGrid, newGrid);
@@ -101,15 +161,30 @@ public abstract class GridPercentileFilterOperator implements GridOperator {
         float[] values = new float[this.filterSize * this.filterSize];
         final int cols = src.getCols();
         final int rows = src.getRows();
+        if (Float.isNaN(src.getValue(col, row))) {
+            dst.setValue(Float.NaN, col, row);
+            return;
+        }
         int counter = 0;
         for (int r = -halfFilterSize + row; r <= halfFilterSize + row; r++) {
             final int gridRow = r < 0 ? -r : (r >= rows ? 2 * rows - 2 - r : r);
             for (int c = -halfFilterSize + col; c <= halfFilterSize + col; c++) {
                 final int gridCol = c < 0 ? -c : (c >= cols ? 2 * cols - 2 - c : c);
-                values[counter++] = src.getValue(gridCol, gridRow);
+                final float v = src.getValue(gridCol, gridRow);
+                if (!Float.isNaN(v)) {
+                    values[counter++] = v;
+                }
             }
         }
-        dst.setValue(this.percentile(values), col, row);
+        dst.setValue(this.percentile(values, counter), col, row);
+    }
+
+    /**
+     * Returns the percentile of the first n values. The order of the values
+     * is changed.
+     */
+    private float percentile(float[] values, int n) {
+        return percentile(n == values.length ? values : Arrays.copyOf(values, n));
     }
 
     public int getFilterSize() {
@@ -3,11 +3,19 @@ package ika.geo.grid;
 import ika.geo.GeoGrid;
 
 /**
- * 
+ * Computes for each cell the fraction of cells in the filter window with a
+ * smaller value. Large filters use a sliding histogram of ranks
+ * (SlidingRankFilter). Bands of rows are filtered in parallel. Void (NaN)
+ * cells are not counted in the filter window, and void cells remain void.
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich.
  */
 public class GridPercentileOperator implements GridOperator {
 
+    /**
+     * Filters up to this size count values in the filter window.
+     */
+    private static final int MAX_COUNTING_FILTER_SIZE = 15;
+
     private int filterSize;
 
     public GridPercentileOperator() {
@@ -25,13 +33,15 @@ public class GridPercentileOperator implements GridOperator {
         if (geoGrid == null) {
             throw new IllegalArgumentException();
         }
+        if (!geoGrid.isArrayBacked()) {
+            throw new UnsupportedOperationException(getName() + ": grid must be stored in an array");
+        }
 
         // make sure filterSize is odd number
         if (filterSize % 2 != 1) {
             return null;
         }
         final int halfFilterSize = this.filterSize / 2;
-        final float scale = 1f / (this.filterSize * this.filterSize - 1);
 
         // create the new grid
         final int nrows = geoGrid.getRows();
@@ -41,27 +51,56 @@ public class GridPercentileOperator implements GridOperator {
         newGrid.setWest(geoGrid.getWest());
         newGrid.setNorth(geoGrid.getNorth());
 
-        float[][] srcGrid = geoGrid.getGrid();
-        float[][] dstGrid = newGrid.getGrid();
+        final float[][] srcGrid = geoGrid.getGrid();
+        final float[][] dstGrid = newGrid.getGrid();
+
+        // filter large windows with a sliding histogram, including the border
+        if (filterSize > MAX_COUNTING_FILTER_SIZE
+                && SlidingRankFilter.canFilter(ncols, nrows, filterSize)) {
+            final int bandRows = SlidingRankFilter.BAND_ROWS;
+            final int nBands = (nrows + bandRows - 1) / bandRows;
+            GridExecutor.getDefault().execute(getName(), nBands, new GridExecutor.RowTask() {
+
+                public void run(int startBand, int endBand) {
+                    SlidingRankFilter filter = new SlidingRankFilter(srcGrid, filterSize);
+                    for (int b = startBand; b < endBand; b++) {
+                        filter.percentRank(dstGrid, b * bandRows,
+                                Math.min(nrows, (b + 1) * bandRows));
+                    }
+                }
+            });
+            return newGrid;
+        }
 
         // filter interior of grid
-        for (int row = halfFilterSize; row < nrows - halfFilterSize; row++) {
-            final float[] dstRow = dstGrid[row];
-            for (int col = halfFilterSize; col < ncols - halfFilterSize; col++) {
-                int nbrSmaller = 0;
-                final float centralCell = srcGrid[row][col];
-                for (int r = -halfFilterSize; r <= halfFilterSize; r++) {
-
-                    for (int c = -halfFilterSize; c <= halfFilterSize; c++) {
-                        final float v = srcGrid[row + r][col + c];
-                        if (v < centralCell) {
-                            ++nbrSmaller;
+        GridExecutor.getDefault().execute(getName(), nrows, new GridExecutor.RowTask() {
+
+            public void run(int startRow, int endRow) {
+                startRow = Math.max(startRow, halfFilterSize);
+                endRow = Math.min(endRow, nrows - halfFilterSize);
+                for (int row = startRow; row < endRow; row++) {
+                    final float[] dstRow = dstGrid[row];
+                    for (int col = halfFilterSize; col < ncols - halfFilterSize; col++) {
+                        int nbrSmaller = 0;
+                        int nbrValid = 0;
+                        final float centralCell = srcGrid[row][col];
+                        for (int r = -halfFilterSize; r <= halfFilterSize; r++) {
+
+                            for (int c = -halfFilterSize; c <= halfFilterSize; c++) {
+                                final float v = srcGrid[row + r][col + c];
+                                if (v < centralCell) {
+                                    ++nbrSmaller;
+                                }
+                                if (!Float.isNaN(v)) {
+                                    ++nbrValid;
+                                }
+                            }
                         }
+                        dstRow[col] = percentRank(centralCell, nbrSmaller, nbrValid);
                     }
                 }
-                dstRow[col] = nbrSmaller * scale;
             }
-        }
+        });
 
         // filter border of grid
         this.operateBorder(geoGrid, newGrid);
@@ -105,13 +144,13 @@ public class GridPercentileOperator implements GridOperator {
 
     private void operateBorder(GeoGrid src, GeoGrid dst, int col, int row) {
         final int halfFilterSize = this.filterSize / 2;
-        final float scale = 1f / (this.filterSize * this.filterSize - 1);
 
         final int cols = src.getCols();
         final int rows = src.getRows();
         float[][] srcGrid = src.getGrid();
 
         int nbrSmaller = 0;
+        int nbrValid = 0;
         final float centralCell = srcGrid[row][col];
 
         for (int r = -halfFilterSize + row; r <= halfFilterSize + row; r++) {
@@ -123,9 +162,28 @@ public class GridPercentileOperator implements GridOperator {
                 if (v < centralCell) {
                     ++nbrSmaller;
                 }
+                if (!Float.isNaN(v)) {
+                    ++nbrValid;
+                }
             }
         }
-        dst.setValue(nbrSmaller * scale, col, row);
+        dst.setValue(percentRank(centralCell, nbrSmaller, nbrValid), col, row);
+    }
+
+    /**
+     * Returns the fraction of the other valid cells in the filter window
+     * that are smaller than the central cell.
+     * @param centralCell The value of the central cell.
+     * @param nbrSmaller The number of cells smaller than the central cell.
+     * @param nbrValid The number of cells in the window that are not NaN,
+     * including the central cell.
+     * @return The percent rank, or NaN if the central cell is NaN.
+     */
+    private static float percentRank(float centralCell, int nbrSmaller, int nbrValid) {
+        if (Float.isNaN(centralCell)) {
+            return Float.NaN;
+        }
+        return nbrValid < 2 ? 0 : nbrSmaller * (1f / (nbrValid - 1));
     }
 
     public int getFilterSize() {
@@ -15,7 +15,6 @@ import ika.geo.GeoGrid;
 public class GridPlanCurvatureOperator extends ThreadedGridOperator{
     
     public static float planCurv(GeoGrid geoGrid, int col, int row) {
-        float[][] srcGrid = geoGrid.getGrid();
         final double cellSize = geoGrid.getCellSize();
         final float inverseDoubleMeshSize = (float) (1 / (2 * cellSize));
         final float inverseSquareMeshSize = (float) (1 / (cellSize * cellSize));
@@ -24,15 +23,15 @@ public class GridPlanCurvatureOperator extends ThreadedGridOperator{
         final int rbelow = Math.min(geoGrid.getRows() - 1, row + 1);
         final int cleft = Math.max(0, col - 1);
         final int cright = Math.min(geoGrid.getCols() - 1, col + 1);
-        final float e0 = srcGrid[row][col]; // center
-        final float e1 = srcGrid[rabove][cleft]; // north-west
-        final float e2 = srcGrid[rabove][col]; // north
-        final float e3 = srcGrid[rabove][cright]; //north-east
-        final float e4 = srcGrid[row][cleft]; // west
-        final float e5 = srcGrid[row][cright]; // east
-        final float e6 = srcGrid[rbelow][cleft]; // south-west
-        final float e7 = srcGrid[rbelow][col]; // south
-        final float e8 = srcGrid[rbelow][cright]; // south-east
+        final float e0 = geoGrid.getValue(col, row); // center
+        final float e1 = geoGrid.getValue(cleft, rabove); // north-west
+        final float e2 = geoGrid.getValue(col, rabove); // north
+        final float e3 = geoGrid.getValue(cright, rabove); //north-east
+        final float e4 = geoGrid.getValue(cleft, row); // west
+        final float e5 = geoGrid.getValue(cright, row); // east
+        final float e6 = geoGrid.getValue(cleft, rbelow); // south-west
+        final float e7 = geoGrid.getValue(col, rbelow); // south
+        final float e8 = geoGrid.getValue(cright, rbelow); // south-east
 
         final float D = ((e4 + e5) / 2 - e0) * inverseSquareMeshSize;
         final float E = ((e2 + e7) / 2 - e0) * inverseSquareMeshSize;
@@ -173,7 +172,7 @@ public class GridPlanCurvatureOperator extends ThreadedGridOperator{
         }
 
         // bottom row
-        if (endRow == rows - 1) {
+        if (endRow == rows) {
             for (int col = 0; col < cols; col++) {
                 operateBorder(src, dst, col, rows - 1, cellSize);
             }
@@ -5,9 +5,10 @@ import ika.geo.GeoGrid;
 /**
  * From: Wilson, J. P. and Gallant, J. C. (2000). Terrain Analysis - Principles
  * and Applications. Wiley. Pages 52-57.
+ * Cells outside the grid are replaced by the nearest border cell.
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich.
  */
-public class GridProfileCurvatureOperator implements GridOperator {
+public class GridProfileCurvatureOperator extends NeighborhoodGridOperator {
 
     private int filterSize = 3;
     
@@ -105,122 +106,53 @@ public class GridProfileCurvatureOperator implements GridOperator {
         return "Profile Curvature";
     }
 
-    public GeoGrid operate(GeoGrid geoGrid) {
-        if (geoGrid == null) {
-            throw new IllegalArgumentException();
-        }
-        
-        final int halfFilterSize = filterSize / 2;
-        
-        final int cols = geoGrid.getCols();
-        final int rows = geoGrid.getRows();
-        final double cellSize = geoGrid.getCellSize();
-        GeoGrid newGrid = new GeoGrid(cols, rows, cellSize);
-        newGrid.setName(this.getName());
-        newGrid.setWest(geoGrid.getWest());
-        newGrid.setNorth(geoGrid.getNorth());
-        
-        final float inverseDoubleMeshSize = (float)(1d / (2d * cellSize));
-        final float inverseSquareMeshSize = (float)(1d / (cellSize * cellSize));
-  
-        // top rows
-        for (int row = 0; row < halfFilterSize; row++) {
-            for (int col = 0; col < cols; col++) {
-                this.operateBorder(geoGrid, newGrid, col, row, cellSize);
-            }
-        }
-        // bottom rows
-        for (int row = rows - halfFilterSize; row < rows; row++) {
-            for (int col = 0; col < cols; col++) {
-                this.operateBorder(geoGrid, newGrid, col, row, cellSize);
-            }
-        }
-        // left columns
-        for (int col = 0; col < halfFilterSize; col++) {
-            for (int row = halfFilterSize; row < rows - halfFilterSize; row++) {
-                this.operateBorder(geoGrid, newGrid, col, row, cellSize);
-            }
-        }
-        // right columns
-        for (int col = cols - halfFilterSize; col < cols; col++) {
-            for (int row = halfFilterSize; row < rows - halfFilterSize; row++) {
-                this.operateBorder(geoGrid, newGrid, col, row, cellSize);
-            }
-        }
-        // interior of grid
-        float[][] srcGrid = geoGrid.getGrid();
-        float[][] dstGrid = newGrid.getGrid();
-        for (int row = halfFilterSize; row < rows - halfFilterSize; row++) {
-            for (int col = halfFilterSize; col < cols - halfFilterSize; col++) {
-                
-                final float z1 = srcGrid[row-halfFilterSize][col+halfFilterSize]; // top right
-                final float z2 = srcGrid[row][col+halfFilterSize]; // right
-                final float z3 = srcGrid[row+halfFilterSize][col+halfFilterSize]; // bottom right
-                final float z4 = srcGrid[row+halfFilterSize][col]; // bottom
-                final float z5 = srcGrid[row+halfFilterSize][col-halfFilterSize]; // bottom left
-                final float z6 = srcGrid[row][col-halfFilterSize]; // left
-                final float z7 = srcGrid[row-halfFilterSize][col-halfFilterSize]; // top left
-                final float z8 = srcGrid[row-halfFilterSize][col]; // top
-                final float z9 = srcGrid[row][col]; // center
-                
-                final float zx = (z2 - z6) * inverseDoubleMeshSize;
-                final float zy = (z8 - z4) * inverseDoubleMeshSize;
-                final float zxx = (z2  - 2 * z9 + z6) * inverseSquareMeshSize;
-                final float zyy = (z8 - 2 * z9 + z4) * inverseSquareMeshSize;
-                final float zxy = (-z7 + z1 + z5 - z3) * 0.25f * inverseSquareMeshSize;
-                final float p = zx * zx + zy *zy;
-                final float q = p + 1;
-                
-                final float divider = (float)(p * q * Math.sqrt(q));
-                if (divider != 0) {
-                    dstGrid[row][col] = (zxx * zx * zx + 2 * zxy * zx * zy + zyy * zy * zy) / divider * 100;
-                }
-                
-            }
-        }
-        
-        return newGrid;
+    @Override
+    protected int getHalo() {
+        return filterSize / 2;
     }
-    
-    private void operateBorder(GeoGrid src, GeoGrid dst, int col, int row, double cellSize) {
 
-        final int halfFilterSize = filterSize / 2;
-        
-        final float inverseDoubleMeshSize = (float) (1 / (2 * cellSize));
-        final float inverseSquareMeshSize = (float) (1 / (cellSize * cellSize));
-
-        float[][] srcGrid = src.getGrid();
-        float[][] dstGrid = dst.getGrid();
-        
-        final int cols = src.getCols();
-        final int rows = src.getRows();
-
-        final int rm = row - halfFilterSize < 0 ? 0 : row - halfFilterSize;
-        final int rp = row + halfFilterSize >= rows ? rows - halfFilterSize : row + halfFilterSize; 
-        final int cm = col - halfFilterSize < 0 ? 0 : col - halfFilterSize;
-        final int cp = col + halfFilterSize >= cols ? cols - halfFilterSize : col + halfFilterSize;
-        
-        final float z1 = srcGrid[rm][cp]; // top right
-        final float z2 = srcGrid[row][cp]; // right
-        final float z3 = srcGrid[rp][cp]; // bottom right
-        final float z4 = srcGrid[rp][col]; // bottom
-        final float z5 = srcGrid[rp][cm]; // bottom left
-        final float z6 = srcGrid[row][cm]; // left
-        final float z7 = srcGrid[rm][cm]; // top left
-        final float z8 = srcGrid[rm][col]; // top
-        final float z9 = srcGrid[row][col]; // center
+    @Override
+    protected BorderMode getBorderMode() {
+        return BorderMode.CLAMP;
+    }
 
-        final float zx = (z2 - z6) * inverseDoubleMeshSize;
-        final float zy = (z8 - z4) * inverseDoubleMeshSize;
-        final float zxx = (z2 - 2 * z9 + z6) * inverseSquareMeshSize;
-        final float zyy = (z8 - 2 * z9 + z4) * inverseSquareMeshSize;
-        final float zxy = (-z7 + z1 + z5 - z3) * 0.25f * inverseSquareMeshSize;
-        final float p = zx * zx + zy * zy;
-        final float q = p + 1;
+    @Override
+    protected void operateRow(float[][] rows, float[] dstRow, int dstOffset,
+            int nCols, double cellSize) {
 
-        final float divider = (float) (p * q * Math.sqrt(q));
-        if (divider != 0) {
-            dstGrid[row][col] = (zxx * zx * zx + 2 * zxy * zx * zy + zyy * zy * zy) / divider * 100;
+        final int halfFilterSize = filterSize / 2;
+        final float inverseDoubleMeshSize = (float) (1d / (2d * cellSize));
+        final float inverseSquareMeshSize = (float) (1d / (cellSize * cellSize));
+        final float[] above = rows[0];
+        final float[] center = rows[halfFilterSize];
+        final float[] below = rows[2 * halfFilterSize];
+
+        for (int col = 0; col < nCols; col++) {
+            final int c = col + halfFilterSize;
+            final float z1 = above[c + halfFilterSize]; // top right
+            final float z2 = center[c + halfFilterSize]; // right
+            final float z3 = below[c + halfFilterSize]; // bottom right
+            final float z4 = below[c]; // bottom
+            final float z5 = below[c - halfFilterSize]; // bottom left
+            final float z6 = center[c - halfFilterSize]; // left
+            final float z7 = above[c - halfFilterSize]; // top left
+            final float z8 = above[c]; // top
+            final float z9 = center[c]; // center
+
+            final float zx = (z2 - z6) * inverseDoubleMeshSize;
+            final float zy = (z8 - z4) * inverseDoubleMeshSize;
+            final float zxx = (z2 - 2 * z9 + z6) * inverseSquareMeshSize;
+            final float zyy = (z8 - 2 * z9 + z4) * inverseSquareMeshSize;
+            final float zxy = (-z7 + z1 + z5 - z3) * 0.25f * inverseSquareMeshSize;
+            final float p = zx * zx + zy * zy;
+            final float q = p + 1;
+
+            final float divider = (float) (p * q * Math.sqrt(q));
+            if (divider != 0) {
+                dstRow[dstOffset + col] = (zxx * zx * zx + 2 * zxy * zx * zy + zyy * zy * zy) / divider * 100;
+            } else {
+                dstRow[dstOffset + col] = 0;
+            }
         }
     }
 
@@ -10,10 +10,14 @@ import ika.geo.*;
 import java.io.IOException;
 
 /**
- *
+ * Marks cells that are higher than a percentage of the cells in a square
+ * window around them with 1, and all other cells with 0. Large windows of
+ * grids stored in Java arrays are counted with a sliding histogram of ranks
+ * (SlidingRankFilter), which has a cost per cell proportional to the filter
+ * size instead of the filter area.
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich.
  */
-public class GridRelativeElevationOperator implements GridOperator {
+public class GridRelativeElevationOperator extends NeighborhoodGridOperator {
     
     public static void main(String[] args) {
         try {
@@ -36,6 +40,11 @@ public class GridRelativeElevationOperator implements GridOperator {
     }
      
     
+    /**
+     * Filters up to this size count values in the filter window.
+     */
+    private static final int MAX_COUNTING_FILTER_SIZE = 15;
+
     private int filterSize = 5;
     private float percentage = 0.6f;
 
@@ -51,81 +60,116 @@ public class GridRelativeElevationOperator implements GridOperator {
         return "Mean";
     }
 
-    public GeoGrid operate(GeoGrid geoGrid) {
-        if (geoGrid == null) {
-            throw new IllegalArgumentException();        // make sure filterSize is odd number
-        }
-        if (filterSize % 2 != 1) {
-            return null;
-        }
-        final int halfFilterSize = this.filterSize / 2;
+    @Override
+    protected int getHalo() {
+        return filterSize / 2;
+    }
 
-        // compute the size of the new GeoGrid and create it.
-        final int rows = geoGrid.getRows();
-        final int cols = geoGrid.getCols();
-        final double meshSize = geoGrid.getCellSize();
-        GeoGrid newGrid = new GeoGrid(cols, rows, meshSize);
-        newGrid.setWest(geoGrid.getWest());
-        newGrid.setNorth(geoGrid.getNorth());
-
-        float[][] srcGrid = geoGrid.getGrid();
-        float[][] dstGrid = newGrid.getGrid();
-
-        // top rows
-        for (int row = 0; row < halfFilterSize; row++) {
-            for (int col = 0; col < cols; col++) {
-                this.operateBorder(geoGrid, newGrid, col, row);
-            }
-        }
-        // bottom rows
-        for (int row = rows - halfFilterSize; row < rows; row++) {
-            for (int col = 0; col < cols; col++) {
-                this.operateBorder(geoGrid, newGrid, col, row);
+    @Override
+    protected BorderMode getBorderMode() {
+        return BorderMode.SKIP;
+    }
+
+    @Override
+    protected float getBorderValue() {
+        return 0;
+    }
+
+    @Override
+    protected void operateRow(float[][] rows, float[] dstRow, int dstOffset,
+            int nCols, double cellSize) {
+        final int halfFilterSize = this.filterSize / 2;
+        final float npts = this.filterSize * this.filterSize;
+        final float[] centerRow = rows[halfFilterSize];
+        for (int col = 0; col < nCols; col++) {
+            final float center = centerRow[col + halfFilterSize];
+            float tot = 0;
+            for (int r = 0; r < filterSize; r++) {
+                final float[] srcRow = rows[r];
+                for (int c = col; c < col + filterSize; c++) {
+                    if (center > srcRow[c]) {
+                        ++tot;
+                    }
+                }
             }
+            dstRow[dstOffset + col] = tot > npts * percentage ? 1 : 0;
         }
-        // left columns
-        for (int col = 0; col < halfFilterSize; col++) {
-            for (int row = halfFilterSize; row < rows - halfFilterSize; row++) {
-                this.operateBorder(geoGrid, newGrid, col, row);
-            }
+    }
+
+    @Override
+    public GeoGrid operate(GeoGrid src, GeoGrid dst) {
+        if (filterSize <= MAX_COUNTING_FILTER_SIZE || src == null || dst == null
+                || !src.isArrayBacked() || !dst.isArrayBacked()
+                || src.getGrid() == dst.getGrid()
+                || src.getCols() != dst.getCols() || src.getRows() != dst.getRows()
+                || !SlidingRankFilter.canFilter(src.getCols(), src.getRows(), filterSize)) {
+            return super.operate(src, dst);
         }
-        // right columns
-        for (int col = cols - halfFilterSize; col < cols; col++) {
-            for (int row = halfFilterSize; row < rows - halfFilterSize; row++) {
-                this.operateBorder(geoGrid, newGrid, col, row);
+
+        final float[][] srcGrid = src.getGrid();
+        final float[][] dstGrid = dst.getGrid();
+        final int nrows = src.getRows();
+        final int bandRows = SlidingRankFilter.BAND_ROWS;
+        final int nBands = (nrows + bandRows - 1) / bandRows;
+        getExecutor().execute(getName(), nBands, new GridExecutor.RowTask() {
+
+            public void run(int startBand, int endBand) {
+                SlidingRankFilter filter = new SlidingRankFilter(srcGrid, filterSize);
+                for (int b = startBand; b < endBand; b++) {
+                    final int startRow = b * bandRows;
+                    final int endRow = Math.min(nrows, (b + 1) * bandRows);
+                    filter.countSmaller(dstGrid, startRow, endRow);
+                    threshold(srcGrid, dstGrid, startRow, endRow);
+                }
             }
-        }
+        });
+        dst.invalidateStatistics();
+        return dst;
+    }
 
-        // interior of grid
+    /**
+     * Converts the number of lower cells to 0 or 1. Cells without a complete
+     * window and void cells are 0.
+     */
+    private void threshold(float[][] srcGrid, float[][] dstGrid, int startRow, int endRow) {
+        final int halfFilterSize = this.filterSize / 2;
         final float npts = this.filterSize * this.filterSize;
-        for (int row = halfFilterSize; row < rows - halfFilterSize; row++) {
-            float[] dstRow = dstGrid[row];
-
-            for (int col = halfFilterSize; col < cols - halfFilterSize; col++) {
-                float center = srcGrid[row][col];
-                float tot = 0;
-                for (int r = row - halfFilterSize; r <= row + halfFilterSize; r++) {
-                    float[] srcRow = srcGrid[r];
-                    for (int c = col - halfFilterSize; c <= col + halfFilterSize; c++) {
-                        if (center > srcRow[c]) {
-                            ++tot;
-                        }
-                    }
+        final int nrows = srcGrid.length;
+        final int ncols = srcGrid[0].length;
+        for (int row = startRow; row < endRow; row++) {
+            final float[] srcRow = srcGrid[row];
+            final float[] dstRow = dstGrid[row];
+            final boolean borderRow = row < halfFilterSize || row >= nrows - halfFilterSize;
+            for (int col = 0; col < ncols; col++) {
+                if (borderRow || col < halfFilterSize || col >= ncols - halfFilterSize
+                        || Float.isNaN(srcRow[col])) {
+                    dstRow[col] = 0;
+                } else {
+                    dstRow[col] = dstRow[col] > npts * percentage ? 1 : 0;
                 }
-                dstRow[col] = tot > npts * percentage ? 1 : 0;
             }
         }
-        return newGrid;
     }
 
+    /**
+     * Applies the filter repeatedly. Two grids are alternately read and
+     * written, and no grid is allocated per pass.
+     * @param geoGrid The source grid, which is not changed.
+     * @param loops The number of passes.
+     * @return A new grid.
+     */
     public GeoGrid operate(GeoGrid geoGrid, int loops) {
         if (loops <= 0) {
             return geoGrid.clone();
         }
+        GeoGrid dst = initDestinationGrid(geoGrid);
+        GeoGrid tmp = loops > 1 ? initDestinationGrid(geoGrid) : null;
         for (int i = 0; i < loops; i++) {
-            geoGrid = this.operate(geoGrid);
+            // the last pass writes to dst
+            GeoGrid target = (loops - 1 - i) % 2 == 0 ? dst : tmp;
+            geoGrid = this.operate(geoGrid, target);
         }
-        return geoGrid;
+        return dst;
     }
 
     public int getFilterSize() {
@@ -138,10 +182,4 @@ public class GridRelativeElevationOperator implements GridOperator {
         }
         this.filterSize = filterSize;
     }
-
-    private void operateBorder(GeoGrid src, GeoGrid dst, int col, int row) {
-
-        dst.getGrid()[row][col] = 0;
-
-    }
 }
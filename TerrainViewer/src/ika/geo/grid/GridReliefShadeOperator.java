@@ -0,0 +1,476 @@
+package ika.geo.grid;
+
+import ika.geo.GeoGrid;
+import ika.geo.GeoImage;
+import ika.utils.ImageUtils;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Relief shading with multiple light directions and a sky-view factor.
+ * The brightness of a cell is
+ * diffuse * directional + ambient * skyView
+ * where directional is the weighted mean of the Lambertian reflection of all
+ * light sources, and skyView is the fraction of the sky that is visible from
+ * the cell. The normal of a cell is computed once and shared by all light
+ * sources. The sky-view factor is 1 if it is disabled, that is, if the number
+ * of sky-view directions is 0.
+ *
+ * The sky-view factor is computed from horizon angles in 8 or 16 directions.
+ * Horizon angles are computed along sweep lines through the grid: for each
+ * direction, cells are visited in lines parallel to the direction, and the
+ * highest horizon of a cell is found on the upper convex hull of the cells
+ * visited before on the same line. The hull is updated in amortized constant
+ * time per cell, and all cells up to the border of the grid are considered.
+ * Void cells interrupt the line and are not considered for horizons.
+ *
+ * With the default settings, the grid is shaded by four lights from west
+ * to north, without sky-view factor. For a sky-view factor grid, set the
+ * number of sky-view directions to 8 or 16, diffuse to 0, and ambient to 1.
+ *
+ * @author jenny
+ */
+public class GridReliefShadeOperator extends ThreadedGridOperator {
+
+    /**
+     * Steps between cells on sweep lines for horizon angles. The first 8
+     * steps connect neighboring cells, the other 8 steps connect cells that
+     * are a knight's move apart.
+     */
+    private static final int[][] SKY_VIEW_STEPS = {
+        {1, 0}, {1, 1}, {0, 1}, {-1, 1}, {-1, 0}, {-1, -1}, {0, -1}, {1, -1},
+        {2, 1}, {1, 2}, {-1, 2}, {-2, 1}, {-2, -1}, {-1, -2}, {1, -2}, {2, -1}
+    };
+
+    /**
+     * Azimuth of the light sources in degrees clockwise from north.
+     */
+    private double[] azimuths = {225, 270, 315, 360};
+
+    /**
+     * Elevation of the light sources in degrees above the horizon.
+     */
+    private double[] elevations = {30, 30, 30, 30};
+
+    /**
+     * Relative weights of the light sources.
+     */
+    private double[] weights = {1, 1, 1, 1};
+
+    /**
+     * Weight of the directional light.
+     */
+    private double diffuse = 1;
+
+    /**
+     * Weight of the ambient light, which is reduced by the sky-view factor.
+     */
+    private double ambient = 0;
+
+    /**
+     * Number of directions for computing the sky-view factor: 0, 8 or 16.
+     */
+    private int skyViewDirections = 0;
+
+    /**
+     * The sky-view factor of all cells while the operator is running, or null.
+     */
+    private float[][] skyView;
+
+    public GridReliefShadeOperator() {
+    }
+
+    public String getName() {
+        return "Relief Shade";
+    }
+
+    /**
+     * Sets the light sources.
+     * @param azimuths Azimuth in degrees clockwise from north for each light.
+     * @param elevations Elevation in degrees above the horizon for each light.
+     * @param weights Relative weight of each light. The weights are normalized
+     * such that their sum is 1.
+     */
+    public void setLights(double[] azimuths, double[] elevations, double[] weights) {
+        if (azimuths == null || elevations == null || weights == null
+                || azimuths.length == 0
+                || azimuths.length != elevations.length
+                || azimuths.length != weights.length) {
+            throw new IllegalArgumentException("invalid lights");
+        }
+        this.azimuths = azimuths.clone();
+        this.elevations = elevations.clone();
+        this.weights = weights.clone();
+    }
+
+    /**
+     * Sets light sources with equal weights and elevations that are evenly
+     * distributed over a fan of azimuths.
+     * @param count The number of lights.
+     * @param azimuth The azimuth in the center of the fan, in degrees
+     * clockwise from north.
+     * @param fan The angle between the first and the last light in degrees.
+     * @param elevation The elevation of all lights in degrees.
+     */
+    public void setMultiDirectionalLights(int count, double azimuth, double fan,
+            double elevation) {
+        if (count < 1) {
+            throw new IllegalArgumentException("invalid number of lights");
+        }
+        double[] a = new double[count];
+        double[] e = new double[count];
+        double[] w = new double[count];
+        for (int i = 0; i < count; i++) {
+            a[i] = count == 1 ? azimuth : azimuth - fan / 2 + i * fan / (count - 1);
+            e[i] = elevation;
+            w[i] = 1;
+        }
+        setLights(a, e, w);
+    }
+
+    public int getLightsCount() {
+        return azimuths.length;
+    }
+
+    public double getDiffuse() {
+        return diffuse;
+    }
+
+    public void setDiffuse(double diffuse) {
+        this.diffuse = diffuse;
+    }
+
+    public double getAmbient() {
+        return ambient;
+    }
+
+    public void setAmbient(double ambient) {
+        this.ambient = ambient;
+    }
+
+    public int getSkyViewDirections() {
+        return skyViewDirections;
+    }
+
+    /**
+     * Sets the number of directions for computing the sky-view factor.
+     * @param skyViewDirections 0 to disable the sky-view factor, 8 or 16.
+     */
+    public void setSkyViewDirections(int skyViewDirections) {
+        if (skyViewDirections != 0 && skyViewDirections != 8
+                && skyViewDirections != 16) {
+            throw new IllegalArgumentException("invalid number of directions");
+        }
+        this.skyViewDirections = skyViewDirections;
+    }
+
+    @Override
+    public boolean isOverwrittingSupported() {
+        return false;
+    }
+
+    /**
+     * Shades the source grid and stores brightness values in the destination
+     * grid. Values are between 0 and diffuse + ambient. Void cells are void
+     * in the destination grid.
+     */
+    @Override
+    public GeoGrid operate(GeoGrid src, GeoGrid dst) {
+        if (src == null || !src.isWellFormed()) {
+            throw new IllegalArgumentException(getName() + ": invalid source grid");
+        }
+        skyView = computeSkyView(src);
+        try {
+            return super.operate(src, dst);
+        } finally {
+            skyView = null;
+        }
+    }
+
+    @Override
+    protected void operate(GeoGrid src, GeoGrid dst, int startRow, int endRow) {
+        final float[][] srcGrid = src.getGrid();
+        final float[][] dstGrid = dst.getGrid();
+        final int lastRow = src.getRows() - 1;
+        final Lights lights = new Lights();
+        for (int row = startRow; row < endRow; row++) {
+            shadeRow(row > 0 ? srcGrid[row - 1] : null, srcGrid[row],
+                    row < lastRow ? srcGrid[row + 1] : null,
+                    skyView == null ? null : skyView[row],
+                    src.getCellSize(), lights, dstGrid[row]);
+        }
+    }
+
+    /**
+     * Shades a grid and returns an 8-bit grayscale image with the same size
+     * and georeference as the grid. Brightness values are scaled to 0..255
+     * and clamped. Void cells are white.
+     * @param src The grid to shade.
+     * @return The new image.
+     */
+    public GeoImage operateToImage(final GeoGrid src) {
+        if (src == null || !src.isWellFormed()) {
+            throw new IllegalArgumentException(getName() + ": invalid source grid");
+        }
+        final int cols = src.getCols();
+        final int rows = src.getRows();
+        final byte[] gray = new byte[cols * rows];
+        final float[][] svf = computeSkyView(src);
+        final Lights lights = new Lights();
+
+        getExecutor().execute(getName(), rows, new GridExecutor.RowTask() {
+
+            public void run(int startRow, int endRow) {
+                float[] buffer0 = new float[cols];
+                float[] buffer1 = new float[cols];
+                float[] buffer2 = new float[cols];
+                float[] brightness = new float[cols];
+                for (int row = startRow; row < endRow; row++) {
+                    float[] above = row > 0 ? src.getRow(row - 1, buffer0) : null;
+                    float[] center = src.getRow(row, buffer1);
+                    float[] below = row < rows - 1 ? src.getRow(row + 1, buffer2) : null;
+                    shadeRow(above, center, below, svf == null ? null : svf[row],
+                            src.getCellSize(), lights, brightness);
+                    int id = row * cols;
+                    for (int col = 0; col < cols; col++) {
+                        final float b = brightness[col];
+                        int v = Float.isNaN(b) ? 255 : (int) (b * 255);
+                        gray[id++] = (byte) (v < 0 ? 0 : (v > 255 ? 255 : v));
+                    }
+                }
+            }
+        });
+
+        BufferedImage image = ImageUtils.createGrayscaleImage(cols, rows, gray);
+        return new GeoImage(image, src.getWest(), src.getNorth(), src.getCellSize());
+    }
+
+    /**
+     * Normalized light vectors, weighted such that the sum of all weights
+     * times diffuse is equal to the diffuse weight.
+     */
+    private final class Lights {
+
+        final double[] x, y, z;
+
+        Lights() {
+            final int n = azimuths.length;
+            x = new double[n];
+            y = new double[n];
+            z = new double[n];
+            double weightSum = 0;
+            for (int i = 0; i < n; i++) {
+                weightSum += weights[i];
+            }
+            for (int i = 0; i < n; i++) {
+                final double w = weightSum == 0 ? 0 : diffuse * weights[i] / weightSum;
+                final double alpha = Math.toRadians(90 - azimuths[i]);
+                final double zenith = Math.toRadians(90 - elevations[i]);
+                final double sinz = Math.sin(zenith);
+                x[i] = Math.cos(alpha) * sinz * w;
+                y[i] = Math.sin(alpha) * sinz * w;
+                z[i] = Math.cos(zenith) * w;
+            }
+        }
+    }
+
+    /**
+     * Shades a row of cells. The normal vector is computed with central
+     * differences, which are replaced by one-sided differences at the border
+     * of the grid and next to void cells.
+     * @param above The row above, or null for the first row.
+     * @param center The row to shade.
+     * @param below The row below, or null for the last row.
+     * @param svf The sky-view factor for the row, or null.
+     * @param cellSize The size of a cell.
+     * @param lights The light vectors.
+     * @param dst Receives the brightness values.
+     */
+    private void shadeRow(float[] above, float[] center, float[] below,
+            float[] svf, double cellSize, Lights lights, float[] dst) {
+        final int cols = center.length;
+        final double[] lx = lights.x, ly = lights.y, lz = lights.z;
+        final int nLights = lx.length;
+        for (int col = 0; col < cols; col++) {
+            final float v = center[col];
+            if (Float.isNaN(v)) {
+                dst[col] = Float.NaN;
+                continue;
+            }
+            final float left = col > 0 ? center[col - 1] : Float.NaN;
+            final float right = col < cols - 1 ? center[col + 1] : Float.NaN;
+            final float top = above == null ? Float.NaN : above[col];
+            final float bottom = below == null ? Float.NaN : below[col];
+            final double dx = difference(left, v, right, cellSize);
+            final double dy = difference(bottom, v, top, cellSize);
+
+            // normal vector with the same orientation as in GridShadeOperator
+            final double l = Math.sqrt(dx * dx + dy * dy + 1);
+            final double nx = dx / l;
+            final double ny = dy / l;
+            final double nz = 1 / l;
+
+            // sum of weighted Lambertian reflections of all lights
+            double b = 0;
+            for (int i = 0; i < nLights; i++) {
+                final double cosa = lx[i] * nx + ly[i] * ny + lz[i] * nz;
+                if (cosa > 0) {
+                    b += cosa;
+                }
+            }
+            dst[col] = (float) (b + ambient * (svf == null ? 1 : svf[col]));
+        }
+    }
+
+    /**
+     * Returns the elevation difference per unit distance between two
+     * neighbors a and b of a cell. Void neighbors are replaced by the cell,
+     * and the difference is divided by the distance between the remaining
+     * cells.
+     * @param a The first neighbor, or NaN.
+     * @param v The value of the cell, which is not void.
+     * @param b The second neighbor, or NaN.
+     * @param cellSize The distance between neighboring cells.
+     * @return (a - b) / distance, or 0 if both neighbors are void.
+     */
+    private static double difference(float a, float v, float b, double cellSize) {
+        final boolean aVoid = Float.isNaN(a);
+        final boolean bVoid = Float.isNaN(b);
+        if (aVoid && bVoid) {
+            return 0;
+        }
+        if (aVoid) {
+            return (v - b) / cellSize;
+        }
+        if (bVoid) {
+            return (a - v) / cellSize;
+        }
+        return (a - b) / (2 * cellSize);
+    }
+
+    /**
+     * Computes the sky-view factor for all cells.
+     * @param src The grid.
+     * @return The sky-view factor between 0 and 1, or null if there is no
+     * ambient light or the number of sky-view directions is 0.
+     */
+    private float[][] computeSkyView(GeoGrid src) {
+        if (skyViewDirections == 0 || ambient == 0) {
+            return null;
+        }
+        // sweep lines access rows in random order
+        final float[][] grid = src.isArrayBacked() ? src.getGrid()
+                : src.getRowBand(0, src.getRows(), true).getGrid();
+        final int cols = src.getCols();
+        final int rows = src.getRows();
+        final double cellSize = src.getCellSize();
+        final float[][] sinSum = new float[rows][cols];
+
+        for (int d = 0; d < skyViewDirections; d++) {
+            final int dx = SKY_VIEW_STEPS[d][0];
+            final int dy = SKY_VIEW_STEPS[d][1];
+            final double step = Math.sqrt(dx * dx + dy * dy) * cellSize;
+            final int[] starts = lineStarts(cols, rows, dx, dy);
+
+            // cells on different lines are independent
+            getExecutor().execute(getName(), starts.length, new GridExecutor.RowTask() {
+
+                public void run(int startLine, int endLine) {
+                    final int maxLength = Math.max(cols, rows) + 1;
+                    final double[] hullX = new double[maxLength];
+                    final double[] hullZ = new double[maxLength];
+                    for (int line = startLine; line < endLine; line++) {
+                        sweep(grid, starts[line] % cols, starts[line] / cols,
+                                -dx, -dy, step, hullX, hullZ, sinSum);
+                    }
+                }
+            });
+        }
+
+        // convert the sum of sin(horizon angle) to the sky-view factor
+        final float scale = 1f / skyViewDirections;
+        for (int r = 0; r < rows; r++) {
+            final float[] row = sinSum[r];
+            for (int c = 0; c < cols; c++) {
+                row[c] = 1f - row[c] * scale;
+            }
+        }
+        return sinSum;
+    }
+
+    /**
+     * Returns the first cell of all sweep lines that visit the cells in the
+     * opposite direction of a step. These are the cells that do not have a
+     * neighbor in the direction of the step.
+     * @return Indices of cells, row * cols + col.
+     */
+    private static int[] lineStarts(int cols, int rows, int dx, int dy) {
+        // columns without neighbor in rows that have a neighbor row
+        final int firstCol = dx > 0 ? Math.max(0, cols - dx) : 0;
+        final int endCol = dx < 0 ? Math.min(cols, -dx) : (dx > 0 ? cols : 0);
+        int n = 0;
+        int[] starts = new int[cols * Math.abs(dy) + rows * Math.abs(dx)];
+        for (int r = 0; r < rows; r++) {
+            if (r + dy < 0 || r + dy >= rows) {
+                for (int c = 0; c < cols; c++) {
+                    starts[n++] = r * cols + c;
+                }
+            } else {
+                for (int c = firstCol; c < endCol; c++) {
+                    starts[n++] = r * cols + c;
+                }
+            }
+        }
+        return n == starts.length ? starts : Arrays.copyOf(starts, n);
+    }
+
+    /**
+     * Visits the cells of a line and adds the sine of the horizon angle to
+     * sinSum. The horizon of a cell is the highest point among the cells
+     * visited before on the same line, that is, in the direction opposite to
+     * the step. This point is on the upper convex hull of the visited cells.
+     * Hull vertices that are hidden from the current cell are also hidden
+     * from all following cells and are removed.
+     * @param grid The elevation values.
+     * @param col The column of the first cell.
+     * @param row The row of the first cell.
+     * @param dx The horizontal step between cells.
+     * @param dy The vertical step between cells.
+     * @param step The distance between two cells.
+     * @param hullX Buffer for the position of the hull vertices on the line.
+     * @param hullZ Buffer for the elevation of the hull vertices.
+     * @param sinSum Receives the sum of the sine of the horizon angles.
+     */
+    private static void sweep(float[][] grid, int col, int row, int dx, int dy,
+            double step, double[] hullX, double[] hullZ, float[][] sinSum) {
+        final int cols = grid[0].length;
+        final int rows = grid.length;
+        int m = 0;
+        double x = 0;
+        while (col >= 0 && col < cols && row >= 0 && row < rows) {
+            final float z = grid[row][col];
+            if (Float.isNaN(z)) {
+                // void cells interrupt the line
+                m = 0;
+            } else {
+                // remove hull vertices below the line to the vertex before
+                while (m >= 2 && (hullZ[m - 1] - z) * (x - hullX[m - 2])
+                        <= (hullZ[m - 2] - z) * (x - hullX[m - 1])) {
+                    --m;
+                }
+                if (m > 0) {
+                    final double tan = (hullZ[m - 1] - z) / (x - hullX[m - 1]);
+                    if (tan > 0) {
+                        sinSum[row][col] += (float) (tan / Math.sqrt(1 + tan * tan));
+                    }
+                }
+                hullX[m] = x;
+                hullZ[m] = z;
+                ++m;
+            }
+            x += step;
+            col += dx;
+            row += dy;
+        }
+    }
+}
@@ -7,18 +7,72 @@
 package ika.geo.grid;
 
 import ika.geo.GeoGrid;
+import java.util.Arrays;
 
 /**
+ * Resamples a grid to a new cell size. The new grid is aligned to a lattice
+ * of points with the new cell size through alignX / alignY, and covers the
+ * extension of the source grid.
+ *
+ * Resampling is separable: each row of the source grid is first resampled
+ * horizontally, and then the resampled rows are combined vertically. The
+ * positions and weights of the source cells are computed once for all
+ * columns and all rows. When the cell size increases, the kernels are
+ * stretched to the new cell size to avoid aliasing.
+ *
+ * Void cells are excluded and the weights of the remaining cells are
+ * normalized. The result is void if the source cell with the largest weight
+ * is void, which preserves the outline of voids.
  *
  * @author jenny
  */
 public class GridResamplingOperator implements GridOperator {
 
+    /**
+     * Resampling kernels.
+     */
+    public enum Kernel {
+
+        /**
+         * Linear interpolation between two cells.
+         */
+        BILINEAR(1),
+        /**
+         * Catmull-Rom cubic spline through four cells.
+         */
+        BICUBIC(2),
+        /**
+         * Windowed sinc function with six cells.
+         */
+        LANCZOS(3),
+        /**
+         * Mean of the source cells weighted by the area that they share with
+         * the new cell.
+         */
+        AREA_AVERAGE(0.5);
+
+        /**
+         * Half width of the kernel in cells of the source grid.
+         */
+        private final double radius;
+
+        private Kernel(double radius) {
+            this.radius = radius;
+        }
+    }
+
     private double newCellSize = 1;
     private double alignX = Double.NaN;
     private double alignY = Double.NaN;
+    private Kernel kernel = Kernel.BICUBIC;
+
+    /**
+     * The executor distributing rows to threads. If null, the shared default
+     * executor is used.
+     */
+    private GridExecutor executor;
 
-    /** Creates a new instance of GridMedianOperator */
+    /** Creates a new instance of GridResamplingOperator */
     public GridResamplingOperator(double newCellSize, double alignX, double alignY) {
         this.newCellSize = newCellSize;
         this.alignX = alignX;
@@ -33,31 +87,249 @@ public class GridResamplingOperator implements GridOperator {
         return "Resampling";
     }
 
-    public GeoGrid operate(GeoGrid geoGrid) {
-        if (geoGrid == null)
+    public Kernel getKernel() {
+        return kernel;
+    }
+
+    public void setKernel(Kernel kernel) {
+        if (kernel == null) {
+            throw new IllegalArgumentException();
+        }
+        this.kernel = kernel;
+    }
+
+    public GridExecutor getExecutor() {
+        return executor == null ? GridExecutor.getDefault() : executor;
+    }
+
+    public void setExecutor(GridExecutor executor) {
+        this.executor = executor;
+    }
+
+    public GeoGrid operate(final GeoGrid geoGrid) {
+        if (geoGrid == null || !geoGrid.isWellFormed() || !(newCellSize > 0))
             throw new IllegalArgumentException();
 
-        if (Double.isNaN(this.alignX) || Double.isNaN(this.alignY)) {
-            this.alignX = geoGrid.getWest();
-            this.alignY = geoGrid.getNorth();
+        // the first column and row of the lattice inside the source grid
+        final double eps = 1e-9;
+        final double cellSize = geoGrid.getCellSize();
+        double newWest = geoGrid.getWest();
+        double newNorth = geoGrid.getNorth();
+        if (!Double.isNaN(this.alignX)) {
+            newWest = alignX + Math.ceil((newWest - alignX) / newCellSize - eps) * newCellSize;
+        }
+        if (!Double.isNaN(this.alignY)) {
+            newNorth = alignY + Math.floor((newNorth - alignY) / newCellSize + eps) * newCellSize;
         }
-        
-        double newWest = geoGrid.getWest(); // alignX - (int)((alignX - geoGrid.getWest()) / newCellSize) * newCellSize; !!! ???
-        double newNorth = geoGrid.getNorth(); // alignY + (int)((geoGrid.getNorth() - alignY) / newCellSize) * newCellSize;
-        int newRows = (int)((newNorth - geoGrid.getSouth()) / newCellSize);
-        int newCols = (int)((geoGrid.getEast() - newWest) / newCellSize);
+        final int newCols = Math.max(1, (int) ((geoGrid.getEast() - newWest) / newCellSize + eps) + 1);
+        final int newRows = Math.max(1, (int) ((newNorth - geoGrid.getSouth()) / newCellSize + eps) + 1);
         GeoGrid newGrid = new GeoGrid(newCols, newRows, newCellSize);
         newGrid.setWest(newWest);
         newGrid.setNorth(newNorth);
-        
-        for (int row = 0; row < newRows; row++) {
-            double y = newNorth - row * newCellSize;
-            for (int col = 0; col < newCols; col++) {
-                double x = newWest + col * newCellSize;
-                float v = geoGrid.getBicubicInterpol(x, y);
-                newGrid.setValue(v, col, row);
+
+        // positions and weights of source cells, in source cell units
+        final double step = newCellSize / cellSize;
+        final Weights colWeights = new Weights(kernel, newCols,
+                (newWest - geoGrid.getWest()) / cellSize, step, geoGrid.getCols());
+        final Weights rowWeights = new Weights(kernel, newRows,
+                (geoGrid.getNorth() - newNorth) / cellSize, step, geoGrid.getRows());
+
+        // horizontal pass over all source rows used by the vertical pass
+        final int firstRow = rowWeights.minIndex();
+        final float[][] tmp = new float[rowWeights.maxIndex() - firstRow + 1][];
+        GridExecutor exec = getExecutor();
+        exec.execute(getName(), tmp.length, new GridExecutor.RowTask() {
+
+            public void run(int startRow, int endRow) {
+                float[] buffer = new float[geoGrid.getCols()];
+                for (int r = startRow; r < endRow; r++) {
+                    float[] srcRow = geoGrid.getRow(firstRow + r, buffer);
+                    tmp[r] = new float[newCols];
+                    colWeights.resample(srcRow, tmp[r]);
+                }
             }
-        }
+        });
+
+        // vertical pass combining resampled rows
+        final float[][] dstGrid = newGrid.getGrid();
+        exec.execute(getName(), newRows, new GridExecutor.RowTask() {
+
+            public void run(int startRow, int endRow) {
+                float[] weightSum = new float[newCols];
+                for (int row = startRow; row < endRow; row++) {
+                    rowWeights.resample(tmp, firstRow, row, dstGrid[row], weightSum);
+                }
+            }
+        });
         return newGrid;
     }
+
+    /**
+     * Source cells and their weights for each cell of the new grid along one
+     * axis.
+     */
+    private static final class Weights {
+
+        /**
+         * Number of source cells per new cell.
+         */
+        final int taps;
+
+        /**
+         * Indices of source cells, taps for each new cell. Indices outside
+         * of the source grid are clamped to the border.
+         */
+        final int[] index;
+
+        /**
+         * Normalized weights of source cells, taps for each new cell.
+         */
+        final float[] weight;
+
+        /**
+         * Index of the source cell with the largest weight for each new cell.
+         */
+        final int[] center;
+
+        /**
+         * @param kernel The kernel.
+         * @param n The number of new cells.
+         * @param origin The position of the first new cell in source cells.
+         * @param step The distance between two new cells in source cells.
+         * @param srcCells The number of source cells.
+         */
+        Weights(Kernel kernel, int n, double origin, double step, int srcCells) {
+            // stretch the kernel when reducing the resolution
+            final double scale = Math.max(1, step);
+            final double radius = kernel == Kernel.AREA_AVERAGE
+                    ? step / 2 + 0.5 : kernel.radius * scale;
+            taps = 2 * (int) Math.ceil(radius) + 1;
+            index = new int[n * taps];
+            weight = new float[n * taps];
+            center = new int[n];
+            double[] w = new double[taps];
+            for (int i = 0; i < n; i++) {
+                final double u = origin + i * step;
+                final int first = (int) Math.ceil(u - radius);
+                double sum = 0;
+                int maxTap = 0;
+                for (int k = 0; k < taps; k++) {
+                    final int id = first + k;
+                    if (kernel == Kernel.AREA_AVERAGE) {
+                        final double lo = Math.max(u - step / 2, id - 0.5);
+                        final double hi = Math.min(u + step / 2, id + 0.5);
+                        w[k] = Math.max(0, hi - lo);
+                    } else {
+                        w[k] = kernel(kernel, (id - u) / scale);
+                    }
+                    sum += w[k];
+                    if (w[k] > w[maxTap]) {
+                        maxTap = k;
+                    }
+                }
+                for (int k = 0; k < taps; k++) {
+                    index[i * taps + k] = Math.min(srcCells - 1, Math.max(0, first + k));
+                    weight[i * taps + k] = sum == 0 ? 0 : (float) (w[k] / sum);
+                }
+                center[i] = index[i * taps + maxTap];
+            }
+        }
+
+        private static double kernel(Kernel kernel, double x) {
+            x = Math.abs(x);
+            switch (kernel) {
+                case BILINEAR:
+                    return x < 1 ? 1 - x : 0;
+                case BICUBIC:
+                    // Catmull-Rom spline, a = -0.5
+                    if (x < 1) {
+                        return (1.5 * x - 2.5) * x * x + 1;
+                    }
+                    return x < 2 ? ((-0.5 * x + 2.5) * x - 4) * x + 2 : 0;
+                case LANCZOS:
+                    if (x == 0) {
+                        return 1;
+                    }
+                    if (x >= 3) {
+                        return 0;
+                    }
+                    final double px = Math.PI * x;
+                    return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+            }
+            throw new IllegalStateException();
+        }
+
+        int minIndex() {
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < index.length; i++) {
+                min = Math.min(min, index[i]);
+            }
+            return min;
+        }
+
+        int maxIndex() {
+            int max = 0;
+            for (int i = 0; i < index.length; i++) {
+                max = Math.max(max, index[i]);
+            }
+            return max;
+        }
+
+        /**
+         * Resamples a row.
+         * @param src The source row.
+         * @param dst The resampled row.
+         */
+        void resample(float[] src, float[] dst) {
+            for (int i = 0, t = 0; i < dst.length; i++) {
+                if (Float.isNaN(src[center[i]])) {
+                    dst[i] = Float.NaN;
+                    t += taps;
+                    continue;
+                }
+                float sum = 0, weightSum = 0;
+                for (int k = 0; k < taps; k++, t++) {
+                    final float v = src[index[t]];
+                    if (!Float.isNaN(v)) {
+                        sum += weight[t] * v;
+                        weightSum += weight[t];
+                    }
+                }
+                dst[i] = sum / weightSum;
+            }
+        }
+
+        /**
+         * Resamples a column of rows. Rows are processed one after the other
+         * for all columns.
+         * @param rows The horizontally resampled rows.
+         * @param firstRow The index of the source row stored in rows[0].
+         * @param i The index of the new row.
+         * @param dst The new row.
+         * @param weightSum Buffer for the sum of the weights of each column.
+         */
+        void resample(float[][] rows, int firstRow, int i, float[] dst, float[] weightSum) {
+            final int cols = dst.length;
+            Arrays.fill(dst, 0f);
+            Arrays.fill(weightSum, 0f);
+            for (int k = 0, t = i * taps; k < taps; k++, t++) {
+                final float w = weight[t];
+                if (w == 0) {
+                    continue;
+                }
+                final float[] row = rows[index[t] - firstRow];
+                for (int c = 0; c < cols; c++) {
+                    final float v = row[c];
+                    if (!Float.isNaN(v)) {
+                        dst[c] += w * v;
+                        weightSum[c] += w;
+                    }
+                }
+            }
+            final float[] centerRow = rows[center[i] - firstRow];
+            for (int c = 0; c < cols; c++) {
+                dst[c] = Float.isNaN(centerRow[c]) ? Float.NaN : dst[c] / weightSum[c];
+            }
+        }
+    }
 }
@@ -15,7 +15,7 @@ import java.awt.image.BufferedImage;
  *
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
  */
-public class GridShadeOperator implements GridOperator {
+public class GridShadeOperator extends ThreadedGridOperator {
     
     private double elevation = 25;
     private double azimuth = 315;
@@ -29,8 +29,28 @@ public class GridShadeOperator implements GridOperator {
     public String getName() {
         return "Grid Shade";
     }
+
+    public double getAzimuth() {
+        return azimuth;
+    }
+
+    public void setAzimuth(double azimuth) {
+        this.azimuth = azimuth;
+    }
+
+    public double getElevation() {
+        return elevation;
+    }
+
+    public void setElevation(double elevation) {
+        this.elevation = elevation;
+    }
     
-    public GeoGrid operate(GeoGrid geoGrid) {
+    /**
+     * The shaded grid is one column and one row smaller than the source grid.
+     */
+    @Override
+    protected GeoGrid initDestinationGrid(GeoGrid geoGrid) {
         if (geoGrid == null) {
             throw new IllegalArgumentException();
         }
@@ -39,18 +59,32 @@ public class GridShadeOperator implements GridOperator {
         final int newRows = Math.max(2, geoGrid.getRows() - 1);
         
         final double meshSize = geoGrid.getCellSize();
-        GeoGrid newGrid = new GeoGrid(newCols, newRows, meshSize);
+        GeoGrid newGrid = createGrid(geoGrid, newCols, newRows);
         newGrid.setWest(geoGrid.getWest() + meshSize);
         newGrid.setNorth(geoGrid.getNorth() + meshSize);
-        
-        if (newCols <= 2 || newRows <= 2) {
-            return newGrid;
+        return newGrid;
+    }
+
+    @Override
+    public boolean isOverwrittingSupported() {
+        return false;
+    }
+
+    @Override
+    public GeoGrid operate(GeoGrid src, GeoGrid dst) {
+        if (dst.getCols() <= 2 || dst.getRows() <= 2) {
+            return dst;
         }
-        
-        float[][] srcGrid = geoGrid.getGrid();
-        float[][] dstGrid = newGrid.getGrid();
-        final int srcRows = geoGrid.getRows();
-        final int srcCols = geoGrid.getCols();
+        return super.operate(src, dst);
+    }
+
+    @Override
+    protected void operate(GeoGrid src, GeoGrid dst, int startRow, int endRow) {
+        float[][] srcGrid = src.getGrid();
+        float[][] dstGrid = dst.getGrid();
+        final int srcRows = src.getRows();
+        final int srcCols = src.getCols();
+        final double meshSize = src.getCellSize();
 
         // compute normalized light vector for azimuth and zenith
         final double alpha = Math.toRadians(90 - this.azimuth);
@@ -60,7 +94,8 @@ public class GridShadeOperator implements GridOperator {
         final double luxY = (float) (Math.sin(alpha) * sinz);
         final double luxZ = (float) Math.cos(zenith);
 
-        for (int row = 0; row < srcRows - 1; row++) {
+        final int lastRow = Math.min(endRow, srcRows - 1);
+        for (int row = startRow; row < lastRow; row++) {
             float[] dstRow = dstGrid[row];
             for (int col = 0; col < srcCols - 1; col++) {
                 
@@ -83,7 +118,6 @@ public class GridShadeOperator implements GridOperator {
                     dstRow[col] = (float)(cosa) * 255.f;
             }
         }
-        return newGrid;
     }
     
     public ika.geo.GeoImage operateToImage(ika.geo.GeoGrid geoGrid) {
@@ -150,6 +184,83 @@ public class GridShadeOperator implements GridOperator {
         return newImage;*/
     }
     
+    /**
+     * Computes the brightness of a section of a grid with the same algorithm
+     * as phongShading(). Sections can be shaded independently and in
+     * parallel; adjacent sections join seamlessly if each window contains the
+     * halo of neighboring cells.
+     * @param window The values of the section and a halo of one cell on the
+     * top and left side and two cells on the bottom and right side.
+     * @param cellSize The size of a cell.
+     * @param dst Receives the brightness between 0 and 1 of the
+     * (window[0].length - 3) x (window.length - 3) cells of the section, row
+     * by row.
+     */
+    public void shade(float[][] window, double cellSize, float[] dst) {
+        final int cols = window[0].length - 3;
+        final int rows = window.length - 3;
+        final double d2 = 2 * cellSize;
+
+        // compute normalized light vector for azimuth and zenith
+        final double alpha = Math.toRadians(90 - this.azimuth);
+        final double zenith = Math.toRadians(90 - this.elevation);
+        final double sinz = Math.sin(zenith);
+        final double luxX = Math.cos(alpha) * sinz;
+        final double luxY = Math.sin(alpha) * sinz;
+        final double luxZ = Math.cos(zenith);
+
+        int id = 0;
+        for (int row = 1; row <= rows; row++) {
+            final float[] r0 = window[row - 1];
+            final float[] r1 = window[row];
+            final float[] r2 = window[row + 1];
+            final float[] r3 = window[row + 2];
+            for (int col = 1; col <= cols; col++) {
+
+                // top left vector
+                double xtl = r1[col - 1] - r1[col + 1];
+                double ytl = r2[col] - r0[col];
+                double l = Math.sqrt(xtl * xtl + ytl * ytl + d2 * d2);
+                final double ztl = d2 / l;
+                xtl /= l;
+                ytl /= l;
+
+                // top right vector
+                double xtr = r1[col] - r1[col + 2];
+                double ytr = r2[col + 1] - r0[col + 1];
+                l = Math.sqrt(xtr * xtr + ytr * ytr + d2 * d2);
+                final double ztr = d2 / l;
+                xtr /= l;
+                ytr /= l;
+
+                // bottom left vector
+                double xbl = r2[col - 1] - r2[col + 1];
+                double ybl = r3[col] - r1[col];
+                l = Math.sqrt(xbl * xbl + ybl * ybl + d2 * d2);
+                final double zbl = d2 / l;
+                xbl /= l;
+                ybl /= l;
+
+                // bottom right vector
+                double xbr = r2[col] - r2[col + 2];
+                double ybr = r3[col + 1] - r1[col + 1];
+                l = Math.sqrt(xbr * xbr + ybr * ybr + d2 * d2);
+                final double zbr = d2 / l;
+                xbr /= l;
+                ybr /= l;
+
+                // sum of four vectors
+                final double nx = (xtl + xtr + xbl + xbr) * 0.25;
+                final double ny = (ytl + ytr + ybl + ybr) * 0.25;
+                final double nz = (ztl + ztr + zbl + zbr) * 0.25;
+
+                // scalar product of light and normal vector
+                final double cosa = luxX * nx + luxY * ny + luxZ * nz;
+                dst[id++] = (float) (cosa > 0. ? cosa * LIGHT_DIFFUSE + LIGHT_AMBIENT : LIGHT_AMBIENT);
+            }
+        }
+    }
+
     public ika.geo.GeoImage phongShading(ika.geo.GeoGrid geoGrid) {
         if (geoGrid == null) {
             throw new IllegalArgumentException();
@@ -162,6 +273,9 @@ public class GridShadeOperator implements GridOperator {
         if (imgCols <= 2 || imgRows <= 2) {
             return null;
         }
+        if (!geoGrid.isArrayBacked()) {
+            throw new UnsupportedOperationException(getName() + ": grid must be stored in an array");
+        }
         
         float[][] srcGrid = geoGrid.getGrid();
         final int srcRows = geoGrid.getRows();
@@ -30,6 +30,9 @@ public class GridSlopeLineOperator implements GridOperator {
     public GeoObject operate(GeoGrid geoGrid) {
         if (geoGrid == null)
             throw new IllegalArgumentException();
+        if (!geoGrid.isArrayBacked()) {
+            throw new UnsupportedOperationException(getName() + ": grid must be stored in an array");
+        }
         
         final int nrows = geoGrid.getRows();
         final int ncols = geoGrid.getCols();
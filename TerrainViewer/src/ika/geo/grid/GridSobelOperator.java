@@ -13,7 +13,7 @@ import ika.geo.*;
  * Sobel edge detection filter.
  * @author jenny
  */
-public class GridSobelOperator implements GridOperator{
+public class GridSobelOperator extends NeighborhoodGridOperator {
     
     /** Creates a new instance of GridSobelOperator */
     public GridSobelOperator() {
@@ -23,46 +23,41 @@ public class GridSobelOperator implements GridOperator{
         return "Sobel";
     }
     
-    public GeoGrid operate(GeoGrid geoGrid) {
-        if (geoGrid == null) {
-            throw new IllegalArgumentException();
-        }
-        
-        final int newCols = geoGrid.getCols() - 2;
-        final int newRows = geoGrid.getRows() - 2;
-        final double meshSize = geoGrid.getCellSize();
-        GeoGrid newGrid = new GeoGrid(newCols, newRows, meshSize);
-        newGrid.setWest(geoGrid.getWest() + meshSize);
-        newGrid.setNorth(geoGrid.getNorth() + meshSize);
-        
-        float[][] srcGrid = geoGrid.getGrid();
-        float[][] dstGrid = newGrid.getGrid();
-        final int srcRows = geoGrid.getRows();
-        final int srcCols = geoGrid.getCols();
-        
-        for (int row = 1; row < srcRows - 1; row++) {
-            for (int col = 1; col < srcCols - 1; col++) {
-                /*
-                 * |A B C|
-                 * |D 0 E|
-                 * |F G H|
-                 */
-                final float a = srcGrid[row-1][col-1];
-                final float b = srcGrid[row-1][col];
-                final float c = srcGrid[row-1][col+1];
-                final float d = srcGrid[row][col-1];
-                final float e = srcGrid[row][col+1];
-                final float f = srcGrid[row+1][col-1];
-                final float g = srcGrid[row+1][col];
-                final float h = srcGrid[row+1][col+1];
-                
-                final float val = (Math.abs(-a-2*b-c+f+2*g+h) +
-                        Math.abs(-c-2*e-h+a+2*d+f)) / 8;
-                dstGrid[row-1][col-1] = val;
-            }
+    @Override
+    protected int getHalo() {
+        return 1;
+    }
+
+    @Override
+    protected BorderMode getBorderMode() {
+        return BorderMode.CROP;
+    }
+
+    @Override
+    protected void operateRow(float[][] rows, float[] dstRow, int dstOffset,
+            int nCols, double cellSize) {
+        final float[] above = rows[0];
+        final float[] center = rows[1];
+        final float[] below = rows[2];
+        for (int col = 0; col < nCols; col++) {
+            /*
+             * |A B C|
+             * |D 0 E|
+             * |F G H|
+             */
+            final float a = above[col];
+            final float b = above[col + 1];
+            final float c = above[col + 2];
+            final float d = center[col];
+            final float e = center[col + 2];
+            final float f = below[col];
+            final float g = below[col + 1];
+            final float h = below[col + 2];
+
+            final float val = (Math.abs(-a - 2 * b - c + f + 2 * g + h)
+                    + Math.abs(-c - 2 * e - h + a + 2 * d + f)) / 8;
+            dstRow[dstOffset + col] = val;
         }
-        
-        return newGrid;
     }
     
 }
@@ -43,13 +43,13 @@ public class GridToImageOperator implements GridOperator{
         final float min = minMax[0];
         final float oldRange = minMax[1] - minMax[0];
         
-        float[][] srcGrid = geoGrid.getGrid();
+        float[] buffer = geoGrid.isArrayBacked() ? null : new float[ncols];
         byte[] pixels = new byte [nrows * ncols];
         
         int px = 0;
         if (oldRange != 0) {
             for (int row = 0; row < nrows; ++row) {
-                float[] srcRow = srcGrid[row];
+                float[] srcRow = geoGrid.getRow(row, buffer);
                 for (int col = 0; col < ncols; ++col) {
                     pixels[px++] = (byte)((srcRow[col] - min) / oldRange * 255.f);
                 }
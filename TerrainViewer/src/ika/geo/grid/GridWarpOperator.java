@@ -0,0 +1,444 @@
+package ika.geo.grid;
+
+import ika.geo.GeoGrid;
+import ika.geo.GeoImage;
+import ika.transformation.MultiquadraticInterpolation;
+import ika.transformation.PartitionOfUnityInterpolation;
+import ika.transformation.Transformation;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Warps a grid or an image with a transformation of the ika.transformation
+ * package. For each cell of the destination, the position in the source is
+ * computed with the transformation, and the source is interpolated at this
+ * position. The transformation must therefore map coordinates of the
+ * destination to coordinates of the source, that is, it is initialized with
+ * the control points of the source as destination set and vice versa.
+ *
+ * The transformation is only evaluated on a coarse mesh of destination cells,
+ * and positions between mesh nodes are interpolated bilinearly. This is exact
+ * for affine transformations such as TransformationHelmert or
+ * TransformationAffine6. Rows of the destination are computed in parallel.
+ *
+ * @author jenny
+ */
+public class GridWarpOperator implements GridOperator {
+
+    public enum Interpolation {
+
+        NEAREST_NEIGHBOR, BILINEAR, BICUBIC
+    }
+
+    /**
+     * Default distance between two nodes of the mesh in destination cells.
+     */
+    public static final int DEF_MESH_SPACING = 16;
+
+    /**
+     * Maps an array of x-y pairs from the destination to the source.
+     */
+    private interface Mapping {
+
+        void transform(double[] coords, int nbrPts);
+    }
+
+    private final Mapping mapping;
+
+    private Interpolation interpolation = Interpolation.BICUBIC;
+
+    private int meshSpacing = DEF_MESH_SPACING;
+
+    /**
+     * Georeference and size of the destination. If cols is 0, the
+     * destination has the same georeference and size as the source.
+     */
+    private double west, north, cellSize;
+    private int cols = 0, rows = 0;
+
+    /**
+     * The executor distributing rows to threads. If null, the shared default
+     * executor is used.
+     */
+    private GridExecutor executor;
+
+    /**
+     * Flag for cancelling the operator while it is running.
+     */
+    private final GridExecutor.CancelFlag cancelFlag = new GridExecutor.CancelFlag();
+
+    /**
+     * Creates an operator for a transformation.
+     * @param transformation Maps destination coordinates to source coordinates.
+     */
+    public GridWarpOperator(final Transformation transformation) {
+        if (transformation == null) {
+            throw new IllegalArgumentException();
+        }
+        this.mapping = new Mapping() {
+
+            public void transform(double[] coords, int nbrPts) {
+                transformation.transform(coords, nbrPts);
+            }
+        };
+    }
+
+    /**
+     * Creates an operator for a multiquadratic interpolation.
+     * @param interpolation Maps destination coordinates to source coordinates.
+     */
+    public GridWarpOperator(final MultiquadraticInterpolation interpolation) {
+        if (interpolation == null) {
+            throw new IllegalArgumentException();
+        }
+        this.mapping = new Mapping() {
+
+            public void transform(double[] coords, int nbrPts) {
+                interpolation.transform(coords, nbrPts);
+            }
+        };
+    }
+
+    /**
+     * Creates an operator for a multiquadratic interpolation with many
+     * control points.
+     * @param interpolation Maps destination coordinates to source coordinates.
+     */
+    public GridWarpOperator(final PartitionOfUnityInterpolation interpolation) {
+        if (interpolation == null) {
+            throw new IllegalArgumentException();
+        }
+        this.mapping = new Mapping() {
+
+            public void transform(double[] coords, int nbrPts) {
+                interpolation.transform(coords, nbrPts);
+            }
+        };
+    }
+
+    public String getName() {
+        return "Warp";
+    }
+
+    public Interpolation getInterpolation() {
+        return interpolation;
+    }
+
+    public void setInterpolation(Interpolation interpolation) {
+        if (interpolation == null) {
+            throw new IllegalArgumentException();
+        }
+        this.interpolation = interpolation;
+    }
+
+    public int getMeshSpacing() {
+        return meshSpacing;
+    }
+
+    /**
+     * Sets the distance between two nodes of the mesh on which the
+     * transformation is evaluated.
+     * @param meshSpacing The distance in destination cells. 1 evaluates the
+     * transformation for every cell.
+     */
+    public void setMeshSpacing(int meshSpacing) {
+        if (meshSpacing < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.meshSpacing = meshSpacing;
+    }
+
+    /**
+     * Sets the georeference and size of the destination.
+     * @param west The western border of a destination image or the x
+     * coordinate of the first column of a destination grid.
+     * @param north The northern border of a destination image or the y
+     * coordinate of the first row of a destination grid.
+     * @param cellSize The size of a cell.
+     * @param cols The number of columns.
+     * @param rows The number of rows.
+     */
+    public void setDestination(double west, double north, double cellSize,
+            int cols, int rows) {
+        if (cellSize <= 0 || cols < 1 || rows < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.west = west;
+        this.north = north;
+        this.cellSize = cellSize;
+        this.cols = cols;
+        this.rows = rows;
+    }
+
+    /**
+     * The destination will have the same georeference and size as the source.
+     */
+    public void clearDestination() {
+        this.cols = this.rows = 0;
+    }
+
+    /**
+     * Returns the executor used by this operator.
+     * @return The executor set with setExecutor, or the shared default
+     * executor.
+     */
+    public GridExecutor getExecutor() {
+        return executor == null ? GridExecutor.getDefault() : executor;
+    }
+
+    /**
+     * Sets the executor used by this operator.
+     * @param executor The executor. If null, the shared default executor is used.
+     */
+    public void setExecutor(GridExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Cancels the operator if it is currently running. operate() will throw
+     * a java.util.concurrent.CancellationException. Call resetCancel() before
+     * the operator is used again.
+     */
+    public void cancel() {
+        cancelFlag.cancel();
+    }
+
+    /**
+     * Clears the cancel flag set by cancel().
+     */
+    public void resetCancel() {
+        cancelFlag.reset();
+    }
+
+    /**
+     * Warps a grid. Cells that are mapped outside of the source grid are set
+     * to NaN.
+     * @param src The source grid.
+     * @return A new grid with the same type of storage as the source grid.
+     */
+    public GeoGrid operate(final GeoGrid src) {
+        if (src == null || !src.isWellFormed()) {
+            throw new IllegalArgumentException(getName() + ": invalid source grid");
+        }
+        final int nCols = cols > 0 ? cols : src.getCols();
+        final int nRows = cols > 0 ? rows : src.getRows();
+        final double cs = cols > 0 ? cellSize : src.getCellSize();
+        GeoGrid dst;
+        if (src.isArrayBacked()) {
+            dst = new GeoGrid(nCols, nRows, cs);
+        } else {
+            dst = new GeoGrid(src.getStorage().create(nCols, nRows), cs);
+        }
+        dst.setWest(cols > 0 ? west : src.getWest());
+        dst.setNorth(cols > 0 ? north : src.getNorth());
+        dst.setName(src.getName());
+
+        // positions of grid cells are at the cell corners
+        final Mesh mesh = new Mesh(dst.getWest(), dst.getNorth(), cs, nCols, nRows);
+        final GeoGrid dstGrid = dst;
+        final double srcWest = src.getWest();
+        final double srcEast = src.getEast();
+        final double srcNorth = src.getNorth();
+        final double srcSouth = src.getSouth();
+        final double srcCellSize = src.getCellSize();
+        final int srcCols = src.getCols();
+        final int srcRows = src.getRows();
+        getExecutor().execute(getName(), nRows, new GridExecutor.RowTask() {
+
+            public void run(int startRow, int endRow) {
+                final double[] xy = new double[nCols * 2];
+                final float[] dstRow = new float[nCols];
+                for (int r = startRow; r < endRow; r++) {
+                    mesh.interpolateRow(r, xy);
+                    for (int c = 0; c < nCols; c++) {
+                        final double x = xy[c * 2];
+                        final double y = xy[c * 2 + 1];
+                        if (!(x >= srcWest && x <= srcEast && y >= srcSouth && y <= srcNorth)) {
+                            dstRow[c] = Float.NaN;
+                            continue;
+                        }
+                        final int col = (int) ((x - srcWest) / srcCellSize);
+                        final int row = (int) ((srcNorth - y) / srcCellSize);
+                        switch (interpolation) {
+                            case NEAREST_NEIGHBOR:
+                                dstRow[c] = src.getNearestNeighbor(x, y);
+                                break;
+                            case BILINEAR:
+                                dstRow[c] = borderValue(src, x, y, col, row);
+                                break;
+                            default:
+                                // GeoGrid.getBicubicInterpol reads two columns
+                                // and rows beyond the top left cell
+                                if (col < srcCols - 2 && row < srcRows - 2) {
+                                    dstRow[c] = src.getBicubicInterpol(x, y);
+                                } else {
+                                    dstRow[c] = borderValue(src, x, y, col, row);
+                                }
+                        }
+                    }
+                    dstGrid.setRow(r, dstRow);
+                }
+            }
+        }, cancelFlag);
+
+        dst.invalidateStatistics();
+        return dst;
+    }
+
+    /**
+     * Bilinear interpolation of a grid. GeoGrid.getBilinearInterpol returns
+     * NaN on the last column and row, where the nearest neighbor is used
+     * instead.
+     */
+    private static float borderValue(GeoGrid src, double x, double y, int col, int row) {
+        if (col >= src.getCols() - 1 || row >= src.getRows() - 1) {
+            return src.getNearestNeighbor(x, y);
+        }
+        return src.getBilinearInterpol(x, y);
+    }
+
+    /**
+     * Warps an image. Pixels that are mapped outside of the source image are
+     * transparent.
+     * @param src The source image.
+     * @return A new image of type TYPE_INT_ARGB.
+     */
+    public GeoImage operate(final GeoImage src) {
+        if (src == null || src.getBufferedImage() == null) {
+            throw new IllegalArgumentException(getName() + ": invalid source image");
+        }
+        final int nCols = cols > 0 ? cols : src.getCols();
+        final int nRows = cols > 0 ? rows : src.getRows();
+        final double cs = cols > 0 ? cellSize : src.getCellSize();
+        final double dstWest = cols > 0 ? west : src.getWest();
+        final double dstNorth = cols > 0 ? north : src.getNorth();
+        final BufferedImage dstImage = new BufferedImage(nCols, nRows,
+                BufferedImage.TYPE_INT_ARGB);
+        final int[] dstPixels = ((DataBufferInt) dstImage.getRaster().getDataBuffer()).getData();
+
+        // positions of pixels are at the pixel centers
+        final Mesh mesh = new Mesh(dstWest + cs / 2, dstNorth - cs / 2, cs, nCols, nRows);
+        final double srcWest = src.getWest();
+        final double srcEast = src.getEast();
+        final double srcNorth = src.getNorth();
+        final double srcSouth = src.getSouth();
+        final double srcCellSize = src.getCellSize();
+        final int srcCols = src.getCols();
+        final int srcRows = src.getRows();
+        // GeoImage interpolates between pixels as if pixel values were
+        // located at the top left pixel corners
+        final double halfPixel = srcCellSize / 2;
+        getExecutor().execute(getName(), nRows, new GridExecutor.RowTask() {
+
+            public void run(int startRow, int endRow) {
+                final double[] xy = new double[nCols * 2];
+                for (int r = startRow; r < endRow; r++) {
+                    mesh.interpolateRow(r, xy);
+                    final int offset = r * nCols;
+                    for (int c = 0; c < nCols; c++) {
+                        final double x = xy[c * 2];
+                        final double y = xy[c * 2 + 1];
+                        if (!(x >= srcWest && x < srcEast && y > srcSouth && y <= srcNorth)) {
+                            dstPixels[offset + c] = 0;
+                            continue;
+                        }
+                        final double xc = Math.max(srcWest, x - halfPixel);
+                        final double yc = Math.min(srcNorth, y + halfPixel);
+                        final int col = (int) ((xc - srcWest) / srcCellSize);
+                        final int row = (int) ((srcNorth - yc) / srcCellSize);
+                        switch (interpolation) {
+                            case NEAREST_NEIGHBOR:
+                                dstPixels[offset + c] = src.getNearestNeighbor(x, y);
+                                break;
+                            case BILINEAR:
+                                // GeoImage.getBilinearInterpol blends with
+                                // black beyond the last column and row, where
+                                // the nearest neighbor is used instead
+                                if (col >= srcCols - 1 || row >= srcRows - 1) {
+                                    dstPixels[offset + c] = src.getNearestNeighbor(x, y);
+                                } else {
+                                    dstPixels[offset + c] = src.getBilinearInterpol(xc, yc);
+                                }
+                                break;
+                            default:
+                                // at borders, GeoImage.getBicubicInterpol uses
+                                // the nearest neighbor of the shifted position,
+                                // which is off by half a pixel
+                                if (col == 0 || col >= srcCols - 2
+                                        || row == 0 || row >= srcRows - 2) {
+                                    dstPixels[offset + c] = src.getNearestNeighbor(x, y);
+                                } else {
+                                    dstPixels[offset + c] = src.getBicubicInterpol(xc, yc);
+                                }
+                        }
+                    }
+                }
+            }
+        }, cancelFlag);
+
+        return new GeoImage(dstImage, dstWest, dstNorth, cs);
+    }
+
+    /**
+     * Positions in the source for a coarse mesh of destination cells.
+     */
+    private final class Mesh {
+
+        private final int step;
+        private final int meshCols, meshRows;
+
+        /**
+         * x-y pairs of the source positions of the mesh nodes, row by row.
+         */
+        private final double[] nodes;
+
+        /**
+         * Maps the nodes of the mesh.
+         * @param x0 The horizontal position of the first destination column.
+         * @param y0 The vertical position of the first destination row.
+         * @param cs The size of a destination cell.
+         * @param nCols The number of destination columns.
+         * @param nRows The number of destination rows.
+         */
+        Mesh(double x0, double y0, double cs, int nCols, int nRows) {
+            step = meshSpacing;
+            meshCols = (nCols - 1 + step - 1) / step + 1;
+            meshRows = (nRows - 1 + step - 1) / step + 1;
+            nodes = new double[meshCols * meshRows * 2];
+            int i = 0;
+            for (int r = 0; r < meshRows; r++) {
+                for (int c = 0; c < meshCols; c++) {
+                    nodes[i++] = x0 + c * step * cs;
+                    nodes[i++] = y0 - r * step * cs;
+                }
+            }
+            mapping.transform(nodes, meshCols * meshRows);
+        }
+
+        /**
+         * Computes the source positions of the cells of a destination row by
+         * bilinear interpolation between mesh nodes.
+         * @param row The destination row.
+         * @param xy Receives the x-y pairs.
+         */
+        void interpolateRow(int row, double[] xy) {
+            final int nCols = xy.length / 2;
+            final int r0 = Math.min(row / step, meshRows - 2);
+            final double fy = r0 < 0 ? 0 : (row - r0 * step) / (double) step;
+            final int top = Math.max(r0, 0) * meshCols * 2;
+            final int bottom = meshRows > 1 ? top + meshCols * 2 : top;
+            for (int c = 0; c < nCols; c++) {
+                final int c0 = Math.min(c / step, Math.max(meshCols - 2, 0));
+                final double fx = meshCols > 1 ? (c - c0 * step) / (double) step : 0;
+                final int c1 = meshCols > 1 ? c0 + 1 : c0;
+                for (int k = 0; k < 2; k++) {
+                    final double t = nodes[top + c0 * 2 + k]
+                            + fx * (nodes[top + c1 * 2 + k] - nodes[top + c0 * 2 + k]);
+                    final double b = nodes[bottom + c0 * 2 + k]
+                            + fx * (nodes[bottom + c1 * 2 + k] - nodes[bottom + c0 * 2 + k]);
+                    xy[c * 2 + k] = t + fy * (b - t);
+                }
+            }
+        }
+    }
+}
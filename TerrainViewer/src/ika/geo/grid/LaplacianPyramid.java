@@ -4,21 +4,43 @@ import ika.geo.GeoGrid;
 import ika.geoexport.ESRIASCIIGridExporter;
 import ika.utils.FileUtils;
 import java.io.IOException;
+import java.util.ArrayList;
 
 /**
+ * A Laplacian pyramid of a grid. Each level stores the difference between
+ * a level of a Gaussian pyramid and the expanded next smaller level; the
+ * smallest level stores the smallest Gaussian level.
+ *
+ * A pyramid has no static state, so that multiple pyramids can be used
+ * concurrently. Expansions, differences and sums are computed in parallel
+ * for bands of rows. Intermediate grids are recycled in a pool owned by the
+ * pyramid. The sum of levels can be limited to a range of levels or to a
+ * rectangular region, in which case only the cells contributing to the
+ * region are expanded.
  *
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich.
  */
 public class LaplacianPyramid {
 
-    public static GridMask mask; // a hack FIXME
+    /**
+     * Weights the high frequency bands in sumGrids(). Can be null.
+     */
+    private GridMask mask;
     private GeoGrid[] levels;
     private static final float wa = 0.4f;
     private static final float wb = 0.25f;
     private static final float wc = 0.05f;
 
+    /**
+     * Grids that are not used anymore and can be reused.
+     */
+    private final ArrayList<GeoGrid> gridPool = new ArrayList<GeoGrid>();
+
     public void createPyramid(GeoGrid[] gaussianPyramid) {
 
+        for (GeoGrid grid : gaussianPyramid) {
+            checkArrayBacked(grid);
+        }
         levels = new GeoGrid[gaussianPyramid.length];
 
         // store the smallest Gaussian grid in the Laplacian pyramid
@@ -31,122 +53,85 @@ public class LaplacianPyramid {
             GeoGrid nextLargerGrid = gaussianPyramid[i - 1];
 
             // expand the smaller grid to the size of the larger grid
-            GeoGrid expanded = LaplacianPyramid.expand(gaussianPyramid[i],
+            GeoGrid expanded = expand(gaussianPyramid[i],
                     nextLargerGrid.getCols(), nextLargerGrid.getRows());
 
-            // compute the difference
-            levels[i - 1] = LaplacianPyramid.difGrids(nextLargerGrid, expanded);
+            // compute the difference and store it in the expanded grid
+            levels[i - 1] = LaplacianPyramid.difGrids(nextLargerGrid, expanded, expanded);
         }
 
     }
 
-    private static void expandBorderColumns(GeoGrid src, float[][] dst) {
+    public GridMask getMask() {
+        return mask;
+    }
 
-        final int cols = src.getCols();
-        final int rows = src.getRows();
+    /**
+     * Sets the mask weighting the high frequency bands when levels are
+     * summed with sumLevels(curvatureGrids, ...).
+     * @param mask The mask or null.
+     */
+    public void setMask(GridMask mask) {
+        this.mask = mask;
+    }
 
-        // left column
-        for (int r = 0; r < rows; r++) {
-            float v0 = src.getValue(0, r);
-            float v1 = v0;
-            float v2 = src.getValue(1, r);
-            float vEven = 2.f * (wc * (v0 + v2) + wa * v1);
-            float vOdd = 2.f * wb * (v1 + v2);
-
-            if (Float.isNaN(vEven) || Float.isNaN(vOdd)) {
-                if (Float.isNaN(vEven) && Float.isNaN(vOdd)) {
-                    dst[r][0] = Float.NaN;
-                    dst[r][1] = Float.NaN;
-                } else {
-                    expandWithVoid(src.getGrid(), dst, 0, r, true);
+    /**
+     * Returns a grid from the pool of this pyramid, or a new grid if the pool
+     * contains no grid of the requested size. The values of the grid are
+     * undefined.
+     */
+    private GeoGrid acquireGrid(int cols, int rows, double cellSize) {
+        synchronized (gridPool) {
+            for (int i = gridPool.size() - 1; i >= 0; i--) {
+                GeoGrid grid = gridPool.get(i);
+                if (grid.getCols() == cols && grid.getRows() == rows) {
+                    gridPool.remove(i);
+                    grid.setCellSize(cellSize);
+                    return grid;
                 }
-            } else {
-                dst[r][0] = vEven;
-                dst[r][1] = vOdd;
             }
-
         }
+        return new GeoGrid(cols, rows, cellSize);
+    }
 
-        // right column
-        for (int r = 0; r < rows; r++) {
-            float v0 = src.getValue(cols - 2, r);
-            float v1 = src.getValue(cols - 1, r);
-            float v2 = v1;
-            float vEven = 2.f * (wc * (v0 + v2) + wa * v1);
-            float vOdd = 2.f * wb * (v1 + v2);
-            int c = (cols - 1) * 2;
-
-            if (Float.isNaN(vEven) || Float.isNaN(vOdd)) {
-                if (Float.isNaN(vEven) && Float.isNaN(vOdd)) {
-                    dst[r][c] = Float.NaN;
-                    dst[r][c + 1] = Float.NaN;
-                } else {
-                    expandWithVoid(src.getGrid(), dst, c, r, true);
-                }
-            } else {
-                dst[r][c] = vEven;
-                dst[r][c + 1] = vOdd;
-            }
+    /**
+     * Returns a grid to the pool of this pyramid. The grid must not be used
+     * anymore by the caller.
+     */
+    private void releaseGrid(GeoGrid grid) {
+        synchronized (gridPool) {
+            gridPool.add(grid);
         }
-
     }
 
-    private static void expandBorderRows(float[][] src, GeoGrid dstGeoGrid) {
-
-        final int cols = dstGeoGrid.getCols();
-        final int rows = dstGeoGrid.getRows();
-        final float[][] dstGrid = dstGeoGrid.getGrid();
-
-        // top row
-        for (int c = 0; c < cols; c++) {
-            float v0 = src[0][c];
-            float v1 = v0;
-            float v2 = src[1][c];
-            float vEven = 2.f * (wc * (v0 + v2) + wa * v1);
-            float vOdd = 2.f * wb * (v1 + v2);
-            if (Float.isNaN(vEven) || Float.isNaN(vOdd)) {
-                if (Float.isNaN(vEven) && Float.isNaN(vOdd)) {
-                    dstGrid[0][c] = Float.NaN;
-                    dstGrid[1][c] = Float.NaN;
-                } else {
-                    expandWithVoid(dstGeoGrid.getGrid(), dstGrid, c, 0, false);
-                }
-            } else {
-                dstGrid[0][c] = vEven;
-                dstGrid[1][c] = vOdd;
-            }
-
+    /**
+     * Throws an exception if a grid is not stored in Java arrays.
+     */
+    private static void checkArrayBacked(GeoGrid grid) {
+        if (grid != null && !grid.isArrayBacked()) {
+            throw new UnsupportedOperationException("Laplacian Pyramid: grid must be stored in an array");
         }
+    }
 
-        // bottom row
-        for (int c = 0; c < cols; c++) {
-            float v0 = src[rows / 2 - 2][c];
-            float v1 = src[rows / 2 - 1][c];
-            float v2 = v1;
-            float vEven = 2.f * (wc * (v0 + v2) + wa * v1);
-            float vOdd = 2.f * wb * (v1 + v2);
-            if (Float.isNaN(vEven) || Float.isNaN(vOdd)) {
-                if (Float.isNaN(vEven) && Float.isNaN(vOdd)) {
-                    dstGrid[rows - 2][c] = Float.NaN;
-                    dstGrid[rows - 1][c] = Float.NaN;
-                } else {
-                    expandWithVoid(dstGeoGrid.getGrid(), dstGrid, c, rows - 2, false);
-                }
-            } else {
-                dstGrid[rows - 2][c] = vEven;
-                dstGrid[rows - 1][c] = vOdd;
-            }
+    /**
+     * Releases all grids in the pool of this pyramid.
+     */
+    public void clearPool() {
+        synchronized (gridPool) {
+            gridPool.clear();
         }
     }
-    private static float[][] tempGrid = null;
 
     /**
      * Expand the size of a grid by a factor 2.
      * @param geoGrid The grid to expand.
-     * @return
+     * @param maxCols The maximum number of columns of the expanded grid.
+     * @param maxRows The maximum number of rows of the expanded grid.
+     * @return A new grid.
      */
-    public static GeoGrid expand(GeoGrid geoGrid, int maxCols, int maxRows) {
+    public GeoGrid expand(GeoGrid geoGrid, int maxCols, int maxRows) {
 
+        checkArrayBacked(geoGrid);
         final int cols = geoGrid.getCols();
         final int rows = geoGrid.getRows();
 
@@ -154,81 +139,101 @@ public class LaplacianPyramid {
         final int newCols = Math.min(maxCols, cols * 2);
         final int newRows = Math.min(maxRows, rows * 2);
 
-        GeoGrid expandedGrid = new GeoGrid(newCols, newRows, geoGrid.getCellSize() / 2);
+        GeoGrid expandedGrid = acquireGrid(newCols, newRows, geoGrid.getCellSize() / 2);
         expandedGrid.setWest(geoGrid.getWest());
         expandedGrid.setNorth(geoGrid.getNorth());
+        expand(geoGrid, 0, 0, cols, rows, expandedGrid, 0, 0);
+        return expandedGrid;
+    }
 
-        // tempGrid holds an intermediate grid that is expanded horizontally, 
-        // but not vertically.
-        if (tempGrid == null || tempGrid.length < rows) {
-            tempGrid = new float[rows][cols * 2];
-        }
+    /**
+     * Expands a rectangular section of a grid by a factor 2.
+     * @param src A section of a grid. Must contain all cells that are
+     * required for the destination section.
+     * @param srcCol0 The column of the first cell of the section.
+     * @param srcRow0 The row of the first cell of the section.
+     * @param cols The number of columns of the entire grid.
+     * @param rows The number of rows of the entire grid.
+     * @param dst Receives a section of the expanded grid.
+     * @param dstCol0 The column in the expanded grid of the first cell of dst.
+     * @param dstRow0 The row in the expanded grid of the first cell of dst.
+     */
+    private void expand(GeoGrid src, final int srcCol0, final int srcRow0,
+            final int cols, final int rows,
+            GeoGrid dst, final int dstCol0, final int dstRow0) {
 
-        LaplacianPyramid.expandBorderColumns(geoGrid, tempGrid);
-        for (int r = 0; r < rows; r++) {
-            final float[] tempGridRow = tempGrid[r];
-            for (int c = 1; c < cols - 1; c++) {
-                final float v0 = geoGrid.getValue(c - 1, r);
-                final float v1 = geoGrid.getValue(c, r);
-                final float v2 = geoGrid.getValue(c + 1, r);
-                final float vEven = 2.f * (wc * (v0 + v2) + wa * v1);
-                final float vOdd = 2.f * wb * (v1 + v2);
-                if (Float.isNaN(vEven) || Float.isNaN(vOdd)) {
-                    if (Float.isNaN(vEven) && Float.isNaN(vOdd)) {
-                        tempGridRow[c * 2] = Float.NaN;
-                        tempGridRow[c * 2 + 1] = Float.NaN;
-                    } else {
-                        expandWithVoid(geoGrid.getGrid(), tempGrid, c, r, true);
+        final float[][] srcGrid = src.getGrid();
+        final float[][] dstGrid = dst.getGrid();
+        final int dstCols = dst.getCols();
+
+        // tempGrid holds an intermediate grid that is expanded horizontally,
+        // but not vertically.
+        final GeoGrid tempGeoGrid = acquireGrid(dstCols, src.getRows(), dst.getCellSize());
+        final float[][] tempGrid = tempGeoGrid.getGrid();
+
+        GridExecutor.getDefault().execute("Expand Horizontally", src.getRows(), new GridExecutor.RowTask() {
+
+            public void run(int startRow, int endRow) {
+                for (int r = startRow; r < endRow; r++) {
+                    final float[] srcRow = srcGrid[r];
+                    final float[] tempGridRow = tempGrid[r];
+                    for (int c = 0; c < dstCols; c++) {
+                        final int col = (dstCol0 + c) / 2;
+                        final float v0 = srcRow[Math.max(0, col - 1) - srcCol0];
+                        final float v1 = srcRow[col - srcCol0];
+                        final float v2 = srcRow[Math.min(cols - 1, col + 1) - srcCol0];
+                        tempGridRow[c] = expand(v0, v1, v2, (dstCol0 + c) % 2 == 0);
                     }
-                } else {
-                    tempGridRow[c * 2] = vEven;
-                    tempGridRow[c * 2 + 1] = vOdd;
                 }
             }
-        }
-
-        LaplacianPyramid.expandBorderRows(tempGrid, expandedGrid);
-        for (int r = 1; r < rows - 1; r++) {
-            for (int c = 0; c < newCols; c++) {
-
-                final float v0 = tempGrid[r - 1][c]; //tempGrid[(r - 1) * cols * 2 + c];
-                final float v1 = tempGrid[r][c];
-                final float v2 = tempGrid[r + 1][c];
-                final float vEven = 2.f * (wc * (v0 + v2) + wa * v1);
-                final float vOdd = 2.f * wb * (v1 + v2);
-                if (Float.isNaN(vEven) || Float.isNaN(vOdd)) {
-                    if (Float.isNaN(vEven) && Float.isNaN(vOdd)) {
-                        expandedGrid.setValue(Float.NaN, c, 2 * r);
-                        expandedGrid.setValue(Float.NaN, c, 2 * r + 1);
-                    } else {
-                        expandWithVoid(tempGrid, expandedGrid.getGrid(), c / 2, r, false);
+        });
+
+        GridExecutor.getDefault().execute("Expand Vertically", dst.getRows(), new GridExecutor.RowTask() {
+
+            public void run(int startRow, int endRow) {
+                for (int r = startRow; r < endRow; r++) {
+                    final int row = (dstRow0 + r) / 2;
+                    final boolean even = (dstRow0 + r) % 2 == 0;
+                    final float[] row0 = tempGrid[Math.max(0, row - 1) - srcRow0];
+                    final float[] row1 = tempGrid[row - srcRow0];
+                    final float[] row2 = tempGrid[Math.min(rows - 1, row + 1) - srcRow0];
+                    final float[] dstRow = dstGrid[r];
+                    for (int c = 0; c < dstCols; c++) {
+                        dstRow[c] = expand(row0[c], row1[c], row2[c], even);
                     }
-                } else {
-                    expandedGrid.setValue(vEven, c, 2 * r);
-                    expandedGrid.setValue(vOdd, c, 2 * r + 1);
                 }
             }
-        }
+        });
 
-        return expandedGrid;
+        releaseGrid(tempGeoGrid);
     }
 
-    private static void expandWithVoid(float[][] srcGrid,
-            float[][] expandedGrid,
-            int c,
-            int r,
-            boolean horizontal) {
-
-        final float v0, v1, v2;
-        if (horizontal) {
-            v0 = srcGrid[r][c - 1];
-            v1 = srcGrid[r][c];
-            v2 = srcGrid[r][c + 1];
-        } else {
-            v0 = srcGrid[r - 1][c];
-            v1 = srcGrid[r][c];
-            v2 = srcGrid[r + 1][c];
+    /**
+     * Computes an expanded value from three neighboring values. Cells outside
+     * the grid are replaced by the closest border cell.
+     * @param v0 The value before the central value.
+     * @param v1 The central value.
+     * @param v2 The value after the central value.
+     * @param even If true, the value at the position of v1 is computed,
+     * otherwise the value between v1 and v2.
+     */
+    private static float expand(float v0, float v1, float v2, boolean even) {
+        final float vEven = 2.f * (wc * (v0 + v2) + wa * v1);
+        final float vOdd = 2.f * wb * (v1 + v2);
+        if (Float.isNaN(vEven) || Float.isNaN(vOdd)) {
+            if (Float.isNaN(vEven) && Float.isNaN(vOdd)) {
+                return Float.NaN;
+            }
+            return expandWithVoid(v0, v1, v2, even);
         }
+        return even ? vEven : vOdd;
+    }
+
+    /**
+     * Computes an expanded value from three neighboring values, some of which
+     * are void. The weights of the valid values are normalized.
+     */
+    private static float expandWithVoid(float v0, float v1, float v2, boolean even) {
 
         float vEven = 0f;
         float vOdd = 0f;
@@ -263,13 +268,7 @@ public class LaplacianPyramid {
 
         vEven *= 2f * scaleEven;
         vOdd *= 2f * scaleOdd;
-        if (horizontal) {
-            expandedGrid[r][c * 2] = vEven;
-            expandedGrid[r][c * 2 + 1] = vOdd;
-        } else {
-            expandedGrid[r * 2][c] = vEven;
-            expandedGrid[r * 2 + 1][c] = vOdd;
-        }
+        return even ? vEven : vOdd;
     }
 
     public static GeoGrid distanceWeightedScaling(GeoGrid geoGrid,
@@ -277,6 +276,7 @@ public class LaplacianPyramid {
             float wBack,
             Interpolator interpolator) {
 
+        checkArrayBacked(geoGrid);
         final int cols = geoGrid.getCols();
         final int rows = geoGrid.getRows();
         GeoGrid resGrid = new GeoGrid(cols, rows, geoGrid.getCellSize());
@@ -329,35 +329,32 @@ public class LaplacianPyramid {
      * @param interpolator
      * @param pyramidLevel
      */
-    public static void sumGrids(GeoGrid lowFreqSum,
-            GeoGrid highFreq,
-            GeoGrid highFreqCurvatureGrid,
-            float wForeground,
-            float wRidgesForeground,
-            float wValleysForeground,
-            float wBackground,
-            float wRidgesBackground,
-            float wValleysBackground,
+    public void sumGrids(GeoGrid lowFreqSum,
+            final GeoGrid highFreq,
+            final GeoGrid highFreqCurvatureGrid,
+            final float wForeground,
+            final float wRidgesForeground,
+            final float wValleysForeground,
+            final float wBackground,
+            final float wRidgesBackground,
+            final float wValleysBackground,
             double ridgesWeeding,
-            double valleysWeeding,
-            Interpolator interpolator,
-            int pyramidLevel) {
+            final double valleysWeeding,
+            final Interpolator interpolator,
+            final int pyramidLevel) {
 
         if (!lowFreqSum.hasSameExtensionAndResolution(highFreq)) {
             throw new IllegalArgumentException("grids of different size");
         }
+        checkArrayBacked(lowFreqSum);
+        checkArrayBacked(highFreq);
+        checkArrayBacked(highFreqCurvatureGrid);
 
         final int cols = lowFreqSum.getCols();
         final int rows = lowFreqSum.getRows();
 
         if (highFreqCurvatureGrid == null) {
-            for (int r = 0; r < rows; r++) {
-                final float[] g1row = lowFreqSum.getGrid()[r];
-                final float[] g2row = highFreq.getGrid()[r];
-                for (int c = 0; c < cols; c++) {
-                    lowFreqSum.setValue(g1row[c] + g2row[c], c, r);
-                }
-            }
+            addGrids(lowFreqSum.getGrid(), highFreq.getGrid(), 0, 0);
         } else {
 
             // The basic idea is to only add ridge and valley details, where
@@ -381,76 +378,108 @@ public class LaplacianPyramid {
                 lowFreqRidgesPlanCurv = gaussOp.operate(lowFreqPlanCurv);
             }
             
-            for (int r = 0; r < rows; r++) {
-                final float[] lowFreqSumRow = lowFreqSum.getGrid()[r];
-                final float[] highFreqRow = highFreq.getGrid()[r];
-                for (int c = 0; c < cols; c++) {
-
-                    // interpolate weights for ridges, vallyes and the global 
-                    // terrain between the foreground and the background to adjust
-                    // the level of generalization to the distance from the viewer.
-                    float wRidges = interpolator.interpolateWeight(wRidgesForeground, wRidgesBackground, c, r, cols, rows);
-                    float wValleys = interpolator.interpolateWeight(wValleysForeground, wValleysBackground, c, r, cols, rows);
-                    float wFreqBand = interpolator.interpolateWeight(wForeground, wBackground, c, r, cols, rows);
-
-                    // decide whether to use the weight for ridges or for
-                    // valleys. Use the ridges weight if the current pixel is
-                    // on a ridge, and vice versa.
-                    final float wRidgeOrValley;
-                    float curv = highFreqCurvatureGrid.getValue(c, r);
-                    if (curv < 0 && wRidges > 0) {
-                        wRidgeOrValley = wRidges;
-                    } else if (curv > 0 && wValleys > 0) {
-                        wRidgeOrValley = wValleys;
-                    } else {
-                        wRidgeOrValley = 0;
+            final GridMask mask = this.mask;
+            final float[][] lowFreqSumGrid = lowFreqSum.getGrid();
+            final GeoGrid ridgesPlanCurv = lowFreqRidgesPlanCurv;
+            final GeoGrid valleysPlanCurv = lowFreqValleysPlanCurv;
+            GridExecutor.getDefault().execute("Sum Grids", rows, new GridExecutor.RowTask() {
+
+                public void run(int startRow, int endRow) {
+                    for (int r = startRow; r < endRow; r++) {
+                        final float[] lowFreqSumRow = lowFreqSumGrid[r];
+                        final float[] highFreqRow = highFreq.getGrid()[r];
+                        for (int c = 0; c < cols; c++) {
+
+                            // interpolate weights for ridges, vallyes and the global 
+                            // terrain between the foreground and the background to adjust
+                            // the level of generalization to the distance from the viewer.
+                            float wRidges = interpolator.interpolateWeight(wRidgesForeground, wRidgesBackground, c, r, cols, rows);
+                            float wValleys = interpolator.interpolateWeight(wValleysForeground, wValleysBackground, c, r, cols, rows);
+                            float wFreqBand = interpolator.interpolateWeight(wForeground, wBackground, c, r, cols, rows);
+
+                            // decide whether to use the weight for ridges or for
+                            // valleys. Use the ridges weight if the current pixel is
+                            // on a ridge, and vice versa.
+                            final float wRidgeOrValley;
+                            float curv = highFreqCurvatureGrid.getValue(c, r);
+                            if (curv < 0 && wRidges > 0) {
+                                wRidgeOrValley = wRidges;
+                            } else if (curv > 0 && wValleys > 0) {
+                                wRidgeOrValley = wValleys;
+                            } else {
+                                wRidgeOrValley = 0;
+                            }
+
+                            // add more of the high frequency band where the terrain, as
+                            // accumulated previously, has higher curvature values.
+                            float wLowFreqCurv;
+                            if (curv < 0) {
+                                wLowFreqCurv = ridgesPlanCurv.getValue(c, r);
+                            } else {
+                                wLowFreqCurv = valleysPlanCurv.getValue(c, r);
+                            }
+
+                            // do some heuristic scaling and transformation.
+                            // Scale by -200 to bring curvature values of high-frequency
+                            // bands to values around 3.
+                            wLowFreqCurv *= -200;
+                            //wLowFreqCurv = (float) (Math.sqrt(Math.abs(wLowFreqCurv)));
+
+                            // adjust the influence of the curvature of the low frequency
+                            // sum with the pow function.
+                            // valleysWeeding is abused here: FIXME
+                            // exponent in (0...1]
+                            wLowFreqCurv = (float) (pow(Math.abs(wLowFreqCurv), valleysWeeding / 10d));
+                    
+                            // compute influence of mask
+                            final float wMask;
+                            if (mask == null) {
+                                wMask = 1f;
+                            } else {
+                                wMask = mask.getWeight(c, r, pyramidLevel);
+                            }
+
+                            // compute the weight of the new high-frequency band.
+                            // If the mask is 0, the frequency band is added without any
+                            // weighting, i.e. no filtering is applied to the frequency
+                            // band.
+                            // If the mask is between 0 and 1, the resulting weight is
+                            // larger or smaller than 1.
+                            // If the mask is 1 (i.e. no masking) the resulting weight
+                            // is equal to the sum of wFreqBand + wRidgeOrValley * wLowFreqCurv
+                            float w = 1 + (wFreqBand + wRidgeOrValley * wLowFreqCurv - 1) * wMask;
+
+                            // compute the accumulated value
+                            lowFreqSumRow[c] = lowFreqSumRow[c] + highFreqRow[c] * w;
+                        }
                     }
+                }
+            });
+        }
 
-                    // add more of the high frequency band where the terrain, as
-                    // accumulated previously, has higher curvature values.
-                    float wLowFreqCurv;
-                    if (curv < 0) {
-                        wLowFreqCurv = lowFreqRidgesPlanCurv.getValue(c, r);
-                    } else {
-                        wLowFreqCurv = lowFreqValleysPlanCurv.getValue(c, r);
-                    }
+    }
 
-                    // do some heuristic scaling and transformation.
-                    // Scale by -200 to bring curvature values of high-frequency
-                    // bands to values around 3.
-                    wLowFreqCurv *= -200;
-                    //wLowFreqCurv = (float) (Math.sqrt(Math.abs(wLowFreqCurv)));
-
-                    // adjust the influence of the curvature of the low frequency
-                    // sum with the pow function.
-                    // valleysWeeding is abused here: FIXME
-                    // exponent in (0...1]
-                    wLowFreqCurv = (float) (pow(Math.abs(wLowFreqCurv), valleysWeeding / 10d));
-                    
-                    // compute influence of mask
-                    final float wMask;
-                    if (mask == null) {
-                        wMask = 1f;
-                    } else {
-                        wMask = mask.getWeight(c, r, pyramidLevel);
+    /**
+     * Adds a section of a grid to another grid.
+     * @param dst The grid that is changed.
+     * @param src The grid to add.
+     * @param srcCol0 The column in src of the first column of dst.
+     * @param srcRow0 The row in src of the first row of dst.
+     */
+    private static void addGrids(final float[][] dst, final float[][] src,
+            final int srcCol0, final int srcRow0) {
+        GridExecutor.getDefault().execute("Sum Grids", dst.length, new GridExecutor.RowTask() {
+
+            public void run(int startRow, int endRow) {
+                for (int r = startRow; r < endRow; r++) {
+                    final float[] dstRow = dst[r];
+                    final float[] srcRow = src[r + srcRow0];
+                    for (int c = 0; c < dstRow.length; c++) {
+                        dstRow[c] += srcRow[c + srcCol0];
                     }
-
-                    // compute the weight of the new high-frequency band.
-                    // If the mask is 0, the frequency band is added without any
-                    // weighting, i.e. no filtering is applied to the frequency
-                    // band.
-                    // If the mask is between 0 and 1, the resulting weight is
-                    // larger or smaller than 1.
-                    // If the mask is 1 (i.e. no masking) the resulting weight
-                    // is equal to the sum of wFreqBand + wRidgeOrValley * wLowFreqCurv
-                    float w = 1 + (wFreqBand + wRidgeOrValley * wLowFreqCurv - 1) * wMask;
-
-                    // compute the accumulated value
-                    lowFreqSumRow[c] = lowFreqSumRow[c] + highFreqRow[c] * w;
                 }
             }
-        }
-
+        });
     }
 
     private static boolean pointInFlatArea(GeoGrid grid, int col, int row, double minVertDiff) {
@@ -491,25 +520,51 @@ public class LaplacianPyramid {
      * @return
      */
     public static GeoGrid difGrids(GeoGrid grid1, GeoGrid grid2) {
+        GeoGrid difGrid = new GeoGrid(grid1.getCols(), grid1.getRows(), grid1.getCellSize());
+        return difGrids(grid1, grid2, difGrid);
+    }
+
+    /**
+     * Compute the difference between two grids.
+     * @param grid1
+     * @param grid2
+     * @param difGrid Receives the difference. Can be grid1 or grid2.
+     * @return difGrid
+     */
+    public static GeoGrid difGrids(GeoGrid grid1, GeoGrid grid2, GeoGrid difGrid) {
 
         if (!grid1.hasSameExtensionAndResolution(grid2)) {
             throw new IllegalArgumentException("grids of different size");
         }
+        if (difGrid.getCols() != grid1.getCols() || difGrid.getRows() != grid1.getRows()) {
+            throw new IllegalArgumentException("grids of different size");
+        }
+        checkArrayBacked(grid1);
+        checkArrayBacked(grid2);
+        checkArrayBacked(difGrid);
 
         final int cols = grid1.getCols();
         final int rows = grid1.getRows();
-        GeoGrid difGrid = new GeoGrid(cols, rows, grid1.getCellSize());
         difGrid.setCellSize(grid1.getCellSize());
         difGrid.setWest(grid1.getWest());
         difGrid.setNorth(grid1.getNorth());
 
-        for (int r = 0; r < rows; r++) {
-            for (int c = 0; c < cols; c++) {
-                final float v1 = grid1.getValue(c, r);
-                final float v2 = grid2.getValue(c, r);
-                difGrid.setValue(v1 - v2, c, r);
+        final float[][] g1 = grid1.getGrid();
+        final float[][] g2 = grid2.getGrid();
+        final float[][] dst = difGrid.getGrid();
+        GridExecutor.getDefault().execute("Difference", rows, new GridExecutor.RowTask() {
+
+            public void run(int startRow, int endRow) {
+                for (int r = startRow; r < endRow; r++) {
+                    final float[] row1 = g1[r];
+                    final float[] row2 = g2[r];
+                    final float[] dstRow = dst[r];
+                    for (int c = 0; c < cols; c++) {
+                        dstRow[c] = row1[c] - row2[c];
+                    }
+                }
             }
-        }
+        });
 
         return difGrid;
     }
@@ -519,18 +574,103 @@ public class LaplacianPyramid {
      * @return
      */
     public GeoGrid sumLevels() {
+        GeoGrid grid = levels[0];
+        return sumLevels(0, levels.length - 1, 0, 0, grid.getCols(), grid.getRows());
+    }
+
+    /**
+     * Sums a range of levels of the pyramid. If the smallest level is not
+     * included, the sum is a band-pass filtered version of the original grid.
+     * @param firstLevel The largest level to include.
+     * @param lastLevel The smallest level to include.
+     * @return A grid of the size of firstLevel.
+     */
+    public GeoGrid sumLevels(int firstLevel, int lastLevel) {
+        GeoGrid grid = levels[firstLevel];
+        return sumLevels(firstLevel, lastLevel, 0, 0, grid.getCols(), grid.getRows());
+    }
 
-        // copy the smallest grid of the pyramid
-        GeoGrid sum = this.levels[this.levels.length - 1].clone();
+    /**
+     * Sums a range of levels of the pyramid for a rectangular region. Only
+     * cells of smaller levels that contribute to the region are expanded.
+     * The result is identical to the corresponding section of the sum of
+     * the entire levels.
+     * @param firstLevel The largest level to include.
+     * @param lastLevel The smallest level to include.
+     * @param col The first column of the region in firstLevel.
+     * @param row The first row of the region in firstLevel.
+     * @param nCols The number of columns of the region.
+     * @param nRows The number of rows of the region.
+     * @return A grid with nCols x nRows cells.
+     */
+    public GeoGrid sumLevels(int firstLevel, int lastLevel,
+            int col, int row, int nCols, int nRows) {
 
-        // expand the sum and and add the next larger grids
-        for (int i = this.levels.length - 2; i >= 0; i--) {
-            GeoGrid grid = this.levels[i];
-            sum = LaplacianPyramid.expand(sum, grid.getCols(), grid.getRows());
-            LaplacianPyramid.sumGrids(sum, grid, null, 1, 0, 0, 1, 0, 0, 0, 0, null, i);
+        if (firstLevel < 0 || lastLevel >= levels.length || firstLevel > lastLevel) {
+            throw new IllegalArgumentException("invalid pyramid levels");
+        }
+        GeoGrid firstGrid = levels[firstLevel];
+        if (col < 0 || row < 0 || nCols <= 0 || nRows <= 0
+                || col + nCols > firstGrid.getCols()
+                || row + nRows > firstGrid.getRows()) {
+            throw new IllegalArgumentException("invalid region");
         }
+
+        // compute the region required at each level. Expanding a cell uses
+        // the neighboring cells of the smaller level.
+        final int nLevels = lastLevel - firstLevel + 1;
+        int[] col0 = new int[nLevels];
+        int[] row0 = new int[nLevels];
+        int[] col1 = new int[nLevels];
+        int[] row1 = new int[nLevels];
+        col0[0] = col;
+        row0[0] = row;
+        col1[0] = col + nCols;
+        row1[0] = row + nRows;
+        for (int i = 1; i < nLevels; i++) {
+            GeoGrid grid = levels[firstLevel + i];
+            col0[i] = Math.max(0, col0[i - 1] / 2 - 1);
+            row0[i] = Math.max(0, row0[i - 1] / 2 - 1);
+            col1[i] = Math.min(grid.getCols(), (col1[i - 1] - 1) / 2 + 2);
+            row1[i] = Math.min(grid.getRows(), (row1[i - 1] - 1) / 2 + 2);
+        }
+
+        // copy the region of the smallest level
+        int i = nLevels - 1;
+        GeoGrid sum = section(levels[lastLevel], col0[i], row0[i],
+                col1[i] - col0[i], row1[i] - row0[i]);
+
+        // expand the sum and add the regions of the next larger levels
+        for (i = nLevels - 2; i >= 0; i--) {
+            GeoGrid grid = levels[firstLevel + i];
+            GeoGrid smallerGrid = levels[firstLevel + i + 1];
+            GeoGrid expanded = acquireGrid(col1[i] - col0[i], row1[i] - row0[i], grid.getCellSize());
+            expanded.setWest(grid.getWest() + col0[i] * grid.getCellSize());
+            expanded.setNorth(grid.getNorth() - row0[i] * grid.getCellSize());
+            expand(sum, col0[i + 1], row0[i + 1], smallerGrid.getCols(), smallerGrid.getRows(),
+                    expanded, col0[i], row0[i]);
+            addGrids(expanded.getGrid(), grid.getGrid(), col0[i], row0[i]);
+            releaseGrid(sum);
+            sum = expanded;
+        }
+
         return sum;
+    }
 
+    /**
+     * Returns a copy of a rectangular section of a grid. The copy is taken
+     * from the pool of this pyramid.
+     */
+    private GeoGrid section(GeoGrid grid, int col, int row, int nCols, int nRows) {
+        GeoGrid copy = acquireGrid(nCols, nRows, grid.getCellSize());
+        copy.setWest(grid.getWest() + col * grid.getCellSize());
+        copy.setNorth(grid.getNorth() - row * grid.getCellSize());
+        final float[][] src = grid.getGrid();
+        final float[][] dst = copy.getGrid();
+        for (int r = 0; r < nRows; r++) {
+            System.arraycopy(src[row + r], col, dst[r], 0, nCols);
+        }
+        return copy;
     }
 
     /**
@@ -573,10 +713,12 @@ public class LaplacianPyramid {
             // expand current sum to size of next larger level in the pyramid
             int cols = nextLargerGrid.getCols();
             int rows = nextLargerGrid.getRows();
-            sum = LaplacianPyramid.expand(sum, cols, rows);
+            GeoGrid expanded = expand(sum, cols, rows);
+            releaseGrid(sum);
+            sum = expanded;
 
             // sum the expanded grid with the next larger level
-            LaplacianPyramid.sumGrids(sum,
+            sumGrids(sum,
                     nextLargerGrid,
                     curvatureGrids[i],
                     wForeground[wID],
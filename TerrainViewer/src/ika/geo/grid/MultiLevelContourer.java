@@ -0,0 +1,836 @@
+package ika.geo.grid;
+
+import ika.geo.GeoGrid;
+import ika.geo.GeoPath;
+import ika.geo.GeoSet;
+import ika.geo.VectorSymbol;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Computes contour lines for a series of equidistant levels with marching
+ * squares. Unlike Contourer, which sweeps the grid once per level, this
+ * contourer visits each cell once and only processes the levels between the
+ * minimum and the maximum of the cell, which are found from the level
+ * interval.
+ *
+ * Segments are joined to lines while the grid is swept. A line is passed to
+ * a ContourSink as soon as both of its ends lie on processed cells, so only
+ * lines crossing the current row are kept in memory. Bands of rows are
+ * contoured in parallel; lines ending on the border between two bands are
+ * joined after all bands are processed.
+ *
+ * Cells with a void corner are not contoured. Saddle cells are resolved with
+ * the mean of the four corners.
+ *
+ * @author jenny
+ */
+public class MultiLevelContourer {
+
+    /**
+     * Minimum number of rows of cells in a band. Lines crossing the border
+     * between bands are stitched sequentially, so bands should not be too
+     * small.
+     */
+    private static final int MIN_BAND_ROWS = 64;
+    /**
+     * Number of bands per thread.
+     */
+    private static final int BANDS_PER_THREAD = 4;
+    /**
+     * States of line ends.
+     */
+    private static final int TERMINAL = 0;
+    private static final int PENDING = 1;
+    private static final int SEAM = 2;
+    private double interval = 10;
+    private VectorSymbol vectorSymbol;
+
+    public MultiLevelContourer() {
+        this.vectorSymbol = new VectorSymbol();
+        this.vectorSymbol.setFilled(false);
+        this.vectorSymbol.setScaleInvariant(true);
+        this.vectorSymbol.setStrokeWidth(1);
+    }
+
+    public String getName() {
+        return "Multi-Level Contourer";
+    }
+
+    public double getInterval() {
+        return interval;
+    }
+
+    public void setInterval(double interval) {
+        if (!(interval > 0)) {
+            throw new IllegalArgumentException("contour interval must be positive");
+        }
+        this.interval = interval;
+    }
+
+    public VectorSymbol getVectorSymbol() {
+        return vectorSymbol;
+    }
+
+    public void setVectorSymbol(VectorSymbol vectorSymbol) {
+        this.vectorSymbol = vectorSymbol;
+    }
+
+    /**
+     * Returns the contour lines for all multiples of the interval between
+     * the minimum and the maximum of the grid.
+     * @param geoGrid The grid.
+     * @return A GeoSet with a GeoSet of GeoPaths for each level.
+     */
+    public GeoSet operate(GeoGrid geoGrid) {
+        float[] minMax = geoGrid.getMinMax();
+        final double firstContourLevel = Math.ceil(minMax[0] / interval) * interval;
+        return operate(geoGrid, firstContourLevel, minMax[1]);
+    }
+
+    /**
+     * Returns the contour lines for a series of levels.
+     * @param geoGrid The grid.
+     * @param firstContourLevel The lowest level.
+     * @param lastContourLevel The highest level.
+     * @return A GeoSet with a GeoSet of GeoPaths for each level, ordered by
+     * increasing level.
+     */
+    public GeoSet operate(GeoGrid geoGrid, final double firstContourLevel,
+            double lastContourLevel) {
+
+        final int nLevels = Math.max(0, countLevels(firstContourLevel, lastContourLevel));
+        final GeoSet[] levelGeoSets = new GeoSet[nLevels];
+        for (int i = 0; i < nLevels; i++) {
+            levelGeoSets[i] = new GeoSet();
+            levelGeoSets[i].setName(Double.toString(firstContourLevel + i * interval));
+        }
+
+        try {
+            contour(geoGrid, firstContourLevel, lastContourLevel, new ContourSink() {
+
+                public void contour(double level, double[] xy, boolean closed) {
+                    GeoPath geoPath = new GeoPath();
+                    geoPath.moveTo(xy[0], xy[1]);
+                    for (int i = 2; i < xy.length; i += 2) {
+                        geoPath.lineTo(xy[i], xy[i + 1]);
+                    }
+                    if (closed) {
+                        geoPath.closePath();
+                    }
+                    geoPath.setVectorSymbol(vectorSymbol);
+                    int i = (int) Math.round((level - firstContourLevel) / interval);
+                    levelGeoSets[i].add(geoPath);
+                }
+            });
+        } catch (IOException ex) {
+            // the sink does not throw
+            throw new IllegalStateException(ex);
+        }
+
+        GeoSet geoSet = new GeoSet();
+        for (int i = 0; i < nLevels; i++) {
+            geoSet.add(levelGeoSets[i]);
+        }
+        return geoSet;
+    }
+
+    /**
+     * Passes the contour lines for all multiples of the interval between the
+     * minimum and the maximum of the grid to a sink.
+     * @param geoGrid The grid.
+     * @param sink The sink receiving the lines.
+     * @throws IOException If the sink throws an exception.
+     */
+    public void contour(GeoGrid geoGrid, ContourSink sink) throws IOException {
+        float[] minMax = geoGrid.getMinMax();
+        final double firstContourLevel = Math.ceil(minMax[0] / interval) * interval;
+        contour(geoGrid, firstContourLevel, minMax[1], sink);
+    }
+
+    /**
+     * Passes the contour lines for a series of levels to a sink. The sink is
+     * called by multiple threads, but never concurrently.
+     * @param geoGrid The grid.
+     * @param firstContourLevel The lowest level.
+     * @param lastContourLevel The highest level.
+     * @param sink The sink receiving the lines.
+     * @throws IOException If the sink throws an exception.
+     */
+    public void contour(GeoGrid geoGrid, double firstContourLevel,
+            double lastContourLevel, ContourSink sink) throws IOException {
+
+        if (geoGrid == null || sink == null) {
+            throw new IllegalArgumentException();
+        }
+        final int nLevels = countLevels(firstContourLevel, lastContourLevel);
+        if (nLevels <= 0 || geoGrid.getCols() < 2 || geoGrid.getRows() < 2) {
+            return;
+        }
+
+        final GridExecutor executor = GridExecutor.getDefault();
+        final int cellRows = geoGrid.getRows() - 1;
+        final int nTargetBands = executor.getParallelism() * BANDS_PER_THREAD;
+        final int bandRows = Math.max(MIN_BAND_ROWS,
+                (cellRows + nTargetBands - 1) / nTargetBands);
+        contour(geoGrid, firstContourLevel, nLevels, bandRows, sink);
+    }
+
+    private int countLevels(double firstContourLevel, double lastContourLevel) {
+        final double n = Math.floor((lastContourLevel - firstContourLevel) / interval) + 1;
+        if (n > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("too many contour levels");
+        }
+        return (int) n;
+    }
+
+    /**
+     * Contours bands of rows in parallel and joins lines crossing the borders
+     * between bands.
+     */
+    void contour(GeoGrid geoGrid, double firstContourLevel, int nLevels,
+            int bandRows, ContourSink sink) throws IOException {
+
+        final Job job = new Job(geoGrid, firstContourLevel, interval, nLevels, sink);
+        final int nBands = (job.cellRows + bandRows - 1) / bandRows;
+        final Band[] bands = new Band[nBands];
+        final int rowsPerBand = bandRows;
+        GridExecutor.getDefault().executeIO(getName(), nBands, new GridExecutor.RowTask() {
+
+            public void run(int startBand, int endBand) throws IOException {
+                for (int b = startBand; b < endBand; b++) {
+                    final int r0 = b * rowsPerBand;
+                    final int r1 = Math.min(job.cellRows, r0 + rowsPerBand);
+                    Band band = new Band(job, r0, r1);
+                    band.contour();
+                    bands[b] = band;
+                }
+            }
+        }, null);
+        stitch(job, bands);
+    }
+
+    /**
+     * Joins lines ending on the borders between bands. Bands are processed
+     * from top to bottom; after a band is added, lines that do not end on
+     * the bottom border of the band are complete. After the last band, all
+     * lines are complete.
+     */
+    private static void stitch(Job job, Band[] bands) throws IOException {
+        final LineMap map = new LineMap();
+        for (int b = 0; b < bands.length; b++) {
+            for (Line line : bands[b].seamLines) {
+                insertSeamLine(job, map, line);
+            }
+            final int seamRow = bands[b].r1;
+            for (Line line : map.lines()) {
+                if (seamRow == job.cellRows
+                        || (!job.isHorizontalEdgeAtRow(line.startKey, seamRow)
+                        && !job.isHorizontalEdgeAtRow(line.endKey, seamRow))) {
+                    map.remove(line.startKey);
+                    map.remove(line.endKey);
+                    job.emit(line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a line to the lines ending on a border between bands, and joins it
+     * with lines sharing an end.
+     */
+    private static void insertSeamLine(Job job, LineMap map, Line line) throws IOException {
+        // the joined line may be the partner, whose end key is not the
+        // other end of this line
+        final long endKey = line.endKey;
+        line = attach(map, line, line.startKey);
+        if (!line.closed) {
+            line = attach(map, line, endKey);
+        }
+        if (line.closed) {
+            job.emit(line);
+        } else {
+            map.put(line.startKey, line);
+            map.put(line.endKey, line);
+        }
+    }
+
+    /**
+     * Joins a line that is not in the map with the line in the map sharing
+     * an end.
+     * @return The joined line.
+     */
+    private static Line attach(LineMap map, Line line, long key) {
+        final Line partner = map.remove(key);
+        if (partner == null) {
+            return line;
+        }
+        map.remove(partner.startKey == key ? partner.endKey : partner.startKey);
+        return line.join(partner, key);
+    }
+
+    /**
+     * State shared by all bands of one contouring run.
+     */
+    private static final class Job {
+
+        final GeoGrid geoGrid;
+        final int cols;
+        final int cellRows;
+        final double firstLevel;
+        final double interval;
+        final int nLevels;
+        final double west;
+        final double north;
+        final double cellSize;
+        /**
+         * Number of edge identifiers per level.
+         */
+        final long edgesPerLevel;
+        final ContourSink sink;
+
+        Job(GeoGrid geoGrid, double firstLevel, double interval, int nLevels,
+                ContourSink sink) {
+            this.geoGrid = geoGrid;
+            this.cols = geoGrid.getCols();
+            this.cellRows = geoGrid.getRows() - 1;
+            this.firstLevel = firstLevel;
+            this.interval = interval;
+            this.nLevels = nLevels;
+            this.west = geoGrid.getWest();
+            this.north = geoGrid.getNorth();
+            this.cellSize = geoGrid.getCellSize();
+            this.edgesPerLevel = 2L * cols * geoGrid.getRows();
+            this.sink = sink;
+        }
+
+        double level(int k) {
+            return firstLevel + k * interval;
+        }
+
+        /**
+         * Returns the index of the lowest level that is greater than or
+         * equal to v, or nLevels.
+         */
+        int firstLevelIndex(double v) {
+            final double d = Math.ceil((v - firstLevel) / interval);
+            int k = d < 0 ? 0 : (d > nLevels ? nLevels : (int) d);
+            while (k > 0 && level(k - 1) >= v) {
+                --k;
+            }
+            while (k < nLevels && level(k) < v) {
+                ++k;
+            }
+            return k;
+        }
+
+        /**
+         * Returns the index of the highest level that is smaller than v, or
+         * -1.
+         */
+        int lastLevelIndex(double v) {
+            final double d = Math.floor((v - firstLevel) / interval);
+            int k = d < -1 ? -1 : (d > nLevels - 1 ? nLevels - 1 : (int) d);
+            while (k >= 0 && level(k) >= v) {
+                --k;
+            }
+            while (k + 1 < nLevels && level(k + 1) < v) {
+                ++k;
+            }
+            return k;
+        }
+
+        /**
+         * Returns the key of the horizontal edge between the corners r/c and
+         * r/c+1 for level k.
+         */
+        long horizontalEdge(int k, int r, int c) {
+            return k * edgesPerLevel + 2L * ((long) r * cols + c);
+        }
+
+        /**
+         * Returns the key of the vertical edge between the corners r/c and
+         * r+1/c for level k.
+         */
+        long verticalEdge(int k, int r, int c) {
+            return k * edgesPerLevel + 2L * ((long) r * cols + c) + 1;
+        }
+
+        boolean isHorizontalEdgeAtRow(long key, int row) {
+            final long id = key % edgesPerLevel;
+            return (id & 1) == 0 && (id >> 1) / cols == row;
+        }
+
+        void emit(Line line) throws IOException {
+            final double[] xy = line.toArray();
+            final double level = level(line.level);
+            synchronized (sink) {
+                sink.contour(level, xy, line.closed);
+            }
+        }
+    }
+
+    /**
+     * Contours a band of rows of cells.
+     */
+    private static final class Band {
+
+        /**
+         * Edges of a cell.
+         */
+        private static final int TOP = 0;
+        private static final int RIGHT = 1;
+        private static final int BOTTOM = 2;
+        private static final int LEFT = 3;
+        /**
+         * The two crossed edges for each combination of corners above the
+         * level, with bits for top left (1), top right (2), bottom right (4)
+         * and bottom left (8). Saddles (5 and 10) are resolved separately.
+         */
+        private static final int[] EDGE_A = {-1, TOP, TOP, RIGHT, RIGHT, -1,
+            TOP, BOTTOM, BOTTOM, TOP, -1, RIGHT, RIGHT, TOP, TOP, -1};
+        private static final int[] EDGE_B = {-1, LEFT, RIGHT, LEFT, BOTTOM, -1,
+            BOTTOM, LEFT, LEFT, BOTTOM, -1, BOTTOM, LEFT, RIGHT, LEFT, -1};
+        private final Job job;
+        /**
+         * First row of cells and last row of cells + 1.
+         */
+        final int r0;
+        final int r1;
+        /**
+         * Lines with at least one unprocessed end, by the keys of both ends.
+         */
+        private final LineMap map = new LineMap();
+        /**
+         * Lines ending on the top or bottom border of the band, collected
+         * after the band is contoured.
+         */
+        final ArrayList<Line> seamLines = new ArrayList<Line>();
+        /**
+         * The cell currently processed.
+         */
+        private int curRow;
+        private int curCol;
+        private final double[] ptA = new double[2];
+        private final double[] ptB = new double[2];
+
+        Band(Job job, int r0, int r1) {
+            this.job = job;
+            this.r0 = r0;
+            this.r1 = r1;
+        }
+
+        void contour() throws IOException {
+            final int cols = job.cols;
+            // a buffer for rows of grids that are not array-backed
+            float[] spare = job.geoGrid.isArrayBacked() ? null : new float[cols];
+            float[] top = job.geoGrid.getRow(r0, null);
+            for (int r = r0; r < r1; r++) {
+                final float[] bottom = job.geoGrid.getRow(r + 1, spare);
+                curRow = r;
+                for (int c = 0; c < cols - 1; c++) {
+                    curCol = c;
+                    cell(c, r, top[c], top[c + 1], bottom[c + 1], bottom[c]);
+                }
+                if (spare != null) {
+                    spare = top;
+                }
+                top = bottom;
+            }
+
+            for (Line line : map.lines()) {
+                if (state(line.startKey) == SEAM || state(line.endKey) == SEAM) {
+                    seamLines.add(line);
+                } else {
+                    job.emit(line);
+                }
+            }
+            map.clear();
+        }
+
+        /**
+         * Contours a cell for all levels between the minimum and the maximum
+         * of its corners.
+         */
+        private void cell(int c, int r, float tl, float tr, float br, float bl)
+                throws IOException {
+
+            if (Float.isNaN(tl) || Float.isNaN(tr) || Float.isNaN(br) || Float.isNaN(bl)) {
+                voidCell(c, r, tl, tr, bl);
+                return;
+            }
+
+            final float min = Math.min(Math.min(tl, tr), Math.min(br, bl));
+            final float max = Math.max(Math.max(tl, tr), Math.max(br, bl));
+            final int kLast = job.lastLevelIndex(max);
+            for (int k = job.firstLevelIndex(min); k <= kLast; k++) {
+                final double level = job.level(k);
+                final int code = (tl > level ? 1 : 0) | (tr > level ? 2 : 0)
+                        | (br > level ? 4 : 0) | (bl > level ? 8 : 0);
+                if (code == 5 || code == 10) {
+                    final boolean centerAbove = (tl + tr + br + bl) / 4d > level;
+                    if (centerAbove == (code == 5)) {
+                        segment(k, c, r, tl, tr, br, bl, TOP, RIGHT);
+                        segment(k, c, r, tl, tr, br, bl, BOTTOM, LEFT);
+                    } else {
+                        segment(k, c, r, tl, tr, br, bl, TOP, LEFT);
+                        segment(k, c, r, tl, tr, br, bl, RIGHT, BOTTOM);
+                    }
+                } else {
+                    segment(k, c, r, tl, tr, br, bl, EDGE_A[code], EDGE_B[code]);
+                }
+            }
+        }
+
+        /**
+         * Lines ending on the left or top edge of a cell with a void corner
+         * cannot be continued. Passes these lines to the sink if their other
+         * end is complete as well.
+         */
+        private void voidCell(int c, int r, float tl, float tr, float bl)
+                throws IOException {
+            if (c > 0 && !Float.isNaN(tl) && !Float.isNaN(bl)) {
+                final int kLast = job.lastLevelIndex(Math.max(tl, bl));
+                for (int k = job.firstLevelIndex(Math.min(tl, bl)); k <= kLast; k++) {
+                    emitIfComplete(map.get(job.verticalEdge(k, r, c)));
+                }
+            }
+            if (r > r0 && !Float.isNaN(tl) && !Float.isNaN(tr)) {
+                final int kLast = job.lastLevelIndex(Math.max(tl, tr));
+                for (int k = job.firstLevelIndex(Math.min(tl, tr)); k <= kLast; k++) {
+                    emitIfComplete(map.get(job.horizontalEdge(k, r, c)));
+                }
+            }
+        }
+
+        /**
+         * Computes the point where the level crosses an edge of a cell.
+         * Both cells sharing an edge compute identical coordinates.
+         * @return The key of the edge.
+         */
+        private long edgePoint(int k, int edge, int c, int r,
+                float tl, float tr, float br, float bl, double[] pt) {
+            final double level = job.level(k);
+            final double cellSize = job.cellSize;
+            final double t;
+            switch (edge) {
+                case TOP:
+                    t = (level - tl) / (tr - tl);
+                    pt[0] = job.west + (c + t) * cellSize;
+                    pt[1] = job.north - r * cellSize;
+                    return job.horizontalEdge(k, r, c);
+                case RIGHT:
+                    t = (level - tr) / (br - tr);
+                    pt[0] = job.west + (c + 1) * cellSize;
+                    pt[1] = job.north - (r + t) * cellSize;
+                    return job.verticalEdge(k, r, c + 1);
+                case BOTTOM:
+                    t = (level - bl) / (br - bl);
+                    pt[0] = job.west + (c + t) * cellSize;
+                    pt[1] = job.north - (r + 1) * cellSize;
+                    return job.horizontalEdge(k, r + 1, c);
+                default:
+                    t = (level - tl) / (bl - tl);
+                    pt[0] = job.west + c * cellSize;
+                    pt[1] = job.north - (r + t) * cellSize;
+                    return job.verticalEdge(k, r, c);
+            }
+        }
+
+        /**
+         * Adds a segment and joins it with the lines ending on its end
+         * points.
+         */
+        private void segment(int k, int c, int r, float tl, float tr, float br,
+                float bl, int edgeA, int edgeB) throws IOException {
+
+            final long keyA = edgePoint(k, edgeA, c, r, tl, tr, br, bl, ptA);
+            final long keyB = edgePoint(k, edgeB, c, r, tl, tr, br, bl, ptB);
+            final Line lineA = map.remove(keyA);
+            final Line lineB = map.remove(keyB);
+            final Line line;
+            if (lineA == null && lineB == null) {
+                line = new Line(k, keyA, ptA[0], ptA[1], keyB, ptB[0], ptB[1]);
+                map.put(keyA, line);
+                map.put(keyB, line);
+            } else if (lineA == lineB) {
+                lineA.closed = true;
+                job.emit(lineA);
+                return;
+            } else if (lineB == null) {
+                lineA.extend(keyA, keyB, ptB[0], ptB[1]);
+                line = lineA;
+                map.put(keyB, line);
+            } else if (lineA == null) {
+                lineB.extend(keyB, keyA, ptA[0], ptA[1]);
+                line = lineB;
+                map.put(keyA, line);
+            } else {
+                lineA.extend(keyA, keyB, ptB[0], ptB[1]);
+                line = lineA.join(lineB, keyB);
+                // the far end of the absorbed line now belongs to the joined line
+                map.put(line.startKey, line);
+                map.put(line.endKey, line);
+            }
+            emitIfComplete(line);
+        }
+
+        private void emitIfComplete(Line line) throws IOException {
+            if (line != null && state(line.startKey) == TERMINAL
+                    && state(line.endKey) == TERMINAL) {
+                map.remove(line.startKey);
+                map.remove(line.endKey);
+                job.emit(line);
+            }
+        }
+
+        /**
+         * Returns whether a line end on an edge is complete (TERMINAL), will
+         * be continued by an unprocessed cell of the band (PENDING), or may
+         * be continued by another band (SEAM).
+         */
+        private int state(long key) {
+            final long id = key % job.edgesPerLevel;
+            final long cell = id >> 1;
+            final int row = (int) (cell / job.cols);
+            final int col = (int) (cell - (long) row * job.cols);
+            if ((id & 1) == 0) {
+                // horizontal edge between cells row - 1 and row
+                if (row == 0 || row == job.cellRows) {
+                    return TERMINAL;
+                }
+                if (row == r0 || row == r1) {
+                    return SEAM;
+                }
+            } else if (col == 0 || col == job.cols - 1) {
+                // vertical edge on the left or right border of the grid
+                return TERMINAL;
+            }
+            // both cells sharing the edge are processed when the cell at
+            // row/col is processed
+            return (row < curRow || (row == curRow && col <= curCol)) ? TERMINAL : PENDING;
+        }
+    }
+
+    /**
+     * A contour line under construction. Points are stored in the middle
+     * of an array that grows in both directions.
+     */
+    private static final class Line {
+
+        /**
+         * The index of the level.
+         */
+        final int level;
+        private double[] xy = new double[16];
+        private int head = 8;
+        private int tail = 8;
+        /**
+         * Keys of the edges of the first and the last point.
+         */
+        long startKey;
+        long endKey;
+        boolean closed = false;
+
+        Line(int level, long startKey, double x0, double y0,
+                long endKey, double x1, double y1) {
+            this.level = level;
+            this.startKey = startKey;
+            this.endKey = endKey;
+            append(x0, y0);
+            append(x1, y1);
+        }
+
+        int size() {
+            return (tail - head) / 2;
+        }
+
+        private void append(double x, double y) {
+            if (tail + 2 > xy.length) {
+                grow();
+            }
+            xy[tail++] = x;
+            xy[tail++] = y;
+        }
+
+        private void prepend(double x, double y) {
+            if (head < 2) {
+                grow();
+            }
+            xy[--head] = y;
+            xy[--head] = x;
+        }
+
+        private void grow() {
+            final int n = tail - head;
+            final double[] a = new double[2 * n + 16];
+            final int h = (a.length - n) / 2;
+            System.arraycopy(xy, head, a, h, n);
+            xy = a;
+            head = h;
+            tail = h + n;
+        }
+
+        /**
+         * Adds a point at the end with the passed key.
+         */
+        void extend(long key, long newKey, double x, double y) {
+            if (endKey == key) {
+                append(x, y);
+                endKey = newKey;
+            } else {
+                prepend(x, y);
+                startKey = newKey;
+            }
+        }
+
+        /**
+         * Joins two lines sharing an end point. The points of the shorter
+         * line are copied to the longer line. If the other ends of the lines
+         * are shared as well, the joined line is closed.
+         * @param other The other line.
+         * @param key The key of the shared end point.
+         * @return The joined line.
+         */
+        Line join(Line other, long key) {
+            if (other.size() > size()) {
+                return other.join(this, key);
+            }
+            final boolean atEnd = endKey == key;
+            final boolean fromStart = other.startKey == key;
+            final long farKey = fromStart ? other.endKey : other.startKey;
+            final boolean closes = farKey == (atEnd ? startKey : endKey);
+            final int n = other.size();
+            // skip the shared point, and the last point if it closes the line
+            final int last = closes ? n - 2 : n - 1;
+            for (int i = 1; i <= last; i++) {
+                final int p = other.head + 2 * (fromStart ? i : n - 1 - i);
+                if (atEnd) {
+                    append(other.xy[p], other.xy[p + 1]);
+                } else {
+                    prepend(other.xy[p], other.xy[p + 1]);
+                }
+            }
+            if (closes) {
+                closed = true;
+            } else if (atEnd) {
+                endKey = farKey;
+            } else {
+                startKey = farKey;
+            }
+            return this;
+        }
+
+        double[] toArray() {
+            return Arrays.copyOfRange(xy, head, tail);
+        }
+    }
+
+    /**
+     * A hash map from edge keys to lines with open addressing and linear
+     * probing.
+     */
+    private static final class LineMap {
+
+        private static final long EMPTY = -1;
+        private long[] keys;
+        private Line[] values;
+        private int size;
+
+        LineMap() {
+            clear();
+        }
+
+        void clear() {
+            keys = new long[64];
+            Arrays.fill(keys, EMPTY);
+            values = new Line[64];
+            size = 0;
+        }
+
+        private int slot(long key) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & (keys.length - 1);
+        }
+
+        Line get(long key) {
+            final int mask = keys.length - 1;
+            for (int i = slot(key); keys[i] != EMPTY; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        void put(long key, Line line) {
+            final int mask = keys.length - 1;
+            int i = slot(key);
+            while (keys[i] != EMPTY) {
+                if (keys[i] == key) {
+                    values[i] = line;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = line;
+            if (++size * 2 > keys.length) {
+                rehash();
+            }
+        }
+
+        Line remove(long key) {
+            final int mask = keys.length - 1;
+            int i = slot(key);
+            while (keys[i] != key) {
+                if (keys[i] == EMPTY) {
+                    return null;
+                }
+                i = (i + 1) & mask;
+            }
+            final Line line = values[i];
+            // move following entries of the probe sequence into the gap
+            for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+                final int s = slot(keys[j]);
+                final boolean inGapRange = i <= j ? (s <= i || s > j) : (s <= i && s > j);
+                if (inGapRange) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    i = j;
+                }
+            }
+            keys[i] = EMPTY;
+            values[i] = null;
+            --size;
+            return line;
+        }
+
+        private void rehash() {
+            final long[] oldKeys = keys;
+            final Line[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            Arrays.fill(keys, EMPTY);
+            values = new Line[keys.length];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        /**
+         * Returns all lines, each line once.
+         */
+        ArrayList<Line> lines() {
+            ArrayList<Line> lines = new ArrayList<Line>();
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != EMPTY && values[i].startKey == keys[i]) {
+                    lines.add(values[i]);
+                }
+            }
+            return lines;
+        }
+    }
+}
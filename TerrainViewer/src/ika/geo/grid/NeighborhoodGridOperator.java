@@ -0,0 +1,273 @@
+package ika.geo.grid;
+
+import ika.geo.GeoGrid;
+import java.util.Arrays;
+
+/**
+ * A base class for multi-threaded operators that compute a cell value from a
+ * square neighborhood of (2 * halo + 1) x (2 * halo + 1) cells. Derived
+ * classes only implement operateRow(), which computes one row of the
+ * destination grid and never has to test for the grid border. The border is
+ * handled by this class according to the BorderMode. For the CLAMP and VOID
+ * modes, each tile of rows is copied to a buffer that is padded with halo
+ * cells on all sides.
+ *
+ * @author jenny
+ */
+public abstract class NeighborhoodGridOperator extends ThreadedGridOperator {
+
+    /**
+     * Treatment of cells closer to the border than the halo.
+     */
+    public enum BorderMode {
+
+        /**
+         * The destination grid is smaller than the source grid by halo cells
+         * on each side. Only cells with a complete neighborhood are computed.
+         */
+        CROP,
+        /**
+         * The destination grid has the size of the source grid. Cells without
+         * a complete neighborhood are set to getBorderValue().
+         */
+        SKIP,
+        /**
+         * The destination grid has the size of the source grid. Cells outside
+         * the grid are replaced by the nearest border cell.
+         */
+        CLAMP,
+        /**
+         * The destination grid has the size of the source grid. Cells outside
+         * the grid are void (NaN). operateRow() must handle void values.
+         */
+        VOID
+    };
+
+    /**
+     * Padded row buffers, one set per thread.
+     */
+    private final ThreadLocal<float[][]> tileBuffer = new ThreadLocal<float[][]>();
+
+    /**
+     * If true, a destination cell is void if the corresponding source cell
+     * is void.
+     */
+    private boolean propagateVoidCenter = false;
+
+    /**
+     * Returns the number of cells on each side of the center cell in the
+     * neighborhood.
+     * @return The halo size, 1 for a 3x3 neighborhood.
+     */
+    protected abstract int getHalo();
+
+    /**
+     * Returns the treatment of cells closer to the border than the halo.
+     * @return The border mode.
+     */
+    protected abstract BorderMode getBorderMode();
+
+    /**
+     * Computes one row of the destination grid.
+     * @param rows The source rows of the neighborhood. There are 2 * halo + 1
+     * rows, rows[halo] is the central row. The value at column c of the
+     * destination grid is centered on rows[halo][c + halo]. The rows must not
+     * be changed.
+     * @param dstRow The destination row.
+     * @param dstOffset The value for column c is stored in dstRow[dstOffset + c].
+     * @param nCols The number of columns to compute.
+     * @param cellSize The cell size of the source grid.
+     */
+    protected abstract void operateRow(float[][] rows, float[] dstRow,
+            int dstOffset, int nCols, double cellSize);
+
+    /**
+     * Returns the value for destination cells without a complete
+     * neighborhood if the border mode is SKIP.
+     * @return The border value. Defaults to NaN.
+     */
+    protected float getBorderValue() {
+        return Float.NaN;
+    }
+
+    /**
+     * The source grid cannot be overwritten, as neighboring tiles read from
+     * the source.
+     * @return False
+     */
+    @Override
+    public final boolean isOverwrittingSupported() {
+        return false;
+    }
+
+    /**
+     * @return True if void source cells result in void destination cells.
+     */
+    public boolean isPropagateVoidCenter() {
+        return propagateVoidCenter;
+    }
+
+    /**
+     * @param propagateVoidCenter If true, void source cells result in void
+     * destination cells, independently of the values in the neighborhood.
+     */
+    public void setPropagateVoidCenter(boolean propagateVoidCenter) {
+        this.propagateVoidCenter = propagateVoidCenter;
+    }
+
+    @Override
+    protected GeoGrid initDestinationGrid(GeoGrid src) {
+        if (getBorderMode() != BorderMode.CROP) {
+            return super.initDestinationGrid(src);
+        }
+        if (src == null || !src.isWellFormed()) {
+            throw new IllegalArgumentException(getName() + ": invalid source grid");
+        }
+        final int h = getHalo();
+        final double cellSize = src.getCellSize();
+        GeoGrid newGrid = createGrid(src, src.getCols() - 2 * h, src.getRows() - 2 * h);
+        newGrid.setWest(src.getWest() + h * cellSize);
+        newGrid.setNorth(src.getNorth() - h * cellSize);
+        newGrid.setName(src.getName());
+        return newGrid;
+    }
+
+    /**
+     * The destination grid of the CROP mode is shifted by the halo.
+     */
+    @Override
+    protected int getDestinationRowShift() {
+        return getBorderMode() == BorderMode.CROP ? getHalo() : 0;
+    }
+
+    @Override
+    public GeoGrid operate(GeoGrid src, GeoGrid dst) {
+        final int h = getHalo();
+        final int d = getBorderMode() == BorderMode.CROP ? 2 * h : 0;
+        if (src != null && dst != null
+                && (dst.getCols() != src.getCols() - d || dst.getRows() != src.getRows() - d)) {
+            throw new IllegalArgumentException(getName() + ": destination grid has wrong size");
+        }
+        return super.operate(src, dst);
+    }
+
+    /**
+     * Operates on a band of rows of the source grid.
+     */
+    @Override
+    protected final void operate(GeoGrid src, GeoGrid dst, int startRow, int endRow) {
+        switch (getBorderMode()) {
+            case CROP:
+                operateInterior(src, dst, startRow, endRow, getHalo());
+                break;
+            case SKIP:
+                operateSkip(src, dst, startRow, endRow);
+                break;
+            default:
+                operatePadded(src, dst, startRow, endRow);
+        }
+    }
+
+    /**
+     * Computes destination rows without copying source rows. The destination
+     * grid is shifted by dstShift rows and columns relative to the source.
+     */
+    private void operateInterior(GeoGrid src, GeoGrid dst, int startRow, int endRow, int dstShift) {
+        final int h = getHalo();
+        final float[][] dstGrid = dst.getGrid();
+        final int nCols = src.getCols() - 2 * h;
+        final double cellSize = src.getCellSize();
+        final int first = Math.max(startRow, h);
+        final int last = Math.min(endRow, src.getRows() - h);
+        if (nCols <= 0) {
+            return;
+        }
+        float[][] window = new float[2 * h + 1][];
+        for (int row = first; row < last; row++) {
+            for (int i = 0; i < window.length; i++) {
+                window[i] = src.getRow(row - h + i, null);
+            }
+            float[] dstRow = dstGrid[row - dstShift];
+            operateRow(window, dstRow, h - dstShift, nCols, cellSize);
+            if (propagateVoidCenter) {
+                final float[] srcRow = window[h];
+                for (int c = 0; c < nCols; c++) {
+                    if (Float.isNaN(srcRow[c + h])) {
+                        dstRow[c + h - dstShift] = Float.NaN;
+                    }
+                }
+            }
+        }
+    }
+
+    private void operateSkip(GeoGrid src, GeoGrid dst, int startRow, int endRow) {
+        final int h = getHalo();
+        final int nRows = src.getRows();
+        final int nCols = src.getCols();
+        final float borderValue = getBorderValue();
+        final float[][] dstGrid = dst.getGrid();
+        for (int row = startRow; row < endRow; row++) {
+            float[] dstRow = dstGrid[row];
+            if (row < h || row >= nRows - h) {
+                Arrays.fill(dstRow, borderValue);
+            } else {
+                Arrays.fill(dstRow, 0, Math.min(h, nCols), borderValue);
+                Arrays.fill(dstRow, Math.max(0, nCols - h), nCols, borderValue);
+            }
+        }
+        operateInterior(src, dst, startRow, endRow, 0);
+    }
+
+    /**
+     * Copies the rows of the tile and halo rows to a padded buffer and
+     * computes the destination rows from the buffer.
+     */
+    private void operatePadded(GeoGrid src, GeoGrid dst, int startRow, int endRow) {
+        final int h = getHalo();
+        final int nRows = src.getRows();
+        final int nCols = src.getCols();
+        final int paddedCols = nCols + 2 * h;
+        final boolean clamp = getBorderMode() == BorderMode.CLAMP;
+        final float[][] dstGrid = dst.getGrid();
+        final double cellSize = src.getCellSize();
+
+        // fill padded buffer
+        final int bufferRows = endRow - startRow + 2 * h;
+        float[][] buffer = tileBuffer.get();
+        if (buffer == null || buffer.length < bufferRows
+                || buffer[0].length != paddedCols) {
+            buffer = new float[bufferRows][paddedCols];
+            tileBuffer.set(buffer);
+        }
+        for (int i = 0; i < bufferRows; i++) {
+            int r = startRow - h + i;
+            float[] b = buffer[i];
+            if (r < 0 || r >= nRows) {
+                if (!clamp) {
+                    Arrays.fill(b, Float.NaN);
+                    continue;
+                }
+                r = r < 0 ? 0 : nRows - 1;
+            }
+            final float[] srcRow = src.getRow(r, null);
+            System.arraycopy(srcRow, 0, b, h, nCols);
+            Arrays.fill(b, 0, h, clamp ? srcRow[0] : Float.NaN);
+            Arrays.fill(b, h + nCols, paddedCols, clamp ? srcRow[nCols - 1] : Float.NaN);
+        }
+
+        float[][] window = new float[2 * h + 1][];
+        for (int row = startRow; row < endRow; row++) {
+            System.arraycopy(buffer, row - startRow, window, 0, window.length);
+            final float[] dstRow = dstGrid[row];
+            operateRow(window, dstRow, 0, nCols, cellSize);
+            if (propagateVoidCenter) {
+                final float[] srcRow = src.getRow(row, null);
+                for (int c = 0; c < nCols; c++) {
+                    if (Float.isNaN(srcRow[c])) {
+                        dstRow[c] = Float.NaN;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package ika.geo.grid;
+
+import java.util.Arrays;
+
+/**
+ * Rank filters with a sliding histogram (Huang, T. S., Yang, G. J., Tang,
+ * G. Y., 1979. A fast two-dimensional median filtering algorithm. IEEE
+ * Transactions on Acoustics, Speech and Signal Processing 27(1), 13-18).
+ *
+ * The histogram does not count quantized values, but ranks of values: the
+ * values of a band of rows are sorted once, and the histogram counts the
+ * ranks of the values in the filter window. Results are therefore exact
+ * float values. When the window moves by one column, a column of values is
+ * removed and another one is added, so the cost per cell is proportional to
+ * the filter size, not to the number of values in the window. Ranks are
+ * counted in a three-level histogram to quickly find the k-th rank.
+ *
+ * Values outside the grid are mirrored at the border. NaN values are void:
+ * they are not counted in the filter window, and void cells remain void.
+ * Values are ranked with the float comparison operators, so -0 and +0 are
+ * equal.
+ *
+ * @author jenny
+ */
+final class SlidingRankFilter {
+
+    /**
+     * Number of rows filtered with one sorted band of values. Larger bands
+     * sort more values at once, smaller bands sort more overlapping rows.
+     * Callers should pass bands of this size to the filter methods.
+     */
+    static final int BAND_ROWS = 32;
+
+    private final float[][] src;
+    private final int cols;
+    private final int rows;
+    private final int halfFilterSize;
+
+    /**
+     * The first row of the current band, the number of its values, and the
+     * number of values that are not NaN. NaN values have the largest ranks.
+     */
+    private int bandRow0;
+    private int bandSize;
+    private int validSize;
+    /**
+     * Rank of each value in the band, by row and column.
+     */
+    private int[] rank;
+    /**
+     * Band values sorted in increasing order.
+     */
+    private float[] sorted;
+    /**
+     * For each rank, the smallest rank with the same value.
+     */
+    private int[] tieStart;
+    /**
+     * Number of values in the window per rank, per 256 ranks, and per
+     * 65536 ranks.
+     */
+    private byte[] count0;
+    private int[] count1;
+    private int[] count2;
+    /**
+     * Number of values in the window that are not NaN.
+     */
+    private int windowCount;
+
+    /**
+     * Returns whether a filter can be applied to a grid.
+     * @param cols The number of columns.
+     * @param rows The number of rows.
+     * @param filterSize The filter size.
+     * @return True if mirroring at borders is possible.
+     */
+    static boolean canFilter(int cols, int rows, int filterSize) {
+        final int h = filterSize / 2;
+        return h < cols && h < rows
+                && (long) (BAND_ROWS + 2 * h) * cols < Integer.MAX_VALUE;
+    }
+
+    SlidingRankFilter(float[][] src, int filterSize) {
+        this.src = src;
+        this.rows = src.length;
+        this.cols = src[0].length;
+        this.halfFilterSize = filterSize / 2;
+    }
+
+    /**
+     * Writes the k-th smallest value of the filter window of each cell.
+     * @param dst The destination grid.
+     * @param k The rank of the value, starting with 0, for each number of
+     * values in the window that are not NaN. Must have filterSize^2 + 1
+     * elements.
+     * @param startRow The first row to filter.
+     * @param endRow The last row to filter + 1.
+     */
+    void kthSmallest(float[][] dst, int[] k, int startRow, int endRow) {
+        filter(dst, k, false, startRow, endRow);
+    }
+
+    /**
+     * Writes for each cell the number of values in the filter window that
+     * are smaller than the value of the cell.
+     * @param dst The destination grid.
+     * @param startRow The first row to filter.
+     * @param endRow The last row to filter + 1.
+     */
+    void countSmaller(float[][] dst, int startRow, int endRow) {
+        filter(dst, null, false, startRow, endRow);
+    }
+
+    /**
+     * Writes for each cell the number of values in the filter window that
+     * are smaller than the value of the cell, divided by the number of other
+     * values in the window that are not NaN.
+     * @param dst The destination grid.
+     * @param startRow The first row to filter.
+     * @param endRow The last row to filter + 1.
+     */
+    void percentRank(float[][] dst, int startRow, int endRow) {
+        filter(dst, null, true, startRow, endRow);
+    }
+
+    /**
+     * Filters rows. If k is null, the number of smaller values is counted,
+     * and divided by the number of other values if normalize is true.
+     */
+    private void filter(float[][] dst, int[] k, boolean normalize, int startRow, int endRow) {
+        final int h = halfFilterSize;
+        for (int r0 = startRow; r0 < endRow; r0 += BAND_ROWS) {
+            final int r1 = Math.min(endRow, r0 + BAND_ROWS);
+            initBand(Math.max(0, r0 - h), Math.min(rows - 1, r1 - 1 + h));
+            for (int row = r0; row < r1; row++) {
+                if (k == null) {
+                    countSmallerRow(dst[row], row, normalize);
+                } else {
+                    kthSmallestRow(dst[row], row, k);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sorts the values of a band of rows and computes their ranks.
+     */
+    private void initBand(int firstRow, int lastRow) {
+        bandRow0 = firstRow;
+        bandSize = (lastRow - firstRow + 1) * cols;
+        final long[] keys = new long[bandSize];
+        int i = 0;
+        for (int r = firstRow; r <= lastRow; r++) {
+            final float[] row = src[r];
+            for (int c = 0; c < cols; c++, i++) {
+                // flip bits of negative values to sort them as integers,
+                // -0 is sorted as +0 and NaN after all other values
+                final float v = row[c];
+                int bits = v == 0f ? 0 : Float.floatToIntBits(v);
+                bits ^= (bits >> 31) & 0x7fffffff;
+                keys[i] = ((long) bits << 32) | i;
+            }
+        }
+        Arrays.sort(keys);
+
+        if (rank == null || rank.length < bandSize) {
+            rank = new int[bandSize];
+            sorted = new float[bandSize];
+            tieStart = new int[bandSize];
+            count0 = new byte[bandSize];
+            count1 = new int[(bandSize >> 8) + 1];
+            count2 = new int[(bandSize >> 16) + 1];
+        }
+        validSize = bandSize;
+        for (int j = 0; j < bandSize; j++) {
+            final int index = (int) keys[j];
+            rank[index] = j;
+            final int r = index / cols;
+            final float v = src[bandRow0 + r][index - r * cols];
+            sorted[j] = v;
+            tieStart[j] = (j > 0 && v == sorted[j - 1]) ? tieStart[j - 1] : j;
+            if (Float.isNaN(v) && j < validSize) {
+                validSize = j;
+            }
+        }
+    }
+
+    private int mirrorRow(int r) {
+        return r < 0 ? -r : (r >= rows ? 2 * rows - 2 - r : r);
+    }
+
+    private int mirrorCol(int c) {
+        return c < 0 ? -c : (c >= cols ? 2 * cols - 2 - c : c);
+    }
+
+    private void add(int rank, int n) {
+        if (rank >= validSize) {
+            return;
+        }
+        windowCount += n;
+        count0[rank] += n;
+        count1[rank >>> 8] += n;
+        count2[rank >>> 16] += n;
+    }
+
+    /**
+     * Adds or removes a column of the window.
+     */
+    private void addColumn(int row, int col, int n) {
+        final int c = mirrorCol(col);
+        for (int r = row - halfFilterSize; r <= row + halfFilterSize; r++) {
+            add(rank[(mirrorRow(r) - bandRow0) * cols + c], n);
+        }
+    }
+
+    /**
+     * Fills the empty histogram with the window of the first cell in a row.
+     */
+    private void initWindow(int row) {
+        for (int c = -halfFilterSize; c <= halfFilterSize; c++) {
+            addColumn(row, c, 1);
+        }
+    }
+
+    /**
+     * Removes the window of the last cell in a row from the histogram.
+     */
+    private void clearWindow(int row) {
+        for (int c = cols - 1 - halfFilterSize; c <= cols - 1 + halfFilterSize; c++) {
+            addColumn(row, c, -1);
+        }
+    }
+
+    private void slide(int row, int col) {
+        addColumn(row, col - halfFilterSize - 1, -1);
+        addColumn(row, col + halfFilterSize, 1);
+    }
+
+    private void kthSmallestRow(float[] dst, int row, int[] k) {
+        initWindow(row);
+        final int rowOffset = (row - bandRow0) * cols;
+        for (int col = 0; col < cols; col++) {
+            if (col > 0) {
+                slide(row, col);
+            }
+            if (rank[rowOffset + col] >= validSize) {
+                dst[col] = Float.NaN;
+            } else {
+                dst[col] = sorted[kthRank(k[windowCount])];
+            }
+        }
+        clearWindow(row);
+    }
+
+    private void countSmallerRow(float[] dst, int row, boolean normalize) {
+        initWindow(row);
+        final int rowOffset = (row - bandRow0) * cols;
+        for (int col = 0; col < cols; col++) {
+            if (col > 0) {
+                slide(row, col);
+            }
+            final int r = rank[rowOffset + col];
+            if (r >= validSize) {
+                dst[col] = Float.NaN;
+            } else if (!normalize) {
+                dst[col] = countBelow(tieStart[r]);
+            } else if (windowCount < 2) {
+                dst[col] = 0;
+            } else {
+                dst[col] = countBelow(tieStart[r]) * (1f / (windowCount - 1));
+            }
+        }
+        clearWindow(row);
+    }
+
+    /**
+     * Returns the rank of the k-th smallest value in the window.
+     */
+    private int kthRank(int k) {
+        int b2 = 0;
+        while (k >= count2[b2]) {
+            k -= count2[b2++];
+        }
+        int b1 = b2 << 8;
+        while (k >= count1[b1]) {
+            k -= count1[b1++];
+        }
+        int b0 = b1 << 8;
+        while (k >= count0[b0]) {
+            k -= count0[b0++];
+        }
+        return b0;
+    }
+
+    /**
+     * Returns the number of values in the window with a rank smaller than r.
+     */
+    private int countBelow(int r) {
+        int n = 0;
+        for (int b2 = 0; b2 < r >>> 16; b2++) {
+            n += count2[b2];
+        }
+        for (int b1 = (r >>> 16) << 8; b1 < r >>> 8; b1++) {
+            n += count1[b1];
+        }
+        for (int b0 = (r >>> 8) << 8; b0 < r; b0++) {
+            n += count0[b0];
+        }
+        return n;
+    }
+}
@@ -0,0 +1,195 @@
+package ika.geo.grid;
+
+/**
+ * A summed-area table (integral image) for box filters. Each entry stores the
+ * sum of all grid values above and to the left of it, so that the sum of any
+ * rectangular window is found with four lookups, independently of the size
+ * of the window.
+ *
+ * Sums are accumulated in double precision relative to a reference value of
+ * the grid, which limits the loss of precision for large grids. Void (NaN)
+ * values are not included in the sums; if the grid contains void values, a
+ * second table counts the valid values.
+ *
+ * The table is built from a grid and is then independent of the grid, so a
+ * filtered grid can be written to the source grid. The table can be reused
+ * for repeated passes over grids of the same size. Rows are processed in
+ * parallel.
+ *
+ * @author jenny
+ */
+final class SummedAreaTable {
+
+    private final int cols;
+    private final int rows;
+    /**
+     * Sums with an additional first row and column of zeros.
+     */
+    private final double[][] sum;
+    /**
+     * Number of valid values with an additional first row and column of
+     * zeros, or null if the grid has no void values.
+     */
+    private int[][] count;
+    /**
+     * The reference value subtracted from all grid values.
+     */
+    private double offset;
+    private final GridExecutor executor;
+
+    /**
+     * Creates an empty table.
+     * @param cols The number of columns of the grids.
+     * @param rows The number of rows of the grids.
+     * @param executor The executor distributing rows to threads.
+     */
+    SummedAreaTable(int cols, int rows, GridExecutor executor) {
+        this.cols = cols;
+        this.rows = rows;
+        this.sum = new double[rows + 1][cols + 1];
+        this.executor = executor;
+    }
+
+    /**
+     * Fills the table with the values of a grid.
+     * @param src The grid values. Must have the size of the table.
+     */
+    void build(final float[][] src) {
+        offset = referenceValue(src);
+
+        // sums along rows
+        final boolean[] hasVoid = new boolean[1];
+        executor.execute("Summed Area Table", rows, new GridExecutor.RowTask() {
+
+            public void run(int startRow, int endRow) {
+                boolean rowsHaveVoid = false;
+                for (int r = startRow; r < endRow; r++) {
+                    final float[] srcRow = src[r];
+                    final double[] sumRow = sum[r + 1];
+                    double s = 0;
+                    for (int c = 0; c < cols; c++) {
+                        final float v = srcRow[c];
+                        if (Float.isNaN(v)) {
+                            rowsHaveVoid = true;
+                        } else {
+                            s += v - offset;
+                        }
+                        sumRow[c + 1] = s;
+                    }
+                }
+                if (rowsHaveVoid) {
+                    synchronized (hasVoid) {
+                        hasVoid[0] = true;
+                    }
+                }
+            }
+        });
+
+        // count valid values along rows
+        if (hasVoid[0]) {
+            if (count == null) {
+                count = new int[rows + 1][cols + 1];
+            }
+            executor.execute("Summed Area Table", rows, new GridExecutor.RowTask() {
+
+                public void run(int startRow, int endRow) {
+                    for (int r = startRow; r < endRow; r++) {
+                        final float[] srcRow = src[r];
+                        final int[] countRow = count[r + 1];
+                        int n = 0;
+                        for (int c = 0; c < cols; c++) {
+                            if (!Float.isNaN(srcRow[c])) {
+                                ++n;
+                            }
+                            countRow[c + 1] = n;
+                        }
+                    }
+                }
+            });
+        } else {
+            count = null;
+        }
+
+        // accumulate rows; bands of columns are independent
+        executor.execute("Summed Area Table", cols + 1, new GridExecutor.RowTask() {
+
+            public void run(int startCol, int endCol) {
+                for (int r = 2; r <= rows; r++) {
+                    final double[] prevSumRow = sum[r - 1];
+                    final double[] sumRow = sum[r];
+                    for (int c = startCol; c < endCol; c++) {
+                        sumRow[c] += prevSumRow[c];
+                    }
+                    if (count != null) {
+                        final int[] prevCountRow = count[r - 1];
+                        final int[] countRow = count[r];
+                        for (int c = startCol; c < endCol; c++) {
+                            countRow[c] += prevCountRow[c];
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns a valid value of the grid that is subtracted from all values
+     * before summation, or 0 if the grid is void.
+     */
+    private double referenceValue(float[][] src) {
+        final float center = src[rows / 2][cols / 2];
+        if (!Float.isNaN(center)) {
+            return center;
+        }
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                if (!Float.isNaN(src[r][c])) {
+                    return src[r][c];
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Computes the mean of the valid values in a square window around each
+     * cell. Cells outside the grid are not included in the mean. Cells
+     * without valid values in their window are void.
+     * @param dst The destination grid. Can be the grid that the table was
+     * built from.
+     * @param halo The number of cells on each side of the center cell in the
+     * window.
+     */
+    void mean(final float[][] dst, final int halo) {
+        executor.execute("Box Mean", rows, new GridExecutor.RowTask() {
+
+            public void run(int startRow, int endRow) {
+                for (int r = startRow; r < endRow; r++) {
+                    final int r0 = Math.max(0, r - halo);
+                    final int r1 = Math.min(rows, r + halo + 1);
+                    final double[] top = sum[r0];
+                    final double[] bottom = sum[r1];
+                    final int[] countTop = count == null ? null : count[r0];
+                    final int[] countBottom = count == null ? null : count[r1];
+                    final float[] dstRow = dst[r];
+                    for (int c = 0; c < cols; c++) {
+                        final int c0 = Math.max(0, c - halo);
+                        final int c1 = Math.min(cols, c + halo + 1);
+                        final int n;
+                        if (count == null) {
+                            n = (r1 - r0) * (c1 - c0);
+                        } else {
+                            n = countBottom[c1] - countTop[c1] - countBottom[c0] + countTop[c0];
+                        }
+                        if (n == 0) {
+                            dstRow[c] = Float.NaN;
+                        } else {
+                            final double s = bottom[c1] - top[c1] - bottom[c0] + top[c0];
+                            dstRow[c] = (float) (s / n + offset);
+                        }
+                    }
+                }
+            }
+        });
+    }
+}
@@ -1,17 +1,25 @@
 package ika.geo.grid;
 
 import ika.geo.GeoGrid;
-import java.util.ArrayList;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
- * A base class for multi-threaded grid operators. Allocates as many threads
- * for operating on the grid as CPU cores are available.
+ * A base class for multi-threaded grid operators. Rows are distributed as
+ * tiles to the threads of a shared GridExecutor.
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
  */
 public abstract class ThreadedGridOperator implements GridOperator {
 
+    /**
+     * The executor distributing rows to threads. If null, the shared default
+     * executor is used.
+     */
+    private GridExecutor executor;
+
+    /**
+     * Flag for cancelling the operator while it is running.
+     */
+    private final GridExecutor.CancelFlag cancelFlag = new GridExecutor.CancelFlag();
+
     /**
      * Operate row-wise on the passed source grid and store the result in the passed 
      * destination grid. The source and the destination can be the same object
@@ -35,11 +43,45 @@ public abstract class ThreadedGridOperator implements GridOperator {
         return true;
     }
     
+    /**
+     * Returns the number of rows above and below a band of rows that are read
+     * by operate(src, dst, startRow, endRow). This is used for grids that are
+     * not stored in Java arrays, which are copied band by band to the heap.
+     * @return 0 if overwriting is supported, 1 otherwise.
+     */
+    protected int getHalo() {
+        return isOverwrittingSupported() ? 0 : 1;
+    }
+
+    /**
+     * Returns whether operate(src, dst, startRow, endRow) only writes to rows
+     * startRow to endRow - 1 of the destination grid. Operators that write
+     * to other rows cannot store their result in a grid that is not stored
+     * in a Java array.
+     * @return True by default.
+     */
+    protected boolean isRowLocal() {
+        return true;
+    }
+
+    /**
+     * Returns by how many rows the destination grid is shifted relative to
+     * the source grid. operate(src, dst, startRow, endRow) writes to rows
+     * startRow - shift to endRow - shift - 1 of the destination grid, clamped
+     * to the destination grid. This is used for destination grids that are
+     * not stored in Java arrays.
+     * @return 0 by default.
+     */
+    protected int getDestinationRowShift() {
+        return 0;
+    }
+
     /**
      * Creates a new grid that will store the results of the operator. This
      * method creates a new grid of the same size as the source grid. It must be
      * overridden if the derived operator generates a grid that has a different
-     * dimension or position than the source grid.
+     * dimension or position than the source grid. The new grid uses the same
+     * type of storage as the source grid.
      * @param src The source grid.
      * @return The new grid of the same size and position as the source grid.
      */
@@ -48,15 +90,61 @@ public abstract class ThreadedGridOperator implements GridOperator {
             throw new IllegalArgumentException(getName() + ": invalid source grid");
         }
         
-        int nrows = src.getRows();
-        int ncols = src.getCols();
-        GeoGrid newGrid = new GeoGrid(ncols, nrows, src.getCellSize());
+        GeoGrid newGrid = createGrid(src, src.getCols(), src.getRows());
         newGrid.setWest(src.getWest());
         newGrid.setNorth(src.getNorth());
         newGrid.setName(src.getName());
         return newGrid;
     }
 
+    /**
+     * Creates a grid with the same cell size and the same type of storage as
+     * another grid.
+     * @param src The grid providing the cell size and type of storage.
+     * @param cols The number of columns of the new grid.
+     * @param rows The number of rows of the new grid.
+     * @return The new grid.
+     */
+    protected static GeoGrid createGrid(GeoGrid src, int cols, int rows) {
+        if (src.isArrayBacked()) {
+            return new GeoGrid(cols, rows, src.getCellSize());
+        }
+        return new GeoGrid(src.getStorage().create(cols, rows), src.getCellSize());
+    }
+
+    /**
+     * Returns the executor used by this operator.
+     * @return The executor set with setExecutor, or the shared default
+     * executor.
+     */
+    public GridExecutor getExecutor() {
+        return executor == null ? GridExecutor.getDefault() : executor;
+    }
+
+    /**
+     * Sets the executor used by this operator.
+     * @param executor The executor. If null, the shared default executor is used.
+     */
+    public void setExecutor(GridExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Cancels the operator if it is currently running. operate() will throw
+     * a java.util.concurrent.CancellationException. Call resetCancel() before
+     * the operator is used again.
+     */
+    public void cancel() {
+        cancelFlag.cancel();
+    }
+
+    /**
+     * Clears the cancel flag set by cancel().
+     */
+    public void resetCancel() {
+        cancelFlag.reset();
+    }
+
     /**
      * Apply the filter and store the result in a new grid that is returned.
      * @param src The source grid.
@@ -81,57 +169,58 @@ public abstract class ThreadedGridOperator implements GridOperator {
         if (dst == null || !dst.isWellFormed()) {
             throw new IllegalArgumentException(getName() + ": invalid destination grid");
         }
-        if (!isOverwrittingSupported() && src.getGrid() == dst.getGrid()) {
+        final boolean sameGrid = src == dst || (src.isArrayBacked()
+                && dst.isArrayBacked() && src.getRow(0, null) == dst.getRow(0, null));
+        if (!isOverwrittingSupported() && sameGrid) {
             throw new IllegalArgumentException(getName() + ": overwriting source grid is not possible");
         }
-        
-        int nRows = src.getRows();
-        int nThreads = Runtime.getRuntime().availableProcessors();
-        ArrayList<GridOperatorThread> threads = new ArrayList(nThreads);
-        int rowChunk = (nRows / nThreads) + 1;
-        for (int i = 0; i < nThreads; i++) {
-            int startRow = i * rowChunk;
-            int endRow = Math.min(nRows, startRow + rowChunk);
-            GridOperatorThread t = new GridOperatorThread(src, dst, startRow, endRow);
-            threads.add(t);
-            t.start();
+        if (!dst.isArrayBacked() && !isRowLocal()) {
+            throw new UnsupportedOperationException(getName() + ": destination grid must be stored in an array");
         }
+        
+        final GeoGrid srcGrid = src;
+        final GeoGrid dstGrid = dst;
+        final boolean stream = !src.isArrayBacked() || !dst.isArrayBacked();
+        getExecutor().execute(getName(), src.getRows(), new GridExecutor.RowTask() {
 
-        for (Thread t : threads) {
-            try {
-                t.join();
-            } catch (InterruptedException ex) {
-                Logger.getLogger(ThreadedGridOperator.class.getName()).log(Level.SEVERE, null, ex);
+            public void run(int startRow, int endRow) {
+                if (stream) {
+                    operateBand(srcGrid, dstGrid, startRow, endRow);
+                } else {
+                    operate(srcGrid, dstGrid, startRow, endRow);
+                }
             }
-        }
+        }, cancelFlag);
 
+        dst.invalidateStatistics();
         return dst;
     }
 
     /**
-     * A private utility class for wrapping a thread.
+     * Operates on a band of rows of grids that are not stored in Java arrays.
+     * The band and its halo rows are copied to the heap, and the result is
+     * copied back to the destination grid. The destination rows are shifted
+     * by getDestinationRowShift() and clamped to the destination grid, which
+     * can be smaller than the source grid.
      */
-    private class GridOperatorThread extends Thread {
-
-        final GeoGrid srcGrid;
-        final GeoGrid dstGrid;
-        final int startRow;
-        final int endRow;
-
-        public GridOperatorThread(GeoGrid srcGrid,
-                GeoGrid dstGrid,
-                int startRow,
-                int endRow) {
-
-            this.srcGrid = srcGrid;
-            this.dstGrid = dstGrid;
-            this.startRow = startRow;
-            this.endRow = endRow;
+    private void operateBand(GeoGrid src, GeoGrid dst, int startRow, int endRow) {
+        final int halo = getHalo();
+        GeoGrid srcBand = src.isArrayBacked() ? src
+                : src.getRowBand(startRow - halo, endRow + halo, true);
+        final int shift = getDestinationRowShift();
+        final int dstStartRow = Math.max(0, startRow - shift);
+        final int dstEndRow = Math.min(dst.getRows(), endRow - shift);
+        GeoGrid dstBand;
+        if (dst.isArrayBacked()) {
+            dstBand = dst;
+        } else if (dst == src) {
+            dstBand = srcBand;
+        } else {
+            dstBand = dst.getRowBand(dstStartRow, dstEndRow, true);
         }
-
-        @Override
-        public void run() {
-            operate(srcGrid, dstGrid, startRow, endRow);
+        operate(srcBand, dstBand, startRow, endRow);
+        if (dstBand != dst && dstStartRow < dstEndRow) {
+            dst.setRowBand(dstBand, dstStartRow, dstEndRow);
         }
     }
 }
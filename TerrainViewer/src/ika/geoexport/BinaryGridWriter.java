@@ -0,0 +1,220 @@
+package ika.geoexport;
+
+import ika.geo.GeoGrid;
+import ika.geo.grid.GaussianPyramid;
+import ika.geo.grid.GridExecutor;
+import ika.geoimport.BinaryGridReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Writes grids in the binary TerrainViewer grid format. The levels of a
+ * Gaussian pyramid and statistics of the full resolution grid can be stored
+ * with the grid, so that a processed terrain can be reopened without parsing
+ * and downsampling. See ika.geoimport.BinaryGridReader for a description of
+ * the format. Tiles are encoded in parallel.
+ *
+ * @author jenny
+ */
+public final class BinaryGridWriter {
+
+    /**
+     * The default number of cells along the side of a tile.
+     */
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    private BinaryGridWriter() {
+    }
+
+    /**
+     * Writes a grid without pyramid levels.
+     * @param grid The grid to write.
+     * @param filePath The path of the new file.
+     * @param compress If true, tiles are compressed losslessly.
+     */
+    public static void write(GeoGrid grid, String filePath, boolean compress)
+            throws IOException {
+        write(new GeoGrid[]{grid}, filePath, compress, DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * Writes all levels of a pyramid.
+     * @param pyramid The pyramid to write.
+     * @param filePath The path of the new file.
+     * @param compress If true, tiles are compressed losslessly.
+     */
+    public static void write(GaussianPyramid pyramid, String filePath, boolean compress)
+            throws IOException {
+        write(pyramid.getPyramid(), filePath, compress, DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * Writes grids to a file.
+     * @param levels The full resolution grid followed by pyramid levels.
+     * @param filePath The path of the new file.
+     * @param compress If true, tiles are compressed losslessly.
+     * @param tileSize The number of cells along the side of a tile.
+     */
+    public static void write(GeoGrid[] levels, String filePath, boolean compress,
+            int tileSize) throws IOException {
+
+        if (levels == null || levels.length == 0 || tileSize <= 0) {
+            throw new IllegalArgumentException();
+        }
+        final byte compression = compress
+                ? BinaryGridReader.COMPRESSION_DEFLATE : BinaryGridReader.COMPRESSION_NONE;
+        GeoGrid.GeoGridStatistics stats = levels[0].getStatistics();
+
+        // size of header and tile indices
+        long[] indexPosition = new long[levels.length];
+        long position = BinaryGridReader.MAGIC.length + 2 + 4 + 1 + 4 * 4 + 4
+                + levels.length * (4 + 4 + 8 + 8 + 8 + 8);
+        for (int i = 0; i < levels.length; i++) {
+            indexPosition[i] = position;
+            position += 12L * tileCount(levels[i], tileSize);
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(filePath, "rw");
+        try {
+            raf.setLength(0);
+
+            // header
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(header);
+            out.write(BinaryGridReader.MAGIC);
+            out.writeShort(BinaryGridReader.VERSION);
+            out.writeInt(tileSize);
+            out.writeByte(compression);
+            out.writeFloat(stats.min);
+            out.writeFloat(stats.max);
+            out.writeFloat(stats.mean);
+            out.writeInt(stats.voidCount);
+            out.writeInt(levels.length);
+            for (int i = 0; i < levels.length; i++) {
+                GeoGrid grid = levels[i];
+                out.writeInt(grid.getCols());
+                out.writeInt(grid.getRows());
+                out.writeDouble(grid.getWest());
+                out.writeDouble(grid.getNorth());
+                out.writeDouble(grid.getCellSize());
+                out.writeLong(indexPosition[i]);
+            }
+            out.flush();
+            raf.write(header.toByteArray());
+
+            // tiles
+            raf.seek(position);
+            for (int i = 0; i < levels.length; i++) {
+                writeLevel(raf, levels[i], indexPosition[i], compression, tileSize);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int tileCount(GeoGrid grid, int tileSize) {
+        int tileCols = (grid.getCols() + tileSize - 1) / tileSize;
+        int tileRows = (grid.getRows() + tileSize - 1) / tileSize;
+        return tileCols * tileRows;
+    }
+
+    /**
+     * Writes the tiles of a level at the current file position and the tile
+     * index at indexPosition. The tiles of each row of tiles are encoded in
+     * parallel.
+     */
+    private static void writeLevel(RandomAccessFile raf, final GeoGrid grid,
+            long indexPosition, final byte compression, final int tileSize)
+            throws IOException {
+
+        final int tileCols = (grid.getCols() + tileSize - 1) / tileSize;
+        final int tileRows = (grid.getRows() + tileSize - 1) / tileSize;
+        ByteBuffer index = ByteBuffer.allocate(12 * tileCols * tileRows);
+        final byte[][] tiles = new byte[tileCols][];
+        for (int tr = 0; tr < tileRows; tr++) {
+            final int row0 = tr * tileSize;
+            GridExecutor.getDefault().execute(null, tileCols, new GridExecutor.RowTask() {
+
+                public void run(int startTileCol, int endTileCol) {
+                    for (int tc = startTileCol; tc < endTileCol; tc++) {
+                        tiles[tc] = encodeTile(grid, tc * tileSize, row0, tileSize, compression);
+                    }
+                }
+            });
+            for (int tc = 0; tc < tileCols; tc++) {
+                index.putLong(raf.getFilePointer());
+                index.putInt(tiles[tc].length);
+                raf.write(tiles[tc]);
+                tiles[tc] = null;
+            }
+        }
+        long end = raf.getFilePointer();
+        raf.seek(indexPosition);
+        raf.write(index.array());
+        raf.seek(end);
+    }
+
+    /**
+     * Encodes a tile.
+     * @param grid The grid.
+     * @param col0 The column of the top left cell of the tile.
+     * @param row0 The row of the top left cell of the tile.
+     * @param tileSize The number of cells along the side of a tile.
+     * @param compression The compression method.
+     * @return The encoded tile.
+     */
+    private static byte[] encodeTile(GeoGrid grid, int col0, int row0, int tileSize,
+            byte compression) {
+        final int w = Math.min(tileSize, grid.getCols() - col0);
+        final int h = Math.min(tileSize, grid.getRows() - row0);
+        final int n = w * h;
+        float[] buffer = grid.isArrayBacked() ? null : new float[grid.getCols()];
+
+        if (compression == BinaryGridReader.COMPRESSION_NONE) {
+            ByteBuffer tile = ByteBuffer.allocate(n * 4);
+            for (int r = 0; r < h; r++) {
+                float[] row = grid.getRow(row0 + r, buffer);
+                for (int c = 0; c < w; c++) {
+                    tile.putFloat(row[col0 + c]);
+                }
+            }
+            return tile.array();
+        }
+
+        // XOR each value with its left neighbor and group bytes by significance
+        byte[] planes = new byte[n * 4];
+        for (int r = 0; r < h; r++) {
+            float[] row = grid.getRow(row0 + r, buffer);
+            int prev = 0;
+            for (int c = 0; c < w; c++) {
+                final int bits = Float.floatToRawIntBits(row[col0 + c]);
+                final int x = bits ^ prev;
+                prev = bits;
+                final int i = r * w + c;
+                planes[i] = (byte) (x >>> 24);
+                planes[n + i] = (byte) (x >>> 16);
+                planes[2 * n + i] = (byte) (x >>> 8);
+                planes[3 * n + i] = (byte) x;
+            }
+        }
+
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(planes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(n);
+            byte[] b = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                int len = deflater.deflate(b);
+                out.write(b, 0, len);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+}
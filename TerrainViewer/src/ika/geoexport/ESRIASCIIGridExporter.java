@@ -31,10 +31,12 @@ public class ESRIASCIIGridExporter {
             writer.write("yllcorner " + geoGrid.getSouth() + lineSeparator);
             writer.write("cellsize " + geoGrid.getCellSize() + lineSeparator);
             writer.write("nodata_value " + voidValueStr + lineSeparator);
-            float[][] grid = geoGrid.getGrid();
-            for (int r = 0; r < grid.length; ++r) {
-                for (int c = 0; c < grid[0].length; ++c) {
-                    float v = grid[r][c];
+            final int cols = geoGrid.getCols();
+            float[] buffer = geoGrid.isArrayBacked() ? null : new float[cols];
+            for (int r = 0; r < geoGrid.getRows(); ++r) {
+                float[] row = geoGrid.getRow(r, buffer);
+                for (int c = 0; c < cols; ++c) {
+                    float v = row[c];
                     if (Float.isNaN(v)) {
                         writer.write(voidValueStr);
                     } else {
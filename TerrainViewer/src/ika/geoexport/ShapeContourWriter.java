@@ -0,0 +1,262 @@
+package ika.geoexport;
+
+import ika.geo.grid.ContourSink;
+import ika.utils.FileUtils;
+import ika.utils.LittleEndianOutputStream;
+import ika.utils.MixedEndianDataOutputStream;
+import ika.utils.NumberFormatter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+/**
+ * Writes contour lines to a polyline shape file with an elevation attribute
+ * while the lines are generated. Unlike ShapeExporter, which builds the
+ * whole file in memory, lines are streamed to the shp, shx and dbf files.
+ * The file headers contain the file lengths, the bounding box and the number
+ * of records, and are written when the writer is closed.
+ *
+ * @author jenny
+ */
+public class ShapeContourWriter implements ContourSink {
+
+    private static final int SHAPE_HEADER_SIZE = 100;
+    private static final int DBF_HEADER_SIZE = 32 + 32 + 1;
+    private static final int NUMBER_LENGTH = 20;
+    private static final int NUMBER_DECIMALS = 8;
+    private static final String ELEVATION_FIELD = "ELEV";
+    private final String shpPath;
+    private final String shxPath;
+    private final String dbfPath;
+    private MixedEndianDataOutputStream shp;
+    private MixedEndianDataOutputStream shx;
+    private LittleEndianOutputStream dbf;
+    private int recordCount = 0;
+    /**
+     * Size of the shp file in bytes.
+     */
+    private long shpSize = SHAPE_HEADER_SIZE;
+    private double xMin = Double.POSITIVE_INFINITY;
+    private double yMin = Double.POSITIVE_INFINITY;
+    private double xMax = Double.NEGATIVE_INFINITY;
+    private double yMax = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Creates the shp, shx and dbf files.
+     * @param shpPath The path of the shp file. The shx and dbf files are
+     * written to the same directory.
+     * @throws IOException If a file cannot be created.
+     */
+    public ShapeContourWriter(String shpPath) throws IOException {
+        this.shpPath = shpPath;
+        this.shxPath = FileUtils.replaceExtension(shpPath, "shx");
+        this.dbfPath = FileUtils.replaceExtension(shpPath, "dbf");
+        try {
+            shp = new MixedEndianDataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(shpPath)));
+            shx = new MixedEndianDataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(shxPath)));
+            dbf = new LittleEndianOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(dbfPath)));
+
+            // placeholders for the headers
+            shp.write(new byte[SHAPE_HEADER_SIZE]);
+            shx.write(new byte[SHAPE_HEADER_SIZE]);
+            dbf.write(new byte[DBF_HEADER_SIZE]);
+        } catch (IOException ex) {
+            closeStreams();
+            throw ex;
+        }
+    }
+
+    /**
+     * Writes a contour line as a polyline record. The first point of closed
+     * lines is repeated at the end.
+     */
+    public void contour(double level, double[] xy, boolean closed) throws IOException {
+        if (shp == null) {
+            throw new IOException("shape file is closed");
+        }
+        final int nPoints = xy.length / 2 + (closed ? 1 : 0);
+        final int contentLength = 44 + 4 + nPoints * 16;
+        if (shpSize + 8 + contentLength > Integer.MAX_VALUE) {
+            throw new IOException("shape file too large");
+        }
+
+        double lineXMin = Double.POSITIVE_INFINITY;
+        double lineYMin = Double.POSITIVE_INFINITY;
+        double lineXMax = Double.NEGATIVE_INFINITY;
+        double lineYMax = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < xy.length; i += 2) {
+            lineXMin = Math.min(lineXMin, xy[i]);
+            lineXMax = Math.max(lineXMax, xy[i]);
+            lineYMin = Math.min(lineYMin, xy[i + 1]);
+            lineYMax = Math.max(lineYMax, xy[i + 1]);
+        }
+        xMin = Math.min(xMin, lineXMin);
+        yMin = Math.min(yMin, lineYMin);
+        xMax = Math.max(xMax, lineXMax);
+        yMax = Math.max(yMax, lineYMax);
+
+        // shx record
+        shx.writeInt((int) (shpSize / 2));  // offset in 16 bit words
+        shx.writeInt(contentLength / 2);
+
+        // shp record
+        shp.writeInt(++recordCount);        // record number, starting at 1
+        shp.writeInt(contentLength / 2);    // content length in 16 bit words
+        shp.writeLittleEndianInt(ShapeGeometryExporter.POLYLINE_SHAPE_TYPE);
+        shp.writeLittleEndianDouble(lineXMin);
+        shp.writeLittleEndianDouble(lineYMin);
+        shp.writeLittleEndianDouble(lineXMax);
+        shp.writeLittleEndianDouble(lineYMax);
+        shp.writeLittleEndianInt(1);        // number of parts
+        shp.writeLittleEndianInt(nPoints);  // number of points
+        shp.writeLittleEndianInt(0);        // index of first point of part
+        for (int i = 0; i < xy.length; i++) {
+            shp.writeLittleEndianDouble(xy[i]);
+        }
+        if (closed) {
+            shp.writeLittleEndianDouble(xy[0]);
+            shp.writeLittleEndianDouble(xy[1]);
+        }
+        shpSize += 8 + contentLength;
+
+        // dbf record with deleted flag
+        dbf.write(' ');
+        writeString(dbf, NumberFormatter.format(level, NUMBER_LENGTH, NUMBER_DECIMALS),
+                NUMBER_LENGTH);
+    }
+
+    /**
+     * Returns the number of written contour lines.
+     */
+    public int getWrittenRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Writes the file headers and closes the files.
+     * @throws IOException If the files cannot be written.
+     */
+    public void close() throws IOException {
+        if (shp == null) {
+            return;
+        }
+        try {
+            shp.flush();
+            shx.flush();
+            dbf.flush();
+        } finally {
+            closeStreams();
+        }
+        writeHeader(shpPath, shapeHeader((int) shpSize));
+        writeHeader(shxPath, shapeHeader(SHAPE_HEADER_SIZE + recordCount * 8));
+        writeHeader(dbfPath, dbfHeader());
+    }
+
+    private void closeStreams() throws IOException {
+        try {
+            if (shp != null) {
+                shp.close();
+            }
+            if (shx != null) {
+                shx.close();
+            }
+        } finally {
+            shp = null;
+            shx = null;
+            if (dbf != null) {
+                dbf.close();
+                dbf = null;
+            }
+        }
+    }
+
+    private static void writeHeader(String path, byte[] header) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            file.write(header);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns the header of the shp or shx file.
+     * @param fileSize The size of the file in bytes.
+     */
+    private byte[] shapeHeader(int fileSize) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(SHAPE_HEADER_SIZE);
+        MixedEndianDataOutputStream mos = new MixedEndianDataOutputStream(bos);
+        final boolean empty = recordCount == 0;
+        mos.writeInt(9994);                 // file code
+        for (int i = 0; i < 5; i++) {       // unused
+            mos.writeInt(0);
+        }
+        mos.writeInt(fileSize / 2);         // file length in 16 bit words
+        mos.writeLittleEndianInt(1000);     // version
+        mos.writeLittleEndianInt(ShapeGeometryExporter.POLYLINE_SHAPE_TYPE);
+        mos.writeLittleEndianDouble(empty ? 0 : xMin);
+        mos.writeLittleEndianDouble(empty ? 0 : yMin);
+        mos.writeLittleEndianDouble(empty ? 0 : xMax);
+        mos.writeLittleEndianDouble(empty ? 0 : yMax);
+        mos.writeLittleEndianDouble(0);     // zmin
+        mos.writeLittleEndianDouble(0);     // zmax
+        mos.writeLittleEndianDouble(0);     // mmin
+        mos.writeLittleEndianDouble(0);     // mmax
+        mos.flush();
+        return bos.toByteArray();
+    }
+
+    /**
+     * Returns the header of the dbf file with a single numeric field.
+     */
+    private byte[] dbfHeader() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(DBF_HEADER_SIZE);
+        LittleEndianOutputStream dos = new LittleEndianOutputStream(bos);
+        dos.write(0x03);                    // dbf flag
+        Calendar cal = GregorianCalendar.getInstance();
+        dos.write(cal.get(Calendar.YEAR) - 1900);
+        dos.write(cal.get(Calendar.MONTH));
+        dos.write(cal.get(Calendar.DAY_OF_MONTH));
+        dos.writeInt(recordCount);          // number of records
+        dos.writeShort(DBF_HEADER_SIZE);    // header size
+        dos.writeShort(1 + NUMBER_LENGTH);  // record size with deletion flag
+        dos.writeShort(0);                  // reserved
+        dos.write(0);                       // transaction byte
+        dos.write(0);                       // encryption byte
+        for (int i = 0; i < 13; i++) {      // multi user environment use
+            dos.write(0);
+        }
+        dos.write(0x57);                    // codepage, see DBFExporter
+        dos.writeShort(0);                  // reserved
+
+        // field descriptor
+        writeString(dos, ELEVATION_FIELD, 10);
+        dos.write(0x0);
+        dos.write('F');
+        dos.writeInt(0);                    // field address (ignored)
+        dos.write(NUMBER_LENGTH);           // field length
+        dos.write(NUMBER_DECIMALS);         // decimal count
+        for (int c = 0; c < 14; c++) {      // reserved
+            dos.write(0);
+        }
+        dos.write(0x0D);                    // header record terminator
+        dos.flush();
+        return bos.toByteArray();
+    }
+
+    private static void writeString(LittleEndianOutputStream dos, String str,
+            int length) throws IOException {
+        byte[] b = str.getBytes("ISO-8859-1");
+        dos.write(b, 0, Math.min(length, b.length));
+        for (int c = b.length; c < length; c++) {
+            dos.write(0);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package ika.geoexport;
+
+import ika.geo.GeoGrid;
+import ika.geo.grid.GaussianPyramid;
+import ika.geo.grid.GridExecutor;
+import ika.geo.grid.GridShadeOperator;
+import ika.gui.ProgressIndicator;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import javax.imageio.ImageIO;
+
+/**
+ * Exports a grid to a pyramid of PNG tiles for web maps. Tiles are stored
+ * in directory/zoom/x/y.png, with y counted from the top (XYZ scheme) or from
+ * the bottom (TMS scheme). The highest zoom level shows the grid at full
+ * resolution; lower zoom levels use the levels of a Gaussian pyramid. Tiles
+ * are in the coordinate system of the grid, and the top left cell of the grid
+ * is at the top left corner of tile 0/0/0. The grid is not projected to Web
+ * Mercator, so the tiles only align with other web map layers if the grid is
+ * in Web Mercator and its extent matches the tile grid.
+ *
+ * Tiles are shaded or colored and written in parallel without creating an
+ * image of the entire grid. Each tile is computed from a window of the grid
+ * with a halo of neighboring cells, so that shading is continuous across
+ * tile borders. One tile image per thread is held in memory. The lower levels
+ * of the pyramid are complete grids in the same type of storage as the
+ * exported grid, and together have about a third of its size. For grids on
+ * the heap, they are allocated on the heap; for grids stored outside of the
+ * heap, they are stored outside of the heap as well.
+ *
+ * @author jenny
+ */
+public class TilePyramidExporter {
+
+    /**
+     * Tile numbering schemes.
+     */
+    public enum Scheme {
+
+        /**
+         * Rows of tiles are numbered from the top (OpenStreetMap, Google).
+         */
+        XYZ,
+        /**
+         * Rows of tiles are numbered from the bottom (Tile Map Service).
+         */
+        TMS
+    }
+    private int tileSize = 256;
+    private Scheme scheme = Scheme.XYZ;
+    private boolean shading = true;
+    private final GridShadeOperator shadeOperator = new GridShadeOperator();
+
+    /**
+     * A color ramp for hypsometric tinting with the lowest elevation on the
+     * left. Can be null.
+     */
+    private BufferedImage colorRamp;
+
+    public TilePyramidExporter() {
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public void setTileSize(int tileSize) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("invalid tile size");
+        }
+        this.tileSize = tileSize;
+    }
+
+    public Scheme getScheme() {
+        return scheme;
+    }
+
+    public void setScheme(Scheme scheme) {
+        this.scheme = scheme;
+    }
+
+    public boolean isShading() {
+        return shading;
+    }
+
+    /**
+     * Sets whether tiles are shaded. Without shading and color ramp, tiles
+     * show elevation in gray values.
+     * @param shading
+     */
+    public void setShading(boolean shading) {
+        this.shading = shading;
+    }
+
+    /**
+     * Sets the direction of the light for shading.
+     * @param azimuth The azimuth in degrees, clockwise from north.
+     * @param elevation The elevation above the horizon in degrees.
+     */
+    public void setLightDirection(double azimuth, double elevation) {
+        shadeOperator.setAzimuth(azimuth);
+        shadeOperator.setElevation(elevation);
+    }
+
+    public BufferedImage getColorRamp() {
+        return colorRamp;
+    }
+
+    /**
+     * Sets a color ramp for hypsometric tinting. The first row of the image
+     * is used, with the lowest elevation at the left.
+     * @param colorRamp The color ramp or null.
+     */
+    public void setColorRamp(BufferedImage colorRamp) {
+        this.colorRamp = colorRamp;
+    }
+
+    /**
+     * Returns the zoom level at which the grid is shown at full resolution.
+     * @param cols The number of columns of the grid.
+     * @param rows The number of rows of the grid.
+     * @return The highest zoom level.
+     */
+    public int getMaxZoom(int cols, int rows) {
+        int zoom = 0;
+        while ((long) tileSize << zoom < Math.max(cols, rows)) {
+            ++zoom;
+        }
+        return zoom;
+    }
+
+    /**
+     * Exports a grid. The levels of a Gaussian pyramid are computed when
+     * needed and disposed after the export.
+     * @param grid The grid to export.
+     * @param directory The directory for the tiles.
+     * @param progressIndicator Informed about the progress. Can be null.
+     * @return False if the export has been cancelled.
+     */
+    public boolean export(GeoGrid grid, String directory,
+            ProgressIndicator progressIndicator) throws IOException {
+        GaussianPyramid pyramid = new GaussianPyramid(grid, 9999, 1, true);
+        try {
+            return export(pyramid, directory, progressIndicator);
+        } finally {
+            for (int i = 1; i < pyramid.getLevelsCount(); i++) {
+                if (pyramid.isLevelComputed(i) && !pyramid.getLevel(i).isArrayBacked()) {
+                    pyramid.getLevel(i).getStorage().dispose();
+                }
+            }
+        }
+    }
+
+    /**
+     * Exports the levels of a pyramid.
+     * @param pyramid The pyramid to export.
+     * @param directory The directory for the tiles.
+     * @param progressIndicator Informed about the progress. Can be null.
+     * @return False if the export has been cancelled.
+     */
+    public boolean export(GaussianPyramid pyramid, String directory,
+            ProgressIndicator progressIndicator) throws IOException {
+
+        GeoGrid fullResolution = pyramid.getFullResolutionLevel();
+        final int maxZoom = getMaxZoom(fullResolution.getCols(), fullResolution.getRows());
+        final int minZoom = Math.max(0, maxZoom - pyramid.getLevelsCount() + 1);
+
+        // colors are mapped to the range of the full resolution grid for all levels
+        float[] minMax = fullResolution.getMinMax();
+
+        if (progressIndicator != null) {
+            progressIndicator.start();
+            progressIndicator.setTotalTasksCount(maxZoom - minZoom + 1);
+        }
+        for (int zoom = maxZoom; zoom >= minZoom; zoom--) {
+            if (progressIndicator != null && zoom < maxZoom) {
+                progressIndicator.nextTask();
+            }
+            GeoGrid grid = pyramid.getLevel(maxZoom - zoom);
+            if (!exportLevel(grid, zoom, minMax[0], minMax[1], directory, progressIndicator)) {
+                return false;
+            }
+        }
+        if (progressIndicator != null) {
+            progressIndicator.completeProgress();
+        }
+        return true;
+    }
+
+    /**
+     * Writes the tiles of one zoom level in parallel.
+     */
+    private boolean exportLevel(final GeoGrid grid, final int zoom,
+            final float min, final float max, final String directory,
+            final ProgressIndicator progressIndicator) throws IOException {
+
+        final int tileCols = (grid.getCols() + tileSize - 1) / tileSize;
+        final int tileRows = (grid.getRows() + tileSize - 1) / tileSize;
+        final int nTiles = tileCols * tileRows;
+        final GridExecutor.CancelFlag cancelFlag = new GridExecutor.CancelFlag();
+        final int[] writtenTiles = new int[1];
+        try {
+            GridExecutor.getDefault().executeIO(null, nTiles, new GridExecutor.RowTask() {
+
+                public void run(int startTile, int endTile) throws IOException {
+                    for (int t = startTile; t < endTile; t++) {
+                        final int tx = t % tileCols;
+                        final int ty = t / tileCols;
+                        BufferedImage image = renderTile(grid, tx * tileSize,
+                                ty * tileSize, min, max);
+                        int y = scheme == Scheme.TMS ? tileRows - 1 - ty : ty;
+                        File dir = new File(directory, zoom + File.separator + tx);
+                        dir.mkdirs();
+                        if (!ImageIO.write(image, "png", new File(dir, y + ".png"))) {
+                            throw new IOException("cannot write PNG tile");
+                        }
+                        synchronized (writtenTiles) {
+                            ++writtenTiles[0];
+                            if (progressIndicator != null
+                                    && !progressIndicator.progress(writtenTiles[0] * 100 / nTiles)) {
+                                cancelFlag.cancel();
+                            }
+                        }
+                    }
+                }
+            }, cancelFlag);
+        } catch (CancellationException ex) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Renders a tile. Cells outside of the grid and void cells are
+     * transparent.
+     * @param grid The grid.
+     * @param col0 The column of the top left cell of the tile.
+     * @param row0 The row of the top left cell of the tile.
+     * @param min The elevation mapped to the left of the color ramp.
+     * @param max The elevation mapped to the right of the color ramp.
+     * @return The new tile.
+     */
+    private BufferedImage renderTile(GeoGrid grid, int col0, int row0,
+            float min, float max) {
+        final int w = Math.min(tileSize, grid.getCols() - col0);
+        final int h = Math.min(tileSize, grid.getRows() - row0);
+        final float[][] window = readWindow(grid, col0, row0, w, h);
+
+        float[] brightness = null;
+        if (shading) {
+            brightness = new float[w * h];
+            shadeOperator.shade(window, grid.getCellSize(), brightness);
+        }
+
+        final int rampWidth = colorRamp == null ? 0 : colorRamp.getWidth();
+        final float scale = max > min ? 1f / (max - min) : 0f;
+        final int[] pixels = new int[tileSize * tileSize];
+        for (int r = 0; r < h; r++) {
+            final float[] row = window[r + 1];
+            for (int c = 0; c < w; c++) {
+                final float v = row[c + 1];
+                if (Float.isNaN(v)) {
+                    continue;
+                }
+                final float t = max > min ? (v - min) * scale : 1f;
+                int red, green, blue;
+                if (colorRamp != null) {
+                    int x = Math.round(t * (rampWidth - 1));
+                    int rgb = colorRamp.getRGB(Math.max(0, Math.min(rampWidth - 1, x)), 0);
+                    red = (rgb >> 16) & 0xff;
+                    green = (rgb >> 8) & 0xff;
+                    blue = rgb & 0xff;
+                } else {
+                    red = green = blue = shading ? 255 : (int) (t * 255f);
+                }
+                if (brightness != null) {
+                    final float b = Math.min(1f, brightness[r * w + c]);
+                    red = (int) (red * b);
+                    green = (int) (green * b);
+                    blue = (int) (blue * b);
+                }
+                pixels[r * tileSize + c] = 0xff000000 | (red << 16) | (green << 8) | blue;
+            }
+        }
+        BufferedImage image = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, tileSize, tileSize, pixels, 0, tileSize);
+        return image;
+    }
+
+    /**
+     * Copies a section of a grid with a halo of one cell on the top and left
+     * side and two cells on the bottom and right side. Cells outside of the
+     * grid are replaced by the closest border cell.
+     */
+    private static float[][] readWindow(GeoGrid grid, int col0, int row0, int w, int h) {
+        final int cols = grid.getCols();
+        final int rows = grid.getRows();
+        final boolean arrayBacked = grid.isArrayBacked();
+        final float[][] window = new float[h + 3][w + 3];
+        for (int r = 0; r < h + 3; r++) {
+            final int srcRow = Math.max(0, Math.min(rows - 1, row0 - 1 + r));
+            final float[] dst = window[r];
+            if (arrayBacked) {
+                final float[] src = grid.getRow(srcRow, null);
+                for (int c = 0; c < w + 3; c++) {
+                    dst[c] = src[Math.max(0, Math.min(cols - 1, col0 - 1 + c))];
+                }
+            } else {
+                for (int c = 0; c < w + 3; c++) {
+                    dst[c] = grid.getValue(Math.max(0, Math.min(cols - 1, col0 - 1 + c)), srcRow);
+                }
+            }
+        }
+        return window;
+    }
+}
@@ -0,0 +1,355 @@
+package ika.geoimport;
+
+import ika.geo.GeoGrid;
+import ika.geo.MappedGridStorage;
+import ika.geo.grid.GaussianPyramid;
+import ika.geo.grid.GridExecutor;
+import ika.gui.ProgressIndicator;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CancellationException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads grids in the binary TerrainViewer grid format written by
+ * ika.geoexport.BinaryGridWriter. A file contains the full resolution grid
+ * and optionally downsampled levels of a Gaussian pyramid, as well as
+ * statistics of the full resolution grid. Each level is split into square
+ * tiles that are stored either uncompressed or with lossless compression.
+ * Tiles are decoded in parallel from the memory-mapped file.
+ *
+ * Format (big endian):
+ * <pre>
+ * "TVGRID"              magic string (6 bytes)
+ * short                 version
+ * int                   tile size
+ * byte                  compression (0: none, 1: XOR predictor and deflate)
+ * float, float, float   minimum, maximum, mean of level 0
+ * int                   number of void cells of level 0
+ * int                   number of levels
+ * per level:            int cols, int rows, double west, double north,
+ *                       double cell size, long position of tile index
+ * per level:            tile index with long position and int length of
+ *                       each tile, tiles ordered row by row
+ * tiles                 floats of a tile, row by row
+ * </pre>
+ *
+ * @author jenny
+ */
+public class BinaryGridReader {
+
+    /**
+     * Identifies binary grid files.
+     */
+    public static final byte[] MAGIC = {'T', 'V', 'G', 'R', 'I', 'D'};
+
+    /**
+     * The version of the format.
+     */
+    public static final short VERSION = 1;
+
+    /**
+     * Tiles are not compressed.
+     */
+    public static final byte COMPRESSION_NONE = 0;
+
+    /**
+     * The bits of each float are XORed with the bits of its left neighbor,
+     * the resulting bytes are grouped by significance, and compressed with
+     * the deflate algorithm.
+     */
+    public static final byte COMPRESSION_DEFLATE = 1;
+
+    private int tileSize;
+    private byte compression;
+    private float min, max, mean;
+    private int voidCount;
+    private int[] levelCols, levelRows;
+    private double[] levelWest, levelNorth, levelCellSize;
+    private long[] indexPosition;
+
+    private BinaryGridReader() {
+    }
+
+    /**
+     * Returns whether a file is a binary grid file that can be read.
+     * @param filePath The path of the file.
+     * @return True if the file can be read.
+     */
+    public static boolean canRead(String filePath) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(filePath));
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            return java.util.Arrays.equals(magic, MAGIC) && in.readShort() <= VERSION;
+        } catch (Exception exc) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException exc) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the full resolution grid.
+     * @param filePath The path of the file.
+     * @return The grid.
+     */
+    public static GeoGrid read(String filePath) throws IOException {
+        GeoGrid[] levels = read(filePath, null, Long.MAX_VALUE, 1);
+        return levels == null ? null : levels[0];
+    }
+
+    /**
+     * Reads the full resolution grid and all stored pyramid levels.
+     * @param filePath The path of the file.
+     * @param progressIndicator Informed about the progress. Can be null.
+     * @param maxHeapCells Levels with more cells are stored in temporary
+     * memory-mapped files, which are deleted when the storage of the level
+     * is disposed. Pass Long.MAX_VALUE to store all levels on the heap.
+     * @return The pyramid, or null if the user canceled.
+     */
+    public static GaussianPyramid readPyramid(String filePath,
+            ProgressIndicator progressIndicator, long maxHeapCells) throws IOException {
+        GeoGrid[] levels = read(filePath, progressIndicator, maxHeapCells, Integer.MAX_VALUE);
+        return levels == null ? null : new GaussianPyramid(levels);
+    }
+
+    private static GeoGrid[] read(String filePath, ProgressIndicator progressIndicator,
+            long maxHeapCells, int maxLevels) throws IOException {
+
+        if (progressIndicator != null) {
+            progressIndicator.start();
+        }
+        File file = new File(filePath);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        GeoGrid[] levels = null;
+        boolean success = false;
+        try {
+            BinaryGridReader reader = new BinaryGridReader();
+            reader.readHeader(raf);
+            final int nLevels = Math.min(maxLevels, reader.levelCols.length);
+            levels = new GeoGrid[nLevels];
+            if (progressIndicator != null) {
+                progressIndicator.setTotalTasksCount(nLevels);
+            }
+            for (int i = 0; i < nLevels; i++) {
+                if (progressIndicator != null && i > 0) {
+                    progressIndicator.nextTask();
+                }
+                final long cells = (long) reader.levelCols[i] * reader.levelRows[i];
+                levels[i] = reader.readLevel(raf.getChannel(), i, cells > maxHeapCells,
+                        progressIndicator);
+                if (levels[i] == null) {
+                    return null;
+                }
+                levels[i].setName(file.getName());
+            }
+            // the statistics stored in the file spare a scan of the full
+            // resolution grid
+            try {
+                levels[0].setStatistics(reader.min, reader.max, reader.mean,
+                        reader.voidCount);
+            } catch (IllegalArgumentException ex) {
+                throw new IOException("corrupt binary grid statistics");
+            }
+            success = true;
+            return levels;
+        } finally {
+            raf.close();
+            if (!success && levels != null) {
+                // delete the temporary files of levels read so far
+                for (GeoGrid level : levels) {
+                    if (level != null) {
+                        level.getStorage().dispose();
+                    }
+                }
+            }
+        }
+    }
+
+    private void readHeader(RandomAccessFile raf) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        raf.readFully(magic);
+        if (!java.util.Arrays.equals(magic, MAGIC)) {
+            throw new IOException("not a binary grid file");
+        }
+        if (raf.readShort() > VERSION) {
+            throw new IOException("unsupported binary grid version");
+        }
+        tileSize = raf.readInt();
+        compression = raf.readByte();
+        min = raf.readFloat();
+        max = raf.readFloat();
+        mean = raf.readFloat();
+        voidCount = raf.readInt();
+        int nLevels = raf.readInt();
+        if (tileSize <= 0 || nLevels <= 0
+                || (compression != COMPRESSION_NONE && compression != COMPRESSION_DEFLATE)) {
+            throw new IOException("corrupt binary grid file");
+        }
+        levelCols = new int[nLevels];
+        levelRows = new int[nLevels];
+        levelWest = new double[nLevels];
+        levelNorth = new double[nLevels];
+        levelCellSize = new double[nLevels];
+        indexPosition = new long[nLevels];
+        for (int i = 0; i < nLevels; i++) {
+            levelCols[i] = raf.readInt();
+            levelRows[i] = raf.readInt();
+            levelWest[i] = raf.readDouble();
+            levelNorth[i] = raf.readDouble();
+            levelCellSize[i] = raf.readDouble();
+            indexPosition[i] = raf.readLong();
+        }
+    }
+
+    /**
+     * Reads one level, decoding rows of tiles in parallel.
+     */
+    private GeoGrid readLevel(final FileChannel channel, int level, boolean offHeap,
+            final ProgressIndicator progressIndicator) throws IOException {
+        final int cols = levelCols[level];
+        final int rows = levelRows[level];
+        final int tileCols = (cols + tileSize - 1) / tileSize;
+        final int tileRows = (rows + tileSize - 1) / tileSize;
+
+        // read tile index
+        final long[] tilePosition = new long[tileCols * tileRows];
+        final int[] tileLength = new int[tileCols * tileRows];
+        ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY,
+                indexPosition[level], 12L * tilePosition.length);
+        for (int i = 0; i < tilePosition.length; i++) {
+            tilePosition[i] = index.getLong();
+            tileLength[i] = index.getInt();
+        }
+
+        final GeoGrid grid;
+        if (offHeap) {
+            grid = new GeoGrid(MappedGridStorage.createTemporary(cols, rows), levelCellSize[level]);
+        } else {
+            grid = new GeoGrid(cols, rows, levelCellSize[level]);
+        }
+        grid.setWest(levelWest[level]);
+        grid.setNorth(levelNorth[level]);
+
+        final GridExecutor.CancelFlag cancelFlag = new GridExecutor.CancelFlag();
+        final int[] decodedTileRows = new int[1];
+        boolean success = false;
+        try {
+            GridExecutor.getDefault().executeIO(null, tileRows, new GridExecutor.RowTask() {
+
+                public void run(int startTileRow, int endTileRow) throws IOException {
+                    for (int tr = startTileRow; tr < endTileRow; tr++) {
+                        // tiles of a row are stored contiguously
+                        int first = tr * tileCols;
+                        int last = first + tileCols - 1;
+                        long start = tilePosition[first];
+                        long size = tilePosition[last] + tileLength[last] - start;
+                        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+                        for (int tc = 0; tc < tileCols; tc++) {
+                            int t = first + tc;
+                            buffer.limit((int) (tilePosition[t] - start + tileLength[t]));
+                            buffer.position((int) (tilePosition[t] - start));
+                            decodeTile(buffer.slice(), grid, tc * tileSize, tr * tileSize);
+                        }
+                        synchronized (decodedTileRows) {
+                            ++decodedTileRows[0];
+                            if (progressIndicator != null
+                                    && !progressIndicator.progress(decodedTileRows[0] * 100 / tileRows)) {
+                                cancelFlag.cancel();
+                            }
+                        }
+                    }
+                }
+            }, cancelFlag);
+            success = true;
+        } catch (CancellationException ex) {
+            return null;
+        } finally {
+            if (!success) {
+                grid.getStorage().dispose();
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Decodes a tile and stores its values in a grid.
+     * @param data The encoded tile.
+     * @param grid The destination grid.
+     * @param col0 The column of the top left cell of the tile.
+     * @param row0 The row of the top left cell of the tile.
+     */
+    private void decodeTile(ByteBuffer data, GeoGrid grid, int col0, int row0)
+            throws IOException {
+        final int w = Math.min(tileSize, grid.getCols() - col0);
+        final int h = Math.min(tileSize, grid.getRows() - row0);
+        final float[] row = new float[w];
+        if (compression == COMPRESSION_NONE) {
+            if (data.remaining() != w * h * 4) {
+                throw new IOException("corrupt binary grid tile");
+            }
+            FloatBuffer floats = data.asFloatBuffer();
+            for (int r = 0; r < h; r++) {
+                floats.get(row);
+                storeTileRow(grid, row, col0, row0 + r);
+            }
+            return;
+        }
+
+        // inflate
+        byte[] compressed = new byte[data.remaining()];
+        data.get(compressed);
+        byte[] planes = new byte[w * h * 4];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            if (inflater.inflate(planes) != planes.length) {
+                throw new IOException("corrupt binary grid tile");
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("corrupt binary grid tile");
+        } finally {
+            inflater.end();
+        }
+
+        // regroup bytes and undo the XOR predictor
+        final int n = w * h;
+        for (int r = 0; r < h; r++) {
+            int prev = 0;
+            for (int c = 0; c < w; c++) {
+                final int i = r * w + c;
+                final int bits = ((planes[i] & 0xFF) << 24)
+                        | ((planes[n + i] & 0xFF) << 16)
+                        | ((planes[2 * n + i] & 0xFF) << 8)
+                        | (planes[3 * n + i] & 0xFF);
+                prev ^= bits;
+                row[c] = Float.intBitsToFloat(prev);
+            }
+            storeTileRow(grid, row, col0, row0 + r);
+        }
+    }
+
+    private static void storeTileRow(GeoGrid grid, float[] values, int col0, int row) {
+        if (grid.isArrayBacked()) {
+            System.arraycopy(values, 0, grid.getGrid()[row], col0, values.length);
+        } else {
+            for (int c = 0; c < values.length; c++) {
+                grid.setValue(values[c], col0 + c, row);
+            }
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package ika.geoimport;
+
+import ika.geo.GeoGrid;
+import ika.geo.MappedGridStorage;
+import ika.geo.grid.GridExecutor;
+import ika.gui.ProgressIndicator;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CancellationException;
+
+/**
+ * A fast reader for ESRI ASCII grid files. The file is memory-mapped and split
+ * into chunks of bytes that are parsed in parallel by the threads of the
+ * shared GridExecutor. A first pass counts the values in each chunk to find
+ * the grid cell of the first value in each chunk, a second pass parses the
+ * values and stores them in the grid. Values are parsed directly from the
+ * bytes without creating String objects.
+ *
+ * The grid rows do not need to correspond to lines in the file.
+ *
+ * @author jenny
+ */
+public class MappedEsriASCIIGridReader {
+
+    /**
+     * The number of bytes in a chunk that is parsed by one thread.
+     */
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The maximum number of characters of a value.
+     */
+    private static final int MAX_TOKEN_LENGTH = 128;
+
+    /**
+     * Powers of ten that can be exactly represented by a float.
+     */
+    private static final float[] POW10 = {
+        1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+    };
+
+    /**
+     * The largest integer that can be exactly represented by a float.
+     */
+    private static final long MAX_EXACT_FLOAT_INT = 1L << 24;
+
+    /**
+     * Chunk buffers, one per thread.
+     */
+    private static final ThreadLocal<byte[]> chunkBuffer = new ThreadLocal<byte[]>() {
+
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE + MAX_TOKEN_LENGTH + 1];
+        }
+    };
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final ProgressIndicator progressIndicator;
+    private final GridExecutor.CancelFlag cancelFlag = new GridExecutor.CancelFlag();
+    private long bodyStart;
+    private float noDataValue;
+    private int processedChunks = 0;
+
+    private MappedEsriASCIIGridReader(FileChannel channel, ProgressIndicator progressIndicator)
+            throws IOException {
+        this.channel = channel;
+        this.fileSize = channel.size();
+        this.progressIndicator = progressIndicator;
+    }
+
+    /**
+     * Read a Grid from a file in ESRI ASCII format.
+     * @param filePath The path to the file to be read.
+     * @return The read grid.
+     */
+    public static GeoGrid read(String filePath) throws IOException {
+        return read(filePath, null, Long.MAX_VALUE);
+    }
+
+    /**
+     * Read a Grid from a file in ESRI ASCII format.
+     * @param filePath The path to the file to be read.
+     * @param progressIndicator A ProgressIndicator to inform about the
+     * progress. Can be null.
+     * @param maxHeapCells Grids with more cells are stored in a temporary
+     * memory-mapped file, which is deleted when the storage of the grid is
+     * disposed. Smaller grids are stored in a Java array. Pass Long.MAX_VALUE
+     * to always store the grid in a Java array.
+     * @return The read grid, or null if the user canceled.
+     */
+    public static GeoGrid read(String filePath, ProgressIndicator progressIndicator,
+            long maxHeapCells) throws IOException {
+
+        if (progressIndicator != null) {
+            progressIndicator.start();
+        }
+
+        File file = new File(filePath);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedEsriASCIIGridReader reader
+                    = new MappedEsriASCIIGridReader(raf.getChannel(), progressIndicator);
+            GeoGrid grid = reader.read(maxHeapCells);
+            if (grid == null) {
+                return null;
+            }
+            String name = file.getName();
+            if (!"".equals(name)) {
+                grid.setName(name);
+            }
+            return grid;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private GeoGrid read(long maxHeapCells) throws IOException {
+        GridHeaderImporter header = readHeader();
+        final int cols = header.getCols();
+        final int rows = header.getRows();
+        noDataValue = header.getNoDataValue();
+
+        final int nChunks = (int) ((fileSize - bodyStart + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        final long[] valuesInChunk = new long[nChunks];
+
+        // first pass: count values in each chunk
+        GridExecutor executor = GridExecutor.getDefault();
+        try {
+            executor.executeIO(null, nChunks, new GridExecutor.RowTask() {
+
+                public void run(int startChunk, int endChunk) throws IOException {
+                    for (int i = startChunk; i < endChunk; i++) {
+                        valuesInChunk[i] = scanChunk(i, null, 0, 0);
+                        chunkProcessed(2 * nChunks);
+                    }
+                }
+            }, cancelFlag);
+        } catch (CancellationException ex) {
+            return null;
+        }
+
+        // find the index of the first value in each chunk
+        final long[] firstValue = new long[nChunks];
+        long nbrValues = 0;
+        for (int i = 0; i < nChunks; i++) {
+            firstValue[i] = nbrValues;
+            nbrValues += valuesInChunk[i];
+        }
+        if (nbrValues != (long) cols * rows) {
+            throw new IOException("corrupt Esri Ascii grid file");
+        }
+
+        final GeoGrid grid;
+        if ((long) cols * rows > maxHeapCells) {
+            grid = new GeoGrid(MappedGridStorage.createTemporary(cols, rows), header.getCellSize());
+        } else {
+            grid = new GeoGrid(cols, rows, header.getCellSize());
+        }
+        grid.setWest(header.getWest());
+        grid.setNorth(header.getSouth() + (rows - 1) * header.getCellSize());
+
+        // second pass: parse values
+        boolean success = false;
+        try {
+            executor.executeIO(null, nChunks, new GridExecutor.RowTask() {
+
+                public void run(int startChunk, int endChunk) throws IOException {
+                    for (int i = startChunk; i < endChunk; i++) {
+                        scanChunk(i, grid, firstValue[i], valuesInChunk[i]);
+                        chunkProcessed(2 * nChunks);
+                    }
+                }
+            }, cancelFlag);
+            success = true;
+        } catch (CancellationException ex) {
+            return null;
+        } finally {
+            if (!success) {
+                // delete the temporary file
+                grid.getStorage().dispose();
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Informs the progress indicator and cancels if the user aborted.
+     */
+    private synchronized void chunkProcessed(int totalChunks) {
+        ++processedChunks;
+        if (progressIndicator != null) {
+            int perc = (int) ((double) processedChunks / totalChunks * 100);
+            if (!progressIndicator.progress(perc) || progressIndicator.isAborted()) {
+                cancelFlag.cancel();
+            }
+        }
+    }
+
+    /**
+     * Reads the header lines preceding the first grid value and finds the
+     * position of the first grid value.
+     */
+    private GridHeaderImporter readHeader() throws IOException {
+        final int maxHeaderSize = (int) Math.min(fileSize, 64 * 1024);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, maxHeaderSize);
+        StringBuilder sb = new StringBuilder();
+        int lineStart = 0;
+        while (lineStart < maxHeaderSize) {
+            // find first character of line
+            int i = lineStart;
+            while (i < maxHeaderSize && isSpace(buffer.get(i))) {
+                ++i;
+            }
+            if (i < maxHeaderSize && !Character.isLetter((char) buffer.get(i))) {
+                break;
+            }
+            // append line to header text
+            while (i < maxHeaderSize && buffer.get(i) != '\n' && buffer.get(i) != '\r') {
+                sb.append((char) buffer.get(i++));
+            }
+            sb.append('\n');
+            lineStart = i;
+        }
+        bodyStart = lineStart;
+
+        GridHeaderImporter header = new GridHeaderImporter();
+        header.readHeader(new BufferedReader(new StringReader(sb.toString())), false);
+        if (!header.isValid()) {
+            throw new IOException("invalid Esri Ascii grid header");
+        }
+        return header;
+    }
+
+    /**
+     * Counts or parses the values in a chunk. A value belongs to the chunk
+     * containing its first character.
+     * @param chunk The index of the chunk.
+     * @param grid The grid to store values in, or null if values are only
+     * counted.
+     * @param firstValue The index of the first value in the chunk.
+     * @param expectedValues The number of values in the chunk.
+     * @return The number of values in the chunk.
+     */
+    private long scanChunk(int chunk, GeoGrid grid, long firstValue, long expectedValues)
+            throws IOException {
+
+        // map the chunk with one preceding byte and the tail of the last value
+        final long chunkStart = bodyStart + (long) chunk * CHUNK_SIZE;
+        final long chunkEnd = Math.min(fileSize, chunkStart + CHUNK_SIZE);
+        final long mapStart = chunkStart - 1;
+        final long mapEnd = Math.min(fileSize, chunkEnd + MAX_TOKEN_LENGTH);
+        final int length = (int) (mapEnd - mapStart);
+        final byte[] b = chunkBuffer.get();
+        channel.map(FileChannel.MapMode.READ_ONLY, mapStart, length).get(b, 0, length);
+        final int end = (int) (chunkEnd - mapStart);
+
+        // skip the tail of a value starting in the previous chunk
+        int i = 1;
+        if (!isSpace(b[0])) {
+            while (i < end && !isSpace(b[i])) {
+                ++i;
+            }
+        }
+
+        final int cols = grid == null ? 0 : grid.getCols();
+        final float[][] array = grid != null && grid.isArrayBacked() ? grid.getGrid() : null;
+        int col = grid == null ? 0 : (int) (firstValue % cols);
+        int row = grid == null ? 0 : (int) (firstValue / cols);
+        long count = 0;
+        while (true) {
+            while (i < end && isSpace(b[i])) {
+                ++i;
+            }
+            if (i >= end) {
+                break;
+            }
+            final int tokenStart = i;
+            while (i < length && !isSpace(b[i])) {
+                ++i;
+            }
+            if (i == length && mapEnd < fileSize) {
+                throw new IOException("corrupt Esri Ascii grid file");
+            }
+            ++count;
+            if (grid != null) {
+                if (count > expectedValues) {
+                    throw new IOException("corrupt Esri Ascii grid file");
+                }
+                float v = parseFloat(b, tokenStart, i);
+                if (v == noDataValue) {
+                    v = Float.NaN;
+                }
+                if (array != null) {
+                    array[row][col] = v;
+                } else {
+                    grid.setValue(v, col, row);
+                }
+                if (++col == cols) {
+                    col = 0;
+                    ++row;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    /**
+     * Parses a float without allocating objects. The result is identical to
+     * Float.parseFloat(). Values with more than 7 significant digits or large
+     * exponents are passed to Float.parseFloat().
+     * @param b The characters.
+     * @param start The index of the first character.
+     * @param end The index after the last character.
+     * @return The parsed value.
+     */
+    static float parseFloat(byte[] b, int start, int end) throws IOException {
+        int i = start;
+        boolean negative = false;
+        if (b[i] == '-') {
+            negative = true;
+            ++i;
+        } else if (b[i] == '+') {
+            ++i;
+        }
+
+        long mantissa = 0;
+        int exp = 0;
+        int digits = 0;
+        boolean hasDigits = false;
+        while (i < end && b[i] >= '0' && b[i] <= '9') {
+            mantissa = mantissa * 10 + (b[i++] - '0');
+            hasDigits = true;
+            if (mantissa > 0 && ++digits > 18) {
+                return parseFloatSlow(b, start, end);
+            }
+        }
+        if (i < end && b[i] == '.') {
+            ++i;
+            while (i < end && b[i] >= '0' && b[i] <= '9') {
+                mantissa = mantissa * 10 + (b[i++] - '0');
+                hasDigits = true;
+                --exp;
+                if (mantissa > 0 && ++digits > 18) {
+                    return parseFloatSlow(b, start, end);
+                }
+            }
+        }
+        if (!hasDigits) {
+            return parseFloatSlow(b, start, end);
+        }
+        if (i < end && (b[i] == 'e' || b[i] == 'E')) {
+            ++i;
+            boolean negativeExp = false;
+            if (i < end && b[i] == '-') {
+                negativeExp = true;
+                ++i;
+            } else if (i < end && b[i] == '+') {
+                ++i;
+            }
+            int e = 0;
+            int expStart = i;
+            while (i < end && b[i] >= '0' && b[i] <= '9' && e < 1000) {
+                e = e * 10 + (b[i++] - '0');
+            }
+            if (i == expStart) {
+                return parseFloatSlow(b, start, end);
+            }
+            exp += negativeExp ? -e : e;
+        }
+        if (i != end) {
+            return parseFloatSlow(b, start, end);
+        }
+
+        // the mantissa and the power of ten are exact floats, so a single
+        // multiplication or division is correctly rounded
+        float v;
+        if (mantissa == 0) {
+            v = 0f;
+        } else if (mantissa <= MAX_EXACT_FLOAT_INT && exp >= -10 && exp <= 10) {
+            v = exp < 0 ? (float) mantissa / POW10[-exp] : (float) mantissa * POW10[exp];
+        } else {
+            return parseFloatSlow(b, start, end);
+        }
+        return negative ? -v : v;
+    }
+
+    private static float parseFloatSlow(byte[] b, int start, int end) throws IOException {
+        try {
+            return Float.parseFloat(new String(b, start, end - start, "US-ASCII"));
+        } catch (NumberFormatException ex) {
+            throw new IOException("corrupt Esri Ascii grid file");
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package ika.geoimport;
+
+import ika.geo.grid.GridExecutor;
+import ika.gui.ProgressIndicator;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * A pyramid of an image with levels of decreasing resolution, stored as
+ * square tiles of ARGB pixels in a temporary file. The image is decoded in
+ * horizontal strips with source regions of an ImageReader, so that images
+ * can be much larger than the available memory. Each level has half the
+ * width and height of the level below, and is computed by averaging 2 x 2
+ * pixels of the level below. The last level fits into a single tile.
+ *
+ * Readers for formats with random access to rows, such as TIFF, decode each
+ * strip directly. Readers for sequential formats, such as JPEG or PNG, decode
+ * the image from the start for each strip; images that fit into memory are
+ * therefore decoded with a single call.
+ *
+ * Tiles can be read concurrently.
+ *
+ * @author jenny
+ */
+public class TiledImagePyramid {
+
+    /**
+     * Width and height of a tile in pixels.
+     */
+    public static final int TILE_SIZE = 256;
+
+    /**
+     * Maximum number of bytes of a decoded strip.
+     */
+    private static final long MAX_STRIP_BYTES = 64L * 1024 * 1024;
+
+    private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 4;
+
+    private final File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+
+    /**
+     * Width and height of each level in pixels.
+     */
+    private final int[] widths, heights;
+
+    /**
+     * Index of the first tile of each level in the file.
+     */
+    private final long[] firstTiles;
+
+    /**
+     * Reads an image and builds a pyramid.
+     * @param imageFile The image file.
+     * @param maxSide The maximum width and height of the first level. The
+     * image is subsampled by a power of two if it is larger. 0 for no limit.
+     * @param progress Progress indicator or null. If the user cancels, an
+     * exception with the message "user canceled" is thrown.
+     * @throws IOException If the image cannot be read or the file with the
+     * tiles cannot be written.
+     */
+    public TiledImagePyramid(File imageFile, int maxSide, ProgressIndicator progress)
+            throws IOException {
+
+        ImageInputStream input = ImageIO.createImageInputStream(imageFile);
+        if (input == null) {
+            throw new IOException("Cannot read " + imageFile.getName());
+        }
+        ImageReader reader = null;
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format: " + imageFile.getName());
+            }
+            reader = readers.next();
+            reader.setInput(input, true, true);
+            final int imageWidth = reader.getWidth(0);
+            final int imageHeight = reader.getHeight(0);
+
+            // subsampling by a power of two keeps sizes that are a power of two
+            int subsampling = 1;
+            while (maxSide > 0 && (imageWidth + subsampling - 1) / subsampling > maxSide
+                    || maxSide > 0 && (imageHeight + subsampling - 1) / subsampling > maxSide) {
+                subsampling *= 2;
+            }
+
+            // size of levels
+            int levels = 1;
+            int w = (imageWidth + subsampling - 1) / subsampling;
+            int h = (imageHeight + subsampling - 1) / subsampling;
+            while (w > TILE_SIZE || h > TILE_SIZE) {
+                w = (w + 1) / 2;
+                h = (h + 1) / 2;
+                ++levels;
+            }
+            widths = new int[levels];
+            heights = new int[levels];
+            firstTiles = new long[levels];
+            widths[0] = (imageWidth + subsampling - 1) / subsampling;
+            heights[0] = (imageHeight + subsampling - 1) / subsampling;
+            for (int i = 1; i < levels; i++) {
+                widths[i] = (widths[i - 1] + 1) / 2;
+                heights[i] = (heights[i - 1] + 1) / 2;
+                firstTiles[i] = firstTiles[i - 1] + (long) getTilesX(i - 1) * getTilesY(i - 1);
+            }
+
+            file = File.createTempFile("texture", ".tiles");
+            file.deleteOnExit();
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            channel = randomAccessFile.getChannel();
+
+            if (progress != null) {
+                progress.setTotalTasksCount(2);
+            }
+            readFirstLevel(reader, subsampling, progress);
+            if (progress != null) {
+                progress.nextTask();
+            }
+            for (int level = 1; level < levels; level++) {
+                reduce(level);
+                if (progress != null) {
+                    if (progress.isAborted()) {
+                        throw new IOException("user canceled");
+                    }
+                    progress.progress(100 * level / (levels - 1));
+                }
+            }
+        } catch (IOException ex) {
+            dispose();
+            throw ex;
+        } catch (RuntimeException ex) {
+            dispose();
+            throw ex;
+        } finally {
+            if (reader != null) {
+                reader.dispose();
+            }
+            input.close();
+        }
+    }
+
+    /**
+     * Decodes the image in strips of complete rows of tiles and writes the
+     * first level.
+     */
+    private void readFirstLevel(ImageReader reader, int subsampling,
+            ProgressIndicator progress) throws IOException {
+        final int width = widths[0];
+        final int height = heights[0];
+        final int imageWidth = reader.getWidth(0);
+        final int imageHeight = reader.getHeight(0);
+
+        // number of rows of tiles in a strip. Decode the entire image with a
+        // single call if it fits into memory.
+        final long tileRowBytes = 4L * TILE_SIZE * width;
+        final long maxBytes = Math.max(MAX_STRIP_BYTES, Runtime.getRuntime().maxMemory() / 4);
+        final int tileRows = tileRowBytes * getTilesY(0) <= maxBytes ? getTilesY(0)
+                : (int) Math.max(1, MAX_STRIP_BYTES / tileRowBytes);
+
+        final int[] tile = new int[TILE_SIZE * TILE_SIZE];
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(TILE_BYTES).order(ByteOrder.nativeOrder());
+        for (int ty = 0; ty < getTilesY(0); ty += tileRows) {
+            // the source region in pixels of the image
+            final int y0 = ty * TILE_SIZE;
+            final int y1 = Math.min(height, (ty + tileRows) * TILE_SIZE);
+            final int srcY = y0 * subsampling;
+            final int srcHeight = Math.min(imageHeight - srcY, (y1 - y0) * subsampling);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, srcY, imageWidth, srcHeight));
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            BufferedImage strip = reader.read(0, param);
+
+            for (int t = 0; t < Math.min(tileRows, getTilesY(0) - ty); t++) {
+                final int tileY = t * TILE_SIZE;
+                final int th = Math.min(TILE_SIZE, strip.getHeight() - tileY);
+                for (int tx = 0; tx < getTilesX(0); tx++) {
+                    final int tw = Math.min(TILE_SIZE, width - tx * TILE_SIZE);
+                    strip.getRGB(tx * TILE_SIZE, tileY, tw, th, tile, 0, TILE_SIZE);
+                    writeTile(0, tx, ty + t, tile, buffer);
+                }
+            }
+            if (progress != null) {
+                if (progress.isAborted()) {
+                    throw new IOException("user canceled");
+                }
+                progress.progress(100 * y1 / height);
+            }
+        }
+    }
+
+    /**
+     * Computes the tiles of a level from the level below. Tiles are computed
+     * in parallel.
+     */
+    private void reduce(final int level) throws IOException {
+        final int tilesX = getTilesX(level);
+        final int nTiles = tilesX * getTilesY(level);
+        GridExecutor.getDefault().executeIO("Texture Pyramid", nTiles, new GridExecutor.RowTask() {
+
+            public void run(int startTile, int endTile) throws IOException {
+                int[] src = new int[TILE_SIZE * TILE_SIZE];
+                int[] dst = new int[TILE_SIZE * TILE_SIZE];
+                ByteBuffer buffer = ByteBuffer.allocate(TILE_BYTES).order(ByteOrder.nativeOrder());
+                for (int t = startTile; t < endTile; t++) {
+                    reduceTile(level, t % tilesX, t / tilesX, src, dst, buffer);
+                }
+            }
+        }, null);
+    }
+
+    /**
+     * Computes a tile by averaging 2 x 2 pixels of the four tiles below.
+     * Pixels outside of the level below are ignored.
+     */
+    private void reduceTile(int level, int tx, int ty, int[] src, int[] dst,
+            ByteBuffer buffer) throws IOException {
+        final int srcWidth = widths[level - 1];
+        final int srcHeight = heights[level - 1];
+        for (int q = 0; q < 4; q++) {
+            final int srcTX = 2 * tx + (q & 1);
+            final int srcTY = 2 * ty + (q >> 1);
+            if (srcTX >= getTilesX(level - 1) || srcTY >= getTilesY(level - 1)) {
+                continue;
+            }
+            readTile(level - 1, srcTX, srcTY, src, buffer);
+            final int srcW = Math.min(TILE_SIZE, srcWidth - srcTX * TILE_SIZE);
+            final int srcH = Math.min(TILE_SIZE, srcHeight - srcTY * TILE_SIZE);
+            final int dstX0 = (q & 1) * TILE_SIZE / 2;
+            final int dstY0 = (q >> 1) * TILE_SIZE / 2;
+            for (int y = 0; y < srcH; y += 2) {
+                final int y2 = Math.min(y + 1, srcH - 1);
+                final int dstRow = (dstY0 + y / 2) * TILE_SIZE + dstX0;
+                for (int x = 0; x < srcW; x += 2) {
+                    final int x2 = Math.min(x + 1, srcW - 1);
+                    dst[dstRow + x / 2] = average(src[y * TILE_SIZE + x],
+                            src[y * TILE_SIZE + x2], src[y2 * TILE_SIZE + x],
+                            src[y2 * TILE_SIZE + x2]);
+                }
+            }
+        }
+        writeTile(level, tx, ty, dst, buffer);
+    }
+
+    /**
+     * Averages each channel of four ARGB pixels.
+     */
+    private static int average(int p1, int p2, int p3, int p4) {
+        int argb = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            final int sum = ((p1 >>> shift) & 0xFF) + ((p2 >>> shift) & 0xFF)
+                    + ((p3 >>> shift) & 0xFF) + ((p4 >>> shift) & 0xFF);
+            argb |= ((sum + 2) >> 2) << shift;
+        }
+        return argb;
+    }
+
+    private long tilePosition(int level, int tx, int ty) {
+        if (level < 0 || level >= widths.length || tx < 0 || ty < 0
+                || tx >= getTilesX(level) || ty >= getTilesY(level)) {
+            throw new IllegalArgumentException("invalid tile");
+        }
+        return (firstTiles[level] + (long) ty * getTilesX(level) + tx) * TILE_BYTES;
+    }
+
+    private void writeTile(int level, int tx, int ty, int[] tile, ByteBuffer buffer)
+            throws IOException {
+        buffer.clear();
+        buffer.asIntBuffer().put(tile);
+        long position = tilePosition(level, tx, ty);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Reads the pixels of a tile.
+     * @param level The level, 0 is the level with the highest resolution.
+     * @param tx The column of the tile.
+     * @param ty The row of the tile.
+     * @param tile Receives TILE_SIZE x TILE_SIZE ARGB pixels, row by row.
+     * Tiles on the right and bottom border contain pixels outside of the
+     * image, which are undefined.
+     * @param buffer A buffer with TILE_SIZE x TILE_SIZE x 4 bytes in native
+     * byte order, or null. After the call, the buffer also contains the
+     * pixels of the tile, from position 0 to its capacity.
+     * @throws IOException
+     */
+    public void readTile(int level, int tx, int ty, int[] tile, ByteBuffer buffer)
+            throws IOException {
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(TILE_BYTES).order(ByteOrder.nativeOrder());
+        }
+        buffer.clear();
+        long position = tilePosition(level, tx, ty);
+        while (buffer.hasRemaining()) {
+            final int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("tile not found");
+            }
+            position += n;
+        }
+        buffer.flip();
+        buffer.asIntBuffer().get(tile);
+    }
+
+    /**
+     * Returns an image of a level. This should only be used for levels that
+     * fit into memory.
+     * @param level The level.
+     * @return A new image of type TYPE_INT_ARGB.
+     * @throws IOException
+     */
+    public BufferedImage getImage(int level) throws IOException {
+        final int width = widths[level];
+        final int height = heights[level];
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] tile = new int[TILE_SIZE * TILE_SIZE];
+        ByteBuffer buffer = ByteBuffer.allocate(TILE_BYTES).order(ByteOrder.nativeOrder());
+        for (int ty = 0; ty < getTilesY(level); ty++) {
+            for (int tx = 0; tx < getTilesX(level); tx++) {
+                readTile(level, tx, ty, tile, buffer);
+                final int w = Math.min(TILE_SIZE, width - tx * TILE_SIZE);
+                final int h = Math.min(TILE_SIZE, height - ty * TILE_SIZE);
+                image.setRGB(tx * TILE_SIZE, ty * TILE_SIZE, w, h, tile, 0, TILE_SIZE);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Returns the level with the lowest resolution that has at least the
+     * required number of pixels along its longer side and does not exceed
+     * the maximum size.
+     * @param requiredSize The required width or height in pixels.
+     * @param maxSize The maximum width and height in pixels.
+     * @return The level, or the level with the lowest resolution if no level
+     * is small enough.
+     */
+    public int getLevel(int requiredSize, int maxSize) {
+        int level = getLevelsCount() - 1;
+        while (level > 0
+                && Math.max(widths[level], heights[level]) < requiredSize
+                && Math.max(widths[level - 1], heights[level - 1]) <= maxSize) {
+            --level;
+        }
+        return level;
+    }
+
+    public int getLevelsCount() {
+        return widths.length;
+    }
+
+    public int getWidth(int level) {
+        return widths[level];
+    }
+
+    public int getHeight(int level) {
+        return heights[level];
+    }
+
+    public int getTilesX(int level) {
+        return (widths[level] + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    public int getTilesY(int level) {
+        return (heights[level] + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    /**
+     * Closes and deletes the file with the tiles.
+     */
+    public void dispose() {
+        try {
+            if (randomAccessFile != null) {
+                randomAccessFile.close();
+            }
+        } catch (IOException ex) {
+        }
+        randomAccessFile = null;
+        channel = null;
+        if (file != null) {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,641 @@
+/**
+ * PartitionOfUnityInterpolation.java
+ */
+
+package ika.transformation;
+
+import Jama.LUDecomposition;
+import Jama.Matrix;
+import ika.geo.*;
+import ika.geo.grid.GridExecutor;
+import java.awt.geom.GeneralPath;
+import java.awt.geom.PathIterator;
+
+/**
+ * Multiquadratic interpolation for large numbers of control points. Computes
+ * the same radial basis functions as MultiquadraticInterpolation, but
+ * instead of a single system of equations with all control points, a small
+ * system is solved for each patch of a regular grid of overlapping circular
+ * patches. The interpolations of the patches are blended with Wendland
+ * weights that sum to one. Control points are interpolated exactly.
+ *
+ * Solving the coefficients is O(n * m^2) for n control points and m points
+ * per patch, instead of O(n^3), and memory is O(n * m) instead of O(n^2).
+ * A point is transformed with the few patches overlapping its grid cell
+ * instead of all n control points. Patches are solved and points are
+ * transformed in parallel.
+ *
+ * @author jenny
+ */
+public class PartitionOfUnityInterpolation {
+
+    /**
+     * Default approximate number of control points in a patch.
+     */
+    public static final int DEF_PATCH_SIZE = 64;
+
+    /**
+     * Minimum number of control points in a patch. The radius of patches with
+     * fewer points is enlarged.
+     */
+    private static final int MIN_PATCH_POINTS = 8;
+
+    /**
+     * Factor for enlarging the radius of patches with too few points.
+     */
+    private static final double RADIUS_GROWTH = 1.5;
+
+    /**
+     * Approximate number of control points in a patch.
+     */
+    private int patchSize = DEF_PATCH_SIZE;
+
+    /**
+     * The patches, row by row, starting in the south-west corner.
+     */
+    private Patch[] patches;
+
+    /**
+     * For each grid cell, the indices of the patches overlapping the cell.
+     * The indices for cell i are cellPatches[cellStart[i]] to
+     * cellPatches[cellStart[i + 1] - 1].
+     */
+    private int[] cellStart, cellPatches;
+
+    /**
+     * Lower left corner, size and number of cells of the grid. Each cell is
+     * the center of a patch.
+     */
+    private double west, south, spacing;
+    private int cols, rows;
+
+    /**
+     * The executor distributing patches and points to threads. If null, the
+     * shared default executor is used.
+     */
+    private GridExecutor executor;
+
+    public PartitionOfUnityInterpolation() {
+    }
+
+    /**
+     * Returns the approximate number of control points in a patch.
+     */
+    public int getPatchSize() {
+        return patchSize;
+    }
+
+    /**
+     * Sets the approximate number of control points in a patch. Larger
+     * patches result in smoother interpolations that are closer to the
+     * interpolation with all control points, but are slower to compute.
+     * Call solveCoefficients() afterwards.
+     * @param patchSize The number of points, at least MIN_PATCH_POINTS.
+     */
+    public void setPatchSize(int patchSize) {
+        this.patchSize = Math.max(MIN_PATCH_POINTS, patchSize);
+    }
+
+    /**
+     * Returns the number of patches computed by solveCoefficients().
+     */
+    public int getPatchesCount() {
+        return patches == null ? 0 : patches.length;
+    }
+
+    /**
+     * Returns the executor used by this interpolation.
+     * @return The executor set with setExecutor, or the shared default
+     * executor.
+     */
+    public GridExecutor getExecutor() {
+        return executor == null ? GridExecutor.getDefault() : executor;
+    }
+
+    /**
+     * Sets the executor used by this interpolation.
+     * @param executor The executor. If null, the shared default executor is used.
+     */
+    public void setExecutor(GridExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Compute the coefficients for the multiquadratic interpolation
+     * @param srcPoints The control point set of the start coordinate
+     * system. This set is transformed to the destination coordinate system
+     * @param dstPoints The control points set of the destination coordinate
+     * system. Points must not be identical.
+     */
+    public void solveCoefficients(final double[][] srcPoints, final double[][] dstPoints,
+            final double exaggerationFactor) {
+
+        if (srcPoints.length == 0 || srcPoints.length != dstPoints.length) {
+            throw new IllegalArgumentException();
+        }
+        final int nbrPts = dstPoints.length;
+
+        // bounding box of the control points
+        double xMin = Double.POSITIVE_INFINITY, xMax = Double.NEGATIVE_INFINITY;
+        double yMin = Double.POSITIVE_INFINITY, yMax = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < nbrPts; i++) {
+            xMin = Math.min(xMin, dstPoints[i][0]);
+            xMax = Math.max(xMax, dstPoints[i][0]);
+            yMin = Math.min(yMin, dstPoints[i][1]);
+            yMax = Math.max(yMax, dstPoints[i][1]);
+        }
+        final double w = xMax - xMin;
+        final double h = yMax - yMin;
+
+        // the grid spacing equals the radius of a circle that contains
+        // patchSize points if the points are evenly distributed.
+        double s = Math.sqrt(w * h * patchSize / (Math.PI * nbrPts));
+        s = Math.max(s, Math.max(w, h) * patchSize / (2. * nbrPts));
+        if (!(s > 0)) {
+            s = 1;
+        }
+        this.spacing = s;
+        this.west = xMin;
+        this.south = yMin;
+        this.cols = Math.max(1, (int) Math.ceil(w / s));
+        this.rows = Math.max(1, (int) Math.ceil(h / s));
+        this.patches = new Patch[cols * rows];
+
+        // spatial index of the control points with one bucket per grid cell
+        final int[] pointStart = new int[cols * rows + 1];
+        final int[] pointCells = new int[nbrPts];
+        for (int i = 0; i < nbrPts; i++) {
+            pointCells[i] = cellID(dstPoints[i][0], dstPoints[i][1]);
+            ++pointStart[pointCells[i] + 1];
+        }
+        for (int i = 0; i < cols * rows; i++) {
+            pointStart[i + 1] += pointStart[i];
+        }
+        final int[] cellPoints = new int[nbrPts];
+        final int[] fill = pointStart.clone();
+        for (int i = 0; i < nbrPts; i++) {
+            cellPoints[fill[pointCells[i]]++] = i;
+        }
+
+        // solve a system of equations for each patch
+        getExecutor().execute("Multiquadratic Interpolation", rows, new GridExecutor.RowTask() {
+
+            public void run(int startRow, int endRow) {
+                int[] ids = new int[Math.min(nbrPts, 4 * patchSize)];
+                for (int r = startRow; r < endRow; r++) {
+                    for (int c = 0; c < cols; c++) {
+                        final double cx = west + (c + 0.5) * spacing;
+                        final double cy = south + (r + 0.5) * spacing;
+
+                        // the circle with radius spacing covers the cell
+                        // and overlaps the neighbouring patches
+                        double radius = spacing;
+                        int m;
+                        while (true) {
+                            ids = findPoints(cx, cy, radius, dstPoints,
+                                    pointStart, cellPoints, ids);
+                            m = ids[ids.length - 1];
+                            if (m >= Math.min(MIN_PATCH_POINTS, nbrPts)) {
+                                break;
+                            }
+                            radius *= RADIUS_GROWTH;
+                        }
+                        patches[r * cols + c] = new Patch(cx, cy, radius,
+                                ids, m, srcPoints, dstPoints, exaggerationFactor);
+                    }
+                }
+            }
+        });
+
+        indexPatches();
+    }
+
+    /**
+     * Returns the index of the grid cell containing a point. Points outside
+     * the grid are assigned to the closest cell.
+     */
+    private int cellID(double x, double y) {
+        int c = (int) Math.floor((x - west) / spacing);
+        int r = (int) Math.floor((y - south) / spacing);
+        c = Math.max(0, Math.min(cols - 1, c));
+        r = Math.max(0, Math.min(rows - 1, r));
+        return r * cols + c;
+    }
+
+    /**
+     * Finds the control points inside a circle.
+     * @param ids An array for the indices of the found points.
+     * @return An array with the indices of the found points. The number of
+     * found points is stored in the last element. This is the passed ids
+     * array, or a larger array if the passed array is too small.
+     */
+    private int[] findPoints(double cx, double cy, double radius, double[][] pts,
+            int[] pointStart, int[] cellPoints, int[] ids) {
+        final int c0 = Math.max(0, (int) Math.floor((cx - radius - west) / spacing));
+        final int c1 = Math.min(cols - 1, (int) Math.floor((cx + radius - west) / spacing));
+        final int r0 = Math.max(0, (int) Math.floor((cy - radius - south) / spacing));
+        final int r1 = Math.min(rows - 1, (int) Math.floor((cy + radius - south) / spacing));
+        final double r2 = radius * radius;
+        int m = 0;
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                final int cell = r * cols + c;
+                for (int i = pointStart[cell]; i < pointStart[cell + 1]; i++) {
+                    final int id = cellPoints[i];
+                    final double dx = pts[id][0] - cx;
+                    final double dy = pts[id][1] - cy;
+                    if (dx * dx + dy * dy <= r2) {
+                        if (m + 1 >= ids.length) {
+                            int[] tmp = new int[ids.length * 2];
+                            System.arraycopy(ids, 0, tmp, 0, m);
+                            ids = tmp;
+                        }
+                        ids[m++] = id;
+                    }
+                }
+            }
+        }
+        ids[ids.length - 1] = m;
+        return ids;
+    }
+
+    /**
+     * Builds the lists of patches overlapping each grid cell.
+     */
+    private void indexPatches() {
+        final int nCells = cols * rows;
+        cellStart = new int[nCells + 1];
+        for (int pass = 0; pass < 2; pass++) {
+            final int[] fill = pass == 0 ? null : cellStart.clone();
+            for (int p = 0; p < patches.length; p++) {
+                final Patch patch = patches[p];
+                final int c0 = Math.max(0, (int) Math.floor((patch.cx - patch.radius - west) / spacing));
+                final int c1 = Math.min(cols - 1, (int) Math.floor((patch.cx + patch.radius - west) / spacing));
+                final int r0 = Math.max(0, (int) Math.floor((patch.cy - patch.radius - south) / spacing));
+                final int r1 = Math.min(rows - 1, (int) Math.floor((patch.cy + patch.radius - south) / spacing));
+                for (int r = r0; r <= r1; r++) {
+                    for (int c = c0; c <= c1; c++) {
+                        if (pass == 0) {
+                            ++cellStart[r * cols + c + 1];
+                        } else {
+                            cellPatches[fill[r * cols + c]++] = p;
+                        }
+                    }
+                }
+            }
+            if (pass == 0) {
+                for (int i = 0; i < nCells; i++) {
+                    cellStart[i + 1] += cellStart[i];
+                }
+                cellPatches = new int[cellStart[nCells]];
+            }
+        }
+    }
+
+    /**
+     * Computes the correction for a point.
+     * @param x The x coordinate.
+     * @param y The y coordinate.
+     * @param corr Receives the correction in x and y.
+     */
+    private void correction(double x, double y, double[] corr) {
+        final int cell = cellID(x, y);
+        double sumW = 0, sumX = 0, sumY = 0;
+        for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+            final Patch patch = patches[cellPatches[i]];
+            final double dx = x - patch.cx;
+            final double dy = y - patch.cy;
+            final double q = Math.sqrt(dx * dx + dy * dy) / patch.radius;
+            if (q < 1) {
+                // Wendland's compactly supported C2 function
+                final double t = 1 - q;
+                final double weight = t * t * t * t * (4 * q + 1);
+                patch.correction(x, y, corr);
+                sumW += weight;
+                sumX += weight * corr[0];
+                sumY += weight * corr[1];
+            }
+        }
+        if (sumW > 0) {
+            corr[0] = sumX / sumW;
+            corr[1] = sumY / sumW;
+        } else {
+            // the point is outside of all patches
+            patches[cell].correction(x, y, corr);
+        }
+    }
+
+    /**
+     * Transforms a set of points.
+     * @param points The points to be transformed as a an array[n] of xy-arrays[2].
+     * points is changed, i.e. the old values are replaced by the new values.
+     */
+    public void transform(final double[][] points) {
+        getExecutor().execute("Multiquadratic Interpolation", points.length,
+                new GridExecutor.RowTask() {
+
+            public void run(int start, int end) {
+                final double[] corr = new double[2];
+                for (int i = start; i < end; i++) {
+                    correction(points[i][0], points[i][1], corr);
+                    points[i][0] += corr[0];
+                    points[i][1] += corr[1];
+                }
+            }
+        });
+    }
+
+    /**
+     * Transforms a set of points.
+     * @param coords The points to be transformed as a an array of x-y pairs. This
+     * array is changed, i.e. the old values are replaced by the new values.
+     * @param nbrPts The number of xy pairs that will be transformed.
+     */
+    public void transform(final double[] coords, int nbrPts) {
+        getExecutor().execute("Multiquadratic Interpolation", nbrPts,
+                new GridExecutor.RowTask() {
+
+            public void run(int start, int end) {
+                final double[] corr = new double[2];
+                for (int i = start; i < end; i++) {
+                    correction(coords[i * 2], coords[i * 2 + 1], corr);
+                    coords[i * 2] += corr[0];
+                    coords[i * 2 + 1] += corr[1];
+                }
+            }
+        });
+    }
+
+    /**
+     * Transforms a GeneralPath.
+     */
+    public GeneralPath transform(GeneralPath generalPath) {
+        PathIterator pi = generalPath.getPathIterator(null);
+        double[] coords = new double[6];
+        int segmentType;
+
+        GeneralPath newGeneralPath = new GeneralPath();
+        while (pi.isDone() == false) {
+            segmentType = pi.currentSegment(coords);
+            switch (segmentType) {
+                case PathIterator.SEG_CLOSE:
+                    newGeneralPath.closePath();
+                    break;
+                case PathIterator.SEG_LINETO:
+                    transform(coords, 1);
+                    newGeneralPath.lineTo((float) coords[0], (float) coords[1]);
+                    break;
+                case PathIterator.SEG_MOVETO:
+                    transform(coords, 1);
+                    newGeneralPath.moveTo((float) coords[0], (float) coords[1]);
+                    break;
+                case PathIterator.SEG_QUADTO:
+                    transform(coords, 2);
+                    newGeneralPath.quadTo((float) coords[0], (float) coords[1],
+                            (float) coords[2], (float) coords[3]);
+                    break;
+                case PathIterator.SEG_CUBICTO:
+                    transform(coords, 3);
+                    newGeneralPath.curveTo((float) coords[0], (float) coords[1],
+                            (float) coords[2], (float) coords[3],
+                            (float) coords[4], (float) coords[5]);
+                    break;
+                default:
+                    throw new IllegalArgumentException();
+            }
+            // move to next segment
+            pi.next();
+        }
+
+        return newGeneralPath;
+    }
+
+    /**
+     * Transforms a GeoPath. The coordinates of all points are collected in
+     * an array and transformed in parallel.
+     * @return A new GeoPath.
+     */
+    public GeoPath transform(GeoPath geoPath) {
+        if (geoPath == null) {
+            throw new IllegalArgumentException();
+        }
+        return (GeoPath) transformObject(geoPath);
+    }
+
+    public GeoPoint transform(GeoPoint geoPoint) {
+        if (geoPoint == null) {
+            throw new IllegalArgumentException();
+        }
+        double point[] = {geoPoint.getX(), geoPoint.getY()};
+        this.transform(point, 1);
+        return new GeoPoint(point[0], point[1]);
+    }
+
+    /**
+     * Transforms the GeoPaths and GeoPoints of a GeoSet. The coordinates of
+     * all points are collected in an array and transformed in parallel.
+     * Other objects are not added to the new GeoSet.
+     * @return A new GeoSet.
+     */
+    public GeoSet transform(GeoSet geoSet) {
+        if (geoSet == null) {
+            throw new IllegalArgumentException();
+        }
+        return (GeoSet) transformObject(geoSet);
+    }
+
+    private GeoObject transformObject(GeoObject geoObject) {
+        Coordinates coords = new Coordinates();
+        collect(geoObject, coords);
+        transform(coords.xy, coords.size / 2);
+        coords.size = 0;
+        return rebuild(geoObject, coords);
+    }
+
+    /**
+     * Appends the coordinates of all points of GeoSets, GeoPaths and
+     * GeoPoints to an array.
+     */
+    private static void collect(GeoObject geoObject, Coordinates coords) {
+        if (geoObject instanceof GeoSet) {
+            GeoSet geoSet = (GeoSet) geoObject;
+            final int nbrGeoObjects = geoSet.getNumberOfChildren();
+            for (int i = 0; i < nbrGeoObjects; ++i) {
+                collect(geoSet.getGeoObject(i), coords);
+            }
+        } else if (geoObject instanceof GeoPath) {
+            GeoPathIterator pi = ((GeoPath) geoObject).getIterator();
+            do {
+                switch (pi.getInstruction()) {
+                    case GeoPathModel.MOVETO:
+                    case GeoPathModel.LINETO:
+                        coords.add(pi.getX(), pi.getY());
+                        break;
+                    case GeoPathModel.QUADCURVETO:
+                        coords.add(pi.getX(), pi.getY());
+                        coords.add(pi.getX2(), pi.getY2());
+                        break;
+                    case GeoPathModel.CURVETO:
+                        coords.add(pi.getX(), pi.getY());
+                        coords.add(pi.getX2(), pi.getY2());
+                        coords.add(pi.getX3(), pi.getY3());
+                        break;
+                }
+            } while (pi.next());
+        } else if (geoObject instanceof GeoPoint) {
+            GeoPoint geoPoint = (GeoPoint) geoObject;
+            coords.add(geoPoint.getX(), geoPoint.getY());
+        }
+    }
+
+    /**
+     * Builds new GeoSets, GeoPaths and GeoPoints with the transformed
+     * coordinates, in the same order as collect().
+     */
+    private static GeoObject rebuild(GeoObject geoObject, Coordinates coords) {
+        if (geoObject instanceof GeoSet) {
+            GeoSet geoSet = (GeoSet) geoObject;
+            GeoSet newGeoSet = new GeoSet();
+            final int nbrGeoObjects = geoSet.getNumberOfChildren();
+            for (int i = 0; i < nbrGeoObjects; ++i) {
+                GeoObject transformedGeoObj = rebuild(geoSet.getGeoObject(i), coords);
+                if (transformedGeoObj != null) {
+                    newGeoSet.add(transformedGeoObj);
+                }
+            }
+            return newGeoSet;
+        } else if (geoObject instanceof GeoPath) {
+            GeoPath geoPath = (GeoPath) geoObject;
+            GeoPath newGeoPath = new GeoPath();
+            GeoPathIterator pi = geoPath.getIterator();
+            final double[] xy = coords.xy;
+            do {
+                final int i = coords.size;
+                switch (pi.getInstruction()) {
+                    case GeoPathModel.MOVETO:
+                        newGeoPath.moveTo(xy[i], xy[i + 1]);
+                        coords.size += 2;
+                        break;
+                    case GeoPathModel.LINETO:
+                        newGeoPath.lineTo(xy[i], xy[i + 1]);
+                        coords.size += 2;
+                        break;
+                    case GeoPathModel.QUADCURVETO:
+                        newGeoPath.quadTo(xy[i], xy[i + 1], xy[i + 2], xy[i + 3]);
+                        coords.size += 4;
+                        break;
+                    case GeoPathModel.CURVETO:
+                        newGeoPath.curveTo(xy[i], xy[i + 1], xy[i + 2], xy[i + 3],
+                                xy[i + 4], xy[i + 5]);
+                        coords.size += 6;
+                        break;
+                    case GeoPathModel.CLOSE:
+                        newGeoPath.closePath();
+                        break;
+                }
+            } while (pi.next());
+            newGeoPath.setVectorSymbol(geoPath.getVectorSymbol().clone());
+            return newGeoPath;
+        } else if (geoObject instanceof GeoPoint) {
+            final int i = coords.size;
+            coords.size += 2;
+            return new GeoPoint(coords.xy[i], coords.xy[i + 1]);
+        }
+        return null;
+    }
+
+    /**
+     * A growing array of x-y pairs.
+     */
+    private static final class Coordinates {
+
+        double[] xy = new double[64];
+        int size = 0;
+
+        void add(double x, double y) {
+            if (size + 2 > xy.length) {
+                double[] tmp = new double[xy.length * 2];
+                System.arraycopy(xy, 0, tmp, 0, size);
+                xy = tmp;
+            }
+            xy[size++] = x;
+            xy[size++] = y;
+        }
+    }
+
+    /**
+     * A circular patch with a multiquadratic interpolation of the control
+     * points inside the circle.
+     */
+    private static final class Patch {
+
+        final double cx, cy, radius;
+
+        /**
+         * The control points in the destination coordinate system.
+         */
+        final double[] px, py;
+
+        /**
+         * The coefficients for the corrections in x and y.
+         */
+        final double[] a, b;
+
+        Patch(double cx, double cy, double radius, int[] ids, int m,
+                double[][] srcPoints, double[][] dstPoints, double exaggerationFactor) {
+            this.cx = cx;
+            this.cy = cy;
+            this.radius = radius;
+            px = new double[m];
+            py = new double[m];
+            for (int i = 0; i < m; i++) {
+                px[i] = dstPoints[ids[i]][0];
+                py[i] = dstPoints[ids[i]][1];
+            }
+
+            // differences between the two sets of points
+            double[][] u = new double[m][1];
+            double[][] w = new double[m][1];
+            for (int i = 0; i < m; i++) {
+                u[i][0] = (dstPoints[ids[i]][0] - srcPoints[ids[i]][0]) * exaggerationFactor;
+                w[i][0] = (dstPoints[ids[i]][1] - srcPoints[ids[i]][1]) * exaggerationFactor;
+            }
+
+            // distance matrix of the patch, see MultiquadraticInterpolation
+            double[][] D = new double[m][m];
+            for (int i = 0; i < m; i++) {
+                for (int j = i + 1; j < m; j++) {
+                    final double dx = px[i] - px[j];
+                    final double dy = py[i] - py[j];
+                    D[i][j] = D[j][i] = Math.sqrt(dx * dx + dy * dy);
+                }
+            }
+
+            a = new double[m];
+            b = new double[m];
+            LUDecomposition luDecomposition = new LUDecomposition(new Matrix(D));
+            final double[][] matA = luDecomposition.solve(new Matrix(u)).getArray();
+            final double[][] matB = luDecomposition.solve(new Matrix(w)).getArray();
+            for (int i = 0; i < m; i++) {
+                a[i] = -matA[i][0];
+                b[i] = -matB[i][0];
+            }
+        }
+
+        /**
+         * Computes the correction of this patch for a point.
+         */
+        void correction(double x, double y, double[] corr) {
+            double corrX = 0, corrY = 0;
+            for (int j = 0; j < px.length; j++) {
+                final double dx = x - px[j];
+                final double dy = y - py[j];
+                final double d = Math.sqrt(dx * dx + dy * dy);
+                corrX += a[j] * d;
+                corrY += b[j] * d;
+            }
+            corr[0] = corrX;
+            corr[1] = corrY;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package ch.ethz.karto.map3d;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the texture buffers of Map3DModelBuffers. Updating the dirty rows
+ * of a texture must result in the same texture as rebuilding it.
+ *
+ * @author jenny
+ */
+public class Map3DModelBuffersTest {
+
+    private static final int COLS = 53;
+    private static final int ROWS = 301;
+    private static final float CELL_SIZE = 25;
+
+    private static float[][] createGrid() {
+        float[][] grid = new float[ROWS][COLS];
+        for (int r = 0; r < ROWS; r++) {
+            for (int c = 0; c < COLS; c++) {
+                grid[r][c] = (float) (1000 + 500 * Math.sin(c * 0.1) * Math.cos(r * 0.05));
+            }
+        }
+        grid[7][3] = Float.NaN;
+        return grid;
+    }
+
+    /**
+     * Changes the values of a band of rows.
+     */
+    private static void raise(float[][] grid, int firstRow, int endRow) {
+        for (int r = firstRow; r < endRow; r++) {
+            for (int c = 0; c < COLS; c++) {
+                grid[r][c] += 300 + c;
+            }
+        }
+    }
+
+    private static Map3DTexture1DMapper createMapper(float[][] grid) {
+        Map3DTexture1DMapper mapper = new Map3DTexture1DMapper();
+        mapper.init(grid, 400, 1900);
+        return mapper;
+    }
+
+    /**
+     * Copies a band of rows into a texture, as Map3DTexture.update does.
+     */
+    private static void update(FloatBuffer texture, FloatBuffer band, int firstRow) {
+        FloatBuffer dst = texture.duplicate();
+        dst.position(firstRow * COLS);
+        band.rewind();
+        dst.put(band);
+    }
+
+    private static void update(ByteBuffer texture, ByteBuffer band, int firstRow) {
+        ByteBuffer dst = texture.duplicate();
+        dst.position(firstRow * COLS);
+        band.rewind();
+        dst.put(band);
+    }
+
+    @Test
+    public void testHeightTexture() {
+        float[][] grid = createGrid();
+        FloatBuffer buffer = Map3DModelBuffers.heightTexture(grid, CELL_SIZE, 0, ROWS);
+        assertEquals(COLS * ROWS, buffer.capacity());
+        assertEquals(0, buffer.position());
+        for (int r = 0; r < ROWS; r++) {
+            for (int c = 0; c < COLS; c++) {
+                assertEquals(grid[r][c] / CELL_SIZE, buffer.get(r * COLS + c), 0f);
+            }
+        }
+    }
+
+    @Test
+    public void testHeightTextureUpdate() {
+        float[][] grid = createGrid();
+        FloatBuffer texture = Map3DModelBuffers.heightTexture(grid, CELL_SIZE, 0, ROWS);
+        for (int[] band : new int[][]{{0, 1}, {100, 211}, {ROWS - 5, ROWS}}) {
+            raise(grid, band[0], band[1]);
+            FloatBuffer dirty = Map3DModelBuffers.heightTexture(grid, CELL_SIZE, band[0], band[1]);
+            assertEquals((band[1] - band[0]) * COLS, dirty.capacity());
+            update(texture, dirty, band[0]);
+            FloatBuffer expected = Map3DModelBuffers.heightTexture(grid, CELL_SIZE, 0, ROWS);
+            for (int i = 0; i < COLS * ROWS; i++) {
+                assertEquals("value " + i, expected.get(i), texture.get(i), 0f);
+            }
+        }
+    }
+
+    @Test
+    public void testHypsoTexture() {
+        float[][] grid = createGrid();
+        Map3DTexture1DMapper mapper = createMapper(grid);
+        ByteBuffer buffer = Map3DModelBuffers.nonLinearHypsoTexture(mapper, COLS, 0, ROWS);
+        assertEquals(COLS * ROWS, buffer.capacity());
+        for (int r = 0; r < ROWS; r++) {
+            for (int c = 0; c < COLS; c++) {
+                int expected = (int) (mapper.get1DTextureCoordinate(c, r) * 255);
+                assertEquals(expected, buffer.get(r * COLS + c) & 0xff);
+            }
+        }
+        // void values are mapped to the lowest texture coordinate
+        assertEquals(0, buffer.get(7 * COLS + 3));
+    }
+
+    @Test
+    public void testHypsoTextureUpdate() {
+        float[][] grid = createGrid();
+        Map3DTexture1DMapper mapper = createMapper(grid);
+        ByteBuffer texture = Map3DModelBuffers.nonLinearHypsoTexture(mapper, COLS, 0, ROWS);
+        for (int[] band : new int[][]{{0, 1}, {100, 211}, {ROWS - 5, ROWS}}) {
+            raise(grid, band[0], band[1]);
+            ByteBuffer dirty = Map3DModelBuffers.nonLinearHypsoTexture(mapper, COLS, band[0], band[1]);
+            assertEquals((band[1] - band[0]) * COLS, dirty.capacity());
+            update(texture, dirty, band[0]);
+            ByteBuffer expected = Map3DModelBuffers.nonLinearHypsoTexture(mapper, COLS, 0, ROWS);
+            for (int i = 0; i < COLS * ROWS; i++) {
+                assertEquals("value " + i, expected.get(i), texture.get(i));
+            }
+        }
+    }
+}
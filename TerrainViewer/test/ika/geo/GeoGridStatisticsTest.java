@@ -0,0 +1,113 @@
+package ika.geo;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the statistics cached by GeoGrid.
+ *
+ * @author jenny
+ */
+public class GeoGridStatisticsTest {
+
+    private static GeoGrid createRandomGrid(int cols, int rows, long seed) {
+        Random random = new Random(seed);
+        GeoGrid grid = new GeoGrid(cols, rows, 1);
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                grid.setValue(random.nextFloat() * 100, c, r);
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Returns the sorted valid values of a grid.
+     */
+    private static float[] sortedValues(GeoGrid grid) {
+        float[] values = new float[grid.getCols() * grid.getRows()];
+        int n = 0;
+        for (int r = 0; r < grid.getRows(); r++) {
+            for (int c = 0; c < grid.getCols(); c++) {
+                float v = grid.getValue(c, r);
+                if (!Float.isNaN(v)) {
+                    values[n++] = v;
+                }
+            }
+        }
+        values = Arrays.copyOf(values, n);
+        Arrays.sort(values);
+        return values;
+    }
+
+    private static void assertPercentiles(GeoGrid grid) {
+        float[] values = sortedValues(grid);
+        GeoGrid.GeoGridStatistics stats = grid.getStatistics();
+        for (double p : new double[]{0, 0.1, 1, 25, 50, 50.5, 75, 99, 99.9, 100}) {
+            int rank = (int) Math.ceil(p / 100 * values.length) - 1;
+            float expected = values[Math.max(0, rank)];
+            assertEquals("percentile " + p, expected, stats.getPercentile(p), 0f);
+        }
+    }
+
+    /**
+     * Percentiles are the values with the nearest rank.
+     */
+    @Test
+    public void testPercentile() {
+        GeoGrid grid = createRandomGrid(50, 40, 1);
+        grid.setValue(Float.NaN, 3, 4);
+        grid.setValue(Float.NaN, 10, 20);
+        assertPercentiles(grid);
+    }
+
+    /**
+     * Percentiles are exact if a histogram bin contains too many values to be
+     * collected.
+     */
+    @Test
+    public void testPercentileOfCrowdedBin() {
+        GeoGrid grid = createRandomGrid(300, 300, 2);
+        for (int r = 0; r < grid.getRows(); r++) {
+            for (int c = 0; c < grid.getCols(); c++) {
+                grid.setValue(grid.getValue(c, r) / 1000, c, r);
+            }
+        }
+        grid.setValue(1e6f, 0, 0);
+        grid.setValue(3.5f, 1, 0);
+        grid.setValue(3.5f, 2, 0);
+        assertPercentiles(grid);
+    }
+
+    /**
+     * Changing a value discards cached percentiles.
+     */
+    @Test
+    public void testPercentileAfterSetValue() {
+        GeoGrid grid = createRandomGrid(20, 20, 3);
+        float median = grid.getStatistics().getPercentile(50);
+        for (int r = 0; r < grid.getRows(); r++) {
+            for (int c = 0; c < grid.getCols(); c++) {
+                if (grid.getValue(c, r) <= median) {
+                    grid.setValue(grid.getValue(c, r) + 0.001f, c, r);
+                }
+            }
+        }
+        assertPercentiles(grid);
+    }
+
+    /**
+     * Values written to the array returned by getGrid() are included in the
+     * statistics.
+     */
+    @Test
+    public void testGetGridDiscardsStatistics() {
+        GeoGrid grid = createRandomGrid(10, 10, 4);
+        assertTrue(grid.getStatistics().max <= 100);
+        grid.getGrid()[5][5] = 1000;
+        assertEquals(1000f, grid.getStatistics().max, 0f);
+        assertEquals(1000f, grid.getMinMax()[1], 0f);
+    }
+}
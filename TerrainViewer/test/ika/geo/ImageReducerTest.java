@@ -0,0 +1,66 @@
+package ika.geo;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ImageReducer.
+ *
+ * @author jenny
+ */
+public class ImageReducerTest {
+
+    /**
+     * Bicubic reduction of an opaque image differs from AffineTransformOp by
+     * at most 1 away from the borders.
+     */
+    @Test
+    public void testBicubicRGB() {
+        assertMaxDifference(BufferedImage.TYPE_INT_RGB, 1);
+    }
+
+    /**
+     * Bicubic reduction of an image with an alpha channel differs from
+     * AffineTransformOp by at most 2 away from the borders.
+     */
+    @Test
+    public void testBicubicARGB() {
+        assertMaxDifference(BufferedImage.TYPE_INT_ARGB, 2);
+    }
+
+    private static void assertMaxDifference(int type, int maxDiff) {
+        final int w = 201, h = 157;
+        Random random = new Random(3);
+        BufferedImage src = new BufferedImage(w, h, type);
+        for (int r = 0; r < h; r++) {
+            for (int c = 0; c < w; c++) {
+                src.setRGB(c, r, random.nextInt());
+            }
+        }
+        AffineTransformOp op = new AffineTransformOp(
+                AffineTransform.getScaleInstance(0.5, 0.5),
+                AffineTransformOp.TYPE_BICUBIC);
+        BufferedImage ref = op.filter(src, null);
+        BufferedImage dst = new ImageReducer(ImageReducer.Filter.BICUBIC).reduce(src);
+        assertEquals(ImageReducer.reducedSize(w), dst.getWidth());
+        assertEquals(ImageReducer.reducedSize(h), dst.getHeight());
+
+        // the borders are treated differently by AffineTransformOp
+        final int cols = Math.min(ref.getWidth(), dst.getWidth()) - 2;
+        final int rows = Math.min(ref.getHeight(), dst.getHeight()) - 2;
+        for (int r = 2; r < rows; r++) {
+            for (int c = 2; c < cols; c++) {
+                final int expected = ref.getRGB(c, r);
+                final int actual = dst.getRGB(c, r);
+                for (int shift = 0; shift < 32; shift += 8) {
+                    final int diff = ((expected >>> shift) & 255) - ((actual >>> shift) & 255);
+                    assertTrue("pixel " + c + "/" + r, Math.abs(diff) <= maxDiff);
+                }
+            }
+        }
+    }
+}
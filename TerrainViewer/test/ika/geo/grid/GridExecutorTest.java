@@ -0,0 +1,91 @@
+package ika.geo.grid;
+
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for GridExecutor.
+ *
+ * @author jenny
+ */
+public class GridExecutorTest {
+
+    /**
+     * An exception thrown for the last tile is rethrown, for any tile size
+     * and number of threads.
+     */
+    @Test
+    public void testExceptionInLastTile() {
+        for (int threads = 1; threads <= 4; threads++) {
+            GridExecutor executor = new GridExecutor(threads);
+            for (final int nRows : new int[]{1, 4, 5, 100}) {
+                try {
+                    executor.executeIO(null, nRows, new GridExecutor.RowTask() {
+
+                        public void run(int startRow, int endRow) throws IOException {
+                            if (endRow == nRows) {
+                                throw new IOException("last tile");
+                            }
+                        }
+                    }, null);
+                    fail("no exception for " + nRows + " rows and " + threads + " threads");
+                } catch (IOException ex) {
+                    assertEquals("last tile", ex.getMessage());
+                }
+            }
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Checked exceptions other than IOException are wrapped, runtime
+     * exceptions are rethrown unchanged.
+     */
+    @Test
+    public void testExceptionTypes() {
+        GridExecutor executor = new GridExecutor(2);
+        try {
+            executor.execute(null, 10, new GridExecutor.RowTask() {
+
+                public void run(int startRow, int endRow) throws Exception {
+                    throw new InterruptedException();
+                }
+            });
+            fail();
+        } catch (GridExecutionException ex) {
+            assertTrue(ex.getCause() instanceof InterruptedException);
+        }
+        try {
+            executor.execute(null, 10, new GridExecutor.RowTask() {
+
+                public void run(int startRow, int endRow) {
+                    throw new IllegalStateException();
+                }
+            });
+            fail();
+        } catch (IllegalStateException ex) {
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * A task started on an executor that has been shut down processes all
+     * rows.
+     */
+    @Test
+    public void testShutdown() {
+        GridExecutor executor = new GridExecutor(4);
+        executor.shutdown();
+        final int[] rows = new int[1];
+        executor.execute(null, 100, new GridExecutor.RowTask() {
+
+            public void run(int startRow, int endRow) {
+                synchronized (rows) {
+                    rows[0] += endRow - startRow;
+                }
+            }
+        });
+        assertEquals(100, rows[0]);
+    }
+}
@@ -0,0 +1,129 @@
+package ika.geo.grid;
+
+import ika.geo.GeoGrid;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the recursive Gaussian filter of GridGaussLowPassOperator with
+ * the convolution.
+ *
+ * @author jenny
+ */
+public class GridGaussLowPassOperatorTest {
+
+    private static final int COLS = 400;
+    private static final int ROWS = 300;
+
+    /**
+     * Maximum deviation of the recursive filter from the convolution,
+     * relative to the range of the source values.
+     */
+    private static final double MAX_DEVIATION = 0.015;
+
+    /**
+     * Maximum root mean square deviation of the recursive filter from the
+     * convolution, relative to the range of the source values.
+     */
+    private static final double MAX_RMS_DEVIATION = 0.005;
+
+    /**
+     * Creates a smooth surface with noise.
+     */
+    private static GeoGrid createGrid(boolean voids) {
+        GeoGrid grid = new GeoGrid(COLS, ROWS, 1);
+        Random random = new Random(0);
+        for (int r = 0; r < ROWS; r++) {
+            for (int c = 0; c < COLS; c++) {
+                float v = (float) (500 * Math.sin(r * 0.03) * Math.cos(c * 0.02));
+                grid.setValue(v + random.nextFloat() * 50, c, r);
+            }
+        }
+        if (voids) {
+            grid.setValue(Float.NaN, 100, 50);
+            grid.setValue(Float.NaN, 10, 150);
+            grid.setValue(Float.NaN, 399, 299);
+        }
+        return grid;
+    }
+
+    private static void assertDeviation(boolean voids) {
+        GeoGrid grid = createGrid(voids);
+        float[] minMax = grid.getMinMax();
+        final double range = minMax[1] - minMax[0];
+        for (double std : new double[]{2, 6, 12, 24}) {
+            GridGaussLowPassOperator op = new GridGaussLowPassOperator(std);
+            op.setMinRecursiveStandardDeviation(Double.POSITIVE_INFINITY);
+            GeoGrid fir = op.operate(grid);
+            op.setMinRecursiveStandardDeviation(0.5);
+            GeoGrid iir = op.operate(grid);
+
+            // cells closer to the border than 3 standard deviations are
+            // normalized by the filters
+            final int border = (int) Math.ceil(3 * std);
+            double maxInterior = 0, maxBorder = 0;
+            double sqInterior = 0, sqBorder = 0;
+            int nInterior = 0, nBorder = 0;
+            for (int r = 0; r < ROWS; r++) {
+                for (int c = 0; c < COLS; c++) {
+                    final float f = fir.getValue(c, r);
+                    final float i = iir.getValue(c, r);
+                    assertEquals("void " + c + "/" + r, Float.isNaN(f), Float.isNaN(i));
+                    if (Float.isNaN(f)) {
+                        continue;
+                    }
+                    final double d = Math.abs(f - i) / range;
+                    if (r < border || c < border || r >= ROWS - border || c >= COLS - border) {
+                        maxBorder = Math.max(maxBorder, d);
+                        sqBorder += d * d;
+                        ++nBorder;
+                    } else {
+                        maxInterior = Math.max(maxInterior, d);
+                        sqInterior += d * d;
+                        ++nInterior;
+                    }
+                }
+            }
+            final String msg = "std " + std + (voids ? " with voids" : "");
+            assertTrue(msg + ": interior max " + maxInterior, maxInterior < MAX_DEVIATION);
+            assertTrue(msg + ": border max " + maxBorder, maxBorder < MAX_DEVIATION);
+            assertTrue(msg + ": interior RMS", Math.sqrt(sqInterior / nInterior) < MAX_RMS_DEVIATION);
+            assertTrue(msg + ": border RMS", Math.sqrt(sqBorder / nBorder) < MAX_RMS_DEVIATION);
+        }
+    }
+
+    /**
+     * The recursive filter deviates little from the convolution, in the
+     * interior and at the normalized borders.
+     */
+    @Test
+    public void testRecursiveFilter() {
+        assertDeviation(false);
+    }
+
+    /**
+     * Rows with void values are convolved, and void cells stay void.
+     */
+    @Test
+    public void testRecursiveFilterWithVoids() {
+        assertDeviation(true);
+    }
+
+    /**
+     * The recursive filter is selected by the standard deviation.
+     */
+    @Test
+    public void testThreshold() {
+        GeoGrid grid = createGrid(false);
+        GridGaussLowPassOperator op = new GridGaussLowPassOperator(3);
+        GeoGrid auto = op.operate(grid);
+        op.setMinRecursiveStandardDeviation(Double.POSITIVE_INFINITY);
+        GeoGrid fir = op.operate(grid);
+        for (int r = 0; r < ROWS; r++) {
+            for (int c = 0; c < COLS; c++) {
+                assertEquals(fir.getValue(c, r), auto.getValue(c, r), 0f);
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package ika.geo.grid;
+
+import ika.geo.DirectGridStorage;
+import ika.geo.GeoGrid;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for GridMeanOperator. Void cells and cells outside the grid are not
+ * included in the mean.
+ *
+ * @author jenny
+ */
+public class GridMeanOperatorTest {
+
+    private static final int COLS = 37;
+    private static final int ROWS = 29;
+
+    private static GeoGrid createGrid() {
+        GeoGrid grid = new GeoGrid(COLS, ROWS, 1);
+        for (int r = 0; r < ROWS; r++) {
+            for (int c = 0; c < COLS; c++) {
+                grid.setValue((float) (200 + 50 * Math.sin(c * 0.3) + r), c, r);
+            }
+        }
+        grid.setValue(Float.NaN, 0, 0);
+        grid.setValue(Float.NaN, 10, 10);
+        // a block of voids larger than the 3x3 window
+        for (int r = 20; r < 25; r++) {
+            for (int c = 20; c < 25; c++) {
+                grid.setValue(Float.NaN, c, r);
+            }
+        }
+        return grid;
+    }
+
+    private static GeoGrid toOffHeap(GeoGrid grid) {
+        GeoGrid copy = new GeoGrid(new DirectGridStorage(grid.getCols(), grid.getRows()),
+                grid.getCellSize());
+        for (int r = 0; r < grid.getRows(); r++) {
+            copy.setRow(r, grid.getRow(r, null));
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the mean of the valid values in the window around a cell.
+     */
+    private static float mean(GeoGrid grid, int col, int row, int halo) {
+        double sum = 0;
+        int n = 0;
+        for (int r = Math.max(0, row - halo); r <= Math.min(ROWS - 1, row + halo); r++) {
+            for (int c = Math.max(0, col - halo); c <= Math.min(COLS - 1, col + halo); c++) {
+                final float v = grid.getValue(c, r);
+                if (!Float.isNaN(v)) {
+                    sum += v;
+                    ++n;
+                }
+            }
+        }
+        return n == 0 ? Float.NaN : (float) (sum / n);
+    }
+
+    private static void assertMean(GeoGrid src, GeoGrid dst, int halo) {
+        for (int r = 0; r < ROWS; r++) {
+            for (int c = 0; c < COLS; c++) {
+                final float expected = mean(src, c, r, halo);
+                final float actual = dst.getValue(c, r);
+                assertEquals("void " + c + "/" + r, Float.isNaN(expected), Float.isNaN(actual));
+                if (!Float.isNaN(expected)) {
+                    assertEquals("cell " + c + "/" + r, expected, actual, 1e-3f);
+                }
+            }
+        }
+    }
+
+    /**
+     * Grids stored in Java arrays are filtered with a summed-area table.
+     */
+    @Test
+    public void testHeapGrid() {
+        GeoGrid src = createGrid();
+        for (int filterSize : new int[]{3, 5, 11}) {
+            assertMean(src, new GridMeanOperator(filterSize).operate(src), filterSize / 2);
+        }
+    }
+
+    /**
+     * Off-heap grids are filtered row by row.
+     */
+    @Test
+    public void testOffHeapGrid() {
+        GeoGrid src = createGrid();
+        GeoGrid offHeapSrc = toOffHeap(src);
+        for (int filterSize : new int[]{3, 5, 11}) {
+            GeoGrid dst = new GridMeanOperator(filterSize).operate(offHeapSrc);
+            assertFalse(dst.isArrayBacked());
+            assertMean(src, dst, filterSize / 2);
+        }
+    }
+
+    /**
+     * Cells next to voids are valid, cells without valid values in their
+     * window are void.
+     */
+    @Test
+    public void testVoids() {
+        GeoGrid src = createGrid();
+        GeoGrid dst = new GridMeanOperator(3).operate(src);
+        assertFalse(Float.isNaN(dst.getValue(0, 0)));
+        assertFalse(Float.isNaN(dst.getValue(10, 10)));
+        assertFalse(Float.isNaN(dst.getValue(11, 11)));
+        assertTrue(Float.isNaN(dst.getValue(22, 22)));
+        assertFalse(Float.isNaN(dst.getValue(20, 20)));
+    }
+
+    /**
+     * Repeated filtering equals filtering the result of the previous pass.
+     */
+    @Test
+    public void testLoops() {
+        GeoGrid src = createGrid();
+        GridMeanOperator op = new GridMeanOperator(5);
+        GeoGrid expected = op.operate(op.operate(src));
+        GeoGrid dst = op.operate(src, 2);
+        for (int r = 0; r < ROWS; r++) {
+            for (int c = 0; c < COLS; c++) {
+                assertEquals(expected.getValue(c, r), dst.getValue(c, r), 1e-3f);
+            }
+        }
+    }
+}
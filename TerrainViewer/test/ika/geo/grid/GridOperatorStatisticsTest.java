@@ -0,0 +1,60 @@
+package ika.geo.grid;
+
+import ika.geo.GeoGrid;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that operators writing to an existing grid discard its cached
+ * statistics.
+ *
+ * @author jenny
+ */
+public class GridOperatorStatisticsTest {
+
+    private static GeoGrid createGrid(float value) {
+        GeoGrid grid = new GeoGrid(5, 4, 1);
+        for (int r = 0; r < grid.getRows(); r++) {
+            for (int c = 0; c < grid.getCols(); c++) {
+                grid.setValue(value + c + r, c, r);
+            }
+        }
+        return grid;
+    }
+
+    @Test
+    public void testLinearEquation() {
+        GeoGrid src = createGrid(1);
+        GeoGrid dst = createGrid(0);
+        assertEquals(0f, dst.getStatistics().min, 0f);
+        GridLinearEquationOperator op = new GridLinearEquationOperator();
+        op.setM(2);
+        op.setC(10);
+        op.operate(src, dst);
+        assertEquals(12f, dst.getStatistics().min, 0f);
+        assertEquals(26f, dst.getStatistics().max, 0f);
+    }
+
+    @Test
+    public void testExponentiation() {
+        GeoGrid src = createGrid(1);
+        GeoGrid dst = createGrid(0);
+        assertEquals(0f, dst.getStatistics().min, 0f);
+        new GridExponentiationOperator(2, 0).operate(src, dst);
+        assertEquals(1f, dst.getStatistics().min, 0f);
+        assertEquals(64f, dst.getStatistics().max, 0f);
+    }
+
+    @Test
+    public void testLimitMinimum() {
+        GeoGrid src = createGrid(1);
+        GeoGrid dst = createGrid(0);
+        assertEquals(0f, dst.getStatistics().min, 0f);
+        GridLimitMinimumOperator op = new GridLimitMinimumOperator();
+        op.setLimit(3);
+        op.setReplacementValue(-5);
+        op.operate(src, dst);
+        assertEquals(-5f, dst.getStatistics().min, 0f);
+        assertEquals(8f, dst.getStatistics().max, 0f);
+    }
+}
@@ -0,0 +1,139 @@
+package ika.geo.grid;
+
+import ika.geo.GeoGrid;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the percentile filters with a brute force computation. Filter
+ * sizes are chosen to test both the selection and the sliding histogram
+ * paths.
+ *
+ * @author jenny
+ */
+public class GridPercentileFilterOperatorTest {
+
+    private static final int[] FILTER_SIZES = {3, 7, 9, 17, 19};
+
+    /**
+     * Creates a grid with few distinct values, signed zeros and voids.
+     */
+    private static GeoGrid createGrid(int cols, int rows) {
+        Random random = new Random(1);
+        GeoGrid grid = new GeoGrid(cols, rows, 1);
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                float v = random.nextInt(9) - 4;
+                if (v == 0 && random.nextBoolean()) {
+                    v = -0f;
+                }
+                grid.setValue(v, c, r);
+            }
+        }
+        // a void block and scattered voids
+        for (int r = 10; r < 20; r++) {
+            for (int c = 5; c < 30; c++) {
+                grid.setValue(Float.NaN, c, r);
+            }
+        }
+        for (int i = 0; i < cols * rows / 20; i++) {
+            grid.setValue(Float.NaN, random.nextInt(cols), random.nextInt(rows));
+        }
+        return grid;
+    }
+
+    /**
+     * Returns the valid values in the window around a cell, with mirrored
+     * borders.
+     */
+    private static float[] window(GeoGrid grid, int col, int row, int filterSize) {
+        final int h = filterSize / 2;
+        final int cols = grid.getCols();
+        final int rows = grid.getRows();
+        float[] values = new float[filterSize * filterSize];
+        int n = 0;
+        for (int r = row - h; r <= row + h; r++) {
+            final int gridRow = r < 0 ? -r : (r >= rows ? 2 * rows - 2 - r : r);
+            for (int c = col - h; c <= col + h; c++) {
+                final int gridCol = c < 0 ? -c : (c >= cols ? 2 * cols - 2 - c : c);
+                final float v = grid.getValue(gridCol, gridRow);
+                if (!Float.isNaN(v)) {
+                    values[n++] = v;
+                }
+            }
+        }
+        values = Arrays.copyOf(values, n);
+        Arrays.sort(values);
+        return values;
+    }
+
+    private static void assertSameValue(float expected, float actual, int col, int row) {
+        if (Float.isNaN(expected)) {
+            assertTrue("void expected at " + col + "/" + row, Float.isNaN(actual));
+        } else {
+            // -0 and +0 are equal
+            assertTrue("expected " + expected + " at " + col + "/" + row
+                    + " but was " + actual, expected == actual);
+        }
+    }
+
+    private static void testPercentileFilter(GridPercentileFilterOperator op) {
+        GeoGrid grid = createGrid(57, 45);
+        for (int filterSize : FILTER_SIZES) {
+            op.setFilterSize(filterSize);
+            GeoGrid dst = op.operate(grid);
+            for (int r = 0; r < grid.getRows(); r++) {
+                for (int c = 0; c < grid.getCols(); c++) {
+                    float expected = Float.NaN;
+                    if (!Float.isNaN(grid.getValue(c, r))) {
+                        float[] values = window(grid, c, r, filterSize);
+                        expected = values[op.rank(values.length)];
+                    }
+                    assertSameValue(expected, dst.getValue(c, r), c, r);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMedian() {
+        testPercentileFilter(new GridMedianOperator());
+    }
+
+    @Test
+    public void testLowerQuartile() {
+        testPercentileFilter(new GridLowerQuartileOperator());
+    }
+
+    @Test
+    public void testUpperQuartile() {
+        testPercentileFilter(new GridUpperQuartileOperator());
+    }
+
+    @Test
+    public void testPercentRank() {
+        GeoGrid grid = createGrid(57, 45);
+        GridPercentileOperator op = new GridPercentileOperator();
+        for (int filterSize : FILTER_SIZES) {
+            op.setFilterSize(filterSize);
+            GeoGrid dst = op.operate(grid);
+            for (int r = 0; r < grid.getRows(); r++) {
+                for (int c = 0; c < grid.getCols(); c++) {
+                    final float v = grid.getValue(c, r);
+                    float expected = Float.NaN;
+                    if (!Float.isNaN(v)) {
+                        float[] values = window(grid, c, r, filterSize);
+                        int smaller = 0;
+                        while (values[smaller] < v) {
+                            ++smaller;
+                        }
+                        expected = values.length < 2 ? 0 : smaller * (1f / (values.length - 1));
+                    }
+                    assertSameValue(expected, dst.getValue(c, r), c, r);
+                }
+            }
+        }
+    }
+}
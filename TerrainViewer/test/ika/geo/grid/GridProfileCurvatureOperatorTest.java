@@ -0,0 +1,95 @@
+package ika.geo.grid;
+
+import ika.geo.GeoGrid;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for GridProfileCurvatureOperator. Cells outside the grid are replaced
+ * by the nearest border cell.
+ *
+ * @author jenny
+ */
+public class GridProfileCurvatureOperatorTest {
+
+    private static final int COLS = 23;
+    private static final int ROWS = 19;
+
+    private static GeoGrid createGrid() {
+        GeoGrid grid = new GeoGrid(COLS, ROWS, 10);
+        for (int r = 0; r < ROWS; r++) {
+            for (int c = 0; c < COLS; c++) {
+                grid.setValue((float) (100 * Math.sin(c * 0.25) * Math.cos(r * 0.2) + 2 * r), c, r);
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Computes the profile curvature with clamped neighbor indices.
+     */
+    private static float curvature(GeoGrid grid, int col, int row, int h) {
+        final int rm = Math.max(0, row - h);
+        final int rp = Math.min(ROWS - 1, row + h);
+        final int cm = Math.max(0, col - h);
+        final int cp = Math.min(COLS - 1, col + h);
+        final double cellSize = grid.getCellSize();
+        final float inverseDoubleMeshSize = (float) (1d / (2d * cellSize));
+        final float inverseSquareMeshSize = (float) (1d / (cellSize * cellSize));
+        final float z1 = grid.getValue(cp, rm);
+        final float z2 = grid.getValue(cp, row);
+        final float z3 = grid.getValue(cp, rp);
+        final float z4 = grid.getValue(col, rp);
+        final float z5 = grid.getValue(cm, rp);
+        final float z6 = grid.getValue(cm, row);
+        final float z7 = grid.getValue(cm, rm);
+        final float z8 = grid.getValue(col, rm);
+        final float z9 = grid.getValue(col, row);
+        final float zx = (z2 - z6) * inverseDoubleMeshSize;
+        final float zy = (z8 - z4) * inverseDoubleMeshSize;
+        final float zxx = (z2 - 2 * z9 + z6) * inverseSquareMeshSize;
+        final float zyy = (z8 - 2 * z9 + z4) * inverseSquareMeshSize;
+        final float zxy = (-z7 + z1 + z5 - z3) * 0.25f * inverseSquareMeshSize;
+        final float p = zx * zx + zy * zy;
+        final float q = p + 1;
+        final float divider = (float) (p * q * Math.sqrt(q));
+        if (divider != 0) {
+            return (zxx * zx * zx + 2 * zxy * zx * zy + zyy * zy * zy) / divider * 100;
+        }
+        return 0;
+    }
+
+    /**
+     * Border cells use the nearest border cell for neighbors outside the
+     * grid, for all filter sizes.
+     */
+    @Test
+    public void testClampedBorder() {
+        GeoGrid src = createGrid();
+        GridProfileCurvatureOperator op = new GridProfileCurvatureOperator();
+        for (int filterSize : new int[]{3, 5, 7}) {
+            op.setFilterSize(filterSize);
+            GeoGrid dst = op.operate(src);
+            for (int r = 0; r < ROWS; r++) {
+                for (int c = 0; c < COLS; c++) {
+                    assertEquals("cell " + c + "/" + r + " filter " + filterSize,
+                            curvature(src, c, r, filterSize / 2), dst.getValue(c, r), 1e-4f);
+                }
+            }
+        }
+    }
+
+    /**
+     * Flat areas have a curvature of 0.
+     */
+    @Test
+    public void testFlat() {
+        GeoGrid src = new GeoGrid(8, 8, 1);
+        GeoGrid dst = new GridProfileCurvatureOperator().operate(src);
+        for (int r = 0; r < 8; r++) {
+            for (int c = 0; c < 8; c++) {
+                assertEquals(0f, dst.getValue(c, r), 0f);
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package ika.geo.grid;
+
+import ika.geo.GeoGrid;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for GridReliefShadeOperator.
+ *
+ * @author jenny
+ */
+public class GridReliefShadeOperatorTest {
+
+    /**
+     * Creates an inclined plane.
+     */
+    private static GeoGrid createPlane(int cols, int rows, double cellSize) {
+        GeoGrid grid = new GeoGrid(cols, rows, cellSize);
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                grid.setValue((float) (3 * c * cellSize - 2 * r * cellSize), c, r);
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * All cells of a plane have the same brightness, including cells at the
+     * border and next to voids.
+     */
+    @Test
+    public void testPlane() {
+        GeoGrid grid = createPlane(20, 15, 10);
+        grid.setValue(Float.NaN, 8, 7);
+        grid.setValue(Float.NaN, 9, 7);
+        grid.setValue(Float.NaN, 12, 0);
+        GridReliefShadeOperator op = new GridReliefShadeOperator();
+        GeoGrid shaded = op.operate(grid);
+        final float expected = shaded.getValue(5, 5);
+        assertTrue(expected > 0);
+        for (int r = 0; r < grid.getRows(); r++) {
+            for (int c = 0; c < grid.getCols(); c++) {
+                if (Float.isNaN(grid.getValue(c, r))) {
+                    assertTrue(Float.isNaN(shaded.getValue(c, r)));
+                } else {
+                    assertEquals("cell " + c + "/" + r, expected, shaded.getValue(c, r), 1e-5f);
+                }
+            }
+        }
+    }
+}
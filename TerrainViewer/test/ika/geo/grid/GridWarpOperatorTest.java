@@ -0,0 +1,47 @@
+package ika.geo.grid;
+
+import ika.geo.GeoImage;
+import ika.transformation.TransformationIdentity;
+import java.awt.image.BufferedImage;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for GridWarpOperator.
+ *
+ * @author jenny
+ */
+public class GridWarpOperatorTest {
+
+    private static final int WHITE = 0xffffffff;
+
+    /**
+     * Warping a uniform image does not darken pixels along the last column
+     * and row.
+     */
+    @Test
+    public void testImageBorder() {
+        BufferedImage image = new BufferedImage(40, 30, BufferedImage.TYPE_INT_ARGB);
+        for (int r = 0; r < image.getHeight(); r++) {
+            for (int c = 0; c < image.getWidth(); c++) {
+                image.setRGB(c, r, WHITE);
+            }
+        }
+        GeoImage src = new GeoImage(image, 100, 500, 10);
+        GridWarpOperator op = new GridWarpOperator(new TransformationIdentity());
+
+        // upsample the source image to sample positions between pixels
+        op.setDestination(100, 500, 2.5, 160, 120);
+        for (GridWarpOperator.Interpolation interpolation
+                : GridWarpOperator.Interpolation.values()) {
+            op.setInterpolation(interpolation);
+            BufferedImage dst = op.operate(src).getBufferedImage();
+            for (int r = 0; r < dst.getHeight(); r++) {
+                for (int c = 0; c < dst.getWidth(); c++) {
+                    assertEquals(interpolation + " pixel " + c + "/" + r,
+                            WHITE, dst.getRGB(c, r));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package ika.geo.grid;
+
+import ika.geo.GeoGrid;
+import java.io.IOException;
+import org.junit.Test;
+
+/**
+ * Tests for MultiLevelContourer.
+ *
+ * @author jenny
+ */
+public class MultiLevelContourerTest {
+
+    /**
+     * An exception thrown by the sink is passed on, also if it is thrown
+     * while contouring the last band.
+     */
+    @Test(expected = IOException.class)
+    public void testSinkException() throws IOException {
+        GeoGrid grid = new GeoGrid(6, 6, 1);
+        for (int r = 0; r < grid.getRows(); r++) {
+            for (int c = 0; c < grid.getCols(); c++) {
+                grid.setValue(c + r, c, r);
+            }
+        }
+        MultiLevelContourer contourer = new MultiLevelContourer();
+        contourer.setInterval(1);
+        contourer.contour(grid, new ContourSink() {
+
+            public void contour(double level, double[] xy, boolean closed)
+                    throws IOException {
+                throw new IOException("cannot store line");
+            }
+        });
+    }
+}
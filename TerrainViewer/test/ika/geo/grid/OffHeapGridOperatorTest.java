@@ -0,0 +1,197 @@
+package ika.geo.grid;
+
+import ika.geo.DirectGridStorage;
+import ika.geo.GeoGrid;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that operators compute the same values for grids stored in Java
+ * arrays and for grids stored off the heap, which are processed band by
+ * band.
+ *
+ * @author jenny
+ */
+public class OffHeapGridOperatorTest {
+
+    private static final int COLS = 41;
+    private static final int ROWS = 53;
+
+    private static GeoGrid createHeapGrid() {
+        GeoGrid grid = new GeoGrid(COLS, ROWS, 10);
+        grid.setWest(1000);
+        grid.setNorth(2000);
+        for (int r = 0; r < ROWS; r++) {
+            for (int c = 0; c < COLS; c++) {
+                grid.setValue((float) (100 * Math.sin(c * 0.2) * Math.cos(r * 0.15) + r), c, r);
+            }
+        }
+        return grid;
+    }
+
+    private static GeoGrid toOffHeap(GeoGrid grid) {
+        GeoGrid copy = new GeoGrid(new DirectGridStorage(grid.getCols(), grid.getRows()),
+                grid.getCellSize());
+        copy.setWest(grid.getWest());
+        copy.setNorth(grid.getNorth());
+        for (int r = 0; r < grid.getRows(); r++) {
+            copy.setRow(r, grid.getRow(r, null));
+        }
+        return copy;
+    }
+
+    private static void assertSameGrid(GeoGrid expected, GeoGrid actual) {
+        assertEquals(expected.getCols(), actual.getCols());
+        assertEquals(expected.getRows(), actual.getRows());
+        assertEquals(expected.getWest(), actual.getWest(), 0);
+        assertEquals(expected.getNorth(), actual.getNorth(), 0);
+        for (int r = 0; r < expected.getRows(); r++) {
+            for (int c = 0; c < expected.getCols(); c++) {
+                assertEquals("cell " + c + "/" + r,
+                        expected.getValue(c, r), actual.getValue(c, r), 0f);
+            }
+        }
+    }
+
+    /**
+     * Compares the result for grids on the heap with the results for an
+     * off-heap source, an off-heap destination, or both.
+     */
+    private static void testOperator(ThreadedGridOperator op) {
+        GeoGrid src = createHeapGrid();
+        GeoGrid expected = op.operate(src);
+        assertTrue(expected.isArrayBacked());
+        GeoGrid offHeapSrc = toOffHeap(src);
+
+        // off-heap source and destination
+        GeoGrid dst = op.operate(offHeapSrc);
+        assertFalse(dst.isArrayBacked());
+        assertSameGrid(expected, dst);
+
+        // off-heap source, destination on the heap
+        dst = new GeoGrid(expected.getCols(), expected.getRows(), expected.getCellSize());
+        dst.setWest(expected.getWest());
+        dst.setNorth(expected.getNorth());
+        assertSameGrid(expected, op.operate(offHeapSrc, dst));
+
+        // source on the heap, off-heap destination
+        dst = toOffHeap(dst);
+        assertSameGrid(expected, op.operate(src, dst));
+    }
+
+    @Test
+    public void testCroppingNeighborhoodOperator() {
+        testOperator(new GridSobelOperator());
+        testOperator(new GridAspectOperator());
+    }
+
+    @Test
+    public void testNeighborhoodOperator() {
+        testOperator(new GridProfileCurvatureOperator());
+        testOperator(new GridRelativeElevationOperator(3));
+    }
+
+    @Test
+    public void testRowOperator() {
+        testOperator(new GridSlopeOperator());
+    }
+
+    @Test
+    public void testShadeOperator() {
+        testOperator(new GridShadeOperator());
+    }
+
+    /**
+     * Reduced grids are stored like the source grid.
+     */
+    @Test
+    public void testConvolveToHalfSize() {
+        GeoGrid src = createHeapGrid();
+        src.setValue(Float.NaN, 20, 20);
+        GeoGrid expected = new Convolution5x5().convolveToHalfSize(src);
+        GeoGrid dst = new Convolution5x5().convolveToHalfSize(toOffHeap(src));
+        assertFalse(dst.isArrayBacked());
+        assertSameGrid(expected, dst);
+    }
+
+    /**
+     * Operators that are not ThreadedGridOperators stream the rows of
+     * off-heap grids.
+     */
+    @Test
+    public void testStreamingOperators() {
+        GeoGrid src = createHeapGrid();
+        GeoGrid offHeapSrc = toOffHeap(src);
+
+        GeoGrid dst = new GridAdditionOperator(12).operate(offHeapSrc);
+        assertFalse(dst.isArrayBacked());
+        assertSameGrid(new GridAdditionOperator(12).operate(src), dst);
+
+        GridMultiplyOperator multiply = new GridMultiplyOperator();
+        dst = multiply.operate(offHeapSrc, offHeapSrc);
+        assertFalse(dst.isArrayBacked());
+        assertSameGrid(multiply.operate(src, src), dst);
+
+        GridCutterOperator cutter = new GridCutterOperator();
+        cutter.setLeft(3);
+        cutter.setTop(5);
+        cutter.setRight(1);
+        cutter.setBottom(2);
+        dst = cutter.operate(offHeapSrc);
+        assertFalse(dst.isArrayBacked());
+        assertSameGrid(cutter.operate(src), dst);
+
+        GridCombineOperator combine = new GridCombineOperator();
+        combine.setSrc2(offHeapSrc);
+        dst = combine.operate(offHeapSrc);
+        combine.setSrc2(src);
+        assertSameGrid(combine.operate(src), dst);
+
+        AccumulationFlowOperator flow = new AccumulationFlowOperator();
+        flow.setFillDepressions(false);
+        assertSameGrid(flow.operate(src), flow.operate(offHeapSrc));
+    }
+
+    /**
+     * Operators that require grids stored in Java arrays fail with an
+     * UnsupportedOperationException.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testArrayOperator() {
+        new GridSlopeLineOperator().operate(toOffHeap(createHeapGrid()));
+    }
+
+    /**
+     * Reduced levels with few cells are stored on the heap, larger levels
+     * like the full resolution grid.
+     */
+    @Test
+    public void testGaussianPyramidMaxHeapCells() {
+        GeoGrid src = createHeapGrid();
+        GaussianPyramid expected = new GaussianPyramid(src, 9999, 4, false);
+        GaussianPyramid pyramid = new GaussianPyramid(toOffHeap(src), 9999, 4, true);
+        final int maxHeapCells = pyramid.getLevelCols(2) * pyramid.getLevelRows(2);
+        pyramid.setMaxHeapCells(maxHeapCells);
+        assertTrue(pyramid.getLevelsCount() > 2);
+        for (int i = 1; i < pyramid.getLevelsCount(); i++) {
+            GeoGrid level = pyramid.getLevel(i);
+            assertEquals(i >= 2, level.isArrayBacked());
+            assertSameGrid(expected.getLevel(i), level);
+        }
+        pyramid.dispose();
+    }
+
+    @Test
+    public void testPlanCurvatureOperator() {
+        testOperator(new GridPlanCurvatureOperator());
+
+        // border rows are computed by the bands containing them
+        GeoGrid src = createHeapGrid();
+        GeoGrid dst = new GridPlanCurvatureOperator().operate(toOffHeap(src));
+        for (int c = 0; c < COLS; c++) {
+            assertEquals(GridPlanCurvatureOperator.planCurv(src, c, 0), dst.getValue(c, 0), 1e-6f);
+            assertEquals(GridPlanCurvatureOperator.planCurv(src, c, ROWS - 1),
+                    dst.getValue(c, ROWS - 1), 1e-6f);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package ika.geoexport;
+
+import ika.geo.DirectGridStorage;
+import ika.geo.GeoGrid;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for TilePyramidExporter.
+ *
+ * @author jenny
+ */
+public class TilePyramidExporterTest {
+
+    private File file;
+    private File heapDir;
+    private File offHeapDir;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("tiles", ".txt");
+        heapDir = createTempDirectory();
+        offHeapDir = createTempDirectory();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        delete(heapDir);
+        delete(offHeapDir);
+    }
+
+    private static File createTempDirectory() throws IOException {
+        File dir = File.createTempFile("tiles", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("cannot create temporary directory");
+        }
+        return dir;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static GeoGrid createGrid(int cols, int rows) {
+        GeoGrid grid = new GeoGrid(cols, rows, 10);
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                grid.setValue((float) (500 * Math.sin(c * 0.05) * Math.cos(r * 0.04)), c, r);
+            }
+        }
+        grid.setValue(Float.NaN, 30, 40);
+        return grid;
+    }
+
+    private static void assertSameImage(File expected, File actual) throws IOException {
+        BufferedImage a = ImageIO.read(expected);
+        BufferedImage b = ImageIO.read(actual);
+        assertEquals(a.getWidth(), b.getWidth());
+        assertEquals(a.getHeight(), b.getHeight());
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                assertEquals(actual + " " + x + "/" + y, a.getRGB(x, y), b.getRGB(x, y));
+            }
+        }
+    }
+
+    /**
+     * A grid stored outside of the heap results in the same tiles as a grid
+     * on the heap, for all zoom levels.
+     */
+    @Test
+    public void testOffHeapGrid() throws IOException {
+        GeoGrid grid = createGrid(300, 200);
+        GeoGrid offHeap = new GeoGrid(new DirectGridStorage(300, 200), grid.getCellSize());
+        for (int r = 0; r < grid.getRows(); r++) {
+            offHeap.setRow(r, grid.getRow(r, null));
+        }
+        TilePyramidExporter exporter = new TilePyramidExporter();
+        exporter.setTileSize(64);
+        assertTrue(exporter.export(grid, heapDir.getPath(), null));
+        assertTrue(exporter.export(offHeap, offHeapDir.getPath(), null));
+        final int maxZoom = exporter.getMaxZoom(300, 200);
+        assertEquals(3, maxZoom);
+        for (int zoom = 0; zoom <= maxZoom; zoom++) {
+            File[] columns = new File(heapDir, Integer.toString(zoom)).listFiles();
+            assertNotNull("zoom " + zoom, columns);
+            for (File column : columns) {
+                for (File tile : column.listFiles()) {
+                    File other = new File(offHeapDir, zoom + File.separator
+                            + column.getName() + File.separator + tile.getName());
+                    assertSameImage(tile, other);
+                }
+            }
+        }
+    }
+
+    /**
+     * A tile that cannot be written results in an exception, also if it is
+     * the only tile of a level.
+     */
+    @Test(expected = IOException.class)
+    public void testUnwritableDirectory() throws IOException {
+        GeoGrid grid = new GeoGrid(10, 10, 1);
+        for (int r = 0; r < grid.getRows(); r++) {
+            for (int c = 0; c < grid.getCols(); c++) {
+                grid.setValue(c * r, c, r);
+            }
+        }
+        // the tile directories cannot be created inside a file
+        new TilePyramidExporter().export(grid, file.getPath(), null);
+    }
+}
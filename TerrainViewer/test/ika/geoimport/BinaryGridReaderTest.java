@@ -0,0 +1,174 @@
+package ika.geoimport;
+
+import ika.geo.GeoGrid;
+import ika.geo.MappedGridStorage;
+import ika.geo.grid.Convolution5x5;
+import ika.geo.grid.GaussianPyramid;
+import ika.geoexport.BinaryGridWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for BinaryGridReader and BinaryGridWriter.
+ *
+ * @author jenny
+ */
+public class BinaryGridReaderTest {
+
+    private static final int TILE_SIZE = 16;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("grid", ".tvgrid");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static GeoGrid createGrid(int cols, int rows) {
+        GeoGrid grid = new GeoGrid(cols, rows, 10);
+        grid.setWest(100);
+        grid.setNorth(200);
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                grid.setValue((float) Math.sin(r * 0.1) * c, c, r);
+            }
+        }
+        grid.setValue(Float.NaN, 3, 5);
+        return grid;
+    }
+
+    private void write(GeoGrid grid, boolean compress) throws IOException {
+        BinaryGridWriter.write(new GeoGrid[]{grid}, file.getPath(), compress, TILE_SIZE);
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        GeoGrid grid = createGrid(37, 29);
+        for (int i = 0; i < 2; i++) {
+            write(grid, i == 1);
+            assertTrue(BinaryGridReader.canRead(file.getPath()));
+            GeoGrid copy = BinaryGridReader.read(file.getPath());
+            assertEquals(grid.getCols(), copy.getCols());
+            assertEquals(grid.getRows(), copy.getRows());
+            assertEquals(grid.getWest(), copy.getWest(), 0);
+            assertEquals(grid.getNorth(), copy.getNorth(), 0);
+            assertEquals(grid.getCellSize(), copy.getCellSize(), 0);
+            for (int r = 0; r < grid.getRows(); r++) {
+                for (int c = 0; c < grid.getCols(); c++) {
+                    assertEquals(grid.getValue(c, r), copy.getValue(c, r), 0f);
+                }
+            }
+        }
+    }
+
+    /**
+     * Levels with more cells than maxHeapCells are stored in temporary files,
+     * which are deleted when the pyramid is disposed.
+     */
+    @Test
+    public void testMaxHeapCells() throws IOException {
+        GeoGrid grid = createGrid(37, 29);
+        GeoGrid level1 = new Convolution5x5().convolveToHalfSize(grid);
+        BinaryGridWriter.write(new GeoGrid[]{grid, level1}, file.getPath(), true, TILE_SIZE);
+        final long maxHeapCells = level1.getCols() * level1.getRows();
+        GaussianPyramid pyramid = BinaryGridReader.readPyramid(file.getPath(), null, maxHeapCells);
+        assertEquals(2, pyramid.getLevelsCount());
+        GeoGrid copy = pyramid.getLevel(0);
+        assertFalse(copy.isArrayBacked());
+        assertTrue(pyramid.getLevel(1).isArrayBacked());
+        for (int r = 0; r < grid.getRows(); r++) {
+            for (int c = 0; c < grid.getCols(); c++) {
+                assertEquals(grid.getValue(c, r), copy.getValue(c, r), 0f);
+            }
+        }
+        File tempFile = ((MappedGridStorage) copy.getStorage()).getFile();
+        assertTrue(tempFile.exists());
+        pyramid.dispose();
+        assertFalse(tempFile.exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedFile() throws IOException {
+        write(createGrid(37, 29), false);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 100);
+        } finally {
+            raf.close();
+        }
+        BinaryGridReader.read(file.getPath());
+    }
+
+    /**
+     * The statistics stored in the file are used instead of scanning the
+     * grid.
+     */
+    @Test
+    public void testStatistics() throws IOException {
+        GeoGrid grid = createGrid(37, 29);
+        GeoGrid.GeoGridStatistics stats = grid.getStatistics();
+        write(grid, true);
+        GeoGrid copy = BinaryGridReader.read(file.getPath());
+        GeoGrid.GeoGridStatistics copyStats = copy.getStatistics();
+        assertEquals(stats.min, copyStats.min, 0f);
+        assertEquals(stats.max, copyStats.max, 0f);
+        assertEquals(stats.mean, copyStats.mean, 0f);
+        assertEquals(stats.voidCount, copyStats.voidCount);
+
+        // replace the stored minimum
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(BinaryGridReader.MAGIC.length + 2 + 4 + 1);
+            raf.writeFloat(-1234);
+        } finally {
+            raf.close();
+        }
+        copy = BinaryGridReader.read(file.getPath());
+        assertEquals(-1234f, copy.getStatistics().min, 0f);
+    }
+
+    /**
+     * An uncompressed tile that is shorter than a tile results in an
+     * IOException.
+     */
+    @Test(expected = IOException.class)
+    public void testShortUncompressedTile() throws IOException {
+        write(createGrid(37, 29), false);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // header with one level, followed by the position and length of
+            // the first tile
+            final int indexPosition = BinaryGridReader.MAGIC.length + 2 + 4 + 1
+                    + 4 * 4 + 4 + 4 + 4 + 8 + 8 + 8 + 8;
+            raf.seek(indexPosition + 8);
+            raf.writeInt(TILE_SIZE * TILE_SIZE * 4 - 4);
+        } finally {
+            raf.close();
+        }
+        BinaryGridReader.read(file.getPath());
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptTile() throws IOException {
+        write(createGrid(37, 29), true);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // overwrite the end of the last compressed tile
+            raf.seek(raf.length() - 8);
+            raf.write(new byte[8]);
+        } finally {
+            raf.close();
+        }
+        BinaryGridReader.read(file.getPath());
+    }
+}
@@ -0,0 +1,92 @@
+package ika.geoimport;
+
+import ika.geo.GeoGrid;
+import ika.geo.MappedGridStorage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for MappedEsriASCIIGridReader.
+ *
+ * @author jenny
+ */
+public class MappedEsriASCIIGridReaderTest {
+
+    private static final String HEADER = "ncols 3\nnrows 2\n"
+            + "xllcorner 0\nyllcorner 0\ncellsize 1\nNODATA_value -9999\n";
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("grid", ".asc");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private void write(String content) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        write(HEADER + "1 2 3\n4 -9999 6\n");
+        GeoGrid grid = MappedEsriASCIIGridReader.read(file.getPath());
+        assertEquals(3, grid.getCols());
+        assertEquals(2, grid.getRows());
+        assertEquals(1f, grid.getValue(0, 0), 0f);
+        assertEquals(6f, grid.getValue(2, 1), 0f);
+        assertTrue(Float.isNaN(grid.getValue(1, 1)));
+    }
+
+    /**
+     * Grids with more cells than maxHeapCells are stored in a temporary file,
+     * which is deleted when the storage is disposed.
+     */
+    @Test
+    public void testMaxHeapCells() throws IOException {
+        write(HEADER + "1 2 3\n4 -9999 6\n");
+        GeoGrid grid = MappedEsriASCIIGridReader.read(file.getPath(), null, 6);
+        assertTrue(grid.isArrayBacked());
+
+        grid = MappedEsriASCIIGridReader.read(file.getPath(), null, 5);
+        assertFalse(grid.isArrayBacked());
+        assertEquals(6f, grid.getValue(2, 1), 0f);
+        assertTrue(Float.isNaN(grid.getValue(1, 1)));
+        File tempFile = ((MappedGridStorage) grid.getStorage()).getFile();
+        assertTrue(tempFile.exists());
+        grid.getStorage().dispose();
+        assertFalse(tempFile.exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedValue() throws IOException {
+        write(HEADER + "1 2 3\n4 x 6\n");
+        MappedEsriASCIIGridReader.read(file.getPath());
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingValue() throws IOException {
+        write(HEADER + "1 2 3\n4 5\n");
+        MappedEsriASCIIGridReader.read(file.getPath());
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedValueEsriASCIIGridReader() throws IOException {
+        write(HEADER + "1 2 3\n4 x 6\n");
+        EsriASCIIGridReader.read(file.getPath());
+    }
+}